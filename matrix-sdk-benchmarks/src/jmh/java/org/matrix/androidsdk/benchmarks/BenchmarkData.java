@@ -0,0 +1,326 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Synthetic data generators.
+ * The generators are seeded so that two runs use the same data.
+ */
+class BenchmarkData {
+    // the benchmark user
+    static final String MY_USER_ID = "@bench:matrix.org";
+
+    // the benchmark room
+    static final String ROOM_ID = "!benchmark:matrix.org";
+
+    private static final String[] WORDS = {"hello", "matrix", "room", "the", "message", "sync", "android", "bench", "a", "with", "state", "event"};
+
+    static {
+        // the android logs are not available on a plain JVM
+        Log.setLogLevel(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Provides a member user id.
+     *
+     * @param index the member index
+     * @return the user id
+     */
+    static String userId(int index) {
+        return "@user" + index + ":matrix.org";
+    }
+
+    /**
+     * Provides a random text.
+     *
+     * @param random     the random generator
+     * @param wordsCount the number of words
+     * @return the text
+     */
+    static String text(Random random, int wordsCount) {
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < wordsCount; i++) {
+            if (i > 0) {
+                builder.append(" ");
+            }
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Provides the common fields of an event.
+     *
+     * @param type   the event type
+     * @param sender the sender
+     * @param roomId the room id
+     * @param index  the event index
+     * @return the event JSON
+     */
+    private static JsonObject baseEventJson(String type, String sender, String roomId, int index) {
+        JsonObject json = new JsonObject();
+        json.addProperty("type", type);
+        json.addProperty("sender", sender);
+        json.addProperty("room_id", roomId);
+        json.addProperty("event_id", "$" + index + "_" + Math.abs(roomId.hashCode()) + ":matrix.org");
+        json.addProperty("origin_server_ts", 1500000000000L + index * 1000L);
+        return json;
+    }
+
+    /**
+     * Provides a text message event.
+     *
+     * @param random the random generator
+     * @param roomId the room id
+     * @param sender the sender
+     * @param index  the event index
+     * @return the event JSON
+     */
+    static JsonObject messageEventJson(Random random, String roomId, String sender, int index) {
+        JsonObject json = baseEventJson(Event.EVENT_TYPE_MESSAGE, sender, roomId, index);
+
+        JsonObject content = new JsonObject();
+        content.addProperty("msgtype", "m.text");
+        content.addProperty("body", text(random, 5 + random.nextInt(30)));
+        json.add("content", content);
+
+        return json;
+    }
+
+    /**
+     * Provides a joined member state event.
+     *
+     * @param roomId the room id
+     * @param userId the member user id
+     * @param index  the event index
+     * @return the event JSON
+     */
+    static JsonObject memberEventJson(String roomId, String userId, int index) {
+        JsonObject json = baseEventJson(Event.EVENT_TYPE_STATE_ROOM_MEMBER, userId, roomId, index);
+        json.addProperty("state_key", userId);
+
+        JsonObject content = new JsonObject();
+        content.addProperty("membership", "join");
+        content.addProperty("displayname", "User " + index);
+        content.addProperty("avatar_url", "mxc://matrix.org/avatar" + index);
+        json.add("content", content);
+
+        return json;
+    }
+
+    /**
+     * Provides a state event with an empty state key.
+     *
+     * @param roomId the room id
+     * @param type   the event type
+     * @param key    the content key
+     * @param value  the content value
+     * @param index  the event index
+     * @return the event JSON
+     */
+    static JsonObject stateEventJson(String roomId, String type, String key, String value, int index) {
+        JsonObject json = baseEventJson(type, MY_USER_ID, roomId, index);
+        json.addProperty("state_key", "");
+
+        JsonObject content = new JsonObject();
+        content.addProperty(key, value);
+        json.add("content", content);
+
+        return json;
+    }
+
+    /**
+     * Provides the state events of a room.
+     *
+     * @param roomId       the room id
+     * @param membersCount the number of members
+     * @return the events JSON
+     */
+    static JsonArray roomStateJson(String roomId, int membersCount) {
+        JsonArray events = new JsonArray();
+
+        events.add(stateEventJson(roomId, Event.EVENT_TYPE_STATE_ROOM_NAME, "name", "Room " + roomId, 0));
+        events.add(stateEventJson(roomId, Event.EVENT_TYPE_STATE_ROOM_TOPIC, "topic", "The topic of " + roomId, 1));
+        events.add(stateEventJson(roomId, Event.EVENT_TYPE_STATE_ROOM_JOIN_RULES, "join_rule", "invite", 2));
+        events.add(memberEventJson(roomId, MY_USER_ID, 3));
+
+        for (int i = 0; i < membersCount; i++) {
+            events.add(memberEventJson(roomId, userId(i), 4 + i));
+        }
+
+        return events;
+    }
+
+    /**
+     * Provides an initial sync response.
+     *
+     * @param roomsCount    the number of joined rooms
+     * @param membersCount  the number of members per room
+     * @param messagesCount the number of timeline messages per room
+     * @return the sync response JSON
+     */
+    static String syncResponseJson(int roomsCount, int membersCount, int messagesCount) {
+        Random random = new Random(roomsCount * 31 + membersCount * 17 + messagesCount);
+
+        JsonObject joinedRooms = new JsonObject();
+
+        for (int r = 0; r < roomsCount; r++) {
+            String roomId = "!room" + r + ":matrix.org";
+
+            JsonObject state = new JsonObject();
+            state.add("events", roomStateJson(roomId, membersCount));
+
+            JsonArray timelineEvents = new JsonArray();
+
+            for (int i = 0; i < messagesCount; i++) {
+                timelineEvents.add(messageEventJson(random, roomId, userId(random.nextInt(Math.max(1, membersCount))), membersCount + 10 + i));
+            }
+
+            JsonObject timeline = new JsonObject();
+            timeline.add("events", timelineEvents);
+            timeline.addProperty("limited", true);
+            timeline.addProperty("prev_batch", "t" + r + "-prev");
+
+            JsonObject joinedRoom = new JsonObject();
+            joinedRoom.add("state", state);
+            joinedRoom.add("timeline", timeline);
+            joinedRooms.add(roomId, joinedRoom);
+        }
+
+        JsonObject rooms = new JsonObject();
+        rooms.add("join", joinedRooms);
+        rooms.add("invite", new JsonObject());
+        rooms.add("leave", new JsonObject());
+
+        JsonObject response = new JsonObject();
+        response.addProperty("next_batch", "s72595_4483_1934");
+        response.add("rooms", rooms);
+
+        return response.toString();
+    }
+
+    /**
+     * Provides message events.
+     *
+     * @param roomId       the room id
+     * @param count        the number of events
+     * @param membersCount the number of senders
+     * @return the events
+     */
+    static List<Event> messageEvents(String roomId, int count, int membersCount) {
+        Random random = new Random(count);
+        List<Event> events = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            events.add(JsonUtils.toEvent(messageEventJson(random, roomId, userId(random.nextInt(Math.max(1, membersCount))), i)));
+        }
+
+        return events;
+    }
+
+    /**
+     * Provides the state events of a room.
+     *
+     * @param roomId       the room id
+     * @param membersCount the number of members
+     * @return the events
+     */
+    static List<Event> stateEvents(String roomId, int membersCount) {
+        JsonArray array = roomStateJson(roomId, membersCount);
+        List<Event> events = new ArrayList<>(array.size());
+
+        for (int i = 0; i < array.size(); i++) {
+            events.add(JsonUtils.toEvent(array.get(i)));
+        }
+
+        return events;
+    }
+
+    /**
+     * Provides a push rule.
+     *
+     * @param ruleId     the rule id
+     * @param enabled    true if the rule is enabled
+     * @param conditions the conditions JSON
+     * @param actions    the actions JSON
+     * @return the rule JSON
+     */
+    private static String pushRuleJson(String ruleId, boolean enabled, String conditions, String actions) {
+        return "{\"rule_id\":\"" + ruleId + "\",\"default\":true,\"enabled\":" + enabled + ",\"conditions\":" + conditions + ",\"actions\":" + actions + "}";
+    }
+
+    /**
+     * @return the default server push rules
+     */
+    static String defaultPushRulesJson() {
+        String notify = "[\"notify\",{\"set_tweak\":\"highlight\",\"value\":false}]";
+        String highlight = "[\"notify\",{\"set_tweak\":\"sound\",\"value\":\"default\"},{\"set_tweak\":\"highlight\"}]";
+
+        return "{\"global\":{"
+                + "\"override\":["
+                + pushRuleJson(".m.rule.master", false, "[]", "[\"dont_notify\"]") + ","
+                + pushRuleJson(".m.rule.suppress_notices", true, "[{\"kind\":\"event_match\",\"key\":\"content.msgtype\",\"pattern\":\"m.notice\"}]", "[\"dont_notify\"]") + ","
+                + pushRuleJson(".m.rule.invite_for_me", true, "[{\"kind\":\"event_match\",\"key\":\"type\",\"pattern\":\"m.room.member\"},{\"kind\":\"event_match\",\"key\":\"content.membership\",\"pattern\":\"invite\"},{\"kind\":\"event_match\",\"key\":\"state_key\",\"pattern\":\"" + MY_USER_ID + "\"}]", highlight) + ","
+                + pushRuleJson(".m.rule.member_event", true, "[{\"kind\":\"event_match\",\"key\":\"type\",\"pattern\":\"m.room.member\"}]", "[\"dont_notify\"]") + ","
+                + pushRuleJson(".m.rule.contains_display_name", true, "[{\"kind\":\"contains_display_name\"}]", highlight)
+                + "],"
+                + "\"content\":[],"
+                + "\"room\":[],"
+                + "\"sender\":[],"
+                + "\"underride\":["
+                + pushRuleJson(".m.rule.room_one_to_one", true, "[{\"kind\":\"room_member_count\",\"is\":\"2\"},{\"kind\":\"event_match\",\"key\":\"type\",\"pattern\":\"m.room.message\"}]", highlight) + ","
+                + pushRuleJson(".m.rule.message", true, "[{\"kind\":\"event_match\",\"key\":\"type\",\"pattern\":\"m.room.message\"}]", notify) + ","
+                + pushRuleJson(".m.rule.encrypted", true, "[{\"kind\":\"event_match\",\"key\":\"type\",\"pattern\":\"m.room.encrypted\"}]", notify) + ","
+                + pushRuleJson(".m.rule.fallback", true, "[]", notify)
+                + "]}}";
+    }
+
+    /**
+     * Provides a data handler which only provides a store and the user id.
+     * A real MXDataHandler cannot be created without an android looper.
+     *
+     * @param store the store
+     * @return the data handler
+     */
+    static MXDataHandler dataHandler(IMXStore store) {
+        MXDataHandler dataHandler = mock(MXDataHandler.class);
+        when(dataHandler.getStore()).thenReturn(store);
+        when(dataHandler.getUserId()).thenReturn(MY_USER_ID);
+        when(dataHandler.getRoom(anyString(), anyBoolean())).thenReturn(null);
+        return dataHandler;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.benchmarks;
+
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.MXSession;
+import org.matrix.androidsdk.data.EventTimeline;
+import org.matrix.androidsdk.data.MyUser;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.store.MXMemoryStore;
+import org.matrix.androidsdk.network.NetworkConnectivityReceiver;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.client.BingRulesRestClient;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.User;
+import org.matrix.androidsdk.rest.model.bingrules.BingRule;
+import org.matrix.androidsdk.rest.model.bingrules.BingRulesResponse;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.matrix.androidsdk.util.BingRulesManager;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Push rules evaluation of the received events, with the default server push rules.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BingRulesBenchmark {
+    // the number of room members
+    @Param({"1", "100"})
+    public int mMembersCount;
+
+    // the evaluated events
+    private List<Event> mEvents;
+
+    private BingRulesManager mBingRulesManager;
+
+    @Setup
+    public void setup() {
+        MXDataHandler dataHandler = BenchmarkData.dataHandler(new MXMemoryStore());
+
+        // the room member count and the display name conditions are checked with the room members
+        Room room = new Room();
+        room.init(BenchmarkData.ROOM_ID, dataHandler);
+
+        for (Event event : BenchmarkData.stateEvents(BenchmarkData.ROOM_ID, mMembersCount)) {
+            room.getLiveState().applyState(event, EventTimeline.Direction.FORWARDS);
+        }
+
+        when(dataHandler.getRoom(eq(BenchmarkData.ROOM_ID), anyBoolean())).thenReturn(room);
+
+        Credentials credentials = new Credentials();
+        credentials.userId = BenchmarkData.MY_USER_ID;
+
+        User user = new User();
+        user.user_id = BenchmarkData.MY_USER_ID;
+        user.displayname = "Bench";
+
+        final BingRulesResponse rules = JsonUtils.getGson(false).fromJson(BenchmarkData.defaultPushRulesJson(), BingRulesResponse.class);
+
+        BingRulesRestClient restClient = mock(BingRulesRestClient.class);
+
+        // the rules are provided synchronously
+        doAnswer(new Answer<Void>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) {
+                ((ApiCallback<BingRulesResponse>) invocation.getArguments()[0]).onSuccess(rules);
+                return null;
+            }
+        }).when(restClient).getAllBingRules(any(ApiCallback.class));
+
+        MXSession session = mock(MXSession.class);
+        when(session.getBingRulesApiClient()).thenReturn(restClient);
+        when(session.getCredentials()).thenReturn(credentials);
+        when(session.getDataHandler()).thenReturn(dataHandler);
+        when(session.getMyUser()).thenReturn(new MyUser(user));
+
+        mBingRulesManager = new BingRulesManager(session, mock(NetworkConnectivityReceiver.class));
+        mBingRulesManager.loadRules(null);
+
+        mEvents = BenchmarkData.messageEvents(BenchmarkData.ROOM_ID, 100, mMembersCount);
+    }
+
+    @Benchmark
+    public void fulfilledBingRule(Blackhole blackhole) {
+        for (Event event : mEvents) {
+            BingRule rule = mBingRulesManager.fulfilledBingRule(event);
+            blackhole.consume(rule);
+        }
+    }
+}
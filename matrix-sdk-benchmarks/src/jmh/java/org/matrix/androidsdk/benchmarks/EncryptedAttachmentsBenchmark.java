@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.benchmarks;
+
+import org.matrix.androidsdk.crypto.MXEncryptedAttachments;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encryption and decryption of the attachments of the encrypted rooms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EncryptedAttachmentsBenchmark {
+    // the attachment size in KB
+    @Param({"64", "1024"})
+    public int mSizeKb;
+
+    // the attachment
+    private byte[] mAttachment;
+
+    // the encrypted attachment
+    private MXEncryptedAttachments.EncryptionResult mEncryptionResult;
+    private byte[] mEncryptedAttachment;
+
+    @Setup
+    public void setup() throws Exception {
+        mAttachment = new byte[mSizeKb * 1024];
+        new Random(mSizeKb).nextBytes(mAttachment);
+
+        mEncryptionResult = MXEncryptedAttachments.encryptAttachment(new ByteArrayInputStream(mAttachment), "application/octet-stream");
+        mEncryptedAttachment = readAll(mEncryptionResult.mEncryptedStream);
+    }
+
+    /**
+     * Read a stream.
+     *
+     * @param stream the stream
+     * @return the stream content
+     * @throws Exception if the read fails
+     */
+    private static byte[] readAll(InputStream stream) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[32 * 1024];
+        int len;
+
+        while ((len = stream.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+
+        stream.close();
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encryptAttachment() throws Exception {
+        MXEncryptedAttachments.EncryptionResult result = MXEncryptedAttachments.encryptAttachment(new ByteArrayInputStream(mAttachment), "application/octet-stream");
+        return readAll(result.mEncryptedStream);
+    }
+
+    @Benchmark
+    public byte[] decryptAttachment() throws Exception {
+        return readAll(MXEncryptedAttachments.decryptAttachment(new ByteArrayInputStream(mEncryptedAttachment), mEncryptionResult.mEncryptedFileInfo));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.benchmarks;
+
+import org.matrix.androidsdk.rest.model.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Events serialisation, as it is done by the file store (Event.writeExternal / Event.readExternal).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EventSerializationBenchmark {
+    // the number of events
+    @Param({"100", "1000"})
+    public int mEventsCount;
+
+    // the events
+    private List<Event> mEvents;
+
+    // the serialised events
+    private byte[] mSerializedEvents;
+
+    @Setup
+    public void setup() throws Exception {
+        mEvents = BenchmarkData.messageEvents(BenchmarkData.ROOM_ID, mEventsCount, 20);
+        mSerializedEvents = writeEvents();
+    }
+
+    @Benchmark
+    public byte[] writeEvents() throws Exception {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(byteStream);
+
+        out.writeInt(mEvents.size());
+
+        for (Event event : mEvents) {
+            event.writeExternal(out);
+        }
+
+        out.close();
+        return byteStream.toByteArray();
+    }
+
+    @Benchmark
+    public List<Event> readEvents() throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(mSerializedEvents));
+
+        int count = in.readInt();
+        List<Event> events = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            Event event = new Event();
+            event.readExternal(in);
+            events.add(event);
+        }
+
+        in.close();
+        return events;
+    }
+}
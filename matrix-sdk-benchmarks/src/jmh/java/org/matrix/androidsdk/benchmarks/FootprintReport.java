@@ -0,0 +1,274 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.benchmarks;
+
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.data.EventTimeline;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.data.RoomSummary;
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.data.store.MXMemoryStore;
+import org.matrix.androidsdk.rest.model.Event;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Measures the heap footprint of the rooms, members and events of generated datasets
+ * and compares it with the budgets file.
+ *
+ * Usage : FootprintReport budgetsFile reportFile [--update]
+ * It exits with the status 1 when a measure exceeds its budget or when a measure has no budget.
+ * With --update, the budgets are set to the measures plus BUDGET_MARGIN.
+ */
+public class FootprintReport {
+    // the measures
+    // bytes per message event
+    static final String EVENT_MESSAGE = "event.message";
+    // bytes per member state event
+    static final String EVENT_MEMBER = "event.member";
+    // bytes per room member in a room state
+    static final String MEMBER = "member";
+    // bytes of a room state without member
+    static final String ROOM_STATE = "room_state";
+    // bytes of a room summary, without the latest event and the latest room state
+    static final String ROOM_SUMMARY = "room_summary";
+    // bytes per room : the room, its live state, its summary and its timeline events
+    static final String ROOM = "room";
+
+    // the margin added to the measures when the budgets are updated
+    private static final double BUDGET_MARGIN = 0.05;
+
+    // the datasets size
+    private final int mRoomsCount = Integer.getInteger("footprint.rooms", 100);
+    private final int mMembersCount = Integer.getInteger("footprint.members", 100);
+    private final int mEventsCount = Integer.getInteger("footprint.events", 50);
+
+    // the shared infrastructure, never counted
+    private final IMXStore mStore = new MXMemoryStore();
+    private final MXDataHandler mDataHandler = BenchmarkData.dataHandler(mStore);
+
+    /**
+     * Build a room state.
+     *
+     * @param roomId       the room id
+     * @param membersCount the number of members
+     * @return the room state
+     */
+    private RoomState buildRoomState(String roomId, int membersCount) {
+        RoomState roomState = new RoomState();
+        roomState.roomId = roomId;
+        roomState.setDataHandler(mDataHandler);
+
+        for (Event event : BenchmarkData.stateEvents(roomId, membersCount)) {
+            roomState.applyState(event, EventTimeline.Direction.FORWARDS);
+        }
+
+        return roomState;
+    }
+
+    /**
+     * Computes the retained size of objects, without the shared infrastructure.
+     *
+     * @param root the objects
+     * @return the size in bytes
+     */
+    private long retainedSize(Object root) {
+        return ObjectFootprint.retainedSize(root, mDataHandler, mStore);
+    }
+
+    /**
+     * Measures the footprints.
+     *
+     * @return the bytes by measure name
+     */
+    Map<String, Long> measure() {
+        Map<String, Long> measures = new TreeMap<>();
+
+        // events
+        List<Event> messages = BenchmarkData.messageEvents(BenchmarkData.ROOM_ID, mEventsCount * mRoomsCount, mMembersCount);
+        Object[] messagesArray = messages.toArray();
+        measures.put(EVENT_MESSAGE, (retainedSize(messagesArray) - ObjectFootprint.retainedSize(new Object[messagesArray.length])) / messagesArray.length);
+
+        List<Event> members = BenchmarkData.stateEvents(BenchmarkData.ROOM_ID, mMembersCount);
+        // remove the non member events
+        members = members.subList(members.size() - mMembersCount, members.size());
+        Object[] membersArray = members.toArray();
+        measures.put(EVENT_MEMBER, (retainedSize(membersArray) - ObjectFootprint.retainedSize(new Object[membersArray.length])) / membersArray.length);
+
+        // room states
+        long emptyStateSize = retainedSize(buildRoomState(BenchmarkData.ROOM_ID, 0));
+        measures.put(ROOM_STATE, emptyStateSize);
+        measures.put(MEMBER, (retainedSize(buildRoomState(BenchmarkData.ROOM_ID, mMembersCount)) - emptyStateSize) / mMembersCount);
+
+        // summary
+        RoomState summaryState = buildRoomState(BenchmarkData.ROOM_ID, mMembersCount);
+        Event latestEvent = messages.get(0);
+        RoomSummary summary = new RoomSummary(BenchmarkData.ROOM_ID, "Room name", "Room topic", latestEvent);
+        summary.setMatrixId(BenchmarkData.MY_USER_ID);
+        summary.setLatestRoomState(summaryState);
+        measures.put(ROOM_SUMMARY, ObjectFootprint.retainedSize(summary, mDataHandler, mStore, summaryState, latestEvent));
+
+        // rooms
+        List<Object> rooms = new ArrayList<>();
+
+        for (int i = 0; i < mRoomsCount; i++) {
+            String roomId = "!room" + i + ":matrix.org";
+
+            Room room = new Room();
+            room.init(roomId, mDataHandler);
+
+            for (Event event : BenchmarkData.stateEvents(roomId, mMembersCount)) {
+                room.getLiveState().applyState(event, EventTimeline.Direction.FORWARDS);
+            }
+
+            List<Event> timeline = BenchmarkData.messageEvents(roomId, mEventsCount, mMembersCount);
+
+            RoomSummary roomSummary = new RoomSummary(roomId, "Room " + i, null, timeline.get(timeline.size() - 1));
+            roomSummary.setMatrixId(BenchmarkData.MY_USER_ID);
+            roomSummary.setLatestRoomState(room.getLiveState().deepCopy());
+
+            rooms.add(room);
+            rooms.add(roomSummary);
+            rooms.add(timeline);
+        }
+
+        Object[] roomsArray = rooms.toArray();
+        measures.put(ROOM, (retainedSize(roomsArray) - ObjectFootprint.retainedSize(new Object[roomsArray.length])) / mRoomsCount);
+
+        return measures;
+    }
+
+    /**
+     * Load a properties file.
+     *
+     * @param file the file
+     * @return the properties, empty if the file does not exist
+     * @throws Exception if the file cannot be read
+     */
+    private static Properties load(File file) throws Exception {
+        Properties properties = new Properties();
+
+        if (file.exists()) {
+            InputStream stream = new FileInputStream(file);
+
+            try {
+                properties.load(stream);
+            } finally {
+                stream.close();
+            }
+        }
+
+        return properties;
+    }
+
+    /**
+     * Save a properties file.
+     *
+     * @param properties the properties
+     * @param file       the file
+     * @param comment    the file comment
+     * @throws Exception if the file cannot be written
+     */
+    private static void save(Properties properties, File file, String comment) throws Exception {
+        File parent = file.getParentFile();
+
+        if ((null != parent) && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        OutputStream stream = new FileOutputStream(file);
+
+        try {
+            properties.store(stream, comment);
+        } finally {
+            stream.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage : FootprintReport budgetsFile reportFile [--update]");
+            System.exit(2);
+        }
+
+        File budgetsFile = new File(args[0]);
+        File reportFile = new File(args[1]);
+        boolean update = (args.length > 2) && "--update".equals(args[2]);
+
+        FootprintReport report = new FootprintReport();
+        Map<String, Long> measures = report.measure();
+
+        Properties budgets = load(budgetsFile);
+        Properties results = new Properties();
+        int exceededCount = 0;
+        int missingCount = 0;
+
+        System.out.println("Footprint of " + report.mRoomsCount + " rooms, " + report.mMembersCount + " members, " + report.mEventsCount + " events per room (" + System.getProperty("java.vm.name") + ")");
+
+        for (Map.Entry<String, Long> entry : measures.entrySet()) {
+            String name = entry.getKey();
+            long value = entry.getValue();
+            results.setProperty(name, "" + value);
+
+            String budget = budgets.getProperty(name);
+            String status = "          ";
+
+            if (update) {
+                budgets.setProperty(name, "" + (long) Math.ceil(value * (1 + BUDGET_MARGIN)));
+            } else if (null == budget) {
+                status = "NO BUDGET ";
+                missingCount++;
+            } else if (value > Long.parseLong(budget.trim())) {
+                status = "EXCEEDED  ";
+                exceededCount++;
+            } else {
+                status = "OK        ";
+            }
+
+            System.out.println(status + name + " : " + value + " bytes" + ((null != budget) ? " (budget " + budget.trim() + ")" : ""));
+        }
+
+        save(results, reportFile, "Heap footprint in bytes");
+
+        if (update) {
+            save(budgets, budgetsFile, "Heap footprint budgets in bytes, see FootprintReport");
+            System.out.println("The budgets have been updated in " + budgetsFile);
+        } else if ((exceededCount > 0) || (missingCount > 0)) {
+            if (exceededCount > 0) {
+                System.err.println(exceededCount + " footprint budget(s) exceeded");
+            }
+
+            if (missingCount > 0) {
+                System.err.println(missingCount + " measure(s) without budget, run footprintUpdateBudgets first");
+            }
+
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the sync responses and of the events with the SDK gson instance.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JsonParsingBenchmark {
+    // the number of joined rooms in the sync response
+    @Param({"10", "100"})
+    public int mRoomsCount;
+
+    // the sync response
+    private String mSyncResponse;
+
+    // a message event
+    private String mMessageEvent;
+    private JsonObject mMessageEventJson;
+
+    private Gson mGson;
+
+    @Setup
+    public void setup() {
+        mSyncResponse = BenchmarkData.syncResponseJson(mRoomsCount, 20, 20);
+        mMessageEventJson = BenchmarkData.messageEventJson(new Random(0), BenchmarkData.ROOM_ID, BenchmarkData.userId(0), 0);
+        mMessageEvent = mMessageEventJson.toString();
+        mGson = JsonUtils.getGson(false);
+    }
+
+    @Benchmark
+    public SyncResponse parseSyncResponse() {
+        return mGson.fromJson(mSyncResponse, SyncResponse.class);
+    }
+
+    @Benchmark
+    public Event parseEventString() {
+        return mGson.fromJson(mMessageEvent, Event.class);
+    }
+
+    @Benchmark
+    public Event parseEventJsonObject() {
+        return JsonUtils.toEvent(mMessageEventJson);
+    }
+
+    @Benchmark
+    public JsonObject serializeEvent() {
+        return JsonUtils.toJson(JsonUtils.toEvent(mMessageEventJson));
+    }
+}
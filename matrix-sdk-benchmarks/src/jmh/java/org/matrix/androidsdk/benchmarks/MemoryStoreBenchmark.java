@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.benchmarks;
+
+import org.matrix.androidsdk.data.store.MXMemoryStore;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.TokensChunkResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Events insertion and queries of the memory store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MemoryStoreBenchmark {
+    // the number of events in the room
+    @Param({"100", "1000"})
+    public int mEventsCount;
+
+    // the events
+    private List<Event> mEvents;
+
+    // a store which contains the events
+    private MXMemoryStore mFilledStore;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mEvents = BenchmarkData.messageEvents(BenchmarkData.ROOM_ID, mEventsCount, 20);
+        mFilledStore = storeLiveRoomEvents();
+    }
+
+    @Benchmark
+    public MXMemoryStore storeLiveRoomEvents() {
+        MXMemoryStore store = new MXMemoryStore();
+
+        for (Event event : mEvents) {
+            store.storeLiveRoomEvent(event);
+        }
+
+        return store;
+    }
+
+    @Benchmark
+    public Event getLatestEvent() {
+        return mFilledStore.getLatestEvent(BenchmarkData.ROOM_ID);
+    }
+
+    @Benchmark
+    public Collection<Event> getRoomMessages() {
+        return mFilledStore.getRoomMessages(BenchmarkData.ROOM_ID);
+    }
+
+    @Benchmark
+    public TokensChunkResponse<Event> getEarlierMessages() {
+        return mFilledStore.getEarlierMessages(BenchmarkData.ROOM_ID, null, 30);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.benchmarks;
+
+import org.openjdk.jol.vm.VM;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes the retained size of an objects graph.
+ * The objects sizes are provided by the JVM (JOL), the graph is walked by reflection.
+ * The excluded objects (and the objects only reachable through them) are not counted :
+ * it is used to skip the shared infrastructure (data handler, store...).
+ * The classes, the enum constants and the threads are never counted.
+ */
+class ObjectFootprint {
+    // the reference fields by class
+    private static final Map<Class<?>, List<Field>> sFieldsByClass = new HashMap<>();
+
+    /**
+     * Provides the non static reference fields of a class and of its super classes.
+     *
+     * @param aClass the class
+     * @return the fields
+     */
+    private static synchronized List<Field> getReferenceFields(Class<?> aClass) {
+        List<Field> fields = sFieldsByClass.get(aClass);
+
+        if (null == fields) {
+            fields = new ArrayList<>();
+
+            for (Class<?> c = aClass; null != c; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()) && !field.getType().isPrimitive()) {
+                        try {
+                            field.setAccessible(true);
+                            fields.add(field);
+                        } catch (Exception e) {
+                            // the field cannot be read : it is not counted
+                        }
+                    }
+                }
+            }
+
+            sFieldsByClass.put(aClass, fields);
+        }
+
+        return fields;
+    }
+
+    /**
+     * Tells if an object is never counted.
+     *
+     * @param object the object
+     * @return true if it is skipped
+     */
+    private static boolean isSkipped(Object object) {
+        return (object instanceof Class) || (object instanceof Enum) || (object instanceof Thread) || (object instanceof ClassLoader);
+    }
+
+    /**
+     * Computes the retained size of an objects graph.
+     *
+     * @param root     the graph root
+     * @param excluded the objects which are not counted
+     * @return the size in bytes
+     */
+    static long retainedSize(Object root, Object... excluded) {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        Collections.addAll(visited, excluded);
+
+        Deque<Object> toVisit = new ArrayDeque<>();
+
+        if ((null != root) && visited.add(root)) {
+            toVisit.push(root);
+        }
+
+        long size = 0;
+
+        while (!toVisit.isEmpty()) {
+            Object object = toVisit.pop();
+
+            if (isSkipped(object)) {
+                continue;
+            }
+
+            size += VM.current().sizeOf(object);
+
+            Class<?> aClass = object.getClass();
+
+            if (aClass.isArray()) {
+                if (!aClass.getComponentType().isPrimitive()) {
+                    for (Object item : (Object[]) object) {
+                        if ((null != item) && visited.add(item)) {
+                            toVisit.push(item);
+                        }
+                    }
+                }
+            } else {
+                for (Field field : getReferenceFields(aClass)) {
+                    try {
+                        Object value = field.get(object);
+
+                        if ((null != value) && visited.add(value)) {
+                            toVisit.push(value);
+                        }
+                    } catch (Exception e) {
+                        // the field cannot be read : it is not counted
+                    }
+                }
+            }
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.benchmarks;
+
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.data.EventTimeline;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.data.store.MXMemoryStore;
+import org.matrix.androidsdk.rest.model.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Room state updates and copies, which are done for each joined room during the initial sync.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoomStateBenchmark {
+    // the number of room members
+    @Param({"10", "100", "1000"})
+    public int mMembersCount;
+
+    // the state events
+    private List<Event> mStateEvents;
+
+    private MXDataHandler mDataHandler;
+
+    // a fully initialised room state
+    private RoomState mRoomState;
+
+    @Setup
+    public void setup() {
+        mStateEvents = BenchmarkData.stateEvents(BenchmarkData.ROOM_ID, mMembersCount);
+        mDataHandler = BenchmarkData.dataHandler(new MXMemoryStore());
+        mRoomState = applyState();
+    }
+
+    @Benchmark
+    public RoomState applyState() {
+        RoomState roomState = new RoomState();
+        roomState.roomId = BenchmarkData.ROOM_ID;
+        roomState.setDataHandler(mDataHandler);
+
+        for (Event event : mStateEvents) {
+            roomState.applyState(event, EventTimeline.Direction.FORWARDS);
+        }
+
+        return roomState;
+    }
+
+    @Benchmark
+    public RoomState deepCopy() {
+        return mRoomState.deepCopy();
+    }
+}
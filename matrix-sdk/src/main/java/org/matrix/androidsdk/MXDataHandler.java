@@ -25,6 +25,8 @@ import org.matrix.androidsdk.call.MXCallsManager;
 import org.matrix.androidsdk.crypto.MXCrypto;
 import org.matrix.androidsdk.crypto.MXCryptoError;
 import org.matrix.androidsdk.data.DataRetriever;
+import org.matrix.androidsdk.data.MXDirectChatsIndex;
+import org.matrix.androidsdk.data.MXRoomListIndex;
 import org.matrix.androidsdk.data.store.IMXStore;
 import org.matrix.androidsdk.data.MyUser;
 import org.matrix.androidsdk.data.Room;
@@ -52,6 +54,7 @@ import org.matrix.androidsdk.rest.model.bingrules.BingRuleSet;
 import org.matrix.androidsdk.rest.model.bingrules.BingRulesResponse;
 import org.matrix.androidsdk.rest.model.bingrules.Condition;
 import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.matrix.androidsdk.sync.MXSyncMetrics;
 import org.matrix.androidsdk.util.BingRulesManager;
 import org.matrix.androidsdk.util.JsonUtils;
 import org.matrix.androidsdk.util.MXOsHandler;
@@ -126,6 +129,15 @@ public class MXDataHandler implements IMXEventListener {
     // the crypto is only started when the sync did not retrieve new device
     private boolean mIsStartingCryptoWithInitialSync = false;
 
+    // the sorted rooms lists by tag
+    private final MXRoomListIndex mRoomListIndex;
+
+    // the direct chats by user and by room
+    private final MXDirectChatsIndex mDirectChatsIndex;
+
+    // the sync pipeline metrics
+    private final MXSyncMetrics mSyncMetrics = new MXSyncMetrics();
+
     /**
      * Default constructor.
      * @param store the data storage implementation.
@@ -133,6 +145,8 @@ public class MXDataHandler implements IMXEventListener {
     public MXDataHandler(IMXStore store, Credentials credentials,InvalidTokenListener invalidTokenListener) {
         mStore = store;
         mCredentials = credentials;
+        mRoomListIndex = new MXRoomListIndex(store);
+        mDirectChatsIndex = new MXDirectChatsIndex(store);
 
         mUiHandler = new MXOsHandler(Looper.getMainLooper());
 
@@ -501,6 +515,27 @@ public class MXDataHandler implements IMXEventListener {
         }
     }
 
+    /**
+     * @return the sync pipeline metrics.
+     */
+    public MXSyncMetrics getSyncMetrics() {
+        return mSyncMetrics;
+    }
+
+    /**
+     * @return the sorted rooms lists by tag.
+     */
+    public MXRoomListIndex getRoomListIndex() {
+        return mRoomListIndex;
+    }
+
+    /**
+     * @return the direct chats index.
+     */
+    public MXDirectChatsIndex getDirectChatsIndex() {
+        return mDirectChatsIndex;
+    }
+
     /**
      * @return the used store.
      */
@@ -583,7 +618,7 @@ public class MXDataHandler implements IMXEventListener {
         synchronized (this) {
             room = store.getRoom(roomId);
             if ((room == null) && create) {
-                Log.d(LOG_TAG, "## getRoom() : create the room " + roomId);
+                Log.d(LOG_TAG, "## getRoom() : create the room %s", roomId);
                 room = new Room();
                 room.init(roomId, this);
                 store.storeRoom(room);
@@ -854,6 +889,7 @@ public class MXDataHandler implements IMXEventListener {
                         Map<String, List<String>> contentDict = (Map<String, List<String>>) event.get("content");
 
                         mStore.setDirectChatRoomsDict(contentDict);
+                        mDirectChatsIndex.invalidate();
 
                         if (!isInitialSync) {
                             // warn there is an update
@@ -954,7 +990,7 @@ public class MXDataHandler implements IMXEventListener {
             if ((null != syncResponse.toDevice) &&
                     (null != syncResponse.toDevice.events) &&
                     (syncResponse.toDevice.events.size() > 0)) {
-                Log.d(LOG_TAG, "manageResponse : receives " + syncResponse.toDevice.events.size() + " toDevice events");
+                Log.d(LOG_TAG, "manageResponse : receives %d toDevice events", syncResponse.toDevice.events.size());
 
                 for (Event toDeviceEvent : syncResponse.toDevice.events) {
                     handleToDeviceEvent(toDeviceEvent);
@@ -965,13 +1001,15 @@ public class MXDataHandler implements IMXEventListener {
             if (null != syncResponse.rooms) {
                 // joined rooms events
                 if ((null != syncResponse.rooms.join) && (syncResponse.rooms.join.size() > 0)) {
-                    Log.d(LOG_TAG, "Received " + syncResponse.rooms.join.size() + " joined rooms");
+                    Log.d(LOG_TAG, "Received %d joined rooms", syncResponse.rooms.join.size());
 
                     Set<String> roomIds = syncResponse.rooms.join.keySet();
 
                     // Handle first joined rooms
                     for (String roomId : roomIds) {
+                        long t0 = mSyncMetrics.startTimer();
                         getRoom(roomId).handleJoinedRoomSync(syncResponse.rooms.join.get(roomId), isInitialSync);
+                        mSyncMetrics.stopTimer(MXSyncMetrics.JOINED_ROOM_SYNC, t0);
                     }
 
                     isEmptyResponse = false;
@@ -979,12 +1017,12 @@ public class MXDataHandler implements IMXEventListener {
 
                 // invited room management
                 if ((null != syncResponse.rooms.invite) && (syncResponse.rooms.invite.size() > 0)) {
-                    Log.d(LOG_TAG, "Received " + syncResponse.rooms.invite.size() + " invited rooms");
+                    Log.d(LOG_TAG, "Received %d invited rooms", syncResponse.rooms.invite.size());
 
                     Set<String> roomIds = syncResponse.rooms.invite.keySet();
 
                     for (String roomId : roomIds) {
-                        Log.d(LOG_TAG, "## manageResponse() : the user has been invited to " + roomId);
+                        Log.d(LOG_TAG, "## manageResponse() : the user has been invited to %s", roomId);
                         getRoom(roomId).handleInvitedRoomSync(syncResponse.rooms.invite.get(roomId));
                     }
 
@@ -995,7 +1033,7 @@ public class MXDataHandler implements IMXEventListener {
                 // it should be done at the end but it seems there is a server issue
                 // when inviting after leaving a room, the room is defined in the both leave & invite rooms list.
                 if ((null != syncResponse.rooms.leave) && (syncResponse.rooms.leave.size() > 0)) {
-                    Log.d(LOG_TAG, "Received " + syncResponse.rooms.leave.size() + " left rooms");
+                    Log.d(LOG_TAG, "Received %d left rooms", syncResponse.rooms.leave.size());
 
                     Set<String> roomIds = syncResponse.rooms.leave.keySet();
 
@@ -1014,11 +1052,11 @@ public class MXDataHandler implements IMXEventListener {
                             // The room will then able to notify its listeners.
                             room.handleJoinedRoomSync(syncResponse.rooms.leave.get(roomId), isInitialSync);
 
-                            Log.d(LOG_TAG, "## manageResponse() : leave the room " + roomId);
+                            Log.d(LOG_TAG, "## manageResponse() : leave the room %s", roomId);
                             this.getStore().deleteRoom(roomId);
                             onLeaveRoom(roomId);
                         } else {
-                            Log.d(LOG_TAG, "## manageResponse() : Try to leave an unknown room " + roomId);
+                            Log.d(LOG_TAG, "## manageResponse() : Try to leave an unknown room %s", roomId);
                         }
                     }
 
@@ -1045,8 +1083,10 @@ public class MXDataHandler implements IMXEventListener {
             IMXStore store = getStore();
 
             if (!isEmptyResponse && (null != store)) {
+                long t0 = mSyncMetrics.startTimer();
                 store.setEventStreamToken(syncResponse.nextBatch);
                 store.commit();
+                mSyncMetrics.stopTimer(MXSyncMetrics.STORE_COMMIT, t0);
             }
         }
 
@@ -1125,7 +1165,15 @@ public class MXDataHandler implements IMXEventListener {
     public boolean decryptEvent(Event event, String timelineId) {
         if ((null != event) && TextUtils.equals(event.getType(), Event.EVENT_TYPE_MESSAGE_ENCRYPTED)) {
             if (null != getCrypto()) {
-                return getCrypto().decryptEvent(event, timelineId);
+                long t0 = mSyncMetrics.startTimer();
+                boolean res = getCrypto().decryptEvent(event, timelineId);
+                mSyncMetrics.stopTimer(MXSyncMetrics.CRYPTO_DECRYPT, t0);
+
+                if (!res) {
+                    mSyncMetrics.increment(MXSyncMetrics.DECRYPTION_FAILURES_COUNT, 1);
+                }
+
+                return res;
             } else {
                 event.setClearEvent(null);
                 event.setCryptoError(new MXCryptoError(MXCryptoError.ENCRYPTING_NOT_ENABLED_ERROR_CODE, MXCryptoError.ENCRYPTING_NOT_ENABLED_REASON, null));
@@ -1135,6 +1183,24 @@ public class MXDataHandler implements IMXEventListener {
         return false;
     }
 
+    /**
+     * Decrypt a batch of events.
+     * The events which are not encrypted are ignored.
+     * @param events the events to decrypt
+     * @param timelineId the timeline identifier
+     */
+    public void decryptEvents(List<Event> events, String timelineId) {
+        if (null != getCrypto()) {
+            long t0 = mSyncMetrics.startTimer();
+            getCrypto().decryptEvents(events, timelineId);
+            mSyncMetrics.stopTimer(MXSyncMetrics.CRYPTO_DECRYPT_BATCH, t0);
+        } else if (null != events) {
+            for (Event event : events) {
+                decryptEvent(event, timelineId);
+            }
+        }
+    }
+
     /**
      * Reset replay attack data for the given timeline.
      * @param timelineId the timeline id
@@ -1175,6 +1241,8 @@ public class MXDataHandler implements IMXEventListener {
         mUiHandler.post(new Runnable() {
             @Override
             public void run() {
+                mRoomListIndex.invalidate();
+
                 for (IMXEventListener listener : eventListeners) {
                     try {
                         listener.onStoreReady();
@@ -1210,6 +1278,11 @@ public class MXDataHandler implements IMXEventListener {
 
     @Override
     public void onPresenceUpdate(final Event event, final User user) {
+        // the cached presence response is outdated
+        if ((null != mPresenceRestClient) && (null != user) && (null != user.user_id)) {
+            mPresenceRestClient.invalidatePresenceCache(user.user_id);
+        }
+
         if (null != mCryptoEventsListener) {
             mCryptoEventsListener.onPresenceUpdate(event, user);
         }
@@ -1240,7 +1313,10 @@ public class MXDataHandler implements IMXEventListener {
     public void onLiveEvent(final Event event, final RoomState roomState) {
         String type = event.getType();
 
-        if (!TextUtils.equals(Event.EVENT_TYPE_TYPING, type) && !TextUtils.equals(Event.EVENT_TYPE_RECEIPT, type) && !TextUtils.equals(Event.EVENT_TYPE_TYPING, type)) {
+        // the typing and receipt events do not update the latest room event
+        final boolean fRefreshRoomListIndex = !TextUtils.equals(Event.EVENT_TYPE_TYPING, type) && !TextUtils.equals(Event.EVENT_TYPE_RECEIPT, type);
+
+        if (fRefreshRoomListIndex) {
             synchronized (mUpdatedRoomIdList) {
                 if (mUpdatedRoomIdList.indexOf(roomState.roomId) < 0) {
                     mUpdatedRoomIdList.add(roomState.roomId);
@@ -1248,6 +1324,17 @@ public class MXDataHandler implements IMXEventListener {
             }
         }
 
+        // the cached profile and aliases responses are outdated
+        if (TextUtils.equals(Event.EVENT_TYPE_STATE_ROOM_MEMBER, type)) {
+            if ((null != mProfileRestClient) && (null != event.stateKey)) {
+                mProfileRestClient.invalidateProfileCache(event.stateKey);
+            }
+        } else if (TextUtils.equals(Event.EVENT_TYPE_STATE_ROOM_ALIASES, type) || TextUtils.equals(Event.EVENT_TYPE_STATE_CANONICAL_ALIAS, type)) {
+            if (null != mRoomsRestClient) {
+                mRoomsRestClient.invalidateRoomAliasCache(null);
+            }
+        }
+
         if (null != mCryptoEventsListener) {
             mCryptoEventsListener.onLiveEvent(event, roomState);
         }
@@ -1257,6 +1344,12 @@ public class MXDataHandler implements IMXEventListener {
         mUiHandler.post(new Runnable() {
             @Override
             public void run() {
+                if (fRefreshRoomListIndex) {
+                    mRoomListIndex.onRoomUpdated(roomState.roomId);
+                }
+
+                long t0 = mSyncMetrics.startTimer();
+
                 for (IMXEventListener listener : eventListeners) {
                     try {
                         listener.onLiveEvent(event, roomState);
@@ -1264,6 +1357,8 @@ public class MXDataHandler implements IMXEventListener {
                         Log.e(LOG_TAG, "onLiveEvent " + e.getMessage());
                     }
                 }
+
+                mSyncMetrics.stopTimer(MXSyncMetrics.LISTENERS_DISPATCH, t0);
             }
         });
     }
@@ -1415,6 +1510,8 @@ public class MXDataHandler implements IMXEventListener {
         mUiHandler.post(new Runnable() {
             @Override
             public void run() {
+                mRoomListIndex.invalidate();
+
                 for (IMXEventListener listener : eventListeners) {
                     try {
                         listener.onInitialSyncComplete(mInitialSyncToToken);
@@ -1502,6 +1599,8 @@ public class MXDataHandler implements IMXEventListener {
         mUiHandler.post(new Runnable() {
             @Override
             public void run() {
+                mRoomListIndex.onRoomUpdated(roomId);
+
                 for (IMXEventListener listener : eventListeners) {
                     try {
                         listener.onNewRoom(roomId);
@@ -1524,6 +1623,8 @@ public class MXDataHandler implements IMXEventListener {
         mUiHandler.post(new Runnable() {
             @Override
             public void run() {
+                mRoomListIndex.onRoomUpdated(roomId);
+
                 for (IMXEventListener listener : eventListeners) {
                     try {
                         listener.onJoinRoom(roomId);
@@ -1590,6 +1691,8 @@ public class MXDataHandler implements IMXEventListener {
         mUiHandler.post(new Runnable() {
             @Override
             public void run() {
+                mRoomListIndex.onRoomRemoved(roomId);
+
                 for (IMXEventListener listener : eventListeners) {
                     try {
                         listener.onLeaveRoom(roomId);
@@ -1641,6 +1744,8 @@ public class MXDataHandler implements IMXEventListener {
         mUiHandler.post(new Runnable() {
             @Override
             public void run() {
+                mRoomListIndex.onRoomUpdated(roomId);
+
                 for (IMXEventListener listener : eventListeners) {
                     try {
                         listener.onRoomTagEvent(roomId);
@@ -1663,6 +1768,8 @@ public class MXDataHandler implements IMXEventListener {
         mUiHandler.post(new Runnable() {
             @Override
             public void run() {
+                mRoomListIndex.onRoomUpdated(roomId);
+
                 for (IMXEventListener listener : eventListeners) {
                     try {
                         listener.onRoomFlush(roomId);
@@ -28,6 +28,7 @@ import com.google.gson.JsonObject;
 import org.matrix.androidsdk.call.MXCallsManager;
 import org.matrix.androidsdk.crypto.MXCrypto;
 import org.matrix.androidsdk.data.DataRetriever;
+import org.matrix.androidsdk.data.MXDirectChatsIndex;
 import org.matrix.androidsdk.data.MyUser;
 import org.matrix.androidsdk.data.Room;
 import org.matrix.androidsdk.data.RoomState;
@@ -35,6 +36,7 @@ import org.matrix.androidsdk.data.RoomSummary;
 import org.matrix.androidsdk.data.RoomTag;
 import org.matrix.androidsdk.data.cryptostore.IMXCryptoStore;
 import org.matrix.androidsdk.data.cryptostore.MXFileCryptoStore;
+import org.matrix.androidsdk.data.cryptostore.MXSQLiteCryptoStore;
 import org.matrix.androidsdk.data.store.IMXStore;
 import org.matrix.androidsdk.data.store.MXStoreListener;
 import org.matrix.androidsdk.db.MXLatestChatMessageCache;
@@ -49,6 +51,7 @@ import org.matrix.androidsdk.rest.client.CallRestClient;
 import org.matrix.androidsdk.rest.client.CryptoRestClient;
 import org.matrix.androidsdk.rest.client.EventsRestClient;
 import org.matrix.androidsdk.rest.client.LoginRestClient;
+import org.matrix.androidsdk.rest.client.MXRestRequestScheduler;
 import org.matrix.androidsdk.rest.client.PresenceRestClient;
 import org.matrix.androidsdk.rest.client.ProfileRestClient;
 import org.matrix.androidsdk.rest.client.PushersRestClient;
@@ -71,6 +74,7 @@ import org.matrix.androidsdk.rest.model.login.RegistrationFlowResponse;
 import org.matrix.androidsdk.sync.DefaultEventsThreadListener;
 import org.matrix.androidsdk.sync.EventsThread;
 import org.matrix.androidsdk.sync.EventsThreadListener;
+import org.matrix.androidsdk.sync.MXSyncMetrics;
 import org.matrix.androidsdk.util.BingRulesManager;
 import org.matrix.androidsdk.util.ContentManager;
 import org.matrix.androidsdk.util.JsonUtils;
@@ -202,12 +206,12 @@ public class MXSession {
         mDataHandler.getStore().addMXStoreListener(new MXStoreListener() {
             @Override
             public void postProcess(String accountId) {
-                MXFileCryptoStore store = new MXFileCryptoStore();
+                IMXCryptoStore store = createCryptoStore();
                 store.initWithCredentials(mAppContent, mCredentials);
 
                 if (store.hasData() || mEnableCryptoWhenStartingMXSession) {
                     // open the store
-                    store.open();
+                    store = openCryptoStore(store);
 
                     // enable
                     mCrypto = new MXCrypto(MXSession.this, store);
@@ -239,6 +243,7 @@ public class MXSession {
         mDataHandler.setPresenceRestClient(mPresenceRestClient);
         mDataHandler.setThirdPidRestClient(mThirdPidRestClient);
         mDataHandler.setRoomsRestClient(mRoomsRestClient);
+        mEventsRestClient.setSyncMetrics(mDataHandler.getSyncMetrics());
 
         // application context
         mAppContent = appContext;
@@ -339,6 +344,17 @@ public class MXSession {
         return mDataHandler;
     }
 
+    /**
+     * Provides the sync pipeline metrics (round trip, parsing, rooms management, decryption, store commit...).
+     * They are disabled by default, use {@link MXSyncMetrics#setEnabled(boolean)} to record them
+     * and {@link MXSyncMetrics#dump()} to add them to a bug report.
+     *
+     * @return the sync metrics.
+     */
+    public MXSyncMetrics getSyncMetrics() {
+        return mDataHandler.getSyncMetrics();
+    }
+
     /**
      * Get the user credentials.
      *
@@ -530,6 +546,8 @@ public class MXSession {
         mLatestChatMessageCache.clearCache(context);
         mMediasCache.clear();
 
+        MXRestRequestScheduler.removeInstance(mCredentials.userId);
+
         if (null != mCrypto) {
             mCrypto.close();
         }
@@ -767,6 +785,11 @@ public class MXSession {
             mCallsManager.pauseTurnServerRefresh();
         }
 
+        // the decryption cache is only saved periodically while the application is running
+        if (null != mCrypto) {
+            mCrypto.saveDecryptionCache();
+        }
+
         if (null != mEventsThread) {
             Log.d(LOG_TAG, "pauseEventStream");
             mEventsThread.pause();
@@ -1223,59 +1246,14 @@ public class MXSession {
      */
     public List<Room> roomsWithTag(final String tag) {
         ArrayList<Room> taggedRooms = new ArrayList<>();
+        IMXStore store = mDataHandler.getStore();
 
-        if (!TextUtils.equals(tag, RoomTag.ROOM_TAG_NO_TAG)) {
-            Collection<Room> rooms = mDataHandler.getStore().getRooms();
-
-            for (Room room : rooms) {
-                if (null != room.getAccountData().roomTag(tag)) {
-                    taggedRooms.add(room);
-                }
-            }
-
-            if (taggedRooms.size() > 0) {
-                Collections.sort(taggedRooms, new Comparator<Room>() {
-                    @Override
-                    public int compare(Room r1, Room r2) {
-                        int res = 0;
-
-                        RoomTag tag1 = r1.getAccountData().roomTag(tag);
-                        RoomTag tag2 = r2.getAccountData().roomTag(tag);
-
-                        if ((null != tag1.mOrder) && (null != tag2.mOrder)) {
-                            double diff = (tag1.mOrder - tag2.mOrder);
-                            res = (diff == 0) ? 0 : (diff > 0) ? +1 : -1;
-                        } else if (null != tag1.mOrder) {
-                            res = -1;
-                        } else if (null != tag2.mOrder) {
-                            res = +1;
-                        }
-
-                        // In case of same order, order rooms by their last event
-                        if (0 == res) {
-                            IMXStore store = mDataHandler.getStore();
-
-                            Event latestEvent1 = store.getLatestEvent(r1.getRoomId());
-                            Event latestEvent2 = store.getLatestEvent(r2.getRoomId());
-
-                            // sanity check
-                            if ((null != latestEvent2) && (null != latestEvent1)) {
-                                long diff = (latestEvent2.getOriginServerTs() - latestEvent1.getOriginServerTs());
-                                res = (diff == 0) ? 0 : (diff > 0) ? +1 : -1;
-                            }
-                        }
-
-                        return res;
-                    }
-                });
-            }
-        } else {
-            Collection<Room> rooms = mDataHandler.getStore().getRooms();
+        // the sorted lists are maintained by the room list index
+        for (String roomId : mDataHandler.getRoomListIndex().getRoomIds(tag)) {
+            Room room = store.getRoom(roomId);
 
-            for (Room room : rooms) {
-                if (!room.getAccountData().hasTags()) {
-                    taggedRooms.add(room);
-                }
+            if (null != room) {
+                taggedRooms.add(room);
             }
         }
 
@@ -1290,15 +1268,7 @@ public class MXSession {
      * @return the room IDs list.
      */
     public List<String> roomIdsWithTag(final String tag) {
-        List<Room> roomsWithTag = roomsWithTag(tag);
-
-        ArrayList<String> roomIdsList = new ArrayList<>();
-
-        for (Room room : roomsWithTag) {
-            roomIdsList.add(room.getRoomId());
-        }
-
-        return roomIdsList;
+        return mDataHandler.getRoomListIndex().getRoomIds(tag);
     }
 
     /**
@@ -1366,20 +1336,15 @@ public class MXSession {
             return directChatRoomIdsList;
         }
 
-        Collection<List<String>> listOfList = null;
-
-        if (null != store.getDirectChatRoomsDict()) {
-            listOfList = store.getDirectChatRoomsDict().values();
-        }
+        MXDirectChatsIndex directChatsIndex = getDataHandler().getDirectChatsIndex();
 
         // if the direct messages entry has been defined
-        if (null != listOfList) {
-            for (List<String> list : listOfList) {
-                for (String roomId : list) {
-                    // test if the room is defined once and exists
-                    if ((directChatRoomIdsList.indexOf(roomId) < 0) && (null != store.getRoom(roomId))) {
-                        directChatRoomIdsList.add(roomId);
-                    }
+        if (directChatsIndex.isDefined()) {
+            // the index lists each room once
+            for (String roomId : directChatsIndex.getRoomIds()) {
+                // test if the room exists
+                if (null != store.getRoom(roomId)) {
+                    directChatRoomIdsList.add(roomId);
                 }
             }
         } else {
@@ -1482,18 +1447,14 @@ public class MXSession {
     public List<String> getDirectChatRoomIdsList(String aSearchedUserId) {
         ArrayList<String> directChatRoomIdsList = new ArrayList<>();
         IMXStore store = getDataHandler().getStore();
-        Room room;
+        MXDirectChatsIndex directChatsIndex = getDataHandler().getDirectChatsIndex();
 
-        HashMap<String, List<String>> params;
+        if (directChatsIndex.isDefined()) {
+            List<String> roomIds = directChatsIndex.getRoomIds(aSearchedUserId);
 
-        if(null != store.getDirectChatRoomsDict()) {
-            params = new HashMap<>(store.getDirectChatRoomsDict());
-            if (params.containsKey(aSearchedUserId)) {
-                directChatRoomIdsList = new ArrayList<>();
-
-                for(String roomId: params.get(aSearchedUserId)) {
-                    room = store.getRoom(roomId);
-                    if(null != room) { // skipp empty rooms
+            if (0 != roomIds.size()) {
+                for (String roomId : roomIds) {
+                    if (null != store.getRoom(roomId)) { // skipp empty rooms
                         directChatRoomIdsList.add(roomId);
                     }
                 }
@@ -1532,7 +1493,7 @@ public class MXSession {
             }
 
             // if the room was not yet seen as direct chat
-            if (getDirectChatRoomIdsList().indexOf(roomId) < 0) {
+            if (!getDataHandler().getDirectChatsIndex().isDirectChatRoom(roomId)) {
                 ArrayList<String> roomIdsList = new ArrayList<>();
                 RoomMember directChatMember = null;
                 String chosenUserId;
@@ -1606,12 +1567,15 @@ public class MXSession {
                 params.put(chosenUserId, roomIdsList);
             } else {
                 // remove the current room from the direct chat list rooms
+                // the store lists are not updated : the new account data will be received with the events stream
                 if (null != store.getDirectChatRoomsDict()) {
-                    Collection<List<String>> listOfList = store.getDirectChatRoomsDict().values();
+                    for (String userId : new ArrayList<>(params.keySet())) {
+                        List<String> list = params.get(userId);
 
-                    for (List<String> list : listOfList) {
-                        if (list.contains(roomId)) {
+                        if ((null != list) && list.contains(roomId)) {
+                            list = new ArrayList<>(list);
                             list.remove(roomId);
+                            params.put(userId, list);
                         }
                     }
                 } else {
@@ -1857,6 +1821,49 @@ public class MXSession {
         mEnableCryptoWhenStartingMXSession = true;
     }
 
+    /**
+     * use the SQLite crypto store instead of the file one
+     */
+    private boolean mUseSQLiteCryptoStore = false;
+
+    /**
+     * Use the SQLite crypto store, which loads the crypto data on demand.
+     * The file crypto store data is migrated the first time. The migration cannot be reverted
+     * so this method must then always be called before starting the session.
+     */
+    public void useSQLiteCryptoStore() {
+        mUseSQLiteCryptoStore = true;
+    }
+
+    /**
+     * @return a new crypto store instance
+     */
+    private IMXCryptoStore createCryptoStore() {
+        return mUseSQLiteCryptoStore ? new MXSQLiteCryptoStore() : new MXFileCryptoStore();
+    }
+
+    /**
+     * Open a crypto store.
+     * When the file crypto store data cannot be migrated to the SQLite crypto store,
+     * the file crypto store is used until the migration succeeds at a next opening.
+     *
+     * @param store the store to open
+     * @return the opened store
+     */
+    private IMXCryptoStore openCryptoStore(IMXCryptoStore store) {
+        store.open();
+
+        if ((store instanceof MXSQLiteCryptoStore) && ((MXSQLiteCryptoStore) store).isMigrationFailed()) {
+            Log.e(LOG_TAG, "## openCryptoStore() : the migration has failed, use the file crypto store");
+
+            store = new MXFileCryptoStore();
+            store.initWithCredentials(mAppContent, mCredentials);
+            store.open();
+        }
+
+        return store;
+    }
+
     /**
      * When the encryption is toogled, the room summaries must be updated
      * to display the right messages.
@@ -1877,10 +1884,10 @@ public class MXSession {
         if (cryptoEnabled != isCryptoEnabled()) {
             if (cryptoEnabled) {
                 Log.d(LOG_TAG, "Crypto is enabled");
-                MXFileCryptoStore fileCryptoStore = new MXFileCryptoStore();
-                fileCryptoStore.initWithCredentials(mAppContent, mCredentials);
-                fileCryptoStore.open();
-                mCrypto = new MXCrypto(this, fileCryptoStore);
+                IMXCryptoStore cryptoStore = createCryptoStore();
+                cryptoStore.initWithCredentials(mAppContent, mCredentials);
+                cryptoStore = openCryptoStore(cryptoStore);
+                mCrypto = new MXCrypto(this, cryptoStore);
                 mCrypto.start(true, new ApiCallback<Void>() {
                     @Override
                     public void onSuccess(Void info) {
@@ -20,12 +20,18 @@ import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Pair;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 
+import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.client.MXRestExecutorService;
+import org.matrix.androidsdk.rest.client.MXRestRequestScheduler;
+import org.matrix.androidsdk.rest.model.MatrixError;
 import org.matrix.androidsdk.rest.model.login.Credentials;
 import org.matrix.androidsdk.ssl.CertUtil;
 import org.matrix.androidsdk.util.JsonUtils;
@@ -33,6 +39,13 @@ import org.matrix.androidsdk.util.Log;
 import org.matrix.androidsdk.util.UnsentEventsManager;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLSocketFactory;
@@ -88,6 +101,78 @@ public class RestClient<T> {
     // http client
     private OkHttpClient mOkHttpClient = new OkHttpClient();
 
+    // max number of cached GET responses
+    private static final int MAX_CACHED_GET_RESPONSES = 500;
+
+    /**
+     * An idempotent GET request which can be shared between several callers.
+     */
+    protected interface GetRequest<U> {
+        /**
+         * Send the request.
+         * The retries must send the request again with the same callback, without coalescing it.
+         *
+         * @param callback the callback
+         */
+        void execute(ApiCallback<U> callback);
+    }
+
+    /**
+     * A cached GET response.
+     * The mutable responses are kept serialized, so each caller gets its own instance
+     * and cannot alter the cached response.
+     */
+    private static class CachedGetResponse {
+        // the response, when it is immutable
+        final Object mResponse;
+        // the serialized response, when it is mutable
+        final JsonElement mJsonResponse;
+        // the response class
+        final Class<?> mResponseClass;
+        // the expiration time
+        final long mExpirationTs;
+
+        CachedGetResponse(Gson gson, Object response, long expirationTs) {
+            if ((null == response) || (response instanceof String) || (response instanceof Number) || (response instanceof Boolean)) {
+                mResponse = response;
+                mJsonResponse = null;
+            } else {
+                mResponse = null;
+                mJsonResponse = gson.toJsonTree(response);
+            }
+
+            mResponseClass = (null != response) ? response.getClass() : null;
+            mExpirationTs = expirationTs;
+        }
+
+        /**
+         * Provide the response.
+         *
+         * @param gson the gson parser
+         * @return a new instance of the response if it is mutable
+         */
+        Object getResponse(Gson gson) {
+            return (null != mJsonResponse) ? gson.fromJson(mJsonResponse, mResponseClass) : mResponse;
+        }
+    }
+
+    // the pending GET requests callbacks : request key -> callbacks
+    private final HashMap<String, List<ApiCallback>> mPendingGetRequests = new HashMap<>();
+
+    // the pending GET requests which have been invalidated : their responses must not be cached
+    private final HashSet<String> mInvalidatedPendingGetRequests = new HashSet<>();
+
+    // the cached GET responses : request key -> response (LRU)
+    private final LinkedHashMap<String, CachedGetResponse> mCachedGetResponses = new LinkedHashMap<String, CachedGetResponse>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedGetResponse> eldest) {
+            return size() > MAX_CACHED_GET_RESPONSES;
+        }
+    };
+
+    // the UI thread handler, to dispatch the cached responses
+    private Handler mUiHandler;
+
     public RestClient(HomeserverConnectionConfig hsConfig, Class<T> type, String uriPrefix, boolean withNullSerialization) {
         this(hsConfig, type, uriPrefix, withNullSerialization, false);
     }
@@ -139,6 +224,26 @@ public class RestClient<T> {
             }
         };
 
+        // the requests are started by priority class
+        Interceptor priorityInterceptor = new Interceptor() {
+            @Override public Response intercept(Chain chain) throws IOException {
+                int priority = getRequestPriority(chain.request());
+
+                if (MXRestRequestScheduler.PRIORITY_UNSCHEDULED == priority) {
+                    return chain.proceed(chain.request());
+                }
+
+                MXRestRequestScheduler scheduler = MXRestRequestScheduler.getInstance((null != mCredentials) ? mCredentials.userId : null);
+                scheduler.acquire(priority);
+
+                try {
+                    return chain.proceed(chain.request());
+                } finally {
+                    scheduler.release(priority);
+                }
+            }
+        };
+
         OkHttpClient.Builder okHttpClientBuilder = new OkHttpClient().newBuilder()
             .connectTimeout(CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS)
             .readTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)
@@ -149,6 +254,13 @@ public class RestClient<T> {
 
         if (mUseMXExececutor) {
             okHttpClientBuilder.dispatcher(new Dispatcher(new MXRestExecutorService()));
+        } else {
+            // the concurrency is limited by the requests scheduler
+            // the dispatcher must not queue the requests in FIFO order before it.
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequestsPerHost(dispatcher.getMaxRequests());
+            okHttpClientBuilder.dispatcher(dispatcher);
+            okHttpClientBuilder.addInterceptor(priorityInterceptor);
         }
 
         try {
@@ -174,7 +286,7 @@ public class RestClient<T> {
         // Rest adapter for turning API interfaces into actual REST-calling objects
         Retrofit.Builder builder = new Retrofit.Builder()
                 .baseUrl(endPoint)
-                .addConverterFactory(GsonConverterFactory.create(gson))
+                .addConverterFactory(createConverterFactory(gson))
                 .client(mOkHttpClient);
 
         Retrofit retrofit = builder.build();
@@ -185,6 +297,26 @@ public class RestClient<T> {
         mApi = retrofit.create(type);
     }
 
+    /**
+     * Provides the converter factory of the requests and responses bodies.
+     * It is called by the constructor : the overriding methods must only use their fields while converting.
+     * @param gson the gson instance
+     * @return the converter factory
+     */
+    protected Converter.Factory createConverterFactory(Gson gson) {
+        return GsonConverterFactory.create(gson);
+    }
+
+    /**
+     * Provides the priority class of a request.
+     * By default, the reads are user initiated and the other requests are interactive sends.
+     * @param request the request
+     * @return the priority class (MXRestRequestScheduler.PRIORITY_XXX), PRIORITY_UNSCHEDULED to not limit it
+     */
+    protected int getRequestPriority(Request request) {
+        return TextUtils.equals(request.method(), "GET") ? MXRestRequestScheduler.PRIORITY_USER_READ : MXRestRequestScheduler.PRIORITY_INTERACTIVE;
+    }
+
     /**
      * Create an user agent with the application version.
      * @param appContext the application context
@@ -251,6 +383,190 @@ public class RestClient<T> {
         mCredentials = credentials;
     }
 
+    /**
+     * Send an idempotent GET request.
+     * The identical requests which are sent while a request is in progress share its response.
+     * The successful responses are cached during ttlMs.
+     *
+     * @param key      the request key (endpoint and parameters)
+     * @param ttlMs    the response time to live in milliseconds, 0 to disable the cache
+     * @param callback the callback
+     * @param request  the request
+     */
+    @SuppressWarnings("unchecked")
+    protected <U> void coalescedGet(final String key, final long ttlMs, final ApiCallback<U> callback, GetRequest<U> request) {
+        synchronized (mPendingGetRequests) {
+            final CachedGetResponse cachedResponse = mCachedGetResponses.get(key);
+
+            if (null != cachedResponse) {
+                if (cachedResponse.mExpirationTs > System.currentTimeMillis()) {
+                    if (null == mUiHandler) {
+                        mUiHandler = new Handler(Looper.getMainLooper());
+                    }
+
+                    mUiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (null != callback) {
+                                callback.onSuccess((U) cachedResponse.getResponse(getResponsesGson()));
+                            }
+                        }
+                    });
+                    return;
+                }
+
+                mCachedGetResponses.remove(key);
+            }
+
+            List<ApiCallback> callbacks = mPendingGetRequests.get(key);
+
+            if (null != callbacks) {
+                Log.d(LOG_TAG, "## coalescedGet() : " + key + " is already in progress");
+                callbacks.add(callback);
+                return;
+            }
+
+            callbacks = new ArrayList<>();
+            callbacks.add(callback);
+            mPendingGetRequests.put(key, callbacks);
+        }
+
+        request.execute(new ApiCallback<U>() {
+            /**
+             * @return the pending callbacks
+             */
+            private List<ApiCallback> onDone() {
+                synchronized (mPendingGetRequests) {
+                    mInvalidatedPendingGetRequests.remove(key);
+                    List<ApiCallback> callbacks = mPendingGetRequests.remove(key);
+                    return (null != callbacks) ? callbacks : new ArrayList<ApiCallback>();
+                }
+            }
+
+            @Override
+            public void onSuccess(U info) {
+                List<ApiCallback> callbacks;
+                CachedGetResponse response = null;
+
+                synchronized (mPendingGetRequests) {
+                    boolean isInvalidated = mInvalidatedPendingGetRequests.contains(key);
+                    callbacks = onDone();
+
+                    // serialize the response before dispatching it, the callers might update it
+                    if ((ttlMs > 0) || (callbacks.size() > 1)) {
+                        response = new CachedGetResponse(getResponsesGson(), info, System.currentTimeMillis() + ttlMs);
+
+                        if ((ttlMs > 0) && !isInvalidated) {
+                            mCachedGetResponses.put(key, response);
+                        }
+                    }
+                }
+
+                for (int i = 0; i < callbacks.size(); i++) {
+                    ApiCallback cb = callbacks.get(i);
+
+                    if (null != cb) {
+                        try {
+                            // each coalesced caller gets its own response instance
+                            cb.onSuccess(((0 == i) || (null == response)) ? info : response.getResponse(getResponsesGson()));
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "## coalescedGet() : onSuccess failed " + e.getMessage());
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                for (ApiCallback cb : onDone()) {
+                    if (null != cb) {
+                        try {
+                            cb.onNetworkError(e);
+                        } catch (Exception e2) {
+                            Log.e(LOG_TAG, "## coalescedGet() : onNetworkError failed " + e2.getMessage());
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                for (ApiCallback cb : onDone()) {
+                    if (null != cb) {
+                        try {
+                            cb.onMatrixError(e);
+                        } catch (Exception e2) {
+                            Log.e(LOG_TAG, "## coalescedGet() : onMatrixError failed " + e2.getMessage());
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                for (ApiCallback cb : onDone()) {
+                    if (null != cb) {
+                        try {
+                            cb.onUnexpectedError(e);
+                        } catch (Exception e2) {
+                            Log.e(LOG_TAG, "## coalescedGet() : onUnexpectedError failed " + e2.getMessage());
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the gson parser used to copy the GET responses
+     */
+    private Gson getResponsesGson() {
+        return (null != gson) ? gson : JsonUtils.getGson(false);
+    }
+
+    /**
+     * Tells if a request key is matched by a key prefix.
+     * The prefix matches the same key and the keys which continue it with a new path segment,
+     * so "presence/@bob:matrix.org" does not match "presence/@bob:matrix.org.uk".
+     *
+     * @param key       the request key
+     * @param keyPrefix the key prefix, null to match all the keys
+     * @return true if the key is matched
+     */
+    private static boolean isKeyMatched(String key, String keyPrefix) {
+        if ((null == keyPrefix) || key.equals(keyPrefix)) {
+            return true;
+        }
+
+        return key.startsWith(keyPrefix) && (keyPrefix.endsWith("/") || (key.charAt(keyPrefix.length()) == '/'));
+    }
+
+    /**
+     * Invalidate the cached GET responses whose key starts with a prefix, on a path segment boundary.
+     * The responses of the matching requests in progress will not be cached.
+     *
+     * @param keyPrefix the key prefix, null to invalidate all the responses
+     */
+    protected void invalidateGetResponses(String keyPrefix) {
+        synchronized (mPendingGetRequests) {
+            Iterator<String> it = mCachedGetResponses.keySet().iterator();
+
+            while (it.hasNext()) {
+                String key = it.next();
+
+                if (isKeyMatched(key, keyPrefix)) {
+                    it.remove();
+                }
+            }
+
+            for (String key : mPendingGetRequests.keySet()) {
+                if (isKeyMatched(key, keyPrefix)) {
+                    mInvalidatedPendingGetRequests.add(key);
+                }
+            }
+        }
+    }
+
     /**
      * Default protected constructor for unit tests.
      */
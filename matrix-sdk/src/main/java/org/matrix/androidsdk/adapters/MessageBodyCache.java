@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.adapters;
+
+import android.os.HandlerThread;
+import android.support.v4.util.LruCache;
+
+import com.google.gson.JsonElement;
+
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.util.MXOsHandler;
+
+/**
+ * Bounded cache of the rendered message bodies.
+ * When it is enabled, the bodies are rendered on a background thread when the rows are added
+ * so the adapter only binds them when the rows are displayed.
+ */
+class MessageBodyCache {
+
+    /**
+     * A rendered body.
+     * It must not be updated once it is cached.
+     */
+    static class RenderedBody {
+        // the event content used to render the body
+        final JsonElement mContent;
+        // the body to display
+        final CharSequence mBody;
+        // true if the body contains the user display name or the user id
+        final boolean mMentionsMe;
+        // false if the body has been rendered in background, without the matrix spans
+        final boolean mHasMatrixSpans;
+
+        RenderedBody(JsonElement content, CharSequence body, boolean mentionsMe, boolean hasMatrixSpans) {
+            mContent = content;
+            mBody = body;
+            mMentionsMe = mentionsMe;
+            mHasMatrixSpans = hasMatrixSpans;
+        }
+    }
+
+    // the render thread, shared by the adapters
+    private static HandlerThread mRenderHandlerThread = null;
+    private static MXOsHandler mRenderHandler = null;
+
+    // key -> rendered body
+    private final LruCache<String, RenderedBody> mRenderedBodies;
+
+    /**
+     * Constructor
+     *
+     * @param maxSize the max number of rendered bodies
+     */
+    MessageBodyCache(int maxSize) {
+        mRenderedBodies = new LruCache<>(maxSize);
+    }
+
+    /**
+     * Build the key of a rendered body.
+     *
+     * @param eventId       the event id
+     * @param rowType       the row type
+     * @param pattern       the search pattern
+     * @param isHighlighted true if the event is highlighted
+     * @return the key
+     */
+    static String buildKey(String eventId, int rowType, String pattern, boolean isHighlighted) {
+        return eventId + "|" + rowType + "|" + isHighlighted + "|" + ((null == pattern) ? "" : pattern);
+    }
+
+    /**
+     * Provides a rendered body.
+     * The body is ignored if the event content has been updated since it has been rendered
+     * i.e. the event has been decrypted, redacted or edited.
+     *
+     * @param key   the key
+     * @param event the event
+     * @return the rendered body if it is up to date, null otherwise.
+     */
+    RenderedBody get(String key, Event event) {
+        RenderedBody renderedBody = mRenderedBodies.get(key);
+
+        if ((null != renderedBody) && (renderedBody.mContent != event.getContent())) {
+            mRenderedBodies.remove(key);
+            renderedBody = null;
+        }
+
+        return renderedBody;
+    }
+
+    /**
+     * Cache a rendered body.
+     *
+     * @param key          the key
+     * @param renderedBody the rendered body
+     */
+    void put(String key, RenderedBody renderedBody) {
+        if ((null != key) && (null != renderedBody)) {
+            mRenderedBodies.put(key, renderedBody);
+        }
+    }
+
+    /**
+     * Remove the rendered bodies of an event.
+     *
+     * @param eventId the event id
+     */
+    void invalidate(String eventId) {
+        if (null != eventId) {
+            String prefix = eventId + "|";
+
+            for (String key : mRenderedBodies.snapshot().keySet()) {
+                if (key.startsWith(prefix)) {
+                    mRenderedBodies.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all the rendered bodies.
+     */
+    void clear() {
+        mRenderedBodies.evictAll();
+    }
+
+    /**
+     * Render a body in background.
+     *
+     * @param runnable the render runnable
+     */
+    static void render(Runnable runnable) {
+        synchronized (MessageBodyCache.class) {
+            if (null == mRenderHandlerThread) {
+                mRenderHandlerThread = new HandlerThread("MessageBodyRenderThread", Thread.MIN_PRIORITY);
+                mRenderHandlerThread.start();
+                mRenderHandler = new MXOsHandler(mRenderHandlerThread.getLooper());
+            }
+        }
+
+        mRenderHandler.post(runnable);
+    }
+}
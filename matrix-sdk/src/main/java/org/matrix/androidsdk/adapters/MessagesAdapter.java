@@ -279,8 +279,14 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
     // when the current user sends one but it will also come down the event stream
     private final HashMap<String, MessageRow> mEventRowMap = new HashMap<>();
 
-    // avoid searching bing rule at each refresh
-    private HashMap<String, Integer> mTextColorByEventId = new HashMap<>();
+    // max number of rendered text and notice bodies
+    private static final int RENDERED_BODIES_CACHE_SIZE = 300;
+
+    // avoid rendering the bodies at each refresh
+    private final MessageBodyCache mBodyCache = new MessageBodyCache(RENDERED_BODIES_CACHE_SIZE);
+
+    // true to render the bodies of the new rows in background
+    private boolean mIsBodyPreRenderingEnabled = true;
 
     private final HashMap<String, User> mUserByUserId = new HashMap<>();
 
@@ -594,6 +600,18 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
         }
     }
 
+    /**
+     * Enable the background rendering of the text and notice bodies when the rows are added.
+     * Only the SDK rendering is performed in background: the overridable methods
+     * (refreshMatrixSpans(), getHighLightTextStyle()) are still called on the UI thread.
+     * It is enabled by default.
+     *
+     * @param isEnabled true to enable it
+     */
+    public final void setBodyPreRenderingEnabled(boolean isEnabled) {
+        mIsBodyPreRenderingEnabled = isEnabled;
+    }
+
     /**
      * Defines the search pattern.
      *
@@ -645,6 +663,8 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
             if (row.getEvent().eventId != null) {
                 mEventRowMap.put(row.getEvent().eventId, row);
             }
+
+            preRenderBody(row);
         }
     }
 
@@ -702,6 +722,8 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
                 mEventRowMap.put(row.getEvent().eventId, row);
             }
 
+            preRenderBody(row);
+
             if ((!mIsSearchMode) && refresh) {
                 this.notifyDataSetChanged();
             }
@@ -737,6 +759,8 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
         if (row != null) {
             remove(row);
         }
+
+        mBodyCache.invalidate(eventId);
     }
 
     /**
@@ -1567,6 +1591,34 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
             return;
         }
 
+        displayBody(textView, buildBody(text, htmlFormattedText, pattern, true));
+    }
+
+    /**
+     * Display a rendered body.
+     *
+     * @param textView the textView in which the text is displayed.
+     * @param body     the rendered body.
+     */
+    private void displayBody(TextView textView, CharSequence body) {
+        textView.setText(body);
+
+        if (null != mLinkMovementMethod) {
+            textView.setMovementMethod(mLinkMovementMethod);
+        }
+    }
+
+    /**
+     * Build the text to display, with the highlighted pattern and the clickable links.
+     * It must be called from the UI thread when a pattern is defined or when the matrix spans are refreshed.
+     *
+     * @param text               the text to display.
+     * @param htmlFormattedText  the html text to display instead of the text (if any).
+     * @param pattern            the pattern to highlight.
+     * @param refreshMatrixSpans true to call refreshMatrixSpans()
+     * @return the text to display
+     */
+    private SpannableStringBuilder buildBody(Spannable text, String htmlFormattedText, String pattern, boolean refreshMatrixSpans) {
         if (!TextUtils.isEmpty(pattern) && !TextUtils.isEmpty(text) && (text.length() >= pattern.length())) {
 
             String lowerText = text.toString().toLowerCase();
@@ -1629,13 +1681,150 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
             }
         }
 
-        refreshMatrixSpans(strBuilder);
+        if (refreshMatrixSpans) {
+            refreshMatrixSpans(strBuilder);
+        }
 
-        textView.setText(strBuilder);
+        return strBuilder;
+    }
 
-        if (null != mLinkMovementMethod) {
-            textView.setMovementMethod(mLinkMovementMethod);
+    /**
+     * Render the body of a text or a notice row.
+     * It can be called from any thread when there is no pattern and when the matrix spans are not refreshed,
+     * because only the SDK private rendering is performed.
+     *
+     * @param row                the message row
+     * @param rowType            ROW_TYPE_TEXT or ROW_TYPE_NOTICE
+     * @param pattern            the search pattern
+     * @param isHighlighted      true if the event must be highlighted
+     * @param refreshMatrixSpans true to call refreshMatrixSpans()
+     * @return the rendered body
+     */
+    private MessageBodyCache.RenderedBody renderBody(MessageRow row, int rowType, String pattern, boolean isHighlighted, boolean refreshMatrixSpans) {
+        Event event = row.getEvent();
+        // the content is retrieved before rendering it, to detect any update while rendering
+        JsonElement content = event.getContent();
+
+        EventDisplay display = new EventDisplay(mContext, event, row.getRoomState());
+        CharSequence textualDisplay = display.getTextualDisplay();
+
+        if (ROW_TYPE_NOTICE == rowType) {
+            if (TextUtils.isEmpty(textualDisplay)) {
+                return new MessageBodyCache.RenderedBody(content, "", false, true);
+            }
+
+            SpannableStringBuilder strBuilder = new SpannableStringBuilder(textualDisplay);
+
+            if (refreshMatrixSpans) {
+                refreshMatrixSpans(strBuilder);
+            }
+
+            return new MessageBodyCache.RenderedBody(content, strBuilder, false, refreshMatrixSpans);
         }
+
+        Message message = JsonUtils.toMessage(content);
+        SpannableString body = new SpannableString((null == textualDisplay) ? "" : textualDisplay);
+
+        if (isHighlighted) {
+            body.setSpan(new ForegroundColorSpan(mHighlightMessageTextColor), 0, body.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+
+        String sBody = body.toString();
+        String displayName = mSession.getMyUser().displayname;
+        String userID = mSession.getMyUserId();
+        boolean mentionsMe = EventUtils.caseInsensitiveFind(displayName, sBody) || EventUtils.caseInsensitiveFind(userID, sBody);
+
+        String htmlFormattedText = TextUtils.equals(Message.FORMAT_MATRIX_HTML, message.format) ? getSanitisedHtml(message.formatted_body) : null;
+
+        return new MessageBodyCache.RenderedBody(content, buildBody(body, htmlFormattedText, pattern, refreshMatrixSpans), mentionsMe, refreshMatrixSpans);
+    }
+
+    /**
+     * Tells if the event body must be highlighted.
+     *
+     * @param rowType the row type
+     * @param event   the event
+     * @return true if the body must be highlighted
+     */
+    private boolean isHighlightedBody(int rowType, Event event) {
+        return (ROW_TYPE_TEXT == rowType) && (null != mMessagesAdapterEventsListener) && mMessagesAdapterEventsListener.shouldHighlightEvent(event);
+    }
+
+    /**
+     * Provides the rendered body of a text or a notice row.
+     * The body is rendered if it has not been rendered in background.
+     * The matrix spans of a body rendered in background are refreshed here, in the UI thread.
+     *
+     * @param row     the message row
+     * @param rowType ROW_TYPE_TEXT or ROW_TYPE_NOTICE
+     * @return the rendered body
+     */
+    private MessageBodyCache.RenderedBody getRenderedBody(MessageRow row, int rowType) {
+        Event event = row.getEvent();
+        boolean isHighlighted = isHighlightedBody(rowType, event);
+        String key = (null != event.eventId) ? MessageBodyCache.buildKey(event.eventId, rowType, mPattern, isHighlighted) : null;
+
+        MessageBodyCache.RenderedBody renderedBody = (null != key) ? mBodyCache.get(key, event) : null;
+
+        if (null == renderedBody) {
+            renderedBody = renderBody(row, rowType, mPattern, isHighlighted, true);
+            mBodyCache.put(key, renderedBody);
+        } else if (!renderedBody.mHasMatrixSpans) {
+            // the cached bodies are not updated
+            SpannableStringBuilder strBuilder = new SpannableStringBuilder(renderedBody.mBody);
+            refreshMatrixSpans(strBuilder);
+            renderedBody = new MessageBodyCache.RenderedBody(renderedBody.mContent, strBuilder, renderedBody.mMentionsMe, true);
+            mBodyCache.put(key, renderedBody);
+        }
+
+        return renderedBody;
+    }
+
+    /**
+     * Render the body of a new row in background, if it is enabled.
+     * The search results are not rendered in background because the pattern highlight is customizable.
+     *
+     * @param row the message row
+     */
+    private void preRenderBody(final MessageRow row) {
+        if (!mIsBodyPreRenderingEnabled || !TextUtils.isEmpty(mPattern)) {
+            return;
+        }
+
+        final Event event = row.getEvent();
+        final int rowType = getItemViewType(event);
+
+        if ((null == event.eventId) || ((ROW_TYPE_TEXT != rowType) && (ROW_TYPE_NOTICE != rowType))) {
+            return;
+        }
+
+        final String pattern = mPattern;
+        final boolean isHighlighted = isHighlightedBody(rowType, event);
+        final String key = MessageBodyCache.buildKey(event.eventId, rowType, pattern, isHighlighted);
+
+        MessageBodyCache.render(new Runnable() {
+            @Override
+            public void run() {
+                if (null == mBodyCache.get(key, event)) {
+                    try {
+                        // refreshMatrixSpans() can be overridden so it is called in the UI thread
+                        mBodyCache.put(key, renderBody(row, rowType, pattern, isHighlighted, false));
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "## preRenderBody() failed " + e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Forget the rendered body of an event.
+     * It must be called when the event is redacted, decrypted or edited.
+     *
+     * @param eventId the event id
+     */
+    public void invalidateRenderedBody(String eventId) {
+        mBodyCache.invalidate(eventId);
     }
 
     /**
@@ -1673,13 +1862,7 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
 
         MessageRow row = getItem(position);
         Event event = row.getEvent();
-        Message message = JsonUtils.toMessage(event.getContent());
-        RoomState roomState = row.getRoomState();
-
-        EventDisplay display = new EventDisplay(mContext, event, roomState);
-        CharSequence textualDisplay = display.getTextualDisplay();
 
-        SpannableString body = new SpannableString((null == textualDisplay) ? "" : textualDisplay);
         final TextView bodyTextView = (TextView) convertView.findViewById(R.id.messagesAdapter_body);
 
         // cannot refresh it
@@ -1688,11 +1871,8 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
             return convertView;
         }
 
-        if ((null != mMessagesAdapterEventsListener) && mMessagesAdapterEventsListener.shouldHighlightEvent(event)) {
-            body.setSpan(new ForegroundColorSpan(mHighlightMessageTextColor), 0, body.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-        }
-
-        highlightPattern(bodyTextView, body, TextUtils.equals(Message.FORMAT_MATRIX_HTML, message.format) ? getSanitisedHtml(message.formatted_body) : null, mPattern);
+        MessageBodyCache.RenderedBody renderedBody = getRenderedBody(row, ROW_TYPE_TEXT);
+        displayBody(bodyTextView, renderedBody.mBody);
 
         int textColor;
 
@@ -1702,29 +1882,10 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
             textColor = mSendingMessageTextColor;
         } else if (row.getEvent().isUndeliverable() || row.getEvent().isUnkownDevice()) {
             textColor = mNotSentMessageTextColor;
+        } else if ((null != event.eventId) && renderedBody.mMentionsMe) {
+            textColor = mHighlightMessageTextColor;
         } else {
             textColor = mDefaultMessageTextColor;
-
-            // sanity check
-            if (null != event.eventId) {
-                synchronized (this) {
-                    if (!mTextColorByEventId.containsKey(event.eventId)) {
-                        String sBody = body.toString();
-                        String displayName = mSession.getMyUser().displayname;
-                        String userID = mSession.getMyUserId();
-
-                        if (EventUtils.caseInsensitiveFind(displayName, sBody) || EventUtils.caseInsensitiveFind(userID, sBody)) {
-                            textColor = mHighlightMessageTextColor;
-                        } else {
-                            textColor = mDefaultMessageTextColor;
-                        }
-
-                        mTextColorByEventId.put(event.eventId, textColor);
-                    } else {
-                        textColor = mTextColorByEventId.get(event.eventId);
-                    }
-                }
-            }
         }
 
         bodyTextView.setTextColor(textColor);
@@ -2127,13 +2288,6 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
         }
 
         MessageRow row = getItem(position);
-        Event msg = row.getEvent();
-        RoomState roomState = row.getRoomState();
-
-        CharSequence notice;
-
-        EventDisplay display = new EventDisplay(mContext, msg, roomState);
-        notice = display.getTextualDisplay();
 
         TextView noticeTextView = (TextView) convertView.findViewById(R.id.messagesAdapter_body);
 
@@ -2142,13 +2296,7 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
             return convertView;
         }
 
-        if (TextUtils.isEmpty(notice)) {
-            noticeTextView.setText("");
-        } else {
-            SpannableStringBuilder strBuilder = new SpannableStringBuilder(notice);
-            refreshMatrixSpans(strBuilder);
-            noticeTextView.setText(strBuilder);
-        }
+        noticeTextView.setText(getRenderedBody(row, ROW_TYPE_NOTICE).mBody);
 
         View textLayout = convertView.findViewById(R.id.messagesAdapter_text_layout);
         this.manageSubView(position, convertView, textLayout, ROW_TYPE_NOTICE);
@@ -2617,9 +2765,7 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
      * Notify the fragment that some bing rules could have been updated.
      */
     public void onBingRulesUpdate() {
-        synchronized (this) {
-            mTextColorByEventId = new HashMap<>();
-        }
+        mBodyCache.clear();
         this.notifyDataSetChanged();
     }
 
@@ -2709,11 +2855,18 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
             return null;
         }
 
-        String res = mHtmlMap.get(html);
+        String res;
+
+        synchronized (mHtmlMap) {
+            res = mHtmlMap.get(html);
+        }
 
         if (null == res) {
             res = sanitiseHTML(html);
-            mHtmlMap.put(html, res);
+
+            synchronized (mHtmlMap) {
+                mHtmlMap.put(html, res);
+            }
         }
 
         return res;
@@ -47,6 +47,25 @@ public abstract class RoomSummaryAdapter extends BaseExpandableListAdapter {
 
     private static final String LOG_TAG = "RoomSumAdapt";
 
+    // sort the summaries by latest event timestamp (most recent first)
+    private static final Comparator<RoomSummary> mSummariesComparator = new Comparator<RoomSummary>() {
+        @Override
+        public int compare(RoomSummary lhs, RoomSummary rhs) {
+            if (lhs == null || lhs.getLatestReceivedEvent() == null) {
+                return 1;
+            } else if (rhs == null || rhs.getLatestReceivedEvent() == null) {
+                return -1;
+            }
+
+            if (lhs.getLatestReceivedEvent().getOriginServerTs() > rhs.getLatestReceivedEvent().getOriginServerTs()) {
+                return -1;
+            } else if (lhs.getLatestReceivedEvent().getOriginServerTs() < rhs.getLatestReceivedEvent().getOriginServerTs()) {
+                return 1;
+            }
+            return 0;
+        }
+    };
+
     protected Context mContext;
     private LayoutInflater mLayoutInflater;
     private int mLayoutResourceId;
@@ -78,6 +97,9 @@ public abstract class RoomSummaryAdapter extends BaseExpandableListAdapter {
     private ArrayList<String> mHighLightedRooms = new ArrayList<>();
     protected ArrayList<HashMap<String, RoomSummary>> mSummaryMapsBySection = new ArrayList<>();
 
+    // tell if the section summaries are sorted with mSummariesComparator
+    private ArrayList<Boolean> mIsSortedBySection = new ArrayList<>();
+
     // abstract methods
     public abstract int getUnreadMessageBackgroundColor();
     public abstract int getHighlightMessageBackgroundColor();
@@ -122,6 +144,7 @@ public abstract class RoomSummaryAdapter extends BaseExpandableListAdapter {
         for(int section = 0; section < nbrSections; section++) {
             mRecentsSummariesList.add(new ArrayList<RoomSummary>());
             mSummaryMapsBySection.add(new HashMap<String, RoomSummary>());
+            mIsSortedBySection.add(true);
         }
 
         mPublicRoomsLists  = null;
@@ -291,7 +314,13 @@ public abstract class RoomSummaryAdapter extends BaseExpandableListAdapter {
     /**
      * recent rooms list management
      */
+    /**
+     * Provides the summaries lists by section.
+     * They can be updated by the caller, so they are fully sorted again on the next latest event update.
+     * @return the summaries lists
+     */
     public ArrayList<ArrayList<RoomSummary>> getRecentsSummariesList() {
+        Collections.fill(mIsSortedBySection, false);
         return mRecentsSummariesList;
     }
 
@@ -304,6 +333,7 @@ public abstract class RoomSummaryAdapter extends BaseExpandableListAdapter {
             if (maps.get(roomSummary.getRoomId()) == null) {
                 list.add(roomSummary);
                 maps.put(roomSummary.getRoomId(), roomSummary);
+                mIsSortedBySection.set(section, false);
             }
         }
     }
@@ -344,6 +374,7 @@ public abstract class RoomSummaryAdapter extends BaseExpandableListAdapter {
         }
 
         mSummaryMapsBySection.remove(section);
+        mIsSortedBySection.remove(section);
     }
 
     /**
@@ -353,14 +384,25 @@ public abstract class RoomSummaryAdapter extends BaseExpandableListAdapter {
      * @param refresh true to refresh the UI
      */
     public void setLatestEvent(int section, Event event, RoomState roomState, boolean refresh) {
-        RoomSummary summary = getSummaryByRoomId(section, event.roomId);
+        RoomSummary summary = mSummaryMapsBySection.get(section).get(event.roomId);
         if (summary != null) {
+            ArrayList<RoomSummary> summariesList = mRecentsSummariesList.get(section);
+
+            // the position must be found before updating the sort key
+            int pos = (refresh && mIsSortedBySection.get(section)) ? getSortedPosition(summariesList, summary) : -1;
+
             summary.setLatestReceivedEvent(event);
             summary.setLatestRoomState(roomState);
 
             // refresh on demand
             if (refresh) {
-                sortSummaries();
+                if (pos >= 0) {
+                    // only the updated summary has to be moved
+                    repositionSummary(summariesList, summary, pos);
+                } else {
+                    Collections.sort(summariesList, mSummariesComparator);
+                    mIsSortedBySection.set(section, true);
+                }
                 notifyDataSetChanged();
             }
         }
@@ -430,26 +472,52 @@ public abstract class RoomSummaryAdapter extends BaseExpandableListAdapter {
      */
     public void sortSummaries() {
         for(int section = 0; section < mRecentsSummariesList.size(); section++) {
-            ArrayList<RoomSummary> summariesList = mRecentsSummariesList.get(section);
+            Collections.sort(mRecentsSummariesList.get(section), mSummariesComparator);
+            mIsSortedBySection.set(section, true);
+        }
+    }
 
-            Collections.sort(summariesList, new Comparator<RoomSummary>() {
-                @Override
-                public int compare(RoomSummary lhs, RoomSummary rhs) {
-                    if (lhs == null || lhs.getLatestReceivedEvent() == null) {
-                        return 1;
-                    } else if (rhs == null || rhs.getLatestReceivedEvent() == null) {
-                        return -1;
-                    }
+    /**
+     * Find the position of a summary in a sorted summaries list.
+     * @param summariesList the sorted section summaries list.
+     * @param summary the summary.
+     * @return the summary position, -1 if it is not found.
+     */
+    private static int getSortedPosition(ArrayList<RoomSummary> summariesList, RoomSummary summary) {
+        int index = Collections.binarySearch(summariesList, summary, mSummariesComparator);
 
-                    if (lhs.getLatestReceivedEvent().getOriginServerTs() > rhs.getLatestReceivedEvent().getOriginServerTs()) {
-                        return -1;
-                    } else if (lhs.getLatestReceivedEvent().getOriginServerTs() < rhs.getLatestReceivedEvent().getOriginServerTs()) {
-                        return 1;
-                    }
-                    return 0;
-                }
-            });
+        if (index < 0) {
+            return -1;
         }
+
+        // the summaries with the same timestamp are around the found one
+        for (int i = index; (i >= 0) && (0 == mSummariesComparator.compare(summariesList.get(i), summary)); i--) {
+            if (summariesList.get(i) == summary) {
+                return i;
+            }
+        }
+
+        for (int i = index + 1; (i < summariesList.size()) && (0 == mSummariesComparator.compare(summariesList.get(i), summary)); i++) {
+            if (summariesList.get(i) == summary) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Move a summary to its sorted position after a latest event update.
+     * The other summaries must be sorted.
+     * @param summariesList the section summaries list.
+     * @param summary the updated summary.
+     * @param pos the summary position before the update.
+     */
+    private static void repositionSummary(ArrayList<RoomSummary> summariesList, RoomSummary summary, int pos) {
+        summariesList.remove(pos);
+
+        int index = Collections.binarySearch(summariesList, summary, mSummariesComparator);
+        summariesList.add((index < 0) ? (-index - 1) : index, summary);
     }
 
     /**
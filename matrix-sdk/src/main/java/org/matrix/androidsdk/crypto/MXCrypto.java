@@ -28,6 +28,7 @@ import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
 import org.matrix.androidsdk.util.Log;
 
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.google.gson.reflect.TypeToken;
 
 import org.matrix.androidsdk.MXSession;
@@ -35,7 +36,6 @@ import org.matrix.androidsdk.crypto.algorithms.IMXDecrypting;
 import org.matrix.androidsdk.crypto.algorithms.IMXEncrypting;
 import org.matrix.androidsdk.crypto.data.MXDeviceInfo;
 import org.matrix.androidsdk.crypto.data.MXEncryptEventContentResult;
-import org.matrix.androidsdk.crypto.data.MXKey;
 import org.matrix.androidsdk.crypto.data.MXOlmSessionResult;
 import org.matrix.androidsdk.crypto.data.MXUsersDevicesMap;
 import org.matrix.androidsdk.data.cryptostore.IMXCryptoStore;
@@ -65,6 +65,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A `MXCrypto` class instance manages the end-to-end crypto for a MXSession instance.
@@ -87,6 +88,9 @@ public class MXCrypto {
     // frequency with which to check & upload one-time keys
     private static final long ONE_TIME_KEY_UPLOAD_PERIOD = 60 * 1000; // one minute
 
+    // the period to check if the decrypting thread has been stopped while waiting for a batch decryption
+    private static final long DECRYPT_EVENTS_WAIT_PERIOD_MS = 500;
+
     // The Matrix session.
     private final MXSession mSession;
 
@@ -96,6 +100,9 @@ public class MXCrypto {
     // MXEncrypting instance for each room.
     private final HashMap<String, IMXEncrypting> mRoomEncryptors;
 
+    // the rooms whose encryption is prepared
+    private final HashSet<String> mRoomIdsWithEncryptionPreparation = new HashSet<>();
+
     // A map from algorithm to MXDecrypting instance, for each room
     private final HashMap<String, /* room id */
             HashMap<String /* algorithm */, IMXDecrypting>> mRoomDecryptors;
@@ -121,6 +128,12 @@ public class MXCrypto {
     private HandlerThread mDecryptingHandlerThread = null;
     private Handler mDecryptingHandler = null;
 
+    // the megolm events decrypting threads
+    private MXDecryptingPool mDecryptingPool = null;
+
+    // establish the olm sessions, it is only used in the encrypting thread
+    private MXOlmSessionsEstablisher mOlmSessionsEstablisher = null;
+
     // the UI thread
     private Handler mUIHandler = null;
 
@@ -148,6 +161,9 @@ public class MXCrypto {
         public void onLiveEvent(Event event, RoomState roomState) {
             if (TextUtils.equals(event.getType(), Event.EVENT_TYPE_MESSAGE_ENCRYPTION)) {
                 onCryptoEvent(event);
+            } else if (TextUtils.equals(event.getType(), Event.EVENT_TYPE_STATE_ROOM_MEMBER)) {
+                // the room members have changed
+                refreshEncryptionPreparation(event.roomId);
             }
         }
     };
@@ -235,6 +251,8 @@ public class MXCrypto {
         mDecryptingHandlerThread = new HandlerThread("MXCrypto_decrypting_" + mSession.getMyUserId(), Thread.MIN_PRIORITY);
         mDecryptingHandlerThread.start();
 
+        mDecryptingPool = new MXDecryptingPool("MXCrypto_decrypting_pool_" + mSession.getMyUserId());
+
         mUIHandler = new Handler(Looper.getMainLooper());
 
         if (refreshDevicesList) {
@@ -429,16 +447,18 @@ public class MXCrypto {
                                                                     }
                                                                     mInitializationCallbacks.clear();
 
-                                                                    if (isInitialSync) {
-                                                                        getEncryptingThreadHandler().post(new Runnable() {
-                                                                            @Override
-                                                                            public void run() {
+                                                                    getEncryptingThreadHandler().post(new Runnable() {
+                                                                        @Override
+                                                                        public void run() {
+                                                                            if (isInitialSync) {
                                                                                 // refresh the devices list for each known room members
                                                                                 getDeviceList().invalidateUserDeviceList(getE2eRoomMembers());
-                                                                                mDevicesList.refreshOutdatedDeviceLists();
                                                                             }
-                                                                        });
-                                                                    }
+
+                                                                            // only refresh the users whose devices have changed since the latest run
+                                                                            mDevicesList.catchUpDeviceListsChanges(mSession.getDataHandler().getStore().getEventStreamToken());
+                                                                        }
+                                                                    });
                                                                 }
 
                                                                 @Override
@@ -520,6 +540,12 @@ public class MXCrypto {
                 @Override
                 public void run() {
                     if (null != mOlmDevice) {
+                        MXDecryptionCache decryptionCache = mOlmDevice.getDecryptionCache();
+
+                        if (null != decryptionCache) {
+                            decryptionCache.save();
+                        }
+
                         mOlmDevice.release();
                         mOlmDevice = null;
                     }
@@ -545,6 +571,8 @@ public class MXCrypto {
                     }
                 }
             });
+
+            mDecryptingPool.release();
         }
     }
 
@@ -567,9 +595,16 @@ public class MXCrypto {
             @Override
             public void run() {
                 if (null != syncResponse.deviceLists) {
-                    getDeviceList().invalidateUserDeviceList(syncResponse.deviceLists.changed);
+                    getDeviceList().handleDeviceListsChanges(syncResponse.deviceLists.changed, syncResponse.deviceLists.left);
+
+                    // some devices have changed
+                    if ((null != syncResponse.deviceLists.changed) && (0 != syncResponse.deviceLists.changed.size())) {
+                        refreshEncryptionPreparation(syncResponse.deviceLists.changed);
+                    }
                 }
 
+                getDeviceList().onSyncCompleted(syncResponse.nextBatch);
+
                 if (isStarted()) {
                     // Make sure we process to-device messages before generating new one-time-keys #2782
                     mDevicesList.refreshOutdatedDeviceLists();
@@ -578,6 +613,29 @@ public class MXCrypto {
                 if (!isCatchingUp && isStarted()) {
                     maybeUploadOneTimeKeys();
                 }
+
+                MXDecryptionCache decryptionCache = (null != mOlmDevice) ? mOlmDevice.getDecryptionCache() : null;
+
+                if (null != decryptionCache) {
+                    decryptionCache.saveIfExpired();
+                }
+            }
+        });
+    }
+
+    /**
+     * Save the decryption cache if it has been updated.
+     * It is called when the application goes to background.
+     */
+    public void saveDecryptionCache() {
+        getEncryptingThreadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                MXDecryptionCache decryptionCache = (null != mOlmDevice) ? mOlmDevice.getDecryptionCache() : null;
+
+                if (null != decryptionCache) {
+                    decryptionCache.save();
+                }
             }
         });
     }
@@ -968,14 +1026,25 @@ public class MXCrypto {
 
     /**
      * Try to make sure we have established olm sessions for the given devices.
-     * It must be called in getCryptoHandler() thread.
+     * It is run in getEncryptingThreadHandler() thread.
      * The callback is called in the UI thread.
      *
      * @param devicesByUser a map from userid to list of devices.
      * @param callback      teh asynchronous callback
      */
     public void ensureOlmSessionsForDevices(final HashMap<String, ArrayList<MXDeviceInfo>> devicesByUser, final ApiCallback<MXUsersDevicesMap<MXOlmSessionResult>> callback) {
-        ArrayList<MXDeviceInfo> devicesWithoutSession = new ArrayList<>();
+        // the olm sessions establisher is not thread safe (e.g. when it is called from a keys download callback)
+        if (Looper.myLooper() != getEncryptingThreadHandler().getLooper()) {
+            getEncryptingThreadHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    ensureOlmSessionsForDevices(devicesByUser, callback);
+                }
+            });
+            return;
+        }
+
+        final ArrayList<MXDeviceInfo> devicesWithoutSession = new ArrayList<>();
 
         final MXUsersDevicesMap<MXOlmSessionResult> results = new MXUsersDevicesMap<>();
 
@@ -1011,153 +1080,255 @@ public class MXCrypto {
             return;
         }
 
-        // Prepare the request for claiming one-time keys
-        MXUsersDevicesMap<String> usersDevicesToClaim = new MXUsersDevicesMap<>();
+        getOlmSessionsEstablisher().establishSessions(devicesWithoutSession, new ApiCallback<Void>() {
+            @Override
+            public void onSuccess(Void info) {
+                // update the results with the created sessions
+                for (MXDeviceInfo deviceInfo : devicesWithoutSession) {
+                    MXOlmSessionResult olmSessionResult = results.getObject(deviceInfo.deviceId, deviceInfo.userId);
 
-        final String oneTimeKeyAlgorithm = MXKey.KEY_SIGNED_CURVE_25519_TYPE;
+                    if (null != olmSessionResult) {
+                        olmSessionResult.mSessionId = mOlmDevice.getSessionId(deviceInfo.identityKey());
+                    }
+                }
 
-        for (MXDeviceInfo device : devicesWithoutSession) {
-            usersDevicesToClaim.setObject(oneTimeKeyAlgorithm, device.userId, device.deviceId);
-        }
+                if (!hasBeenReleased()) {
+                    if (null != callback) {
+                        getUIHandler().post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onSuccess(results);
+                            }
+                        });
+                    }
+                }
+            }
+
+            @Override
+            public void onNetworkError(final Exception e) {
+                Log.e(LOG_TAG, "## ensureOlmSessionsForDevices(): claimOneTimeKeysForUsersDevices request failed" + e.getMessage());
+
+                if (null != callback) {
+                    getUIHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onNetworkError(e);
+                        }
+                    });
+                }
+            }
 
-        // TODO: this has a race condition - if we try to send another message
-        // while we are claiming a key, we will end up claiming two and setting up
-        // two sessions.
-        //
-        // That should eventually resolve itself, but it's poor form.
+            @Override
+            public void onMatrixError(final MatrixError e) {
+                Log.e(LOG_TAG, "## ensureOlmSessionsForDevices(): claimOneTimeKeysForUsersDevices request failed" + e.getLocalizedMessage());
 
-        Log.d(LOG_TAG, "## claimOneTimeKeysForUsersDevices() : " + usersDevicesToClaim);
+                if (null != callback) {
+                    getUIHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onMatrixError(e);
+                        }
+                    });
+                }
+            }
 
-        mSession.getCryptoRestClient().claimOneTimeKeysForUsersDevices(usersDevicesToClaim, new ApiCallback<MXUsersDevicesMap<MXKey>>() {
             @Override
-            public void onSuccess(final MXUsersDevicesMap<MXKey> oneTimeKeys) {
-                getEncryptingThreadHandler().post(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            Log.d(LOG_TAG, "## claimOneTimeKeysForUsersDevices() : keysClaimResponse.oneTimeKeys: " + oneTimeKeys);
+            public void onUnexpectedError(final Exception e) {
+                Log.e(LOG_TAG, "## ensureOlmSessionsForDevices(): claimOneTimeKeysForUsersDevices request failed" + e.getMessage());
 
-                            Set<String> userIds = devicesByUser.keySet();
+                if (null != callback) {
+                    getUIHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onUnexpectedError(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
 
-                            for (String userId : userIds) {
-                                ArrayList<MXDeviceInfo> deviceInfos = devicesByUser.get(userId);
+    /**
+     * Provides the olm sessions establisher.
+     * It must be called in getEncryptingThreadHandler() thread.
+     *
+     * @return the olm sessions establisher
+     */
+    private MXOlmSessionsEstablisher getOlmSessionsEstablisher() {
+        if (null == mOlmSessionsEstablisher) {
+            mOlmSessionsEstablisher = new MXOlmSessionsEstablisher(this, mSession.getCryptoRestClient());
+        }
 
-                                for (MXDeviceInfo deviceInfo : deviceInfos) {
+        return mOlmSessionsEstablisher;
+    }
 
-                                    MXKey oneTimeKey = null;
+    /**
+     * Provides the encryptor of a room.
+     * It must be called in getEncryptingThreadHandler() thread.
+     *
+     * @param room the room
+     * @return the room encryptor, null if the room is not encrypted
+     */
+    private IMXEncrypting getRoomEncryptor(Room room) {
+        IMXEncrypting alg;
 
-                                    List<String> deviceIds = oneTimeKeys.getUserDeviceIds(userId);
+        synchronized (mRoomEncryptors) {
+            alg = mRoomEncryptors.get(room.getRoomId());
+        }
 
-                                    if (null != deviceIds) {
-                                        for (String deviceId : deviceIds) {
-                                            MXOlmSessionResult olmSessionResult = results.getObject(deviceId, userId);
+        if (null == alg) {
+            String algorithm = room.getLiveState().encryptionAlgorithm();
 
-                                            if (null != olmSessionResult.mSessionId) {
-                                                // We already have a result for this device
-                                                continue;
-                                            }
+            if (null != algorithm) {
+                if (setEncryptionInRoom(room.getRoomId(), algorithm)) {
+                    synchronized (mRoomEncryptors) {
+                        alg = mRoomEncryptors.get(room.getRoomId());
+                    }
+                }
+            }
+        }
 
-                                            MXKey key = oneTimeKeys.getObject(deviceId, userId);
+        return alg;
+    }
 
-                                            if (TextUtils.equals(key.type, oneTimeKeyAlgorithm)) {
-                                                oneTimeKey = key;
-                                            }
+    /**
+     * Prepare the encryption of a room in background before the first event is sent
+     * e.g. when the room is opened or when the user starts typing.
+     * The room devices are downloaded, the olm sessions are established and the room key is shared.
+     * The preparation is restarted when the room members or their devices change until it is cancelled.
+     *
+     * @param room the room
+     */
+    public void prepareEncryptionInRoom(final Room room) {
+        // nothing to prepare
+        if (!isStarted() || (null == room) || !room.isEncrypted()) {
+            return;
+        }
 
-                                            if (null == oneTimeKey) {
-                                                Log.d(LOG_TAG, "## ensureOlmSessionsForDevices() : No one-time keys " + oneTimeKeyAlgorithm + " for device " + userId + " : " + deviceId);
-                                                continue;
-                                            }
+        synchronized (mRoomIdsWithEncryptionPreparation) {
+            mRoomIdsWithEncryptionPreparation.add(room.getRoomId());
+        }
 
-                                            // Update the result for this device in results
-                                            olmSessionResult.mSessionId = verifyKeyAndStartSession(oneTimeKey, userId, deviceInfo);
-                                        }
-                                    }
-                                }
-                            }
-                        } catch (Exception e) {
-                            Log.e(LOG_TAG, "## ensureOlmSessionsForDevices() " + e.getMessage());
+        final ArrayList<String> userIds = new ArrayList<>();
+
+        Collection<RoomMember> joinedMembers = room.getJoinedMembers();
+
+        for (RoomMember m : joinedMembers) {
+            userIds.add(m.getUserId());
+        }
+
+        getEncryptingThreadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                IMXEncrypting alg = getRoomEncryptor(room);
+
+                if (null != alg) {
+                    alg.prepareEncryption(userIds, new SimpleApiCallback<Void>() {
+                        @Override
+                        public void onSuccess(Void info) {
+                            Log.d(LOG_TAG, "## prepareEncryptionInRoom() : " + room.getRoomId() + " is ready");
                         }
 
-                        if (!hasBeenReleased()) {
-                            if (null != callback) {
-                                getUIHandler().post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        callback.onSuccess(results);
-                                    }
-                                });
-                            }
+                        @Override
+                        public void onNetworkError(Exception e) {
+                            Log.e(LOG_TAG, "## prepareEncryptionInRoom() : " + room.getRoomId() + " failed " + e.getMessage());
                         }
-                    }
-                });
-            }
 
-            @Override
-            public void onNetworkError(Exception e) {
-                Log.e(LOG_TAG, "## ensureOlmSessionsForUsers(): claimOneTimeKeysForUsersDevices request failed" + e.getMessage());
+                        @Override
+                        public void onMatrixError(MatrixError e) {
+                            Log.e(LOG_TAG, "## prepareEncryptionInRoom() : " + room.getRoomId() + " failed " + e.getMessage());
+                        }
 
-                if (null != callback) {
-                    callback.onNetworkError(e);
+                        @Override
+                        public void onUnexpectedError(Exception e) {
+                            Log.e(LOG_TAG, "## prepareEncryptionInRoom() : " + room.getRoomId() + " failed " + e.getMessage());
+                        }
+                    });
                 }
             }
+        });
+    }
 
-            @Override
-            public void onMatrixError(MatrixError e) {
-                Log.e(LOG_TAG, "## ensureOlmSessionsForUsers(): claimOneTimeKeysForUsersDevices request failed" + e.getLocalizedMessage());
-
-                if (null != callback) {
-                    callback.onMatrixError(e);
-                }
+    /**
+     * Cancel the encryption preparation of a room e.g. when the room is closed.
+     *
+     * @param roomId the room id
+     */
+    public void cancelEncryptionPreparationInRoom(final String roomId) {
+        synchronized (mRoomIdsWithEncryptionPreparation) {
+            if (!mRoomIdsWithEncryptionPreparation.remove(roomId)) {
+                return;
             }
+        }
 
+        getEncryptingThreadHandler().post(new Runnable() {
             @Override
-            public void onUnexpectedError(Exception e) {
-                Log.e(LOG_TAG, "## ensureOlmSessionsForUsers(): claimOneTimeKeysForUsersDevices request failed" + e.getMessage());
+            public void run() {
+                IMXEncrypting alg;
 
-                if (null != callback) {
-                    callback.onUnexpectedError(e);
+                synchronized (mRoomEncryptors) {
+                    alg = mRoomEncryptors.get(roomId);
+                }
+
+                if (null != alg) {
+                    alg.cancelEncryptionPreparation();
                 }
             }
         });
     }
 
-    private String verifyKeyAndStartSession(MXKey oneTimeKey, String userId, MXDeviceInfo deviceInfo) {
-        String sessionId = null;
+    /**
+     * Restart the encryption preparation of a room after a room members change.
+     *
+     * @param roomId the room id
+     */
+    private void refreshEncryptionPreparation(String roomId) {
+        synchronized (mRoomIdsWithEncryptionPreparation) {
+            if (!mRoomIdsWithEncryptionPreparation.contains(roomId)) {
+                return;
+            }
+        }
 
-        String deviceId = deviceInfo.deviceId;
-        String signKeyId = "ed25519:" + deviceId;
-        String signature = oneTimeKey.signatureForUserId(userId, signKeyId);
+        Room room = mSession.getDataHandler().getRoom(roomId, false);
 
-        if (!TextUtils.isEmpty(signature) && !TextUtils.isEmpty(deviceInfo.fingerprint())) {
-            boolean isVerified = false;
-            String errorMessage = null;
+        if (null != room) {
+            Log.d(LOG_TAG, "## refreshEncryptionPreparation() : " + roomId);
+            prepareEncryptionInRoom(room);
+        }
+    }
 
-            try {
-                mOlmDevice.verifySignature(deviceInfo.fingerprint(), oneTimeKey.signalableJSONDictionary(), signature);
-                isVerified = true;
-            } catch (Exception e) {
-                errorMessage = e.getMessage();
+    /**
+     * Restart the encryption preparations after a devices change.
+     * Only the rooms with a joined member among the updated users are restarted.
+     *
+     * @param userIds the users whose devices have changed.
+     */
+    private void refreshEncryptionPreparation(List<String> userIds) {
+        List<String> roomIds;
+
+        synchronized (mRoomIdsWithEncryptionPreparation) {
+            roomIds = new ArrayList<>(mRoomIdsWithEncryptionPreparation);
+        }
+
+        for (String id : roomIds) {
+            Room room = mSession.getDataHandler().getRoom(id, false);
+
+            if (null == room) {
+                continue;
             }
 
-            // Check one-time key signature
-            if (isVerified) {
-                sessionId = getOlmDevice().createOutboundSession(deviceInfo.identityKey(), oneTimeKey.value);
+            for (String userId : userIds) {
+                RoomMember roomMember = room.getMember(userId);
 
-                if (!TextUtils.isEmpty(sessionId)) {
-                    Log.d(LOG_TAG, "## verifyKeyAndStartSession() : Started new sessionid " + sessionId + " for device " + deviceInfo + "(theirOneTimeKey: " + oneTimeKey.value + ")");
-                } else {
-                    // Possibly a bad key
-                    Log.e(LOG_TAG, "## verifyKeyAndStartSession() : Error starting session with device " + userId + ":" + deviceId);
+                if ((null != roomMember) && TextUtils.equals(roomMember.membership, RoomMember.MEMBERSHIP_JOIN)) {
+                    Log.d(LOG_TAG, "## refreshEncryptionPreparation() : " + id + " after the devices change of " + userId);
+                    prepareEncryptionInRoom(room);
+                    break;
                 }
-            } else {
-                Log.e(LOG_TAG, "## verifyKeyAndStartSession() : Unable to verify signature on one-time key for device " + userId + ":" + deviceId + " Error " + errorMessage);
             }
         }
-
-        return sessionId;
     }
 
-
     /**
      * Encrypt an event content according to the configuration of the room.
      *
@@ -1220,23 +1391,7 @@ public class MXCrypto {
         getEncryptingThreadHandler().post(new Runnable() {
             @Override
             public void run() {
-                IMXEncrypting alg;
-
-                synchronized (mRoomEncryptors) {
-                    alg = mRoomEncryptors.get(room.getRoomId());
-                }
-
-                if (null == alg) {
-                    String algorithm = room.getLiveState().encryptionAlgorithm();
-
-                    if (null != algorithm) {
-                        if (setEncryptionInRoom(room.getRoomId(), algorithm)) {
-                            synchronized (mRoomEncryptors) {
-                                alg = mRoomEncryptors.get(room.getRoomId());
-                            }
-                        }
-                    }
-                }
+                IMXEncrypting alg = getRoomEncryptor(room);
 
                 if (null != alg) {
                     final long t0 = System.currentTimeMillis();
@@ -1309,48 +1464,166 @@ public class MXCrypto {
             return false;
         }
 
-        final EventContent eventContent = event.getWireEventContent();
+        decryptEvents(Arrays.asList(event), timeline);
 
-        if (null == eventContent) {
-            Log.e(LOG_TAG, "## decryptEvent : empty event content");
-            return false;
+        return null != event.getClearEvent();
+    }
+
+    /**
+     * Decrypt a batch of received events.
+     * The megolm events are decrypted in parallel by the decrypting pool, partitioned by inbound session.
+     * The other events are decrypted by the decrypting thread.
+     * The method returns when all the events have been processed.
+     *
+     * @param events   the raw events.
+     * @param timeline the id of the timeline where the events are decrypted. It is used to prevent replay attack.
+     */
+    public void decryptEvents(List<Event> events, final String timeline) {
+        if ((null == events) || (0 == events.size())) {
+            return;
         }
 
-        final ArrayList<Boolean> results = new ArrayList<>();
-        final CountDownLatch lock = new CountDownLatch(1);
+        final int threadsCount = mDecryptingPool.getThreadsCount();
 
-        getDecryptingThreadHandler().post(new Runnable() {
-            @Override
-            public void run() {
-                boolean result = false;
+        // the megolm events by decrypting thread index
+        final List<List<Event>> partitions = new ArrayList<>(threadsCount);
 
-                IMXDecrypting alg = getRoomDecryptor(event.roomId, eventContent.algorithm);
+        for (int index = 0; index < threadsCount; index++) {
+            partitions.add(new ArrayList<Event>());
+        }
 
-                if (null == alg) {
-                    String reason = String.format(MXCryptoError.UNABLE_TO_DECRYPT_REASON, event.eventId, eventContent.algorithm);
+        // the events which must be decrypted by the decrypting thread
+        final List<Event> serialEvents = new ArrayList<>();
 
-                    Log.e(LOG_TAG, "## decryptEvent() : " + reason);
+        for (Event event : events) {
+            if ((null == event) || !TextUtils.equals(event.getType(), Event.EVENT_TYPE_MESSAGE_ENCRYPTED) || (null == event.getWireContent())) {
+                continue;
+            }
 
-                    event.setCryptoError(new MXCryptoError(MXCryptoError.UNABLE_TO_DECRYPT_ERROR_CODE, MXCryptoError.UNABLE_TO_DECRYPT, reason));
-                } else {
-                    result = alg.decryptEvent(event, timeline);
+            int index = -1;
+
+            try {
+                JsonObject content = event.getWireContent().getAsJsonObject();
+
+                if (TextUtils.equals(MXCryptoAlgorithms.MXCRYPTO_ALGORITHM_MEGOLM, content.get("algorithm").getAsString())) {
+                    index = mDecryptingPool.getThreadIndex(content.get("sender_key").getAsString(), content.get("session_id").getAsString());
+                }
+            } catch (Exception e) {
+                // the decryptor will report the error
+                Log.d(LOG_TAG, "## decryptEvents() : invalid content " + e.getMessage());
+            }
+
+            if (index >= 0) {
+                partitions.get(index).add(event);
+            } else {
+                serialEvents.add(event);
+            }
+        }
+
+        int batchesCount = serialEvents.isEmpty() ? 0 : 1;
 
-                    if (!result) {
-                        Log.e(LOG_TAG, "## decryptEvent() : failed " + event.getCryptoError().getDetailedErrorDescription());
+        for (List<Event> partition : partitions) {
+            if (!partition.isEmpty()) {
+                batchesCount++;
+            }
+        }
+
+        final CountDownLatch lock = new CountDownLatch(batchesCount);
+
+        for (int index = 0; index < threadsCount; index++) {
+            final List<Event> partition = partitions.get(index);
+
+            if (!partition.isEmpty()) {
+                Runnable runnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (Event event : partition) {
+                                decryptEventInThread(event, timeline);
+                            }
+                        } finally {
+                            lock.countDown();
+                        }
                     }
+                };
+
+                // the pool has been released (the crypto is closing) : decrypt them in this thread
+                if (!mDecryptingPool.post(index, runnable)) {
+                    Log.e(LOG_TAG, "## decryptEvents() : the decrypting pool is released");
+                    runnable.run();
                 }
-                results.add(result);
-                lock.countDown();
             }
-        });
+        }
+
+        if (!serialEvents.isEmpty()) {
+            Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (Event event : serialEvents) {
+                            decryptEventInThread(event, timeline);
+                        }
+                    } finally {
+                        lock.countDown();
+                    }
+                }
+            };
+
+            // the decrypting thread has been stopped
+            if (!getDecryptingThreadHandler().post(runnable)) {
+                Log.e(LOG_TAG, "## decryptEvents() : the decrypting thread is stopped");
+                runnable.run();
+            }
+        }
 
         try {
-            lock.await();
+            // the decrypting thread drops the tasks posted after its stop request
+            while (!lock.await(DECRYPT_EVENTS_WAIT_PERIOD_MS, TimeUnit.MILLISECONDS)) {
+                if (!serialEvents.isEmpty() && (null == mDecryptingHandlerThread)) {
+                    Log.e(LOG_TAG, "## decryptEvents() : the decrypting thread has been stopped");
+                    break;
+                }
+            }
         } catch (Exception e) {
-            Log.e(LOG_TAG, "## decryptEvent() : failed " + e.getMessage());
+            Log.e(LOG_TAG, "## decryptEvents() : failed " + e.getMessage());
+        }
+    }
+
+    /**
+     * Decrypt a received event.
+     * It must be called in the decrypting thread or in a decrypting pool thread.
+     *
+     * @param event    the raw event.
+     * @param timeline the id of the timeline where the event is decrypted.
+     * @return true if the decryption was successful.
+     */
+    private boolean decryptEventInThread(Event event, String timeline) {
+        final EventContent eventContent = event.getWireEventContent();
+
+        if (null == eventContent) {
+            Log.e(LOG_TAG, "## decryptEvent : empty event content");
+            return false;
+        }
+
+        boolean result = false;
+
+        IMXDecrypting alg = getRoomDecryptor(event.roomId, eventContent.algorithm);
+
+        if (null == alg) {
+            String reason = String.format(MXCryptoError.UNABLE_TO_DECRYPT_REASON, event.eventId, eventContent.algorithm);
+
+            Log.e(LOG_TAG, "## decryptEvent() : " + reason);
+
+            event.setCryptoError(new MXCryptoError(MXCryptoError.UNABLE_TO_DECRYPT_ERROR_CODE, MXCryptoError.UNABLE_TO_DECRYPT, reason));
+        } else {
+            result = alg.decryptEvent(event, timeline);
+
+            if (!result) {
+                Log.e(LOG_TAG, "## decryptEvent() : failed " + event.getCryptoError().getDetailedErrorDescription());
+            }
         }
 
-        return (results.size() > 0) && results.get(0);
+        return result;
     }
 
     /**
@@ -2125,7 +2398,14 @@ public class MXCrypto {
 
                     if (!TextUtils.isEmpty(roomId)) {
                         synchronized (mRoomDecryptors) {
-                            mRoomDecryptors.get(roomId).put(algorithm, alg);
+                            // the decryptor might have been created by another decrypting thread
+                            IMXDecrypting existingAlg = mRoomDecryptors.get(roomId).get(algorithm);
+
+                            if (null != existingAlg) {
+                                alg = existingAlg;
+                            } else {
+                                mRoomDecryptors.get(roomId).put(algorithm, alg);
+                            }
                         }
                     }
                 }
@@ -2153,12 +2433,16 @@ public class MXCrypto {
 
                 List<MXOlmInboundGroupSession2> inboundGroupSessions = mCryptoStore.getInboundGroupSessions();
 
-                for (MXOlmInboundGroupSession2 session : inboundGroupSessions) {
-                    Map<String, Object> map = session.exportKeys();
+                try {
+                    for (MXOlmInboundGroupSession2 session : inboundGroupSessions) {
+                        Map<String, Object> map = session.exportKeys();
 
-                    if (null != map) {
-                        exportedSessions.add(map);
+                        if (null != map) {
+                            exportedSessions.add(map);
+                        }
                     }
+                } finally {
+                    mCryptoStore.releaseInboundGroupSessions(inboundGroupSessions);
                 }
 
                 final byte[] encryptedRoomKeys;
@@ -2231,25 +2515,46 @@ public class MXCrypto {
 
                 Log.d(LOG_TAG, "## importRoomKeys retrieve " + importedSessions.size() + "sessions in " + (t1 - t0) + " ms");
 
-                for (int index = 0; index < importedSessions.size(); index++) {
-                    Map<String, Object> map = importedSessions.get(index);
+                // commit the imported sessions together
+                boolean isCommitted;
+                mCryptoStore.beginBatch();
 
-                    MXOlmInboundGroupSession2 session = mOlmDevice.importInboundGroupSession(map);
+                try {
+                    for (int index = 0; index < importedSessions.size(); index++) {
+                        Map<String, Object> map = importedSessions.get(index);
 
-                    if ((null != session) && mRoomDecryptors.containsKey(session.mRoomId)) {
-                        IMXDecrypting decrypting = mRoomDecryptors.get(session.mRoomId).get(map.get("algorithm"));
+                        MXOlmInboundGroupSession2 session = mOlmDevice.importInboundGroupSession(map);
 
-                        if (null != decrypting) {
-                            try {
-                                String sessionId = session.mSession.sessionIdentifier();
-                                Log.d(LOG_TAG, "## importRoomKeys retrieve mSenderKey " + session.mSenderKey + " sessionId " + sessionId);
+                        if ((null != session) && mRoomDecryptors.containsKey(session.mRoomId)) {
+                            IMXDecrypting decrypting = mRoomDecryptors.get(session.mRoomId).get(map.get("algorithm"));
 
-                                decrypting.onNewSession(session.mSenderKey, sessionId);
-                            } catch (Exception e) {
-                                Log.e(LOG_TAG, "## importRoomKeys() : onNewSession failed " + e.getMessage());
+                            if (null != decrypting) {
+                                try {
+                                    String sessionId = session.mSession.sessionIdentifier();
+                                    Log.d(LOG_TAG, "## importRoomKeys retrieve mSenderKey " + session.mSenderKey + " sessionId " + sessionId);
+
+                                    decrypting.onNewSession(session.mSenderKey, sessionId);
+                                } catch (Exception e) {
+                                    Log.e(LOG_TAG, "## importRoomKeys() : onNewSession failed " + e.getMessage());
+                                }
                             }
                         }
                     }
+
+                    mCryptoStore.setBatchSuccessful();
+                } finally {
+                    isCommitted = mCryptoStore.endBatch();
+                }
+
+                if (!isCommitted) {
+                    Log.e(LOG_TAG, "## importRoomKeys : the imported sessions cannot be saved");
+                    getUIHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onUnexpectedError(new Exception("the imported sessions cannot be saved"));
+                        }
+                    });
+                    return;
                 }
 
                 long t3 = System.currentTimeMillis();
@@ -2287,6 +2592,34 @@ public class MXCrypto {
         mWarnOnUnknownDevices = warn;
     }
 
+    /**
+     * Enable or disable the decryption cache.
+     * When it is enabled, the decrypted megolm events are saved (encrypted) in the crypto store
+     * so they are not decrypted again after an application restart.
+     * The cached data is deleted when it is disabled.
+     *
+     * @param enabled true to enable the cache.
+     */
+    public void setDecryptionCacheEnabled(final boolean enabled) {
+        getEncryptingThreadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (null != mOlmDevice) {
+                    mOlmDevice.setDecryptionCacheEnabled(enabled);
+                }
+            }
+        });
+    }
+
+    /**
+     * Provides the decryption cache, to retrieve its statistics.
+     *
+     * @return the decryption cache, null if it is disabled.
+     */
+    public MXDecryptionCache getDecryptionCache() {
+        return (null != mOlmDevice) ? mOlmDevice.getDecryptionCache() : null;
+    }
+
     /**
      * Provides the list of unknown devices
      *
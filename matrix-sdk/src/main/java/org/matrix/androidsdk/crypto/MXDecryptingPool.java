@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.crypto;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import org.matrix.androidsdk.util.Log;
+
+/**
+ * Pool of megolm decrypting threads.
+ * The events are partitioned by inbound session i.e. by (sender key, session id) :
+ * the events of an inbound session are always decrypted by the same thread
+ * whereas the events of different sessions are decrypted in parallel.
+ */
+class MXDecryptingPool {
+    private static final String LOG_TAG = "MXDecryptingPool";
+
+    // the max number of decrypting threads
+    private static final int MAX_THREADS_COUNT = 4;
+
+    // the decrypting threads
+    private final HandlerThread[] mHandlerThreads;
+
+    // the decrypting threads handlers
+    private final Handler[] mHandlers;
+
+    // tell if the threads have been stopped
+    private boolean mIsReleased = false;
+
+    /**
+     * Constructor
+     *
+     * @param name the threads name prefix
+     */
+    MXDecryptingPool(String name) {
+        int count = Math.max(1, Math.min(MAX_THREADS_COUNT, Runtime.getRuntime().availableProcessors()));
+
+        Log.d(LOG_TAG, "## MXDecryptingPool() : " + count + " threads");
+
+        mHandlerThreads = new HandlerThread[count];
+        mHandlers = new Handler[count];
+
+        for (int index = 0; index < count; index++) {
+            mHandlerThreads[index] = new HandlerThread(name + "_" + index, Thread.MIN_PRIORITY);
+            mHandlerThreads[index].start();
+            mHandlers[index] = new Handler(mHandlerThreads[index].getLooper());
+        }
+    }
+
+    /**
+     * @return the number of decrypting threads
+     */
+    int getThreadsCount() {
+        return mHandlers.length;
+    }
+
+    /**
+     * Provides the thread index of an inbound session.
+     *
+     * @param senderKey the sender key
+     * @param sessionId the session id
+     * @return the thread index
+     */
+    int getThreadIndex(String senderKey, String sessionId) {
+        return ((senderKey + "|" + sessionId).hashCode() & Integer.MAX_VALUE) % mHandlers.length;
+    }
+
+    /**
+     * Run a task in a decrypting thread.
+     * The task is refused once the pool is released, so the caller can run it by itself
+     * instead of waiting for a task which will never be run.
+     *
+     * @param index    the thread index
+     * @param runnable the task
+     * @return true if the task will be run by the decrypting thread
+     */
+    synchronized boolean post(int index, Runnable runnable) {
+        return !mIsReleased && mHandlers[index].post(runnable);
+    }
+
+    /**
+     * Stop the decrypting threads.
+     * The tasks posted before are completed before.
+     */
+    synchronized void release() {
+        mIsReleased = true;
+
+        for (int index = 0; index < mHandlers.length; index++) {
+            final HandlerThread handlerThread = mHandlerThreads[index];
+
+            mHandlers[index].post(new Runnable() {
+                @Override
+                public void run() {
+                    handlerThread.quit();
+                }
+            });
+        }
+    }
+}
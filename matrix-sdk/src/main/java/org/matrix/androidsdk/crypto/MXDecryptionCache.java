@@ -0,0 +1,498 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.crypto;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.text.TextUtils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import org.matrix.androidsdk.data.cryptostore.IMXCryptoStore;
+import org.matrix.androidsdk.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Persisted cache of the megolm decryption results, by event id.
+ * It avoids decrypting again the stored events after an application restart.
+ * The cache is encrypted with AES before being saved in the crypto store.
+ * The AES key is saved wrapped by a key of the Android keystore, which cannot be extracted from the device.
+ * The cache is not saved when the Android keystore cannot be used (before Android M) : it is only kept in memory.
+ */
+public class MXDecryptionCache {
+    private static final String LOG_TAG = "MXDecryptionCache";
+
+    // the max number of cached results
+    private static final int MAX_CACHED_RESULTS_COUNT = 5000;
+
+    // the min delay between two saves while the application is running
+    // the cache is always saved when the application goes to background or when the crypto is closed
+    private static final long MIN_SAVE_INTERVAL_MS = 5 * 60 * 1000;
+
+    private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+    private static final int KEY_SIZE = 16;
+    private static final int IV_SIZE = 16;
+
+    // the Android keystore key which wraps the cache key
+    private static final String ANDROID_KEYSTORE = "AndroidKeyStore";
+    private static final String WRAPPING_KEY_ALIAS = "org.matrix.androidsdk.crypto.MXDecryptionCache";
+    private static final String WRAPPING_CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+    private static final int WRAPPING_TAG_LENGTH = 128;
+
+    /**
+     * A cached decryption result
+     */
+    static class CachedResult implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        // the inbound session
+        String mSenderKey;
+        String mSessionId;
+
+        // the room of the inbound session
+        String mRoomId;
+
+        // the message index in the session
+        long mMessageIndex;
+
+        // the decrypted payload
+        String mPayload;
+
+        // the claimed and the proved keys
+        HashMap<String, String> mKeysClaimed;
+        HashMap<String, String> mKeysProved;
+
+        // the parsed payload, it is not saved
+        private transient JsonElement mParsedPayload;
+
+        /**
+         * Provides the parsed payload, the payload is parsed once.
+         * The returned element is shared so it must not be modified.
+         *
+         * @return the parsed payload
+         * @throws Exception if the payload is not a valid JSON
+         */
+        synchronized JsonElement getParsedPayload() throws Exception {
+            if (null == mParsedPayload) {
+                mParsedPayload = new JsonParser().parse(mPayload);
+            }
+
+            return mParsedPayload;
+        }
+    }
+
+    // the crypto store
+    private final IMXCryptoStore mStore;
+
+    // event id -> result (least recently used first)
+    private final LinkedHashMap<String, CachedResult> mResults = new LinkedHashMap<>(16, 0.75f, true);
+
+    // true when the cache has been updated since the latest save
+    private boolean mIsDirty = false;
+
+    // the latest save time
+    private long mLastSaveTs = System.currentTimeMillis();
+
+    // the unwrapped cache key
+    private byte[] mKey = null;
+
+    // statistics
+    private int mHitsCount = 0;
+    private int mMissesCount = 0;
+    private long mMissesDuration = 0;
+
+    /**
+     * Constructor
+     *
+     * @param store the crypto store
+     */
+    MXDecryptionCache(IMXCryptoStore store) {
+        mStore = store;
+        load();
+    }
+
+    /**
+     * Provides a cached result.
+     * The result is ignored if it has not been decrypted with the expected inbound session.
+     *
+     * @param eventId   the event id
+     * @param senderKey the sender key
+     * @param sessionId the session id
+     * @return the cached result, null if there is none
+     */
+    synchronized CachedResult get(String eventId, String senderKey, String sessionId) {
+        CachedResult result = (null != eventId) ? mResults.get(eventId) : null;
+
+        if ((null != result) && (!TextUtils.equals(result.mSenderKey, senderKey) || !TextUtils.equals(result.mSessionId, sessionId))) {
+            Log.e(LOG_TAG, "## get() : the event " + eventId + " does not match the cached session");
+            result = null;
+        }
+
+        if (null != result) {
+            mHitsCount++;
+        }
+
+        return result;
+    }
+
+    /**
+     * Cache a decryption result.
+     *
+     * @param eventId       the event id
+     * @param senderKey     the sender key
+     * @param sessionId     the session id
+     * @param roomId        the room id of the session
+     * @param messageIndex  the message index
+     * @param payload       the decrypted payload
+     * @param parsedPayload the parsed payload, it must not be modified after this call
+     * @param keysClaimed   the claimed keys
+     * @param keysProved    the proved keys
+     * @param duration      the decryption duration in ms
+     */
+    synchronized void put(String eventId, String senderKey, String sessionId, String roomId, long messageIndex, String payload, JsonElement parsedPayload,
+                          Map<String, String> keysClaimed, Map<String, String> keysProved, long duration) {
+        mMissesCount++;
+        mMissesDuration += duration;
+
+        if ((null == eventId) || (null == payload)) {
+            return;
+        }
+
+        CachedResult result = new CachedResult();
+        result.mSenderKey = senderKey;
+        result.mSessionId = sessionId;
+        result.mRoomId = roomId;
+        result.mMessageIndex = messageIndex;
+        result.mPayload = payload;
+        result.mParsedPayload = parsedPayload;
+        result.mKeysClaimed = (null != keysClaimed) ? new HashMap<>(keysClaimed) : null;
+        result.mKeysProved = (null != keysProved) ? new HashMap<>(keysProved) : null;
+
+        mResults.put(eventId, result);
+
+        // remove the least recently used results
+        Iterator<String> iterator = mResults.keySet().iterator();
+
+        while ((mResults.size() > MAX_CACHED_RESULTS_COUNT) && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+
+        mIsDirty = true;
+    }
+
+    /**
+     * Remove the cached results of an inbound session.
+     *
+     * @param senderKey the sender key
+     * @param sessionId the session id
+     */
+    synchronized void removeSession(String senderKey, String sessionId) {
+        Iterator<CachedResult> iterator = mResults.values().iterator();
+
+        while (iterator.hasNext()) {
+            CachedResult result = iterator.next();
+
+            if (TextUtils.equals(result.mSenderKey, senderKey) && TextUtils.equals(result.mSessionId, sessionId)) {
+                iterator.remove();
+                mIsDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Remove all the cached results.
+     */
+    synchronized void clear() {
+        mResults.clear();
+        mStore.storeDecryptionCache(null);
+        mIsDirty = false;
+    }
+
+    /**
+     * @return the hits count since the application start
+     */
+    public synchronized int getHitsCount() {
+        return mHitsCount;
+    }
+
+    /**
+     * @return the misses count since the application start
+     */
+    public synchronized int getMissesCount() {
+        return mMissesCount;
+    }
+
+    /**
+     * @return the hit ratio (between 0 and 1) since the application start
+     */
+    public synchronized float getHitRatio() {
+        int count = mHitsCount + mMissesCount;
+        return (0 == count) ? 0 : ((float) mHitsCount / count);
+    }
+
+    /**
+     * Estimate the decryption time saved by the cache since the application start.
+     *
+     * @return the saved time in ms
+     */
+    public synchronized long getSavedTime() {
+        return (0 == mMissesCount) ? 0 : (mHitsCount * mMissesDuration / mMissesCount);
+    }
+
+    /**
+     * Save the cache if it has been updated and if the latest save is older than MIN_SAVE_INTERVAL_MS.
+     * The whole cache is written so it is not saved after each sync.
+     * It must not be called in the UI thread.
+     */
+    void saveIfExpired() {
+        synchronized (this) {
+            if (System.currentTimeMillis() - mLastSaveTs < MIN_SAVE_INTERVAL_MS) {
+                return;
+            }
+        }
+
+        save();
+    }
+
+    /**
+     * Save the cache if it has been updated.
+     * It must not be called in the UI thread.
+     */
+    void save() {
+        ArrayList<Map.Entry<String, CachedResult>> entries;
+
+        synchronized (this) {
+            if (!mIsDirty || !isKeyProtectionSupported()) {
+                return;
+            }
+
+            entries = new ArrayList<>(mResults.entrySet());
+            mIsDirty = false;
+            mLastSaveTs = System.currentTimeMillis();
+        }
+
+        long t0 = System.currentTimeMillis();
+
+        try {
+            // keep the least recently used order
+            LinkedHashMap<String, CachedResult> results = new LinkedHashMap<>();
+
+            for (Map.Entry<String, CachedResult> entry : entries) {
+                results.put(entry.getKey(), entry.getValue());
+            }
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bos);
+            out.writeObject(results);
+            out.close();
+
+            byte[] iv = new byte[IV_SIZE];
+            new SecureRandom().nextBytes(iv);
+
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(getKey(), "AES"), new IvParameterSpec(iv));
+            byte[] encrypted = cipher.doFinal(bos.toByteArray());
+
+            byte[] data = new byte[IV_SIZE + encrypted.length];
+            System.arraycopy(iv, 0, data, 0, IV_SIZE);
+            System.arraycopy(encrypted, 0, data, IV_SIZE, encrypted.length);
+
+            mStore.storeDecryptionCache(data);
+
+            Log.d(LOG_TAG, "## save() : " + results.size() + " results saved in " + (System.currentTimeMillis() - t0) + " ms"
+                    + " - hit ratio " + (int) (getHitRatio() * 100) + "% - saved time " + getSavedTime() + " ms");
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## save() failed " + e.getMessage());
+        }
+    }
+
+    /**
+     * Load the saved cache.
+     */
+    private void load() {
+        // do not keep a cache which would not be protected
+        if (!isKeyProtectionSupported()) {
+            if (null != mStore.getDecryptionCacheKey()) {
+                mStore.storeDecryptionCacheKey(null);
+                mStore.storeDecryptionCache(null);
+            }
+
+            return;
+        }
+
+        byte[] data = mStore.getDecryptionCache();
+
+        if ((null == data) || (data.length <= IV_SIZE)) {
+            return;
+        }
+
+        long t0 = System.currentTimeMillis();
+
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(getKey(), "AES"), new IvParameterSpec(data, 0, IV_SIZE));
+            byte[] decrypted = cipher.doFinal(data, IV_SIZE, data.length - IV_SIZE);
+
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(decrypted));
+            Map<String, CachedResult> results = (Map<String, CachedResult>) in.readObject();
+            in.close();
+
+            synchronized (this) {
+                mResults.putAll(results);
+            }
+
+            Log.d(LOG_TAG, "## load() : " + results.size() + " results loaded in " + (System.currentTimeMillis() - t0) + " ms");
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## load() failed " + e.getMessage());
+            mStore.storeDecryptionCache(null);
+        }
+    }
+
+    /**
+     * Provides the cache key, it is created the first time.
+     * A new key is created when the saved one cannot be unwrapped, the saved cache cannot be read anymore.
+     *
+     * @return the cache key
+     * @throws Exception if the key cannot be wrapped
+     */
+    private synchronized byte[] getKey() throws Exception {
+        if (null != mKey) {
+            return mKey;
+        }
+
+        byte[] wrappedKey = mStore.getDecryptionCacheKey();
+
+        if (null != wrappedKey) {
+            try {
+                byte[] key = unwrapKey(wrappedKey);
+
+                if (KEY_SIZE == key.length) {
+                    mKey = key;
+                    return mKey;
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## getKey() : cannot unwrap the key " + e.getMessage());
+            }
+        }
+
+        byte[] key = new byte[KEY_SIZE];
+        new SecureRandom().nextBytes(key);
+        mStore.storeDecryptionCacheKey(wrapKey(key));
+        mKey = key;
+
+        return mKey;
+    }
+
+    /**
+     * Tells if the cache key can be protected by the Android keystore.
+     * It is overridden in the tests, which do not have an Android keystore.
+     *
+     * @return true if the cache can be saved
+     */
+    boolean isKeyProtectionSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Provides the Android keystore key used to wrap the cache key, it is created the first time.
+     *
+     * @return the wrapping key
+     * @throws Exception if the keystore cannot be used
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static SecretKey getWrappingKey() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(ANDROID_KEYSTORE);
+        keyStore.load(null);
+
+        if (keyStore.containsAlias(WRAPPING_KEY_ALIAS)) {
+            return (SecretKey) keyStore.getKey(WRAPPING_KEY_ALIAS, null);
+        }
+
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, ANDROID_KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(WRAPPING_KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .build());
+
+        return generator.generateKey();
+    }
+
+    /**
+     * Wrap the cache key with the Android keystore key.
+     * It is overridden in the tests, which do not have an Android keystore.
+     *
+     * @param key the cache key
+     * @return the wrapped key : the IV length, the IV and the encrypted key
+     * @throws Exception if the key cannot be wrapped
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    byte[] wrapKey(byte[] key) throws Exception {
+        Cipher cipher = Cipher.getInstance(WRAPPING_CIPHER_ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, getWrappingKey());
+
+        byte[] iv = cipher.getIV();
+        byte[] encrypted = cipher.doFinal(key);
+
+        byte[] wrappedKey = new byte[1 + iv.length + encrypted.length];
+        wrappedKey[0] = (byte) iv.length;
+        System.arraycopy(iv, 0, wrappedKey, 1, iv.length);
+        System.arraycopy(encrypted, 0, wrappedKey, 1 + iv.length, encrypted.length);
+
+        return wrappedKey;
+    }
+
+    /**
+     * Unwrap the cache key with the Android keystore key.
+     * It is overridden in the tests, which do not have an Android keystore.
+     *
+     * @param wrappedKey the wrapped key
+     * @return the cache key
+     * @throws Exception if the key cannot be unwrapped
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    byte[] unwrapKey(byte[] wrappedKey) throws Exception {
+        int ivLength = wrappedKey[0];
+
+        Cipher cipher = Cipher.getInstance(WRAPPING_CIPHER_ALGORITHM);
+        cipher.init(Cipher.DECRYPT_MODE, getWrappingKey(), new GCMParameterSpec(WRAPPING_TAG_LENGTH, wrappedKey, 1, ivLength));
+
+        return cipher.doFinal(wrappedKey, 1 + ivLength, wrappedKey.length - 1 - ivLength);
+    }
+}
@@ -23,11 +23,13 @@ import org.matrix.androidsdk.crypto.data.MXDeviceInfo;
 import org.matrix.androidsdk.crypto.data.MXUsersDevicesMap;
 import org.matrix.androidsdk.data.cryptostore.IMXCryptoStore;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.model.KeyChangesResponse;
 import org.matrix.androidsdk.rest.model.MatrixError;
 import org.matrix.androidsdk.rest.model.crypto.KeysQueryResponse;
 import org.matrix.androidsdk.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -37,11 +39,40 @@ import java.util.Set;
 public class MXDeviceList {
     private static final String LOG_TAG = "MXDeviceList";
 
+    /**
+     * State transition diagram for the device tracking status
+     *
+     * |
+     * NOT_TRACKED -----> PENDING_DOWNLOAD -----> DOWNLOAD_IN_PROGRESS -----> UP_TO_DATE
+     *                    ^                        |                          |
+     *                    |                        | (failure)                |
+     *                    +------------------------+--------------------------+
+     *                               (invalidated)
+     *
+     * The download in progress status is saved as a pending download one.
+     */
+    public static final int TRACKING_STATUS_NOT_TRACKED = -1;
+    public static final int TRACKING_STATUS_PENDING_DOWNLOAD = 1;
+    public static final int TRACKING_STATUS_DOWNLOAD_IN_PROGRESS = 2;
+    public static final int TRACKING_STATUS_UP_TO_DATE = 3;
+
+    // the max number of users in a keys query request
+    private static final int MAX_USERS_PER_KEYS_QUERY = 250;
+
     // keys in progress
     private final HashSet<String> mUserKeyDownloadsInProgress = new HashSet<>();
 
-    // pending request
-    private final HashSet<String> mPendingUsersWithNewDevices = new HashSet<>();
+    // the device tracking statuses (user id -> status)
+    private final HashMap<String, Integer> mDeviceTrackingStatuses = new HashMap<>();
+
+    // true when the device lists changes which occurred while the application was not running have been retrieved
+    private boolean mIsCaughtUp = false;
+
+    // the latest sync token
+    private String mLatestSyncToken = null;
+
+    // the device sync token saved in the crypto store
+    private String mStoredSyncToken = null;
 
     // HS not ready for retry
     private final HashSet<String> mNotReadyToRetryHS = new HashSet<>();
@@ -77,8 +108,8 @@ public class MXDeviceList {
 
     private final MXSession mxSession;
 
-    // tells if there is a download keys request in progress
-    private boolean mIsDownloadingKeys = false;
+    // the number of download keys requests in progress
+    private int mKeysQueriesInProgressCount = 0;
 
     /**
      * Constructor
@@ -88,6 +119,59 @@ public class MXDeviceList {
     public MXDeviceList(MXSession session, MXCrypto crypto) {
         mxSession = session;
         mxCrypto = crypto;
+
+        Map<String, Integer> statuses = crypto.getCryptoStore().getDeviceTrackingStatuses();
+
+        for (String userId : statuses.keySet()) {
+            int status = statuses.get(userId);
+
+            // the download has been interrupted
+            if (TRACKING_STATUS_DOWNLOAD_IN_PROGRESS == status) {
+                status = TRACKING_STATUS_PENDING_DOWNLOAD;
+            }
+
+            mDeviceTrackingStatuses.put(userId, status);
+        }
+    }
+
+    /**
+     * Provides the device tracking status of an user.
+     *
+     * @param userId the user id
+     * @return the tracking status
+     */
+    public int getDeviceTrackingStatus(String userId) {
+        synchronized (mDeviceTrackingStatuses) {
+            Integer status = (null != userId) ? mDeviceTrackingStatuses.get(userId) : null;
+            return (null != status) ? status : TRACKING_STATUS_NOT_TRACKED;
+        }
+    }
+
+    /**
+     * Save the device tracking statuses.
+     * The download in progress statuses are saved as pending ones.
+     */
+    private void saveDeviceTrackingStatuses() {
+        IMXCryptoStore cryptoStore = mxCrypto.getCryptoStore();
+
+        // the user has been logged out
+        if (null == cryptoStore) {
+            return;
+        }
+
+        HashMap<String, Integer> statuses;
+
+        synchronized (mDeviceTrackingStatuses) {
+            statuses = new HashMap<>(mDeviceTrackingStatuses);
+        }
+
+        for (String userId : statuses.keySet()) {
+            if (TRACKING_STATUS_DOWNLOAD_IN_PROGRESS == statuses.get(userId)) {
+                statuses.put(userId, TRACKING_STATUS_PENDING_DOWNLOAD);
+            }
+        }
+
+        cryptoStore.saveDeviceTrackingStatuses(statuses);
     }
 
     /**
@@ -98,7 +182,13 @@ public class MXDeviceList {
      */
     private boolean isKeysDownloading(String userId) {
         if (null != userId) {
-            return mUserKeyDownloadsInProgress.contains(userId) || mPendingUsersWithNewDevices.contains(userId);
+            synchronized (mUserKeyDownloadsInProgress) {
+                if (mUserKeyDownloadsInProgress.contains(userId)) {
+                    return true;
+                }
+            }
+
+            return TRACKING_STATUS_PENDING_DOWNLOAD == getDeviceTrackingStatus(userId);
         }
 
         return false;
@@ -110,30 +200,230 @@ public class MXDeviceList {
      * @param userIds the user ids list
      */
     public void addPendingUsersWithNewDevices(List<String> userIds) {
-        synchronized (mPendingUsersWithNewDevices) {
-            mPendingUsersWithNewDevices.addAll(userIds);
+        synchronized (mDeviceTrackingStatuses) {
+            for (String userId : userIds) {
+                mDeviceTrackingStatuses.put(userId, TRACKING_STATUS_PENDING_DOWNLOAD);
+            }
         }
+
+        saveDeviceTrackingStatuses();
     }
 
     /**
-     * Provides new pending users with new devices
+     * Provides the pending users with new devices.
+     * The list size is capped to the max number of users in a keys query request.
      *
      * @return the the user ids list
      */
     private List<String> getPendingUsersWithNewDevices() {
-        final List<String> users;
+        final List<String> users = new ArrayList<>();
 
-        synchronized (mPendingUsersWithNewDevices) {
-            users = new ArrayList<>(mPendingUsersWithNewDevices);
+        synchronized (mDeviceTrackingStatuses) {
+            for (String userId : mDeviceTrackingStatuses.keySet()) {
+                if (TRACKING_STATUS_PENDING_DOWNLOAD == mDeviceTrackingStatuses.get(userId)) {
+                    users.add(userId);
 
-            // We've kicked off requests to these users: remove their
-            // pending flag for now.
-            mPendingUsersWithNewDevices.clear();
+                    if (users.size() == MAX_USERS_PER_KEYS_QUERY) {
+                        break;
+                    }
+                }
+            }
         }
 
         return users;
     }
 
+    /**
+     * Flag the tracked users as pending download.
+     *
+     * @param userIds the user ids list, null to flag all the tracked users.
+     * @return true if some users have been flagged.
+     */
+    private boolean invalidateTrackedUsers(List<String> userIds) {
+        boolean isUpdated = false;
+
+        synchronized (mDeviceTrackingStatuses) {
+            Collection<String> trackedUserIds = (null == userIds) ? new ArrayList<>(mDeviceTrackingStatuses.keySet()) : userIds;
+
+            for (String userId : trackedUserIds) {
+                Integer status = mDeviceTrackingStatuses.get(userId);
+
+                if ((null != status) && (TRACKING_STATUS_PENDING_DOWNLOAD != status)) {
+                    mDeviceTrackingStatuses.put(userId, TRACKING_STATUS_PENDING_DOWNLOAD);
+                    isUpdated = true;
+                }
+            }
+        }
+
+        return isUpdated;
+    }
+
+    /**
+     * Stop tracking the devices of some users.
+     *
+     * @param userIds the user ids list
+     * @return true if some users are not tracked anymore.
+     */
+    private boolean stopTrackingUsers(List<String> userIds) {
+        boolean isUpdated = false;
+
+        synchronized (mDeviceTrackingStatuses) {
+            for (String userId : userIds) {
+                isUpdated |= (null != mDeviceTrackingStatuses.remove(userId));
+            }
+        }
+
+        return isUpdated;
+    }
+
+    /**
+     * Update the devices tracking statuses from the device lists changes.
+     * Only the tracked users are flagged as pending download.
+     * This method must be called on getEncryptingThreadHandler() thread.
+     *
+     * @param changed the user ids whose devices have changed
+     * @param left    the user ids who do not share any encrypted room anymore
+     */
+    public void handleDeviceListsChanges(List<String> changed, List<String> left) {
+        boolean isUpdated = false;
+
+        if ((null != changed) && (0 != changed.size())) {
+            Log.d(LOG_TAG, "## handleDeviceListsChanges() : changed " + changed);
+            clearUnavailableServersList();
+            isUpdated = invalidateTrackedUsers(changed);
+        }
+
+        if ((null != left) && (0 != left.size())) {
+            Log.d(LOG_TAG, "## handleDeviceListsChanges() : left " + left);
+            isUpdated |= stopTrackingUsers(left);
+        }
+
+        if (isUpdated) {
+            saveDeviceTrackingStatuses();
+        }
+    }
+
+    /**
+     * A sync response has been processed.
+     * Its token is saved once the device lists changes which occurred offline have been retrieved.
+     * This method must be called on getEncryptingThreadHandler() thread.
+     *
+     * @param syncToken the sync token
+     */
+    public void onSyncCompleted(String syncToken) {
+        if (null != syncToken) {
+            mLatestSyncToken = syncToken;
+
+            if (mIsCaughtUp) {
+                storeDeviceSyncToken(syncToken);
+            }
+        }
+    }
+
+    /**
+     * Save the device sync token in the crypto store if it has been updated.
+     *
+     * @param syncToken the sync token
+     */
+    private void storeDeviceSyncToken(String syncToken) {
+        IMXCryptoStore cryptoStore = mxCrypto.getCryptoStore();
+
+        if ((null != syncToken) && (null != cryptoStore) && !TextUtils.equals(syncToken, mStoredSyncToken)) {
+            cryptoStore.storeDeviceSyncToken(syncToken);
+            mStoredSyncToken = syncToken;
+        }
+    }
+
+    /**
+     * The device lists changes which occurred offline have been retrieved.
+     *
+     * @param syncToken the sync token up to which the changes have been retrieved
+     */
+    private void onCaughtUp(String syncToken) {
+        mIsCaughtUp = true;
+
+        storeDeviceSyncToken((null != mLatestSyncToken) ? mLatestSyncToken : syncToken);
+
+        refreshOutdatedDeviceLists();
+    }
+
+    /**
+     * Retrieve the users whose devices have changed while the application was not running
+     * i.e. between the saved device sync token and the current sync token, then refresh their devices.
+     * All the tracked users are invalidated if there is no saved device sync token.
+     * This method must be called on getEncryptingThreadHandler() thread.
+     *
+     * @param syncToken the current sync token
+     */
+    public void catchUpDeviceListsChanges(final String syncToken) {
+        IMXCryptoStore cryptoStore = mxCrypto.getCryptoStore();
+
+        // sanity check
+        if (null == cryptoStore) {
+            return;
+        }
+
+        String fromToken = cryptoStore.getDeviceSyncToken();
+        mStoredSyncToken = fromToken;
+
+        if ((null == fromToken) || (null == syncToken)) {
+            Log.d(LOG_TAG, "## catchUpDeviceListsChanges() : no device sync token, invalidate all the tracked users");
+
+            if (invalidateTrackedUsers(null)) {
+                saveDeviceTrackingStatuses();
+            }
+
+            onCaughtUp(syncToken);
+        } else if (TextUtils.equals(fromToken, syncToken)) {
+            onCaughtUp(syncToken);
+        } else {
+            Log.d(LOG_TAG, "## catchUpDeviceListsChanges() : from " + fromToken + " to " + syncToken);
+
+            mxSession.getCryptoRestClient().getKeyChanges(fromToken, syncToken, new ApiCallback<KeyChangesResponse>() {
+                @Override
+                public void onSuccess(final KeyChangesResponse keyChangesResponse) {
+                    mxCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            handleDeviceListsChanges(keyChangesResponse.changed, keyChangesResponse.left);
+                            onCaughtUp(syncToken);
+                        }
+                    });
+                }
+
+                private void onError(String error) {
+                    Log.e(LOG_TAG, "## catchUpDeviceListsChanges() : failed " + error + ", invalidate all the tracked users");
+
+                    mxCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (invalidateTrackedUsers(null)) {
+                                saveDeviceTrackingStatuses();
+                            }
+
+                            onCaughtUp(syncToken);
+                        }
+                    });
+                }
+
+                @Override
+                public void onNetworkError(Exception e) {
+                    onError(e.getMessage());
+                }
+
+                @Override
+                public void onMatrixError(MatrixError e) {
+                    onError(e.getMessage());
+                }
+
+                @Override
+                public void onUnexpectedError(Exception e) {
+                    onError(e.getMessage());
+                }
+            });
+        }
+    }
+
     /**
      * Tells if the key downloads should be tried
      *
@@ -172,8 +462,12 @@ public class MXDeviceList {
                 mUserKeyDownloadsInProgress.addAll(userIds);
             }
 
-            synchronized (mPendingUsersWithNewDevices) {
-                mPendingUsersWithNewDevices.removeAll(userIds);
+            // the users whose download is already in progress keep their status
+            // so they will be downloaded again if they have been invalidated
+            synchronized (mDeviceTrackingStatuses) {
+                for (String userId : filteredUserIds) {
+                    mDeviceTrackingStatuses.put(userId, TRACKING_STATUS_DOWNLOAD_IN_PROGRESS);
+                }
             }
 
             mDownloadKeysQueues.add(new DownloadKeysPromise(userIds, callback));
@@ -218,12 +512,18 @@ public class MXDeviceList {
                 mUserKeyDownloadsInProgress.removeAll(userIds);
             }
 
-            synchronized (mPendingUsersWithNewDevices) {
-                mPendingUsersWithNewDevices.addAll(userIds);
+            synchronized (mDeviceTrackingStatuses) {
+                for (String userId : userIds) {
+                    if (TRACKING_STATUS_DOWNLOAD_IN_PROGRESS == getDeviceTrackingStatus(userId)) {
+                        mDeviceTrackingStatuses.put(userId, TRACKING_STATUS_PENDING_DOWNLOAD);
+                    }
+                }
             }
+
+            saveDeviceTrackingStatuses();
         }
 
-        mIsDownloadingKeys = false;
+        mKeysQueriesInProgressCount = Math.max(0, mKeysQueriesInProgressCount - 1);
     }
 
     /**
@@ -259,6 +559,29 @@ public class MXDeviceList {
         }
 
         if (null != userIds) {
+            IMXCryptoStore cryptoStore = mxCrypto.getCryptoStore();
+
+            synchronized (mDeviceTrackingStatuses) {
+                for (String userId : userIds) {
+                    // the user has been invalidated or is not tracked anymore while downloading
+                    if (TRACKING_STATUS_DOWNLOAD_IN_PROGRESS != getDeviceTrackingStatus(userId)) {
+                        continue;
+                    }
+
+                    if ((null != cryptoStore) && (null != cryptoStore.getUserDevices(userId))) {
+                        mDeviceTrackingStatuses.put(userId, TRACKING_STATUS_UP_TO_DATE);
+                    } else if (canRetryKeysDownload(userId)) {
+                        Log.e(LOG_TAG, "failed to retry the devices of " + userId + " : retry later");
+                        mDeviceTrackingStatuses.put(userId, TRACKING_STATUS_PENDING_DOWNLOAD);
+                    } else {
+                        Log.e(LOG_TAG, "failed to retry the devices of " + userId + " : the HS is not available");
+                        mDeviceTrackingStatuses.remove(userId);
+                    }
+                }
+            }
+
+            saveDeviceTrackingStatuses();
+
             if (mDownloadKeysQueues.size() > 0) {
                 ArrayList<DownloadKeysPromise> promisesToRemove = new ArrayList<>();
 
@@ -272,16 +595,7 @@ public class MXDeviceList {
                         for (String userId : promise.mUserIdsList) {
                             Map<String, MXDeviceInfo> devices = mxCrypto.getCryptoStore().getUserDevices(userId);
 
-                            if (null == devices) {
-                                synchronized (mPendingUsersWithNewDevices) {
-                                    if (canRetryKeysDownload(userId)) {
-                                        mPendingUsersWithNewDevices.add(userId);
-                                        Log.e(LOG_TAG, "failed to retry the devices of " + userId + " : retry later");
-                                    } else {
-                                        Log.e(LOG_TAG, "failed to retry the devices of " + userId + " : the HS is not available");
-                                    }
-                                }
-                            } else {
+                            if (null != devices) {
                                 // And the response result
                                 usersDevicesInfoMap.setObjects(devices, userId);
                             }
@@ -305,10 +619,12 @@ public class MXDeviceList {
                 mDownloadKeysQueues.removeAll(promisesToRemove);
             }
 
-            mUserKeyDownloadsInProgress.removeAll(userIds);
+            synchronized (mUserKeyDownloadsInProgress) {
+                mUserKeyDownloadsInProgress.removeAll(userIds);
+            }
         }
 
-        mIsDownloadingKeys = false;
+        mKeysQueriesInProgressCount = Math.max(0, mKeysQueriesInProgressCount - 1);
     }
 
     /**
@@ -341,7 +657,8 @@ public class MXDeviceList {
 
                     Map<String, MXDeviceInfo> devices = store.getUserDevices(userId);
 
-                    if (null == devices) {
+                    // the cached devices of an untracked user might be outdated
+                    if ((null == devices) || (TRACKING_STATUS_NOT_TRACKED == getDeviceTrackingStatus(userId))) {
                         downloadUsers.add(userId);
                     } else {
                         // the keys download won't be triggered twice
@@ -434,8 +751,26 @@ public class MXDeviceList {
             return;
         }
 
-        mIsDownloadingKeys = true;
+        // split the request to limit the request and the response sizes
+        // the errors are only reported once to the callback
+        final boolean[] isErrorReported = {false};
 
+        for (int index = 0; index < filteredUsers.size(); index += MAX_USERS_PER_KEYS_QUERY) {
+            List<String> batch = new ArrayList<>(filteredUsers.subList(index, Math.min(index + MAX_USERS_PER_KEYS_QUERY, filteredUsers.size())));
+            mKeysQueriesInProgressCount++;
+            doKeyDownloadForUsersBatch(batch, isErrorReported, callback);
+        }
+    }
+
+    /**
+     * Download the devices keys of a batch of users.
+     * It must be called in getEncryptingThreadHandler() thread.
+     *
+     * @param filteredUsers   the user ids list
+     * @param isErrorReported tells if an error has already been reported to the callback
+     * @param callback        the asynchronous callback
+     */
+    private void doKeyDownloadForUsersBatch(final List<String> filteredUsers, final boolean[] isErrorReported, final ApiCallback<MXUsersDevicesMap<MXDeviceInfo>> callback) {
         mxSession.getCryptoRestClient().downloadKeysForUsers(filteredUsers, mxSession.getDataHandler().getStore().getEventStreamToken(), new ApiCallback<KeysQueryResponse>() {
             @Override
             public void onSuccess(final KeysQueryResponse keysQueryResponse) {
@@ -511,7 +846,8 @@ public class MXDeviceList {
                 });
 
                 Log.e(LOG_TAG, "##doKeyDownloadForUsers() : onNetworkError " + e.getMessage());
-                if (null != callback) {
+                if ((null != callback) && !isErrorReported[0]) {
+                    isErrorReported[0] = true;
                     callback.onNetworkError(e);
                 }
             }
@@ -527,7 +863,8 @@ public class MXDeviceList {
                     }
                 });
 
-                if (null != callback) {
+                if ((null != callback) && !isErrorReported[0]) {
+                    isErrorReported[0] = true;
                     callback.onMatrixError(e);
                 }
             }
@@ -543,7 +880,8 @@ public class MXDeviceList {
                     }
                 });
 
-                if (null != callback) {
+                if ((null != callback) && !isErrorReported[0]) {
+                    isErrorReported[0] = true;
                     callback.onUnexpectedError(e);
                 }
             }
@@ -649,7 +987,7 @@ public class MXDeviceList {
             return;
         }
 
-        if (mIsDownloadingKeys) {
+        if (mKeysQueriesInProgressCount > 0) {
             // request already in progress - do nothing. (We will automatically
             // make another request if there are more users with outdated
             // device lists when the current request completes).
@@ -663,6 +1001,15 @@ public class MXDeviceList {
                     @Override
                     public void run() {
                         Log.d(LOG_TAG, "## refreshOutdatedDeviceLists() : done");
+
+                        // the pending users list is capped
+                        // so download the remaining ones (the failed ones will be retried later)
+                        List<String> pendingUsers = getPendingUsersWithNewDevices();
+                        pendingUsers.removeAll(users);
+
+                        if (0 != pendingUsers.size()) {
+                            refreshOutdatedDeviceLists();
+                        }
                     }
                 });
             }
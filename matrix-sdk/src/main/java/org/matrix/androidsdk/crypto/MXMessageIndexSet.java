@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.crypto;
+
+import java.util.HashMap;
+
+/**
+ * Compact set of the decrypted message indexes of an inbound group session.
+ * The megolm message indexes are mostly consecutive, so they are stored in bitset pages
+ * of PAGE_SIZE indexes : a session with PAGE_SIZE decrypted messages uses a single page.
+ * The check and the update are done in constant time.
+ * It is not thread safe : the caller must synchronize the calls.
+ */
+class MXMessageIndexSet {
+    // the number of indexes per page
+    private static final int PAGE_SHIFT = 10;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    // page number -> bitset
+    private final HashMap<Long, long[]> mPages = new HashMap<>();
+
+    // the latest used page, the indexes of a timeline are usually in the same page
+    private long mLastPageNumber = -1;
+    private long[] mLastPage = null;
+
+    // the number of indexes in the set
+    private int mSize = 0;
+
+    /**
+     * Provides the page of an index.
+     *
+     * @param pageNumber the page number
+     * @param create     true to create the page if it does not exist
+     * @return the page, null if it does not exist and create is false
+     */
+    private long[] getPage(long pageNumber, boolean create) {
+        if ((pageNumber == mLastPageNumber) && (null != mLastPage)) {
+            return mLastPage;
+        }
+
+        long[] page = mPages.get(pageNumber);
+
+        if ((null == page) && create) {
+            page = new long[PAGE_SIZE / 64];
+            mPages.put(pageNumber, page);
+        }
+
+        if (null != page) {
+            mLastPageNumber = pageNumber;
+            mLastPage = page;
+        }
+
+        return page;
+    }
+
+    /**
+     * Add a message index.
+     *
+     * @param index the message index
+     * @return true if the index was not in the set
+     */
+    boolean add(long index) {
+        long[] page = getPage(index >>> PAGE_SHIFT, true);
+
+        int bit = (int) (index & (PAGE_SIZE - 1));
+        long mask = 1L << (bit & 63);
+
+        if (0 != (page[bit >>> 6] & mask)) {
+            return false;
+        }
+
+        page[bit >>> 6] |= mask;
+        mSize++;
+        return true;
+    }
+
+    /**
+     * Tells if a message index is in the set.
+     *
+     * @param index the message index
+     * @return true if it is in the set
+     */
+    boolean contains(long index) {
+        long[] page = getPage(index >>> PAGE_SHIFT, false);
+
+        if (null == page) {
+            return false;
+        }
+
+        int bit = (int) (index & (PAGE_SIZE - 1));
+        return 0 != (page[bit >>> 6] & (1L << (bit & 63)));
+    }
+
+    /**
+     * @return the number of indexes in the set
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the number of allocated pages
+     */
+    int getPagesCount() {
+        return mPages.size();
+    }
+}
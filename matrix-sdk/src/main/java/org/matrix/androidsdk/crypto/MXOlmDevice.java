@@ -43,6 +43,9 @@ import java.util.Set;
 public class MXOlmDevice {
     private static final String LOG_TAG = "MXOlmDevice";
 
+    // the number of times a session released by the store is retrieved again before giving up
+    private static final int MAX_RELEASED_SESSION_RETRIES = 3;
+
     // Curve25519 key for the account.
     private String mDeviceCurve25519Key;
 
@@ -74,9 +77,12 @@ public class MXOlmDevice {
     // So, store these message indexes per timeline id.
     //
     // The first level keys are timeline ids.
-    // The second level keys are strings of form "<senderKey>|<session_id>|<message_index>"
-    // Values are true.
-    private final HashMap<String, HashMap<String, Boolean>> mInboundGroupSessionMessageIndexes;
+    // The second level keys are strings of form "<senderKey>|<session_id>"
+    // Values are the compact sets of the decrypted message indexes.
+    private final HashMap<String, HashMap<String, MXMessageIndexSet>> mInboundGroupSessionMessageIndexes;
+
+    // the decryption results cache, null when it is disabled
+    private volatile MXDecryptionCache mDecryptionCache = null;
 
     /**
      * inboundGroupSessionWithId error
@@ -124,7 +130,7 @@ public class MXOlmDevice {
             Log.e(LOG_TAG, "## MXOlmDevice : cannot find " + OlmAccount.JSON_KEY_FINGER_PRINT_KEY + " with error " + e.getMessage());
         }
 
-        mInboundGroupSessionMessageIndexes = new HashMap();
+        mInboundGroupSessionMessageIndexes = new HashMap<>();
     }
 
     /**
@@ -377,20 +383,28 @@ public class MXOlmDevice {
         OlmMessage olmMessage;
         OlmSession olmSession = getSessionForDevice(theirDeviceIdentityKey, sessionId);
 
-        if (null != olmSession) {
-            try {
-                Log.d(LOG_TAG, "## encryptMessage() : olmSession.sessionIdentifier: " + olmSession.sessionIdentifier());
-                Log.d(LOG_TAG, "## encryptMessage() : payloadString: " + payloadString);
+        for (int retries = 0; (null != olmSession) && (retries < MAX_RELEASED_SESSION_RETRIES); retries++) {
+            synchronized (olmSession) {
+                // the store releases the sessions evicted from its cache
+                if (!olmSession.isReleased()) {
+                    try {
+                        Log.d(LOG_TAG, "## encryptMessage() : olmSession.sessionIdentifier: " + olmSession.sessionIdentifier());
+                        Log.d(LOG_TAG, "## encryptMessage() : payloadString: " + payloadString);
 
-                olmMessage = olmSession.encryptMessage(payloadString);
-                mStore.storeSession(olmSession, theirDeviceIdentityKey);
-                res = new HashMap<>();
+                        olmMessage = olmSession.encryptMessage(payloadString);
+                        mStore.storeSession(olmSession, theirDeviceIdentityKey);
+                        res = new HashMap<>();
 
-                res.put("body", olmMessage.mCipherText);
-                res.put("type", olmMessage.mType);
-            } catch (Exception e) {
-                Log.e(LOG_TAG, "## encryptMessage() : failed " + e.getMessage());
+                        res.put("body", olmMessage.mCipherText);
+                        res.put("type", olmMessage.mType);
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "## encryptMessage() : failed " + e.getMessage());
+                    }
+                    break;
+                }
             }
+
+            olmSession = getSessionForDevice(theirDeviceIdentityKey, sessionId);
         }
 
         return res;
@@ -409,17 +423,25 @@ public class MXOlmDevice {
 
         OlmSession olmSession = getSessionForDevice(theirDeviceIdentityKey, sessionId);
 
-        if (null != olmSession) {
-            OlmMessage olmMessage = new OlmMessage();
-            olmMessage.mCipherText = ciphertext;
-            olmMessage.mType = messageType;
+        for (int retries = 0; (null != olmSession) && (retries < MAX_RELEASED_SESSION_RETRIES); retries++) {
+            synchronized (olmSession) {
+                // the store releases the sessions evicted from its cache
+                if (!olmSession.isReleased()) {
+                    OlmMessage olmMessage = new OlmMessage();
+                    olmMessage.mCipherText = ciphertext;
+                    olmMessage.mType = messageType;
 
-            try {
-                payloadString = olmSession.decryptMessage(olmMessage);
-                mStore.storeSession(olmSession, theirDeviceIdentityKey);
-            } catch (Exception e) {
-                Log.e(LOG_TAG, "## decryptMessage() : decryptMessage failed " + e.getMessage());
+                    try {
+                        payloadString = olmSession.decryptMessage(olmMessage);
+                        mStore.storeSession(olmSession, theirDeviceIdentityKey);
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "## decryptMessage() : decryptMessage failed " + e.getMessage());
+                    }
+                    break;
+                }
             }
+
+            olmSession = getSessionForDevice(theirDeviceIdentityKey, sessionId);
         }
 
         return payloadString;
@@ -439,7 +461,19 @@ public class MXOlmDevice {
         }
 
         OlmSession olmSession = getSessionForDevice(theirDeviceIdentityKey, sessionId);
-        return (null != olmSession) && olmSession.matchesInboundSession(ciphertext);
+
+        for (int retries = 0; (null != olmSession) && (retries < MAX_RELEASED_SESSION_RETRIES); retries++) {
+            synchronized (olmSession) {
+                // the store releases the sessions evicted from its cache
+                if (!olmSession.isReleased()) {
+                    return olmSession.matchesInboundSession(ciphertext);
+                }
+            }
+
+            olmSession = getSessionForDevice(theirDeviceIdentityKey, sessionId);
+        }
+
+        return false;
     }
 
 
@@ -610,9 +644,44 @@ public class MXOlmDevice {
     public void removeInboundGroupSession(String sessionId, String sessionKey) {
         if ((null != sessionId) && (null != sessionKey)) {
             mStore.removeInboundGroupSession(sessionId, sessionKey);
+
+            // the cached results must not outlive the session
+            MXDecryptionCache decryptionCache = mDecryptionCache;
+
+            if (null != decryptionCache) {
+                decryptionCache.removeSession(sessionKey, sessionId);
+            }
+        }
+    }
+
+    /**
+     * Enable or disable the decryption cache.
+     * The decrypted events are cached (encrypted) in the crypto store to avoid decrypting them again after a restart.
+     * The cached data is deleted when it is disabled.
+     * @param enabled true to enable the cache
+     */
+    public synchronized void setDecryptionCacheEnabled(boolean enabled) {
+        if (enabled) {
+            if (null == mDecryptionCache) {
+                mDecryptionCache = new MXDecryptionCache(mStore);
+            }
+        } else {
+            if (null != mDecryptionCache) {
+                mDecryptionCache.clear();
+                mDecryptionCache = null;
+            } else {
+                mStore.storeDecryptionCache(null);
+            }
         }
     }
 
+    /**
+     * @return the decryption cache, null if it is disabled.
+     */
+    public MXDecryptionCache getDecryptionCache() {
+        return mDecryptionCache;
+    }
+
     /**
      * Decrypt a received message with an inbound group session.
      * @param body the base64-encoded body of the encrypted message.
@@ -623,46 +692,98 @@ public class MXOlmDevice {
      * @return the decrypting result. Nil if the sessionId is unknown.
      */
     public MXDecryptionResult decryptGroupMessage(String body, String roomId, String timeline, String sessionId, String senderKey) {
+        return decryptGroupMessage(body, roomId, timeline, sessionId, senderKey, null);
+    }
+
+    /**
+     * Decrypt a received message with an inbound group session.
+     * The decryption cache is used when it is enabled.
+     * @param body the base64-encoded body of the encrypted message.
+     * @param roomId theroom in which the message was received.
+     * @param timeline the id of the timeline where the event is decrypted. It is used to prevent replay attack.
+     * @param sessionId the session identifier.
+     * @param senderKey the base64-encoded curve25519 key of the sender.
+     * @param eventId the event id, it is used as cache key.
+     * @return the decrypting result. Nil if the sessionId is unknown.
+     */
+    public MXDecryptionResult decryptGroupMessage(String body, String roomId, String timeline, String sessionId, String senderKey, String eventId) {
         MXDecryptionResult result = new MXDecryptionResult();
+
+        // the cache is checked before loading the inbound session, which is the costly part of a decryption.
+        // The cached results are removed with their session, and they are only valid for the room of the session.
+        MXDecryptionCache decryptionCache = mDecryptionCache;
+        MXDecryptionCache.CachedResult cachedResult = (null != decryptionCache) ? decryptionCache.get(eventId, senderKey, sessionId) : null;
+
+        if ((null != cachedResult) && TextUtils.equals(roomId, cachedResult.mRoomId)) {
+            if (isDuplicatedMessageIndex(timeline, senderKey, sessionId, cachedResult.mMessageIndex)) {
+                String reason = String.format(MXCryptoError.DUPLICATE_MESSAGE_INDEX_REASON, cachedResult.mMessageIndex);
+
+                Log.e(LOG_TAG,"## decryptGroupMessage() : " + reason);
+                result.mCryptoError = new MXCryptoError(MXCryptoError.DUPLICATED_MESSAGE_INDEX_ERROR_CODE, MXCryptoError.UNABLE_TO_DECRYPT, reason);
+                return result;
+            }
+
+            try {
+                result.mPayload = cachedResult.getParsedPayload();
+                result.mKeysClaimed = cachedResult.mKeysClaimed;
+                result.mKeysProved = cachedResult.mKeysProved;
+                return result;
+            } catch (Exception e) {
+                // decrypt it again
+                Log.e(LOG_TAG, "## decryptGroupMessage() : invalid cached payload " + e.getMessage());
+            }
+        } else {
+            cachedResult = null;
+        }
+
         MXOlmInboundGroupSession2 session = getInboundGroupSession(sessionId, senderKey, roomId);
 
         if (null != session) {
             // Check that the room id matches the original one for the session. This stops
             // the HS pretending a message was targeting a different room.
             if (TextUtils.equals(roomId, session.mRoomId)) {
+
 				String errorMessage = "";
                 OlmInboundGroupSession.DecryptMessageResult decryptResult = null;
+                long t0 = System.currentTimeMillis();
+
                 try {
-                    decryptResult = session.mSession.decryptMessage(body);
+                    // the megolm events might be decrypted in parallel
+                    // a session must not be used by several threads
+                    for (int retries = 0; (null != session) && (retries < MAX_RELEASED_SESSION_RETRIES); retries++) {
+                        synchronized (session) {
+                            // the store releases the sessions evicted from its cache
+                            if (!session.mSession.isReleased()) {
+                                decryptResult = session.mSession.decryptMessage(body);
+                                break;
+                            }
+                        }
+
+                        session = mStore.getInboundGroupSession(sessionId, senderKey);
+                    }
                 } catch (Exception e) {
                     Log.e(LOG_TAG, "## decryptGroupMessage () : decryptMessage failed " + e.getMessage());
                     errorMessage = e.getMessage();
                 }
 
                 if (null != decryptResult) {
-                    if (null != timeline) {
-                        if (!mInboundGroupSessionMessageIndexes.containsKey(timeline)) {
-                            mInboundGroupSessionMessageIndexes.put(timeline, new HashMap<String, Boolean>());
-                        }
+                    // the cached result might have been rejected
+                    if ((null == cachedResult) && isDuplicatedMessageIndex(timeline, senderKey, sessionId, decryptResult.mIndex)) {
+                        String reason = String.format(MXCryptoError.DUPLICATE_MESSAGE_INDEX_REASON, decryptResult.mIndex);
 
-                        String messageIndexKey = senderKey + "|" + sessionId + "|" +  decryptResult.mIndex;
-
-                        if (null != mInboundGroupSessionMessageIndexes.get(timeline).get(messageIndexKey)) {
-
-                            String reason = String.format(MXCryptoError.DUPLICATE_MESSAGE_INDEX_REASON, decryptResult.mIndex);
-
-                            Log.e(LOG_TAG,"## decryptGroupMessage() : " + reason);
-                            result.mCryptoError = new MXCryptoError(MXCryptoError.DUPLICATED_MESSAGE_INDEX_ERROR_CODE, MXCryptoError.UNABLE_TO_DECRYPT, reason);
-                            return result;
-                        }
-
-                        mInboundGroupSessionMessageIndexes.get(timeline).put(messageIndexKey, true);
+                        Log.e(LOG_TAG,"## decryptGroupMessage() : " + reason);
+                        result.mCryptoError = new MXCryptoError(MXCryptoError.DUPLICATED_MESSAGE_INDEX_ERROR_CODE, MXCryptoError.UNABLE_TO_DECRYPT, reason);
+                        return result;
                     }
 
                     mStore.storeInboundGroupSession(session);
+
+                    String payload;
+
                     try {
+                        payload = JsonUtils.convertFromUTF8(decryptResult.mDecryptedMessage);
                         JsonParser parser = new JsonParser();
-                        result.mPayload = parser.parse(JsonUtils.convertFromUTF8(decryptResult.mDecryptedMessage));
+                        result.mPayload = parser.parse(payload);
                     } catch (Exception e) {
                         Log.e(LOG_TAG, "## decryptGroupMessage() : RLEncoder.encode failed " + e.getMessage());
                         return null;
@@ -680,6 +801,10 @@ public class MXOlmDevice {
                     HashMap<String, String> map = new HashMap<>();
                     map.put("curve25519", senderKey);
                     result.mKeysProved = map;
+
+                    if (null != decryptionCache) {
+                        decryptionCache.put(eventId, senderKey, sessionId, session.mRoomId, decryptResult.mIndex, payload, result.mPayload, result.mKeysClaimed, result.mKeysProved, System.currentTimeMillis() - t0);
+                    }
                 } else {
                     result.mCryptoError = new MXCryptoError(MXCryptoError.OLM_ERROR_CODE, errorMessage, null);
                     Log.e(LOG_TAG, "## decryptGroupMessage() : failed to decode the message");
@@ -698,13 +823,50 @@ public class MXOlmDevice {
         return result;
     }
 
+    /**
+     * Record a decrypted message index in a timeline and check if it has already been decrypted.
+     * @param timeline the timeline id.
+     * @param senderKey the sender key.
+     * @param sessionId the session id.
+     * @param messageIndex the message index.
+     * @return true if the message index has already been decrypted in this timeline.
+     */
+    private boolean isDuplicatedMessageIndex(String timeline, String senderKey, String sessionId, long messageIndex) {
+        if (null == timeline) {
+            return false;
+        }
+
+        String sessionKey = senderKey + "|" + sessionId;
+
+        // the check and the update must be atomic
+        synchronized (mInboundGroupSessionMessageIndexes) {
+            HashMap<String, MXMessageIndexSet> indexesBySession = mInboundGroupSessionMessageIndexes.get(timeline);
+
+            if (null == indexesBySession) {
+                indexesBySession = new HashMap<>();
+                mInboundGroupSessionMessageIndexes.put(timeline, indexesBySession);
+            }
+
+            MXMessageIndexSet messageIndexes = indexesBySession.get(sessionKey);
+
+            if (null == messageIndexes) {
+                messageIndexes = new MXMessageIndexSet();
+                indexesBySession.put(sessionKey, messageIndexes);
+            }
+
+            return !messageIndexes.add(messageIndex);
+        }
+    }
+
     /**
      * Reset replay attack data for the given timeline.
      * @param timeline the id of the timeline.
      */
     public void resetReplayAttackCheckInTimeline(String timeline) {
        if (null != timeline) {
-           mInboundGroupSessionMessageIndexes.remove(timeline);
+           synchronized (mInboundGroupSessionMessageIndexes) {
+               mInboundGroupSessionMessageIndexes.remove(timeline);
+           }
        }
     }
 
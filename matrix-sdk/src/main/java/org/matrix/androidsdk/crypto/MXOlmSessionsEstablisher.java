@@ -0,0 +1,465 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.crypto;
+
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.crypto.data.MXDeviceInfo;
+import org.matrix.androidsdk.crypto.data.MXKey;
+import org.matrix.androidsdk.crypto.data.MXUsersDevicesMap;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.client.CryptoRestClient;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.matrix.androidsdk.util.Log;
+import org.matrix.olm.OlmUtility;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Establish the olm sessions with the devices.
+ * - the concurrent requests for the same device are merged.
+ * - the one-time keys claims requested within CLAIM_BATCH_DELAY_MS are sent in a single request.
+ * - the one-time keys signatures are verified in parallel, by the encrypting thread and by dedicated threads.
+ * - the devices without one-time key are not claimed again before NO_ONE_TIME_KEY_RETRY_DELAY_MS.
+ * Its methods must be called in the encrypting thread.
+ */
+class MXOlmSessionsEstablisher {
+    private static final String LOG_TAG = "MXOlmSessionsEstablisher";
+
+    // the delay to group the one-time keys claims
+    private static final long CLAIM_BATCH_DELAY_MS = 50;
+
+    // the delay before claiming again the one-time key of a device which has none
+    private static final long NO_ONE_TIME_KEY_RETRY_DELAY_MS = 5 * 60 * 1000;
+
+    // the min number of signatures to verify them in parallel
+    private static final int MIN_PARALLEL_VERIFICATIONS_COUNT = 8;
+
+    // the max number of threads which help the encrypting thread to verify the signatures
+    private static final int MAX_VERIFICATION_THREADS_COUNT = 3;
+
+    // the max time to wait for the signatures verified by the other threads
+    private static final long VERIFICATION_TIMEOUT_MS = 10 * 1000;
+
+    // the signatures verification threads, they are not shared with the decryption
+    private static ThreadPoolExecutor mVerificationExecutor = null;
+
+    /**
+     * A caller request
+     */
+    private static class Request {
+        // the number of batches to wait for
+        int mPendingBatchesCount = 0;
+
+        // the caller callback
+        final ApiCallback<Void> mCallback;
+
+        // true when the callback has been called
+        boolean mIsDone = false;
+
+        Request(ApiCallback<Void> callback) {
+            mCallback = callback;
+        }
+    }
+
+    /**
+     * A one-time keys claim
+     */
+    private static class Batch {
+        // the devices to claim (<userId>:<deviceId> -> device)
+        final LinkedHashMap<String, MXDeviceInfo> mDevices = new LinkedHashMap<>();
+
+        // the waiting requests
+        final List<Request> mRequests = new ArrayList<>();
+    }
+
+    // the crypto instance
+    private final MXCrypto mCrypto;
+
+    // the rest client
+    private final CryptoRestClient mRestClient;
+
+    // the batch which is not yet sent
+    private Batch mPendingBatch = null;
+
+    // the devices whose one-time key is being claimed (<userId>:<deviceId> -> batch)
+    private final HashMap<String, Batch> mBatchByDevice = new HashMap<>();
+
+    // the devices without one-time key (<userId>:<deviceId> -> next allowed claim time)
+    private final HashMap<String, Long> mNoOneTimeKeyDevices = new HashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param crypto     the crypto instance
+     * @param restClient the rest client
+     */
+    MXOlmSessionsEstablisher(MXCrypto crypto, CryptoRestClient restClient) {
+        mCrypto = crypto;
+        mRestClient = restClient;
+    }
+
+    /**
+     * @return the signatures verification threads
+     */
+    private static synchronized ThreadPoolExecutor getVerificationExecutor() {
+        if (null == mVerificationExecutor) {
+            final AtomicInteger threadsCount = new AtomicInteger(0);
+            int maxThreadsCount = Math.max(1, Math.min(MAX_VERIFICATION_THREADS_COUNT, Runtime.getRuntime().availableProcessors() - 1));
+
+            mVerificationExecutor = new ThreadPoolExecutor(maxThreadsCount, maxThreadsCount, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "MXOlmSignaturesVerification_" + threadsCount.incrementAndGet());
+                }
+            });
+            mVerificationExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        return mVerificationExecutor;
+    }
+
+    /**
+     * Provides the device key.
+     *
+     * @param device the device
+     * @return the key
+     */
+    private static String getDeviceKey(MXDeviceInfo device) {
+        return device.userId + ":" + device.deviceId;
+    }
+
+    /**
+     * Establish olm sessions with devices which have none.
+     * The callback is called in the encrypting thread when the claims are done, even if some sessions cannot be created.
+     *
+     * @param devices  the devices
+     * @param callback the asynchronous callback
+     */
+    void establishSessions(List<MXDeviceInfo> devices, ApiCallback<Void> callback) {
+        Request request = new Request(callback);
+        long now = System.currentTimeMillis();
+
+        for (MXDeviceInfo device : devices) {
+            String deviceKey = getDeviceKey(device);
+
+            Long retryTime = mNoOneTimeKeyDevices.get(deviceKey);
+
+            if (null != retryTime) {
+                if (retryTime > now) {
+                    Log.d(LOG_TAG, "## establishSessions() : skip " + deviceKey + " which had no one-time key");
+                    continue;
+                }
+
+                mNoOneTimeKeyDevices.remove(deviceKey);
+            }
+
+            Batch batch = mBatchByDevice.get(deviceKey);
+
+            if (null == batch) {
+                if (null == mPendingBatch) {
+                    mPendingBatch = new Batch();
+
+                    mCrypto.getEncryptingThreadHandler().postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendPendingBatch();
+                        }
+                    }, CLAIM_BATCH_DELAY_MS);
+                }
+
+                batch = mPendingBatch;
+                batch.mDevices.put(deviceKey, device);
+                mBatchByDevice.put(deviceKey, batch);
+            }
+
+            if (!batch.mRequests.contains(request)) {
+                batch.mRequests.add(request);
+                request.mPendingBatchesCount++;
+            }
+        }
+
+        if (0 == request.mPendingBatchesCount) {
+            request.mIsDone = true;
+            callback.onSuccess(null);
+        }
+    }
+
+    /**
+     * Claim the one-time keys of the pending batch.
+     */
+    private void sendPendingBatch() {
+        final Batch batch = mPendingBatch;
+        mPendingBatch = null;
+
+        if ((null == batch) || mCrypto.hasBeenReleased()) {
+            return;
+        }
+
+        MXUsersDevicesMap<String> usersDevicesToClaim = new MXUsersDevicesMap<>();
+
+        for (MXDeviceInfo device : batch.mDevices.values()) {
+            usersDevicesToClaim.setObject(MXKey.KEY_SIGNED_CURVE_25519_TYPE, device.userId, device.deviceId);
+        }
+
+        Log.d(LOG_TAG, "## sendPendingBatch() : claim " + batch.mDevices.size() + " one-time keys for " + batch.mRequests.size() + " requests");
+
+        mRestClient.claimOneTimeKeysForUsersDevices(usersDevicesToClaim, new ApiCallback<MXUsersDevicesMap<MXKey>>() {
+            @Override
+            public void onSuccess(final MXUsersDevicesMap<MXKey> oneTimeKeys) {
+                mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mCrypto.hasBeenReleased()) {
+                            try {
+                                startSessions(batch, oneTimeKeys);
+                            } catch (Exception e) {
+                                Log.e(LOG_TAG, "## sendPendingBatch() : startSessions failed " + e.getMessage());
+                            }
+
+                            onBatchDone(batch, null, null);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onNetworkError(final Exception e) {
+                Log.e(LOG_TAG, "## sendPendingBatch() : claimOneTimeKeysForUsersDevices failed " + e.getMessage());
+                onBatchFailed(batch, e, null);
+            }
+
+            @Override
+            public void onMatrixError(final MatrixError e) {
+                Log.e(LOG_TAG, "## sendPendingBatch() : claimOneTimeKeysForUsersDevices failed " + e.getMessage());
+                onBatchFailed(batch, null, e);
+            }
+
+            @Override
+            public void onUnexpectedError(final Exception e) {
+                Log.e(LOG_TAG, "## sendPendingBatch() : claimOneTimeKeysForUsersDevices failed " + e.getMessage());
+                onBatchFailed(batch, e, null);
+            }
+        });
+    }
+
+    /**
+     * A claim request has failed.
+     *
+     * @param batch       the batch
+     * @param exception   the network or unexpected error
+     * @param matrixError the matrix error
+     */
+    private void onBatchFailed(final Batch batch, final Exception exception, final MatrixError matrixError) {
+        mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                onBatchDone(batch, exception, matrixError);
+            }
+        });
+    }
+
+    /**
+     * Complete a batch and its requests.
+     *
+     * @param batch       the batch
+     * @param exception   the network or unexpected error if any
+     * @param matrixError the matrix error if any
+     */
+    private void onBatchDone(Batch batch, Exception exception, MatrixError matrixError) {
+        for (String deviceKey : batch.mDevices.keySet()) {
+            if (mBatchByDevice.get(deviceKey) == batch) {
+                mBatchByDevice.remove(deviceKey);
+            }
+        }
+
+        for (Request request : batch.mRequests) {
+            if (request.mIsDone) {
+                continue;
+            }
+
+            request.mPendingBatchesCount--;
+
+            if (null != matrixError) {
+                request.mIsDone = true;
+                request.mCallback.onMatrixError(matrixError);
+            } else if (null != exception) {
+                request.mIsDone = true;
+
+                if (exception instanceof IOException) {
+                    request.mCallback.onNetworkError(exception);
+                } else {
+                    request.mCallback.onUnexpectedError(exception);
+                }
+            } else if (0 == request.mPendingBatchesCount) {
+                request.mIsDone = true;
+                request.mCallback.onSuccess(null);
+            }
+        }
+    }
+
+    /**
+     * Verify the claimed one-time keys and create the olm sessions.
+     *
+     * @param batch       the batch
+     * @param oneTimeKeys the claimed one-time keys
+     */
+    private void startSessions(Batch batch, MXUsersDevicesMap<MXKey> oneTimeKeys) {
+        final ArrayList<MXDeviceInfo> devices = new ArrayList<>();
+        final ArrayList<MXKey> keys = new ArrayList<>();
+        long retryTime = System.currentTimeMillis() + NO_ONE_TIME_KEY_RETRY_DELAY_MS;
+
+        for (String deviceKey : batch.mDevices.keySet()) {
+            MXDeviceInfo device = batch.mDevices.get(deviceKey);
+            MXKey oneTimeKey = oneTimeKeys.getObject(device.deviceId, device.userId);
+
+            if ((null == oneTimeKey) || !TextUtils.equals(oneTimeKey.type, MXKey.KEY_SIGNED_CURVE_25519_TYPE)) {
+                Log.d(LOG_TAG, "## startSessions() : No one-time keys " + MXKey.KEY_SIGNED_CURVE_25519_TYPE + " for device " + deviceKey);
+                mNoOneTimeKeyDevices.put(deviceKey, retryTime);
+            } else if (!TextUtils.isEmpty(mCrypto.getOlmDevice().getSessionId(device.identityKey()))) {
+                // a session has been created in the meantime (e.g. by an incoming message)
+                Log.d(LOG_TAG, "## startSessions() : there is already a session with " + deviceKey);
+            } else {
+                devices.add(device);
+                keys.add(oneTimeKey);
+            }
+        }
+
+        boolean[] verified = verifySignatures(devices, keys);
+
+        // the sessions creation uses the olm account so it is done in this thread
+        for (int index = 0; index < devices.size(); index++) {
+            MXDeviceInfo device = devices.get(index);
+
+            if (verified[index]) {
+                String sessionId = mCrypto.getOlmDevice().createOutboundSession(device.identityKey(), keys.get(index).value);
+
+                if (!TextUtils.isEmpty(sessionId)) {
+                    Log.d(LOG_TAG, "## startSessions() : Started new sessionid " + sessionId + " for device " + device + "(theirOneTimeKey: " + keys.get(index).value + ")");
+                } else {
+                    // Possibly a bad key
+                    Log.e(LOG_TAG, "## startSessions() : Error starting session with device " + getDeviceKey(device));
+                }
+            }
+        }
+    }
+
+    /**
+     * Verify the one-time keys signatures.
+     * They are verified in parallel when there are many of them : the encrypting thread verifies the keys
+     * with dedicated threads, so it never waits for threads which are busy with something else.
+     * The keys which are not verified after VERIFICATION_TIMEOUT_MS are considered as not verified.
+     *
+     * @param devices the devices
+     * @param keys    the one-time keys
+     * @return the verification result of each key
+     */
+    private boolean[] verifySignatures(final List<MXDeviceInfo> devices, final List<MXKey> keys) {
+        final boolean[] verified = new boolean[devices.size()];
+
+        if (devices.size() < MIN_PARALLEL_VERIFICATIONS_COUNT) {
+            verifySignatures(devices, keys, verified, new AtomicInteger(0), null);
+            return verified;
+        }
+
+        final AtomicInteger nextIndex = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(devices.size());
+        ThreadPoolExecutor executor = getVerificationExecutor();
+
+        for (int threadIndex = 0; threadIndex < executor.getMaximumPoolSize(); threadIndex++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    verifySignatures(devices, keys, verified, nextIndex, latch);
+                }
+            });
+        }
+
+        verifySignatures(devices, keys, verified, nextIndex, latch);
+
+        try {
+            if (!latch.await(VERIFICATION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.e(LOG_TAG, "## verifySignatures() : timeout, " + latch.getCount() + " keys are not verified");
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## verifySignatures() : failed " + e.getMessage());
+        }
+
+        // the results written after the timeout are ignored
+        synchronized (verified) {
+            return verified.clone();
+        }
+    }
+
+    /**
+     * Verify the one-time keys signatures until there is no more key to verify.
+     * An OlmUtility instance is used per call because it must not be shared between threads.
+     *
+     * @param devices   the devices
+     * @param keys      the one-time keys
+     * @param verified  the verification results
+     * @param nextIndex the index of the next key to verify, shared by the verifying threads
+     * @param latch     the latch counted down after each verified key, null if there is none
+     */
+    private static void verifySignatures(List<MXDeviceInfo> devices, List<MXKey> keys, boolean[] verified, AtomicInteger nextIndex, CountDownLatch latch) {
+        OlmUtility olmUtility = null;
+
+        try {
+            olmUtility = new OlmUtility();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## verifySignatures() : OlmUtility failed " + e.getMessage());
+        }
+
+        for (int index = nextIndex.getAndIncrement(); index < devices.size(); index = nextIndex.getAndIncrement()) {
+            MXDeviceInfo device = devices.get(index);
+            MXKey oneTimeKey = keys.get(index);
+
+            String signature = oneTimeKey.signatureForUserId(device.userId, "ed25519:" + device.deviceId);
+
+            if ((null != olmUtility) && !TextUtils.isEmpty(signature) && !TextUtils.isEmpty(device.fingerprint())) {
+                try {
+                    olmUtility.verifyEd25519Signature(signature, device.fingerprint(), JsonUtils.getCanonicalizedJsonString(oneTimeKey.signalableJSONDictionary()));
+
+                    synchronized (verified) {
+                        verified[index] = true;
+                    }
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "## verifySignatures() : Unable to verify signature on one-time key for device " + getDeviceKey(device) + " Error " + e.getMessage());
+                }
+            }
+
+            if (null != latch) {
+                latch.countDown();
+            }
+        }
+
+        if (null != olmUtility) {
+            olmUtility.releaseUtility();
+        }
+    }
+}
@@ -46,4 +46,20 @@ public interface IMXEncrypting {
      * @param callback     the asynchronous callback
      */
     void encryptEventContent(JsonElement eventContent, String eventType, List<String> userIds, ApiCallback<JsonElement> callback);
+
+    /**
+     * Prepare the encryption before the first event is sent
+     * i.e. download the devices, establish the olm sessions and share the room key if any.
+     * It must be called in getEncryptingThreadHandler() thread.
+     *
+     * @param userIds  the room members the events will be sent to.
+     * @param callback the asynchronous callback
+     */
+    void prepareEncryption(List<String> userIds, ApiCallback<Void> callback);
+
+    /**
+     * Cancel the encryption preparation.
+     * It must be called in getEncryptingThreadHandler() thread.
+     */
+    void cancelEncryptionPreparation();
 }
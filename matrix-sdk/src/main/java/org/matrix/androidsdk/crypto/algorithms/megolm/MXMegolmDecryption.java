@@ -84,7 +84,7 @@ public class MXMegolmDecryption implements IMXDecrypting {
         event.setClearEvent(null);
         event.setCryptoError(null);
 
-        MXDecryptionResult result = mOlmDevice.decryptGroupMessage(ciphertext, event.roomId, timeline, sessionId, senderKey);
+        MXDecryptionResult result = mOlmDevice.decryptGroupMessage(ciphertext, event.roomId, timeline, sessionId, senderKey, event.eventId);
 
         // the decryption succeeds
         if ((null != result) && (null != result.mPayload) && (null == result.mCryptoError)) {
@@ -134,17 +134,20 @@ public class MXMegolmDecryption implements IMXDecrypting {
             timelineId = "";
         }
 
-        if (!mPendingEvents.containsKey(k)) {
-            mPendingEvents.put(k, new HashMap<String, ArrayList<Event>>());
-        }
+        // the events might be decrypted in parallel
+        synchronized (mPendingEvents) {
+            if (!mPendingEvents.containsKey(k)) {
+                mPendingEvents.put(k, new HashMap<String, ArrayList<Event>>());
+            }
 
-        if (!mPendingEvents.get(k).containsKey(timelineId)) {
-            mPendingEvents.get(k).put(timelineId, new ArrayList<Event>());
-        }
+            if (!mPendingEvents.get(k).containsKey(timelineId)) {
+                mPendingEvents.get(k).put(timelineId, new ArrayList<Event>());
+            }
 
-        if (mPendingEvents.get(k).get(timelineId).indexOf(event) < 0) {
-            Log.d(LOG_TAG, "## addEventToPendingList() : add Event " + event.eventId + " in room id " + event.roomId);
-            mPendingEvents.get(k).get(timelineId).add(event);
+            if (mPendingEvents.get(k).get(timelineId).indexOf(event) < 0) {
+                Log.d(LOG_TAG, "## addEventToPendingList() : add Event " + event.eventId + " in room id " + event.roomId);
+                mPendingEvents.get(k).get(timelineId).add(event);
+            }
         }
     }
 
@@ -180,11 +183,14 @@ public class MXMegolmDecryption implements IMXDecrypting {
     public void onNewSession(String senderKey, String sessionId) {
         String k = senderKey + "|" + sessionId;
 
-        HashMap<String, ArrayList<Event>> pending = mPendingEvents.get(k);
+        HashMap<String, ArrayList<Event>> pending;
+
+        synchronized (mPendingEvents) {
+            pending = mPendingEvents.remove(k);
+        }
 
         if (null != pending) {
             // Have another go at decrypting events sent with this session.
-            mPendingEvents.remove(k);
 
             Set<String> timelineIds = pending.keySet();
 
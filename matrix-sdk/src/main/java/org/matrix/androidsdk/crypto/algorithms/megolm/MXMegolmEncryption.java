@@ -41,6 +41,7 @@ import org.matrix.androidsdk.util.JsonUtils;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -60,8 +61,14 @@ public class MXMegolmEncryption implements IMXEncrypting {
     // case outboundSession.shareOperation will be non-null.)
     private MXOutboundSessionInfo mOutboundSession;
 
-    // true when there is an HTTP operation in progress
-    private boolean mShareOperationIsProgress;
+    // the key sharing in progress
+    private KeySharingPipeline mKeySharingPipeline;
+
+    // the user ids of the encryption preparation, null if there is none
+    private List<String> mPreparationUserIds;
+
+    // incremented each time the encryption preparation is restarted or cancelled
+    private int mPreparationGeneration = 0;
 
     private final ArrayList<MXQueuedEncryption> mPendingEncryptions = new ArrayList<>();
 
@@ -69,6 +76,22 @@ public class MXMegolmEncryption implements IMXEncrypting {
     private int mSessionRotationPeriodMsgs;
     private int mSessionRotationPeriodMs;
 
+    // the max number of devices per key sharing request
+    private static final int MAX_DEVICES_PER_KEY_SHARING_REQUEST = 100;
+
+    // the max number of retries of a key sharing request
+    private static final int MAX_KEY_SHARING_REQUEST_RETRIES = 2;
+
+    // the delay before retrying a key sharing request
+    private static final int KEY_SHARING_REQUEST_RETRY_DELAY_MS = 2000;
+
+    // the max number of key sharing requests in parallel
+    // it can be updated from any thread
+    private static volatile int mMaxParallelKeySharingRequests = 3;
+
+    // the duration of the latest key sharing in this room
+    private long mLastKeySharingDuration = -1;
+
     @Override
     public void initWithMatrixSession(MXSession matrixSession, String roomId) {
         mSession = matrixSession;
@@ -83,6 +106,22 @@ public class MXMegolmEncryption implements IMXEncrypting {
         mSessionRotationPeriodMs = 7 * 24 * 3600 * 1000;
     }
 
+    /**
+     * Update the max number of key sharing requests in parallel.
+     *
+     * @param count the max number of requests
+     */
+    public static void setMaxParallelKeySharingRequests(int count) {
+        mMaxParallelKeySharingRequests = Math.max(1, count);
+    }
+
+    /**
+     * @return the duration in ms of the latest key sharing in this room, -1 if there was none.
+     */
+    public long getLastKeySharingDuration() {
+        return mLastKeySharingDuration;
+    }
+
     /**
      * @return a snapshot of the pending encryptions
      */
@@ -169,32 +208,37 @@ public class MXMegolmEncryption implements IMXEncrypting {
             }
 
             @Override
-            public void onSuccess(MXUsersDevicesMap<MXDeviceInfo> devicesInRoom) {
-                ensureOutboundSession(devicesInRoom, new ApiCallback<MXOutboundSessionInfo>() {
+            public void onSuccess(final MXUsersDevicesMap<MXDeviceInfo> devicesInRoom) {
+                mCrypto.getEncryptingThreadHandler().post(new Runnable() {
                     @Override
-                    public void onSuccess(final MXOutboundSessionInfo session) {
-                        mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                    public void run() {
+                        ensureOutboundSession(devicesInRoom, new ApiCallback<MXOutboundSessionInfo>() {
                             @Override
-                            public void run() {
-                                Log.d(LOG_TAG, "## encryptEventContent () processPendingEncryptions after " + (System.currentTimeMillis() - t0) + "ms");
-                                processPendingEncryptions(session);
+                            public void onSuccess(final MXOutboundSessionInfo session) {
+                                mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        Log.d(LOG_TAG, "## encryptEventContent () processPendingEncryptions after " + (System.currentTimeMillis() - t0) + "ms");
+                                        processPendingEncryptions(session);
+                                    }
+                                });
                             }
-                        });
-                    }
 
-                    @Override
-                    public void onNetworkError(Exception e) {
-                        dispatchNetworkError(e);
-                    }
+                            @Override
+                            public void onNetworkError(Exception e) {
+                                dispatchNetworkError(e);
+                            }
 
-                    @Override
-                    public void onMatrixError(MatrixError e) {
-                        dispatchMatrixError(e);
-                    }
+                            @Override
+                            public void onMatrixError(MatrixError e) {
+                                dispatchMatrixError(e);
+                            }
 
-                    @Override
-                    public void onUnexpectedError(Exception e) {
-                        dispatchUnexpectedError(e);
+                            @Override
+                            public void onUnexpectedError(Exception e) {
+                                dispatchUnexpectedError(e);
+                            }
+                        });
                     }
                 });
             }
@@ -218,6 +262,102 @@ public class MXMegolmEncryption implements IMXEncrypting {
 
     }
 
+    @Override
+    public void prepareEncryption(final List<String> userIds, final ApiCallback<Void> callback) {
+        mPreparationUserIds = userIds;
+        final int generation = ++mPreparationGeneration;
+        final long t0 = System.currentTimeMillis();
+
+        Log.d(LOG_TAG, "## prepareEncryption() : room " + mRoomId + " starts");
+
+        getDevicesInRoom(userIds, new ApiCallback<MXUsersDevicesMap<MXDeviceInfo>>() {
+            @Override
+            public void onSuccess(final MXUsersDevicesMap<MXDeviceInfo> devicesInRoom) {
+                mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // the preparation has been cancelled or restarted
+                        if (generation != mPreparationGeneration) {
+                            Log.d(LOG_TAG, "## prepareEncryption() : room " + mRoomId + " cancelled");
+                            return;
+                        }
+
+                        ensureOutboundSession(devicesInRoom, new ApiCallback<MXOutboundSessionInfo>() {
+                            @Override
+                            public void onSuccess(MXOutboundSessionInfo session) {
+                                Log.d(LOG_TAG, "## prepareEncryption() : room " + mRoomId + " done in " + (System.currentTimeMillis() - t0) + " ms");
+
+                                if (null != callback) {
+                                    callback.onSuccess(null);
+                                }
+                            }
+
+                            @Override
+                            public void onNetworkError(Exception e) {
+                                if (null != callback) {
+                                    callback.onNetworkError(e);
+                                }
+                            }
+
+                            @Override
+                            public void onMatrixError(MatrixError e) {
+                                if (null != callback) {
+                                    callback.onMatrixError(e);
+                                }
+                            }
+
+                            @Override
+                            public void onUnexpectedError(Exception e) {
+                                if (null != callback) {
+                                    callback.onUnexpectedError(e);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                if (null != callback) {
+                    callback.onNetworkError(e);
+                }
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                if (null != callback) {
+                    callback.onMatrixError(e);
+                }
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                if (null != callback) {
+                    callback.onUnexpectedError(e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void cancelEncryptionPreparation() {
+        if (null == mPreparationUserIds) {
+            return;
+        }
+
+        Log.d(LOG_TAG, "## cancelEncryptionPreparation() : room " + mRoomId);
+
+        mPreparationUserIds = null;
+        mPreparationGeneration++;
+
+        // stop the key sharing if no event is waiting for it
+        // the devices which have not received the key will receive it with the next event
+        if ((null != mKeySharingPipeline) && getPendingEncryptions().isEmpty()) {
+            mKeySharingPipeline.cancel();
+        }
+    }
+
     /**
      * Prepare a new session.
      *
@@ -237,11 +377,12 @@ public class MXMegolmEncryption implements IMXEncrypting {
 
     /**
      * Ensure the outbound session
+     * It must be called in getEncryptingThreadHandler() thread.
      *
      * @param devicesInRoom the devices list
      * @param callback      the asynchronous callback.
      */
-    private void ensureOutboundSession(MXUsersDevicesMap<MXDeviceInfo> devicesInRoom, final ApiCallback<MXOutboundSessionInfo> callback) {
+    private void ensureOutboundSession(final MXUsersDevicesMap<MXDeviceInfo> devicesInRoom, final ApiCallback<MXOutboundSessionInfo> callback) {
         MXOutboundSessionInfo session = mOutboundSession;
 
         if ((null == session) ||
@@ -252,9 +393,43 @@ public class MXMegolmEncryption implements IMXEncrypting {
             mOutboundSession = session = prepareNewSessionInRoom();
         }
 
-        if (mShareOperationIsProgress) {
+        if ((null != mKeySharingPipeline) && !mKeySharingPipeline.isDone() && (mKeySharingPipeline.mSession == session)) {
             Log.d(LOG_TAG, "## ensureOutboundSessionInRoom() : already in progress");
-            // Key share already in progress
+
+            // Key share already in progress (e.g. the encryption preparation)
+            // wait for it before sharing the key with the remaining devices.
+            mKeySharingPipeline.addCallback(new ApiCallback<Void>() {
+                @Override
+                public void onSuccess(Void info) {
+                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            ensureOutboundSession(devicesInRoom, callback);
+                        }
+                    });
+                }
+
+                @Override
+                public void onNetworkError(Exception e) {
+                    if (null != callback) {
+                        callback.onNetworkError(e);
+                    }
+                }
+
+                @Override
+                public void onMatrixError(MatrixError e) {
+                    if (null != callback) {
+                        callback.onMatrixError(e);
+                    }
+                }
+
+                @Override
+                public void onUnexpectedError(Exception e) {
+                    if (null != callback) {
+                        callback.onUnexpectedError(e);
+                    }
+                }
+            });
             return;
         }
 
@@ -283,7 +458,6 @@ public class MXMegolmEncryption implements IMXEncrypting {
         shareKey(fSession, shareMap, new ApiCallback<Void>() {
             @Override
             public void onSuccess(Void anything) {
-                mShareOperationIsProgress = false;
                 if (null != callback) {
                     callback.onSuccess(fSession);
                 }
@@ -296,7 +470,6 @@ public class MXMegolmEncryption implements IMXEncrypting {
                 if (null != callback) {
                     callback.onNetworkError(e);
                 }
-                mShareOperationIsProgress = false;
             }
 
             @Override
@@ -306,7 +479,6 @@ public class MXMegolmEncryption implements IMXEncrypting {
                 if (null != callback) {
                     callback.onMatrixError(e);
                 }
-                mShareOperationIsProgress = false;
             }
 
             @Override
@@ -316,94 +488,266 @@ public class MXMegolmEncryption implements IMXEncrypting {
                 if (null != callback) {
                     callback.onUnexpectedError(e);
                 }
-                mShareOperationIsProgress = false;
             }
         });
 
     }
 
     /**
-     * Share the device key to a list of users
+     * Share the device key to a list of users.
+     * The devices are split in chunks which are shared in parallel.
      *
      * @param session        the session info
      * @param devicesByUsers the devices map
      * @param callback       the asynchronous callback
      */
     private void shareKey(final MXOutboundSessionInfo session, final HashMap<String, ArrayList<MXDeviceInfo>> devicesByUsers, final ApiCallback<Void> callback) {
-        // nothing to send, the task is done
-        if (0 == devicesByUsers.size()) {
-            Log.d(LOG_TAG, "## shareKey() : nothing more to do");
-
-            if (null != callback) {
-                mCrypto.getUIHandler().post(new Runnable() {
-                    @Override
-                    public void run() {
-                        callback.onSuccess(null);
-                    }
-                });
-            }
-
-            return;
-        }
-
         // reduce the map size to avoid request timeout when there are too devices (Users size  * devices per user)
+        LinkedList<HashMap<String, ArrayList<MXDeviceInfo>>> chunks = new LinkedList<>();
         HashMap<String, ArrayList<MXDeviceInfo>> subMap = new HashMap<>();
-
-        final ArrayList<String> userIds = new ArrayList<>();
         int devicesCount = 0;
 
         for (String userId : devicesByUsers.keySet()) {
             ArrayList<MXDeviceInfo> devicesList = devicesByUsers.get(userId);
 
-            userIds.add(userId);
             subMap.put(userId, devicesList);
-
             devicesCount += devicesList.size();
 
-            if (devicesCount > 100) {
-                break;
+            if (devicesCount > MAX_DEVICES_PER_KEY_SHARING_REQUEST) {
+                chunks.add(subMap);
+                subMap = new HashMap<>();
+                devicesCount = 0;
             }
         }
 
-        Log.d(LOG_TAG, "## shareKey() ; userId " + userIds);
-        shareUserDevicesKey(session, subMap, new ApiCallback<Void>() {
-            @Override
-            public void onSuccess(Void info) {
-                mCrypto.getEncryptingThreadHandler().post(new Runnable() {
-                    @Override
-                    public void run() {
-                        for (String userId : userIds) {
-                            devicesByUsers.remove(userId);
-                        }
-                        shareKey(session, devicesByUsers, callback);
-                    }
-                });
+        if (0 != subMap.size()) {
+            chunks.add(subMap);
+        }
+
+        mKeySharingPipeline = new KeySharingPipeline(session, chunks);
+        mKeySharingPipeline.addCallback(callback);
+        mKeySharingPipeline.start();
+    }
+
+    /**
+     * Share a session key with some devices chunks.
+     * Up to mMaxParallelKeySharingRequests chunks are processed in parallel, so the one-time keys of the next chunks
+     * are claimed while the previous ones are encrypted and sent.
+     * A failed chunk is retried alone. Its methods must be called in getEncryptingThreadHandler() thread,
+     * and its callbacks are called in this thread whatever the result.
+     */
+    private class KeySharingPipeline {
+        // the session to share
+        private final MXOutboundSessionInfo mSession;
+
+        // the chunks to share
+        private final LinkedList<HashMap<String, ArrayList<MXDeviceInfo>>> mPendingChunks;
+
+        // the chunks count
+        private final int mChunksCount;
+
+        // the asynchronous callbacks
+        private final List<ApiCallback<Void>> mCallbacks = new ArrayList<>();
+
+        // the number of chunks being shared
+        private int mInFlightCount = 0;
+
+        // true when the callback has been called
+        private boolean mIsDone = false;
+
+        // true when the sharing has been cancelled
+        private boolean mIsCancelled = false;
+
+        // the pipeline start time
+        private final long mStartTime = System.currentTimeMillis();
+
+        /**
+         * Constructor
+         *
+         * @param session the session info
+         * @param chunks  the devices chunks
+         */
+        KeySharingPipeline(MXOutboundSessionInfo session, LinkedList<HashMap<String, ArrayList<MXDeviceInfo>>> chunks) {
+            mSession = session;
+            mPendingChunks = chunks;
+            mChunksCount = chunks.size();
+        }
+
+        /**
+         * Add a callback called when the sharing is done.
+         *
+         * @param callback the asynchronous callback
+         */
+        void addCallback(ApiCallback<Void> callback) {
+            if (null != callback) {
+                mCallbacks.add(callback);
             }
+        }
 
-            @Override
-            public void onNetworkError(Exception e) {
-                Log.d(LOG_TAG, "## shareKey() ; userIds " + userIds + " failed " + e.getMessage());
-                if (null != callback) {
-                    callback.onNetworkError(e);
-                }
+        /**
+         * @return true if the sharing is done
+         */
+        boolean isDone() {
+            return mIsDone;
+        }
+
+        /**
+         * Cancel the sharing : the pending chunks are not shared and the callbacks are
+         * called with an error. The chunks being shared are completed but their result is ignored.
+         * It must be called in getEncryptingThreadHandler() thread.
+         */
+        void cancel() {
+            if (mIsDone) {
+                return;
             }
 
-            @Override
-            public void onMatrixError(MatrixError e) {
-                Log.d(LOG_TAG, "## shareKey() ; userIds " + userIds + " failed " + e.getMessage());
-                if (null != callback) {
-                    callback.onMatrixError(e);
+            Log.d(LOG_TAG, "## shareKey() : room " + mRoomId + " : cancelled with " + mPendingChunks.size() + " pending chunks");
+
+            mIsCancelled = true;
+            mIsDone = true;
+            mPendingChunks.clear();
+
+            Exception e = new Exception("The key sharing has been cancelled");
+
+            for (ApiCallback<Void> callback : mCallbacks) {
+                callback.onUnexpectedError(e);
+            }
+        }
+
+        /**
+         * Start the sharing.
+         */
+        void start() {
+            Log.d(LOG_TAG, "## shareKey() : room " + mRoomId + " : " + mChunksCount + " chunks to share");
+            shareNextChunks();
+        }
+
+        /**
+         * Share the pending chunks while there are available slots.
+         */
+        private void shareNextChunks() {
+            if (mIsDone) {
+                return;
+            }
+
+            while ((mInFlightCount < mMaxParallelKeySharingRequests) && !mPendingChunks.isEmpty()) {
+                mInFlightCount++;
+                shareChunk(mPendingChunks.poll(), 0);
+            }
+
+            // nothing to send, the task is done
+            if ((0 == mInFlightCount) && mPendingChunks.isEmpty()) {
+                mIsDone = true;
+                mLastKeySharingDuration = System.currentTimeMillis() - mStartTime;
+                Log.d(LOG_TAG, "## shareKey() : room " + mRoomId + " : " + mChunksCount + " chunks shared in " + mLastKeySharingDuration + " ms");
+
+                for (ApiCallback<Void> callback : mCallbacks) {
+                    callback.onSuccess(null);
                 }
             }
+        }
 
-            @Override
-            public void onUnexpectedError(Exception e) {
-                Log.d(LOG_TAG, "## shareKey() ; userIds " + userIds + " failed " + e.getMessage());
-                if (null != callback) {
-                    callback.onUnexpectedError(e);
+        /**
+         * Share a chunk.
+         *
+         * @param chunk      the devices chunk
+         * @param retryCount the number of retries
+         */
+        private void shareChunk(final HashMap<String, ArrayList<MXDeviceInfo>> chunk, final int retryCount) {
+            Log.d(LOG_TAG, "## shareKey() ; userIds " + chunk.keySet() + " retry " + retryCount);
+
+            shareUserDevicesKey(mSession, chunk, new ApiCallback<Void>() {
+                @Override
+                public void onSuccess(Void info) {
+                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mInFlightCount--;
+
+                            if (mIsCancelled) {
+                                Log.d(LOG_TAG, "## shareKey() ; userIds " + chunk.keySet() + " shared after the cancellation");
+                            }
+
+                            shareNextChunks();
+                        }
+                    });
                 }
+
+                @Override
+                public void onNetworkError(final Exception e) {
+                    Log.d(LOG_TAG, "## shareKey() ; userIds " + chunk.keySet() + " failed " + e.getMessage());
+
+                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!mIsDone && (retryCount < MAX_KEY_SHARING_REQUEST_RETRIES)) {
+                                // retry this chunk only
+                                mCrypto.getEncryptingThreadHandler().postDelayed(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        shareChunk(chunk, retryCount + 1);
+                                    }
+                                }, KEY_SHARING_REQUEST_RETRY_DELAY_MS * (retryCount + 1));
+                            } else if (onChunkFailed()) {
+                                for (ApiCallback<Void> callback : mCallbacks) {
+                                    callback.onNetworkError(e);
+                                }
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onMatrixError(final MatrixError e) {
+                    Log.d(LOG_TAG, "## shareKey() ; userIds " + chunk.keySet() + " failed " + e.getMessage());
+
+                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (onChunkFailed()) {
+                                for (ApiCallback<Void> callback : mCallbacks) {
+                                    callback.onMatrixError(e);
+                                }
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onUnexpectedError(final Exception e) {
+                    Log.d(LOG_TAG, "## shareKey() ; userIds " + chunk.keySet() + " failed " + e.getMessage());
+
+                    mCrypto.getEncryptingThreadHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (onChunkFailed()) {
+                                for (ApiCallback<Void> callback : mCallbacks) {
+                                    callback.onUnexpectedError(e);
+                                }
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * A chunk sharing has failed : stop the sharing.
+         * The chunks being shared are completed but their result is ignored.
+         *
+         * @return true if the error must be reported to the callback.
+         */
+        private boolean onChunkFailed() {
+            mInFlightCount--;
+
+            if (mIsDone) {
+                return false;
             }
-        });
+
+            mIsDone = true;
+            mPendingChunks.clear();
+            return true;
+        }
     }
 
     /**
@@ -119,6 +119,16 @@ public class MXOlmEncryption implements IMXEncrypting {
         );
     }
 
+    @Override
+    public void prepareEncryption(List<String> userIds, ApiCallback<Void> callback) {
+        ensureSession(userIds, callback);
+    }
+
+    @Override
+    public void cancelEncryptionPreparation() {
+        // the olm sessions establishment is not cancellable
+    }
+
     /**
      * Ensure that the session
      *
@@ -374,7 +374,7 @@ public class EventTimeline {
 
                 // the roomId is not defined.
                 event.roomId = mRoomId;
-                handleLiveEvent(event, false, true);
+                handleLiveEvent(event, false, true, false);
             }
         }
     }
@@ -476,16 +476,22 @@ public class EventTimeline {
             if ((null != roomSync.timeline.events) && (roomSync.timeline.events.size() > 0)) {
                 List<Event> events = roomSync.timeline.events;
 
+                // the roomId is not defined.
+                for (Event event : events) {
+                    event.roomId = mRoomId;
+                }
+
+                // decrypt the events in parallel before handling them
+                mDataHandler.decryptEvents(events, getTimelineId());
+
                 // Here the events are handled in forward direction (see [handleLiveEvent:]).
                 // They will be added at the end of the stored events, so we keep the chronological order.
                 for (Event event : events) {
-                    // the roomId is not defined.
-                    event.roomId = mRoomId;
                     try {
                         boolean isLimited = (null != roomSync.timeline) && roomSync.timeline.limited;
 
                         // digest the forward event
-                        handleLiveEvent(event, !isLimited && !isInitialSync, !isInitialSync && !isRoomInitialSync);
+                        handleLiveEvent(event, !isLimited && !isInitialSync, !isInitialSync && !isRoomInitialSync, true);
                     } catch (Exception e) {
                         Log.e(LOG_TAG, "timeline event failed " + e.getLocalizedMessage());
                     }
@@ -769,12 +775,16 @@ public class EventTimeline {
      * @param event the live event
      * @param checkRedactedStateEvent set to true to check if it triggers a state event redaction
      * @param withPush set to true to trigger pushes when it is required
+     * @param isDecrypted set to true when the event decryption has already been tried by decryptEvents()
      * */
-    private void handleLiveEvent(Event event, boolean checkRedactedStateEvent, boolean withPush) {
+    private void handleLiveEvent(Event event, boolean checkRedactedStateEvent, boolean withPush, boolean isDecrypted) {
         MyUser myUser = mDataHandler.getMyUser();
 
         // Decrypt event if necessary
-        mDataHandler.decryptEvent(event, getTimelineId());
+        // a second decryption in the same timeline would be rejected as a replay attack
+        if (!isDecrypted) {
+            mDataHandler.decryptEvent(event, getTimelineId());
+        }
 
         // dispatch the call events to the calls manager
         if (event.isCallEvent()) {
@@ -979,6 +989,9 @@ public class EventTimeline {
         RoomSummary summary = mStore.getSummary(mRoomId);
         boolean shouldCommitStore = false;
 
+        // Decrypt the events in parallel
+        mDataHandler.decryptEvents(events, getTimelineId());
+
         // the backward events have a dedicated management to avoid providing too many events for each request
         for (Event event : events) {
             boolean processedEvent = true;
@@ -988,9 +1001,6 @@ public class EventTimeline {
                 processedEvent = processStateEvent(event, direction);
             }
 
-            // Decrypt event if necessary
-            mDataHandler.decryptEvent(event, getTimelineId());
-
             if (processedEvent) {
                 // warn the listener only if the message is processed.
                 // it should avoid duplicated events.
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The direct chats index, built from the m.direct account data of the store.
+ * It maps a user to the direct chat rooms with this user and a direct chat room to its participant,
+ * so the lookups do not copy nor scan the whole direct chats dictionary.
+ * The index is rebuilt when the store dictionary is replaced (new m.direct event, store loading).
+ * The returned lists are read only.
+ */
+public class MXDirectChatsIndex {
+    private static final String LOG_TAG = "MXDirectChatsIndex";
+
+    // the store
+    private final IMXStore mStore;
+
+    // the indexed dictionary
+    private Map<String, List<String>> mIndexedDict = null;
+
+    // tell if the index has been built
+    private boolean mIsBuilt = false;
+
+    // the direct chat room ids, in the dictionary order
+    private List<String> mRoomIds = Collections.emptyList();
+
+    // user id -> the direct chat room ids
+    private HashMap<String, List<String>> mRoomIdsByUserId = new HashMap<>();
+
+    // room id -> the participant user id
+    private HashMap<String, String> mUserIdByRoomId = new HashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param store the store
+     */
+    public MXDirectChatsIndex(IMXStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Build the index if the store dictionary has been replaced since the latest build.
+     */
+    private void checkIndex() {
+        Map<String, List<String>> dict = mStore.getDirectChatRoomsDict();
+
+        if (mIsBuilt && (dict == mIndexedDict)) {
+            return;
+        }
+
+        long t0 = System.currentTimeMillis();
+
+        LinkedHashSet<String> roomIds = new LinkedHashSet<>();
+        HashMap<String, List<String>> roomIdsByUserId = new HashMap<>();
+        HashMap<String, String> userIdByRoomId = new HashMap<>();
+
+        if (null != dict) {
+            for (Map.Entry<String, List<String>> entry : dict.entrySet()) {
+                String userId = entry.getKey();
+                List<String> userRoomIds = entry.getValue();
+
+                if ((null == userId) || (null == userRoomIds)) {
+                    continue;
+                }
+
+                roomIdsByUserId.put(userId, Collections.unmodifiableList(new ArrayList<>(userRoomIds)));
+
+                for (String roomId : userRoomIds) {
+                    roomIds.add(roomId);
+
+                    // a room listed for several users keeps its first participant
+                    if (!userIdByRoomId.containsKey(roomId)) {
+                        userIdByRoomId.put(roomId, userId);
+                    }
+                }
+            }
+        }
+
+        mRoomIds = Collections.unmodifiableList(new ArrayList<>(roomIds));
+        mRoomIdsByUserId = roomIdsByUserId;
+        mUserIdByRoomId = userIdByRoomId;
+        mIndexedDict = dict;
+        mIsBuilt = true;
+
+        Log.d(LOG_TAG, "## checkIndex() : " + mRoomIds.size() + " direct chat rooms with " + mRoomIdsByUserId.size() + " users indexed in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    /**
+     * @return true if the m.direct account data has been received.
+     */
+    public synchronized boolean isDefined() {
+        checkIndex();
+        return null != mIndexedDict;
+    }
+
+    /**
+     * @return the direct chat room ids, each room is listed once.
+     */
+    public synchronized List<String> getRoomIds() {
+        checkIndex();
+        return mRoomIds;
+    }
+
+    /**
+     * Provides the direct chat room ids with a user.
+     *
+     * @param userId the user id
+     * @return the room ids, an empty list if there is none.
+     */
+    public synchronized List<String> getRoomIds(String userId) {
+        checkIndex();
+
+        List<String> roomIds = mRoomIdsByUserId.get(userId);
+        return (null != roomIds) ? roomIds : Collections.<String>emptyList();
+    }
+
+    /**
+     * Provides the participant of a direct chat room.
+     *
+     * @param roomId the room id
+     * @return the participant user id, null if the room is not a direct chat.
+     */
+    public synchronized String getParticipantUserId(String roomId) {
+        checkIndex();
+        return mUserIdByRoomId.get(roomId);
+    }
+
+    /**
+     * Tells if a room is a direct chat.
+     *
+     * @param roomId the room id
+     * @return true if the room is a direct chat room
+     */
+    public synchronized boolean isDirectChatRoom(String roomId) {
+        checkIndex();
+        return mUserIdByRoomId.containsKey(roomId);
+    }
+
+    /**
+     * Forget the index. It will be built again on demand.
+     */
+    public synchronized void invalidate() {
+        mIsBuilt = false;
+        mIndexedDict = null;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The rooms lists by tag, sorted by tag order then by latest event.
+ * A tag list is built the first time it is requested, then a room update only moves this room.
+ * The updates are done in the UI thread and the listeners are notified of each move,
+ * so a consumer can apply them to a snapshot retrieved with getRoomIds().
+ * When the lists are rebuilt (store ready, initial sync), the listeners are notified with a reset.
+ */
+public class MXRoomListIndex {
+    private static final String LOG_TAG = "MXRoomListIndex";
+
+    /**
+     * The rooms lists updates listener.
+     * The methods are called in the UI thread.
+     */
+    public interface Listener {
+        /**
+         * A room has been inserted in a tag list.
+         *
+         * @param tag    the tag
+         * @param roomId the room id
+         * @param index  the room index
+         */
+        void onRoomInserted(String tag, String roomId, int index);
+
+        /**
+         * A room has been moved in a tag list.
+         *
+         * @param tag       the tag
+         * @param roomId    the room id
+         * @param fromIndex the previous room index
+         * @param toIndex   the new room index
+         */
+        void onRoomMoved(String tag, String roomId, int fromIndex, int toIndex);
+
+        /**
+         * A room has been removed from a tag list.
+         *
+         * @param tag    the tag
+         * @param roomId the room id
+         * @param index  the previous room index
+         */
+        void onRoomRemoved(String tag, String roomId, int index);
+
+        /**
+         * A tag list has been rebuilt.
+         * The snapshot must be retrieved again with getRoomIds().
+         *
+         * @param tag the tag
+         */
+        void onRoomListReset(String tag);
+    }
+
+    // the store
+    private final IMXStore mStore;
+
+    // the built lists by tag
+    private final HashMap<String, MXSortedRoomList> mRoomListByTag = new HashMap<>();
+
+    // the listeners
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    /**
+     * Constructor
+     *
+     * @param store the store
+     */
+    public MXRoomListIndex(IMXStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Add a listener.
+     *
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        synchronized (mListeners) {
+            if (!mListeners.contains(listener)) {
+                mListeners.add(listener);
+            }
+        }
+    }
+
+    /**
+     * Remove a listener.
+     *
+     * @param listener the listener
+     */
+    public void removeListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Tells if a room belongs to a tag list.
+     *
+     * @param room the room
+     * @param tag  the tag
+     * @return true if the room has the tag
+     */
+    private static boolean hasTag(Room room, String tag) {
+        if (TextUtils.equals(tag, RoomTag.ROOM_TAG_NO_TAG)) {
+            return !room.getAccountData().hasTags();
+        }
+
+        return null != room.getAccountData().roomTag(tag);
+    }
+
+    /**
+     * Insert or move a room in a tag list.
+     *
+     * @param list the tag list
+     * @param room the room
+     * @param tag  the tag
+     * @return the room index
+     */
+    private int put(MXSortedRoomList list, Room room, String tag) {
+        RoomTag roomTag = room.getAccountData().roomTag(tag);
+        Event latestEvent = mStore.getLatestEvent(room.getRoomId());
+
+        return list.put(room.getRoomId(), (null != roomTag) ? roomTag.mOrder : null, (null != latestEvent) ? latestEvent.getOriginServerTs() : 0);
+    }
+
+    /**
+     * Provides the sorted room ids of a tag.
+     * The tag list is built the first time.
+     *
+     * @param tag RoomTag.ROOM_TAG_XXX values
+     * @return the room ids list.
+     */
+    public synchronized List<String> getRoomIds(String tag) {
+        MXSortedRoomList list = mRoomListByTag.get(tag);
+
+        if (null == list) {
+            list = buildRoomList(tag);
+        }
+
+        return list.getRoomIds();
+    }
+
+    /**
+     * Build the list of a tag from the store rooms.
+     * The caller must hold the instance lock.
+     *
+     * @param tag RoomTag.ROOM_TAG_XXX values
+     * @return the built list
+     */
+    private MXSortedRoomList buildRoomList(String tag) {
+        long t0 = System.currentTimeMillis();
+
+        MXSortedRoomList list = new MXSortedRoomList();
+        Collection<Room> rooms = mStore.getRooms();
+
+        for (Room room : rooms) {
+            if (hasTag(room, tag)) {
+                put(list, room, tag);
+            }
+        }
+
+        mRoomListByTag.put(tag, list);
+
+        Log.d(LOG_TAG, "## buildRoomList() : build the " + tag + " list (" + list.size() + " rooms) in " + (System.currentTimeMillis() - t0) + " ms");
+
+        return list;
+    }
+
+    /**
+     * A room has been updated (new latest event, tags update...).
+     * It must be called in the UI thread.
+     *
+     * @param roomId the room id
+     */
+    public void onRoomUpdated(String roomId) {
+        Room room = mStore.getRoom(roomId);
+
+        if (null == room) {
+            onRoomRemoved(roomId);
+            return;
+        }
+
+        List<Runnable> notifications = new ArrayList<>();
+
+        synchronized (this) {
+            for (final String tag : mRoomListByTag.keySet()) {
+                MXSortedRoomList list = mRoomListByTag.get(tag);
+                final String fRoomId = roomId;
+
+                if (hasTag(room, tag)) {
+                    final int fromIndex = list.indexOf(roomId);
+                    final int toIndex = put(list, room, tag);
+
+                    if (fromIndex < 0) {
+                        notifications.add(new Runnable() {
+                            @Override
+                            public void run() {
+                                for (Listener listener : getListenersSnapshot()) {
+                                    listener.onRoomInserted(tag, fRoomId, toIndex);
+                                }
+                            }
+                        });
+                    } else if (fromIndex != toIndex) {
+                        notifications.add(new Runnable() {
+                            @Override
+                            public void run() {
+                                for (Listener listener : getListenersSnapshot()) {
+                                    listener.onRoomMoved(tag, fRoomId, fromIndex, toIndex);
+                                }
+                            }
+                        });
+                    }
+                } else {
+                    addRemoveNotification(notifications, tag, roomId, list.remove(roomId));
+                }
+            }
+        }
+
+        dispatch(notifications);
+    }
+
+    /**
+     * A room has been removed (left or deleted).
+     * It must be called in the UI thread.
+     *
+     * @param roomId the room id
+     */
+    public void onRoomRemoved(String roomId) {
+        List<Runnable> notifications = new ArrayList<>();
+
+        synchronized (this) {
+            for (String tag : mRoomListByTag.keySet()) {
+                addRemoveNotification(notifications, tag, roomId, mRoomListByTag.get(tag).remove(roomId));
+            }
+        }
+
+        dispatch(notifications);
+    }
+
+    /**
+     * Rebuild the built lists from the store rooms, and notify the listeners with a reset.
+     * It must be called in the UI thread.
+     */
+    public void invalidate() {
+        List<Runnable> notifications = new ArrayList<>();
+
+        synchronized (this) {
+            List<String> tags = new ArrayList<>(mRoomListByTag.keySet());
+            mRoomListByTag.clear();
+
+            for (final String tag : tags) {
+                buildRoomList(tag);
+
+                notifications.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Listener listener : getListenersSnapshot()) {
+                            listener.onRoomListReset(tag);
+                        }
+                    }
+                });
+            }
+        }
+
+        dispatch(notifications);
+    }
+
+    /**
+     * Add a room removal notification if the room was in the list.
+     *
+     * @param notifications the notifications list
+     * @param tag           the tag
+     * @param roomId        the room id
+     * @param index         the previous room index, -1 if it was not in the list
+     */
+    private void addRemoveNotification(List<Runnable> notifications, final String tag, final String roomId, final int index) {
+        if (index >= 0) {
+            notifications.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (Listener listener : getListenersSnapshot()) {
+                        listener.onRoomRemoved(tag, roomId, index);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return a copy of the listeners list
+     */
+    private List<Listener> getListenersSnapshot() {
+        synchronized (mListeners) {
+            return new ArrayList<>(mListeners);
+        }
+    }
+
+    /**
+     * Dispatch the notifications outside the synchronized block.
+     *
+     * @param notifications the notifications
+     */
+    private void dispatch(List<Runnable> notifications) {
+        for (Runnable notification : notifications) {
+            try {
+                notification.run();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## dispatch() failed " + e.getMessage());
+            }
+        }
+    }
+}
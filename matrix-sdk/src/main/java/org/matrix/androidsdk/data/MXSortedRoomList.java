@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Room ids list sorted by tag order (rooms without order last) then by latest event timestamp (most recent first).
+ * The room id is used as last criterion so the order is total and a room is found by binary search.
+ * A room update only moves this room.
+ * It is not thread safe : the caller must synchronize the calls.
+ */
+class MXSortedRoomList {
+
+    /**
+     * A sorted room.
+     */
+    private static class Entry {
+        // the room id
+        final String mRoomId;
+        // the tag order, null if there is none
+        final Double mOrder;
+        // the latest event timestamp
+        final long mTs;
+
+        Entry(String roomId, Double order, long ts) {
+            mRoomId = roomId;
+            mOrder = order;
+            mTs = ts;
+        }
+    }
+
+    // the sorted entries
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+
+    // room id -> entry
+    private final HashMap<String, Entry> mEntryByRoomId = new HashMap<>();
+
+    /**
+     * Compare two entries.
+     *
+     * @param e1 the first entry
+     * @param e2 the second entry
+     * @return the comparison result
+     */
+    private static int compare(Entry e1, Entry e2) {
+        if ((null != e1.mOrder) && (null != e2.mOrder)) {
+            int res = Double.compare(e1.mOrder, e2.mOrder);
+
+            if (0 != res) {
+                return res;
+            }
+        } else if (null != e1.mOrder) {
+            return -1;
+        } else if (null != e2.mOrder) {
+            return +1;
+        }
+
+        if (e1.mTs != e2.mTs) {
+            return (e1.mTs > e2.mTs) ? -1 : +1;
+        }
+
+        return e1.mRoomId.compareTo(e2.mRoomId);
+    }
+
+    /**
+     * Find the position of an entry.
+     *
+     * @param entry the entry
+     * @return its index if it is in the list, else (-(insertion point) - 1)
+     */
+    private int binarySearch(Entry entry) {
+        int low = 0;
+        int high = mEntries.size() - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int res = compare(mEntries.get(mid), entry);
+
+            if (res < 0) {
+                low = mid + 1;
+            } else if (res > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -(low + 1);
+    }
+
+    /**
+     * Tells if a room is in the list.
+     *
+     * @param roomId the room id
+     * @return true if it is in the list
+     */
+    boolean contains(String roomId) {
+        return mEntryByRoomId.containsKey(roomId);
+    }
+
+    /**
+     * Provides the position of a room.
+     *
+     * @param roomId the room id
+     * @return the index, -1 if the room is not in the list
+     */
+    int indexOf(String roomId) {
+        Entry entry = mEntryByRoomId.get(roomId);
+        return (null != entry) ? binarySearch(entry) : -1;
+    }
+
+    /**
+     * Insert a room or move it if it is already in the list.
+     *
+     * @param roomId the room id
+     * @param order  the tag order
+     * @param ts     the latest event timestamp
+     * @return the new room index
+     */
+    int put(String roomId, Double order, long ts) {
+        remove(roomId);
+
+        Entry entry = new Entry(roomId, order, ts);
+        int index = -binarySearch(entry) - 1;
+
+        mEntries.add(index, entry);
+        mEntryByRoomId.put(roomId, entry);
+
+        return index;
+    }
+
+    /**
+     * Remove a room.
+     *
+     * @param roomId the room id
+     * @return the index of the removed room, -1 if it was not in the list
+     */
+    int remove(String roomId) {
+        Entry entry = mEntryByRoomId.remove(roomId);
+
+        if (null == entry) {
+            return -1;
+        }
+
+        int index = binarySearch(entry);
+        mEntries.remove(index);
+        return index;
+    }
+
+    /**
+     * @return the rooms count
+     */
+    int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return the sorted room ids
+     */
+    List<String> getRoomIds() {
+        ArrayList<String> roomIds = new ArrayList<>(mEntries.size());
+
+        for (Entry entry : mEntries) {
+            roomIds.add(entry.mRoomId);
+        }
+
+        return roomIds;
+    }
+}
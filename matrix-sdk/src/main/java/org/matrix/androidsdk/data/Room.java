@@ -1910,9 +1910,14 @@ public class Room {
      * @param callback the callback with the created event
      */
     public void sendEvent(final Event event, final ApiCallback<Void> callback) {
+        // queue the event until the server acknowledges it
+        // the transaction id is kept across the retries to avoid duplicated messages
+        String outboxTransactionId = mStore.getOutbox().enqueue(event);
+        final String transactionId = (null != outboxTransactionId) ? outboxTransactionId : (event.originServerTs + "");
+
         // wait that the room is synced before sending messages
         if (!mIsReady || !selfJoined()) {
-            event.mSentState = Event.SentState.WAITING_RETRY;
+            onSendingNetworkError(event, null);
             try {
                 callback.onNetworkError(null);
             } catch (Exception e) {
@@ -1924,7 +1929,7 @@ public class Room {
         final ApiCallback<Event> localCB = new ApiCallback<Event>() {
             @Override
             public void onSuccess(final Event serverResponseEvent) {
-                // remove the tmp event
+                // remove the tmp event (and its outbox entry)
                 mStore.deleteEvent(event);
 
                 // update the event with the server response
@@ -1952,8 +1957,7 @@ public class Room {
 
             @Override
             public void onNetworkError(Exception e) {
-                event.mSentState = Event.SentState.UNDELIVERABLE;
-                event.unsentException = e;
+                onSendingNetworkError(event, e);
 
                 try {
                     callback.onNetworkError(e);
@@ -1967,14 +1971,18 @@ public class Room {
                 event.mSentState = Event.SentState.UNDELIVERABLE;
                 event.unsentMatrixError = e;
 
+                // the server refused it : resending it would not help
+                mStore.getOutbox().remove(event);
+
                 if (TextUtils.equals(MatrixError.UNKNOWN_TOKEN, e.errcode)) {
                     mDataHandler.onInvalidToken();
-                } else {
-                    try {
-                        callback.onMatrixError(e);
-                    } catch (Exception anException) {
-                        Log.e(LOG_TAG, "sendEvent exception " + anException.getMessage());
-                    }
+                }
+
+                // the caller is always notified, e.g. the outbox flush waits for the result
+                try {
+                    callback.onMatrixError(e);
+                } catch (Exception anException) {
+                    Log.e(LOG_TAG, "sendEvent exception " + anException.getMessage());
                 }
             }
 
@@ -1982,6 +1990,7 @@ public class Room {
             public void onUnexpectedError(Exception e) {
                 event.mSentState = Event.SentState.UNDELIVERABLE;
                 event.unsentException = e;
+                mStore.getOutbox().remove(event);
 
                 try {
                     callback.onUnexpectedError(e);
@@ -2008,13 +2017,12 @@ public class Room {
 
                     // sending in progress
                     event.mSentState = Event.SentState.SENDING;
-                    mDataHandler.getDataRetriever().getRoomsRestClient().sendEventToRoom(event.originServerTs + "", getRoomId(), encryptEventContentResult.mEventType, encryptEventContentResult.mEventContent.getAsJsonObject(), localCB);
+                    mDataHandler.getDataRetriever().getRoomsRestClient().sendEventToRoom(transactionId, getRoomId(), encryptEventContentResult.mEventType, encryptEventContentResult.mEventContent.getAsJsonObject(), localCB);
                 }
 
                 @Override
                 public void onNetworkError(Exception e) {
-                    event.mSentState = Event.SentState.UNDELIVERABLE;
-                    event.unsentException = e;
+                    onSendingNetworkError(event, e);
 
                     if (null != callback) {
                         callback.onNetworkError(e);
@@ -2031,6 +2039,7 @@ public class Room {
                     }
 
                     event.unsentMatrixError = e;
+                    mStore.getOutbox().remove(event);
 
                     if (null != callback) {
                         callback.onMatrixError(e);
@@ -2041,6 +2050,7 @@ public class Room {
                 public void onUnexpectedError(Exception e) {
                     event.mSentState = Event.SentState.UNDELIVERABLE;
                     event.unsentException = e;
+                    mStore.getOutbox().remove(event);
 
                     if (null != callback) {
                         callback.onUnexpectedError(e);
@@ -2051,13 +2061,31 @@ public class Room {
             event.mSentState = Event.SentState.SENDING;
 
             if (Event.EVENT_TYPE_MESSAGE.equals(event.getType())) {
-                mDataHandler.getDataRetriever().getRoomsRestClient().sendMessage(event.originServerTs + "", getRoomId(), JsonUtils.toMessage(event.getContent()), localCB);
+                mDataHandler.getDataRetriever().getRoomsRestClient().sendMessage(transactionId, getRoomId(), JsonUtils.toMessage(event.getContent()), localCB);
             } else {
-                mDataHandler.getDataRetriever().getRoomsRestClient().sendEventToRoom(event.originServerTs + "", getRoomId(), event.getType(), event.getContent().getAsJsonObject(), localCB);
+                mDataHandler.getDataRetriever().getRoomsRestClient().sendEventToRoom(transactionId, getRoomId(), event.getType(), event.getContent().getAsJsonObject(), localCB);
             }
         }
     }
 
+    /**
+     * Update an event after a sending network error.
+     * The event stays in the outbox to be resent with the next connection until it is given up by the outbox.
+     *
+     * @param event the event
+     * @param e     the network error
+     */
+    private void onSendingNetworkError(Event event, Exception e) {
+        if (mStore.getOutbox().onSendingFailed(event)) {
+            // the user has to resend it
+            event.mSentState = Event.SentState.UNDELIVERABLE;
+        } else {
+            event.mSentState = Event.SentState.WAITING_RETRY;
+        }
+
+        event.unsentException = e;
+    }
+
     /**
      * Cancel the event sending.
      * Any media upload will be cancelled too.
@@ -2076,6 +2104,8 @@ public class Room {
                 event.mSentState = Event.SentState.UNDELIVERABLE;
             }
 
+            mStore.getOutbox().remove(event);
+
             List<String> urls = event.getMediaUrls();
             MXMediasCache cache = mDataHandler.getMediasCache();
 
@@ -64,6 +64,26 @@ public interface IMXCryptoStore {
      */
     void close();
 
+    /**
+     * Start a batch of writes.
+     * The writes until endBatch() are committed together when the store supports it.
+     */
+    void beginBatch();
+
+    /**
+     * Mark the running batch as successful.
+     * Its writes are committed by endBatch() only when it has been marked.
+     */
+    void setBatchSuccessful();
+
+    /**
+     * End the batch started by beginBatch().
+     * The writes since beginBatch() are committed when the batch has been marked as successful
+     * and when none of them has failed, else they are rolled back when the store supports it.
+     * @return true if the writes have been committed.
+     */
+    boolean endBatch();
+
     /**
      * Store the device id.
      * @param deviceId the device id
@@ -174,6 +194,12 @@ public interface IMXCryptoStore {
      */
     List<MXOlmInboundGroupSession2> getInboundGroupSessions();
 
+    /**
+     * Release the inbound group sessions retrieved by getInboundGroupSessions() once they have been used.
+     * @param sessions the sessions.
+     */
+    void releaseInboundGroupSessions(List<MXOlmInboundGroupSession2> sessions);
+
     /**
      * Remove an inbound group session
      * @param sessionId the session identifier.
@@ -206,4 +232,49 @@ public interface IMXCryptoStore {
      * @return the room Ids list
      */
     List<String> getRoomsListBlacklistUnverifiedDevices();
+
+    /**
+     * Save the device tracking statuses.
+     * @param deviceTrackingStatuses the device tracking statuses (user id -> status)
+     */
+    void saveDeviceTrackingStatuses(Map<String, Integer> deviceTrackingStatuses);
+
+    /**
+     * @return the saved device tracking statuses (user id -> status)
+     */
+    Map<String, Integer> getDeviceTrackingStatuses();
+
+    /**
+     * Save the sync token up to which the device lists changes have been applied.
+     * @param token the sync token
+     */
+    void storeDeviceSyncToken(String token);
+
+    /**
+     * @return the sync token up to which the device lists changes have been applied, null if unknown.
+     */
+    String getDeviceSyncToken();
+
+    /**
+     * Save the key used to encrypt the decryption cache.
+     * The key is wrapped by an Android keystore key, it is never saved in clear.
+     * @param key the wrapped key, null to delete it
+     */
+    void storeDecryptionCacheKey(byte[] key);
+
+    /**
+     * @return the wrapped key used to encrypt the decryption cache, null if there is none.
+     */
+    byte[] getDecryptionCacheKey();
+
+    /**
+     * Save the encrypted decryption cache.
+     * @param data the encrypted cache, null to delete it.
+     */
+    void storeDecryptionCache(byte[] data);
+
+    /**
+     * @return the encrypted decryption cache, null if there is none.
+     */
+    byte[] getDecryptionCache();
 }
@@ -77,6 +77,12 @@ public class MXFileCryptoStore implements IMXCryptoStore {
     private static final String MXFILE_CRYPTO_STORE_INBOUND_GROUP_SESSSIONS_FILE_TMP = "inboundGroupSessions.tmp";
     private static final String MXFILE_CRYPTO_STORE_INBOUND_GROUP_SESSSIONS_FOLDER = "inboundGroupSessionsFolder";
 
+    private static final String MXFILE_CRYPTO_STORE_DEVICE_TRACKING_STATUSES_FILE = "deviceTrackingStatuses";
+    private static final String MXFILE_CRYPTO_STORE_DEVICE_SYNC_TOKEN_FILE = "deviceSyncToken";
+
+    private static final String MXFILE_CRYPTO_STORE_DECRYPTION_CACHE_KEY_FILE = "decryptionCacheKey";
+    private static final String MXFILE_CRYPTO_STORE_DECRYPTION_CACHE_FILE = "decryptionCache";
+
     // The credentials used for this store
     private Credentials mCredentials;
 
@@ -103,6 +109,12 @@ public class MXFileCryptoStore implements IMXCryptoStore {
             HashMap<String /*inboundGroupSessionId*/, MXOlmInboundGroupSession2>> mInboundGroupSessions;
     private final Object mInboundGroupSessionsLock = new Object();
 
+    // The device tracking statuses (<user id> -> <status>)
+    private HashMap<String, Integer> mDeviceTrackingStatuses;
+    private final Object mDeviceTrackingStatusesLock = new Object();
+
+    // The sync token up to which the device lists changes have been applied
+    private String mDeviceSyncToken;
 
     // The path of the MXFileCryptoStore folder
     private File mStoreFile;
@@ -128,6 +140,12 @@ public class MXFileCryptoStore implements IMXCryptoStore {
     private File mInboundGroupSessionsFileTmp;
     private File mInboundGroupSessionsFolder;
 
+    private File mDeviceTrackingStatusesFile;
+    private File mDeviceSyncTokenFile;
+
+    private File mDecryptionCacheKeyFile;
+    private File mDecryptionCacheFile;
+
     // tell if the store is corrupted
     private boolean mIsCorrupted = false;
 
@@ -163,6 +181,12 @@ public class MXFileCryptoStore implements IMXCryptoStore {
         mInboundGroupSessionsFileTmp = new File(mStoreFile, MXFILE_CRYPTO_STORE_INBOUND_GROUP_SESSSIONS_FILE_TMP);
         mInboundGroupSessionsFolder = new File(mStoreFile, MXFILE_CRYPTO_STORE_INBOUND_GROUP_SESSSIONS_FOLDER);
 
+        mDeviceTrackingStatusesFile = new File(mStoreFile, MXFILE_CRYPTO_STORE_DEVICE_TRACKING_STATUSES_FILE);
+        mDeviceSyncTokenFile = new File(mStoreFile, MXFILE_CRYPTO_STORE_DEVICE_SYNC_TOKEN_FILE);
+
+        mDecryptionCacheKeyFile = new File(mStoreFile, MXFILE_CRYPTO_STORE_DECRYPTION_CACHE_KEY_FILE);
+        mDecryptionCacheFile = new File(mStoreFile, MXFILE_CRYPTO_STORE_DECRYPTION_CACHE_FILE);
+
         // Build default metadata
         if ((null == mMetaData)
                 && (null != credentials.homeServer)
@@ -175,6 +199,8 @@ public class MXFileCryptoStore implements IMXCryptoStore {
         mRoomsAlgorithms = new HashMap<>();
         mOlmSessions = new HashMap<>();
         mInboundGroupSessions = new HashMap<>();
+        mDeviceTrackingStatuses = new HashMap<>();
+        mDeviceSyncToken = null;
     }
 
     @Override
@@ -250,6 +276,20 @@ public class MXFileCryptoStore implements IMXCryptoStore {
         }
     }
 
+    @Override
+    public void beginBatch() {
+        // each object is saved in a dedicated file
+    }
+
+    @Override
+    public void setBatchSuccessful() {
+    }
+
+    @Override
+    public boolean endBatch() {
+        return true;
+    }
+
     @Override
     public void storeDeviceId(String deviceId) {
         mMetaData.mDeviceId = deviceId;
@@ -655,6 +695,11 @@ public class MXFileCryptoStore implements IMXCryptoStore {
         return inboundGroupSessions;
     }
 
+    @Override
+    public void releaseInboundGroupSessions(List<MXOlmInboundGroupSession2> sessions) {
+        // the sessions are the loaded ones, they are released when the store is closed
+    }
+
     @Override
     public void close() {
         // release JNI objects
@@ -711,6 +756,123 @@ public class MXFileCryptoStore implements IMXCryptoStore {
         }
     }
 
+    @Override
+    public void saveDeviceTrackingStatuses(Map<String, Integer> deviceTrackingStatuses) {
+        HashMap<String, Integer> statuses = new HashMap<>(deviceTrackingStatuses);
+
+        synchronized (mDeviceTrackingStatusesLock) {
+            mDeviceTrackingStatuses = statuses;
+        }
+
+        storeObject(statuses, mDeviceTrackingStatusesFile, "saveDeviceTrackingStatuses");
+    }
+
+    @Override
+    public Map<String, Integer> getDeviceTrackingStatuses() {
+        synchronized (mDeviceTrackingStatusesLock) {
+            return new HashMap<>(mDeviceTrackingStatuses);
+        }
+    }
+
+    @Override
+    public void storeDeviceSyncToken(String token) {
+        mDeviceSyncToken = token;
+
+        if (null == token) {
+            mDeviceSyncTokenFile.delete();
+        } else {
+            storeObject(token, mDeviceSyncTokenFile, "storeDeviceSyncToken");
+        }
+    }
+
+    @Override
+    public String getDeviceSyncToken() {
+        return mDeviceSyncToken;
+    }
+
+    @Override
+    public void storeDecryptionCacheKey(byte[] key) {
+        if (null == key) {
+            mDecryptionCacheKeyFile.delete();
+        } else {
+            storeObject(key, mDecryptionCacheKeyFile, "storeDecryptionCacheKey");
+        }
+    }
+
+    @Override
+    public byte[] getDecryptionCacheKey() {
+        Object keyAsVoid = loadObject(mDecryptionCacheKeyFile, "getDecryptionCacheKey");
+        return (keyAsVoid instanceof byte[]) ? (byte[]) keyAsVoid : null;
+    }
+
+    @Override
+    public void storeDecryptionCache(byte[] data) {
+        if (null == data) {
+            mDecryptionCacheFile.delete();
+        } else {
+            storeObject(data, mDecryptionCacheFile, "storeDecryptionCache");
+        }
+    }
+
+    @Override
+    public byte[] getDecryptionCache() {
+        // the cache is only loaded when it is enabled
+        Object dataAsVoid = loadObject(mDecryptionCacheFile, "getDecryptionCache");
+        return (dataAsVoid instanceof byte[]) ? (byte[]) dataAsVoid : null;
+    }
+
+    /**
+     * Provides all the stored user devices.
+     * It is only used to migrate the store data.
+     *
+     * @return the devices by user id
+     */
+    Map<String, Map<String, MXDeviceInfo>> getAllUserDevices() {
+        HashMap<String, Map<String, MXDeviceInfo>> devicesByUserId = new HashMap<>();
+
+        String[] userIds = mDevicesFolder.list();
+
+        if (null != userIds) {
+            for (String userId : userIds) {
+                Map<String, MXDeviceInfo> devices = getUserDevices(userId);
+
+                if (null != devices) {
+                    devicesByUserId.put(userId, new HashMap<>(devices));
+                }
+            }
+        }
+
+        return devicesByUserId;
+    }
+
+    /**
+     * Provides the algorithms used in the rooms.
+     * It is only used to migrate the store data.
+     *
+     * @return the algorithms by room id
+     */
+    Map<String, String> getRoomsAlgorithms() {
+        return new HashMap<>(mRoomsAlgorithms);
+    }
+
+    /**
+     * Provides all the olm sessions.
+     * It is only used to migrate the store data.
+     *
+     * @return the olm sessions by device key
+     */
+    Map<String, Map<String, OlmSession>> getAllOlmSessions() {
+        HashMap<String, Map<String, OlmSession>> olmSessions = new HashMap<>();
+
+        synchronized (mOlmSessionsLock) {
+            for (String deviceKey : mOlmSessions.keySet()) {
+                olmSessions.put(deviceKey, new HashMap<>(mOlmSessions.get(deviceKey)));
+            }
+        }
+
+        return olmSessions;
+    }
+
     /**
      * Reset the crypto store data
      */
@@ -897,6 +1059,22 @@ public class MXFileCryptoStore implements IMXCryptoStore {
         }
         Log.d(LOG_TAG, "## preloadCryptoData() : load mRoomsAlgorithms ("+ algoSize + " algos) in " + (System.currentTimeMillis() - t2) + " ms");
 
+        Object deviceTrackingStatusesAsVoid = loadObject(mDeviceTrackingStatusesFile, "preloadCryptoData - mDeviceTrackingStatuses");
+
+        if (null != deviceTrackingStatusesAsVoid) {
+            try {
+                mDeviceTrackingStatuses = new HashMap<>((Map<String, Integer>) deviceTrackingStatusesAsVoid);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## preloadCryptoData() - invalid mDeviceTrackingStatusesFile " + e.getMessage());
+            }
+        }
+
+        Object deviceSyncTokenAsVoid = loadObject(mDeviceSyncTokenFile, "preloadCryptoData - mDeviceSyncToken");
+
+        if (deviceSyncTokenAsVoid instanceof String) {
+            mDeviceSyncToken = (String) deviceSyncTokenAsVoid;
+        }
+
 
         if (mOlmSessionsFolder.exists()) {
             long t3 = System.currentTimeMillis();
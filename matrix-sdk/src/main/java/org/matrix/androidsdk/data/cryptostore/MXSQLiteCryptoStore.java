@@ -0,0 +1,1352 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.cryptostore;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.crypto.data.MXDeviceInfo;
+import org.matrix.androidsdk.crypto.data.MXOlmInboundGroupSession;
+import org.matrix.androidsdk.crypto.data.MXOlmInboundGroupSession2;
+import org.matrix.androidsdk.crypto.data.MXUsersDevicesMap;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.matrix.androidsdk.util.Log;
+import org.matrix.olm.OlmAccount;
+import org.matrix.olm.OlmSession;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The crypto data store backed by a SQLite database.
+ * Unlike MXFileCryptoStore, nothing is preloaded when the store is opened :
+ * the devices, the olm sessions and the inbound group sessions are loaded on demand.
+ * The unpickled sessions are kept in bounded LRU caches.
+ * The MXFileCryptoStore data is migrated the first time the store is opened.
+ */
+public class MXSQLiteCryptoStore implements IMXCryptoStore {
+    private static final String LOG_TAG = "MXSQLiteCryptoStore";
+
+    private static final int DATABASE_VERSION = 1;
+    private static final String DATABASE_NAME_PREFIX = "MXSQLiteCryptoStore_";
+
+    // the max number of device keys whose olm sessions are kept in memory
+    private static final int MAX_CACHED_OLM_SESSIONS_DEVICES = 100;
+
+    // the max number of inbound group sessions kept in memory
+    private static final int MAX_CACHED_INBOUND_GROUP_SESSIONS = 500;
+
+    // tables
+    private static final String TABLE_VALUES = "kv";
+    private static final String TABLE_DEVICES = "devices";
+    private static final String TABLE_ROOMS_ALGORITHMS = "rooms_algorithms";
+    private static final String TABLE_OLM_SESSIONS = "olm_sessions";
+    private static final String TABLE_INBOUND_GROUP_SESSIONS = "inbound_group_sessions";
+
+    // columns
+    private static final String COLUMN_KEY = "key";
+    private static final String COLUMN_VALUE = "value";
+    private static final String COLUMN_USER_ID = "user_id";
+    private static final String COLUMN_ROOM_ID = "room_id";
+    private static final String COLUMN_ALGORITHM = "algorithm";
+    private static final String COLUMN_DEVICE_KEY = "device_key";
+    private static final String COLUMN_SENDER_KEY = "sender_key";
+    private static final String COLUMN_SESSION_ID = "session_id";
+    private static final String COLUMN_DATA = "data";
+
+    // the TABLE_VALUES keys
+    private static final String KEY_METADATA = "metadata";
+    private static final String KEY_ACCOUNT = "account";
+    private static final String KEY_DEVICE_TRACKING_STATUSES = "deviceTrackingStatuses";
+    private static final String KEY_DEVICE_SYNC_TOKEN = "deviceSyncToken";
+    private static final String KEY_DECRYPTION_CACHE_KEY = "decryptionCacheKey";
+    private static final String KEY_DECRYPTION_CACHE = "decryptionCache";
+
+    /**
+     * The database helper
+     */
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_VALUES + " (" + COLUMN_KEY + " TEXT PRIMARY KEY, " + COLUMN_VALUE + " BLOB)");
+            db.execSQL("CREATE TABLE " + TABLE_DEVICES + " (" + COLUMN_USER_ID + " TEXT PRIMARY KEY, " + COLUMN_DATA + " BLOB)");
+            db.execSQL("CREATE TABLE " + TABLE_ROOMS_ALGORITHMS + " (" + COLUMN_ROOM_ID + " TEXT PRIMARY KEY, " + COLUMN_ALGORITHM + " TEXT)");
+            db.execSQL("CREATE TABLE " + TABLE_OLM_SESSIONS + " (" + COLUMN_DEVICE_KEY + " TEXT, " + COLUMN_SESSION_ID + " TEXT, " + COLUMN_DATA + " BLOB, "
+                    + "PRIMARY KEY (" + COLUMN_DEVICE_KEY + ", " + COLUMN_SESSION_ID + "))");
+            db.execSQL("CREATE TABLE " + TABLE_INBOUND_GROUP_SESSIONS + " (" + COLUMN_SENDER_KEY + " TEXT, " + COLUMN_SESSION_ID + " TEXT, " + COLUMN_DATA + " BLOB, "
+                    + "PRIMARY KEY (" + COLUMN_SENDER_KEY + ", " + COLUMN_SESSION_ID + "))");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Log.e(LOG_TAG, "## onUpgrade() : from " + oldVersion + " to " + newVersion);
+
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_VALUES);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_DEVICES);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_ROOMS_ALGORITHMS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_OLM_SESSIONS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_INBOUND_GROUP_SESSIONS);
+            onCreate(db);
+        }
+    }
+
+    // the application context
+    private Context mContext;
+
+    // The credentials used for this store
+    private Credentials mCredentials;
+
+    // the database name
+    private String mDatabaseName;
+
+    // the database
+    private DatabaseHelper mDatabaseHelper;
+    private SQLiteDatabase mDatabase;
+
+    // Meta data about the store
+    private MXFileCryptoStoreMetaData2 mMetaData;
+
+    // The olm account
+    private OlmAccount mOlmAccount;
+
+    // The loaded users devices
+    private final MXUsersDevicesMap<MXDeviceInfo> mUsersDevicesInfoMap = new MXUsersDevicesMap<>();
+    private final Object mUsersDevicesInfoMapLock = new Object();
+
+    // The algorithms used in rooms
+    private final HashMap<String, String> mRoomsAlgorithms = new HashMap<>();
+
+    // The loaded olm sessions (<device identity key> -> (<olm session id> -> <olm session>), least recently used first
+    private final LinkedHashMap<String, HashMap<String, OlmSession>> mOlmSessions = new LinkedHashMap<String, HashMap<String, OlmSession>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HashMap<String, OlmSession>> eldest) {
+            if (size() > MAX_CACHED_OLM_SESSIONS_DEVICES) {
+                mEvictedOlmSessions.addAll(eldest.getValue().values());
+                return true;
+            }
+            return false;
+        }
+    };
+    private final Object mOlmSessionsLock = new Object();
+
+    // The olm sessions removed from mOlmSessions, they are released by releaseEvictedSessions()
+    // when no other thread uses them.
+    private final ArrayList<OlmSession> mEvictedOlmSessions = new ArrayList<>();
+
+    // The loaded inbound group sessions (<senderKey>|<session id> -> <session>), least recently used first
+    private final LinkedHashMap<String, MXOlmInboundGroupSession2> mInboundGroupSessions = new LinkedHashMap<String, MXOlmInboundGroupSession2>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MXOlmInboundGroupSession2> eldest) {
+            if (size() > MAX_CACHED_INBOUND_GROUP_SESSIONS) {
+                mEvictedInboundGroupSessions.add(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+    private final Object mInboundGroupSessionsLock = new Object();
+
+    // The inbound group sessions removed from mInboundGroupSessions, they are released by releaseEvictedSessions()
+    // when no other thread uses them.
+    private final ArrayList<MXOlmInboundGroupSession2> mEvictedInboundGroupSessions = new ArrayList<>();
+
+    // The device tracking statuses (<user id> -> <status>)
+    private HashMap<String, Integer> mDeviceTrackingStatuses = new HashMap<>();
+    private final Object mDeviceTrackingStatusesLock = new Object();
+
+    // The sync token up to which the device lists changes have been applied
+    private String mDeviceSyncToken;
+
+    // tell if the store is corrupted
+    private boolean mIsCorrupted = false;
+
+    // tell if the file crypto store data could not be migrated
+    private boolean mIsMigrationFailed = false;
+
+    // tell if the running batch must be committed
+    private boolean mIsBatchSuccessful = false;
+
+    // tell if a write of the running batch has failed
+    private boolean mIsBatchWriteFailed = false;
+
+    public MXSQLiteCryptoStore() {
+    }
+
+    @Override
+    public void initWithCredentials(Context context, Credentials credentials) {
+        mContext = context.getApplicationContext();
+        mCredentials = credentials;
+        mDatabaseName = DATABASE_NAME_PREFIX + MXFileCryptoStore.encodeFilename(mCredentials.userId);
+    }
+
+    /**
+     * @return the file crypto store of the same credentials, to migrate its data.
+     */
+    private MXFileCryptoStore getFileCryptoStore() {
+        MXFileCryptoStore fileCryptoStore = new MXFileCryptoStore();
+        fileCryptoStore.initWithCredentials(mContext, mCredentials);
+        return fileCryptoStore;
+    }
+
+    @Override
+    public boolean hasData() {
+        boolean result = mContext.getDatabasePath(mDatabaseName).exists();
+
+        if (result) {
+            openDatabase();
+            loadMetaData();
+
+            if (null != mMetaData) {
+                result = TextUtils.isEmpty(mMetaData.mDeviceId) ||
+                        TextUtils.equals(mCredentials.deviceId, mMetaData.mDeviceId);
+            }
+        } else {
+            // the data will be migrated when the store is opened
+            result = getFileCryptoStore().hasData();
+        }
+
+        return result;
+    }
+
+    @Override
+    public boolean isCorrupted() {
+        return mIsCorrupted;
+    }
+
+    /**
+     * Tell if the file crypto store data could not be migrated when the store was opened.
+     * The database is then deleted and the file crypto store is kept to retry the migration
+     * at the next opening, so the file crypto store must be used until then.
+     *
+     * @return true if the migration has failed
+     */
+    public boolean isMigrationFailed() {
+        return mIsMigrationFailed;
+    }
+
+    @Override
+    public void deleteStore() {
+        if (null != mDatabaseHelper) {
+            mDatabaseHelper.close();
+            mDatabaseHelper = null;
+            mDatabase = null;
+        }
+
+        if (!mContext.deleteDatabase(mDatabaseName)) {
+            Log.e(LOG_TAG, "## deleteStore() : cannot delete " + mDatabaseName);
+        }
+
+        // the file store might not have been migrated
+        getFileCryptoStore().deleteStore();
+    }
+
+    @Override
+    public void open() {
+        boolean isNewDatabase = !mContext.getDatabasePath(mDatabaseName).exists();
+
+        openDatabase();
+
+        if (isNewDatabase && !migrateFileCryptoStore()) {
+            Log.e(LOG_TAG, "## open() : the migration failed, the database is deleted");
+
+            mDatabaseHelper.close();
+            mDatabaseHelper = null;
+            mDatabase = null;
+
+            if (!mContext.deleteDatabase(mDatabaseName)) {
+                Log.e(LOG_TAG, "## open() : cannot delete " + mDatabaseName);
+            }
+
+            mIsMigrationFailed = true;
+            return;
+        }
+
+        mMetaData = null;
+        loadMetaData();
+
+        if (null == mMetaData) {
+            resetData();
+        }
+        // Check credentials
+        // The device id may not have been provided in credentials.
+        // Check it only if provided, else trust the stored one.
+        else if (!TextUtils.equals(mMetaData.mUserId, mCredentials.userId) ||
+                ((null != mCredentials.deviceId) && !TextUtils.equals(mCredentials.deviceId, mMetaData.mDeviceId))) {
+            Log.e(LOG_TAG, "## open() : Credentials do not match");
+            resetData();
+        }
+
+        if (null != mMetaData) {
+            loadCryptoData();
+        }
+
+        if ((null == mMetaData)
+                && (null != mCredentials.homeServer)
+                && (null != mCredentials.userId)
+                && (null != mCredentials.accessToken)) {
+            mMetaData = new MXFileCryptoStoreMetaData2(mCredentials.userId, mCredentials.deviceId, DATABASE_VERSION);
+            saveMetaData();
+        }
+    }
+
+    /**
+     * Open the database if it is not yet done.
+     */
+    private void openDatabase() {
+        if (null == mDatabase) {
+            mDatabaseHelper = new DatabaseHelper(mContext, mDatabaseName);
+            mDatabase = mDatabaseHelper.getWritableDatabase();
+        }
+    }
+
+    /**
+     * Move the MXFileCryptoStore data to the database.
+     * The file store is fully loaded once, then deleted when all its data has been written.
+     * It is kept when a write fails, so the migration can be retried.
+     *
+     * @return false if the migration has failed.
+     */
+    private boolean migrateFileCryptoStore() {
+        MXFileCryptoStore fileCryptoStore = getFileCryptoStore();
+
+        if (!fileCryptoStore.hasData()) {
+            return true;
+        }
+
+        long t0 = System.currentTimeMillis();
+
+        fileCryptoStore.open();
+
+        if (fileCryptoStore.isCorrupted()) {
+            Log.e(LOG_TAG, "## migrateFileCryptoStore() : the file store is corrupted, it is not migrated");
+            fileCryptoStore.close();
+            fileCryptoStore.deleteStore();
+            return true;
+        }
+
+        int olmSessionsCount = 0;
+        int inboundGroupSessionsCount = 0;
+        boolean succeeded = false;
+
+        mDatabase.beginTransaction();
+
+        try {
+            MXFileCryptoStoreMetaData2 metaData = new MXFileCryptoStoreMetaData2(mCredentials.userId, fileCryptoStore.getDeviceId(), DATABASE_VERSION);
+            metaData.mDeviceAnnounced = fileCryptoStore.deviceAnnounced();
+            metaData.mGlobalBlacklistUnverifiedDevices = fileCryptoStore.getGlobalBlacklistUnverifiedDevices();
+            metaData.mBlacklistUnverifiedDevicesRoomIdsList = fileCryptoStore.getRoomsListBlacklistUnverifiedDevices();
+            checkMigrationWrite(putValue(KEY_METADATA, metaData), KEY_METADATA);
+
+            checkMigrationWrite(putValue(KEY_ACCOUNT, fileCryptoStore.getAccount()), KEY_ACCOUNT);
+            checkMigrationWrite(putValue(KEY_DEVICE_TRACKING_STATUSES, new HashMap<>(fileCryptoStore.getDeviceTrackingStatuses())), KEY_DEVICE_TRACKING_STATUSES);
+            checkMigrationWrite(putValue(KEY_DEVICE_SYNC_TOKEN, fileCryptoStore.getDeviceSyncToken()), KEY_DEVICE_SYNC_TOKEN);
+
+            Map<String, Map<String, MXDeviceInfo>> devicesByUserId = fileCryptoStore.getAllUserDevices();
+
+            for (String userId : devicesByUserId.keySet()) {
+                checkMigrationWrite(putUserDevices(userId, devicesByUserId.get(userId)), "devices of " + userId);
+            }
+
+            Map<String, String> roomsAlgorithms = fileCryptoStore.getRoomsAlgorithms();
+
+            for (String roomId : roomsAlgorithms.keySet()) {
+                checkMigrationWrite(putRoomAlgorithm(roomId, roomsAlgorithms.get(roomId)), "algorithm of " + roomId);
+            }
+
+            Map<String, Map<String, OlmSession>> olmSessions = fileCryptoStore.getAllOlmSessions();
+
+            for (String deviceKey : olmSessions.keySet()) {
+                Map<String, OlmSession> sessions = olmSessions.get(deviceKey);
+
+                for (String sessionId : sessions.keySet()) {
+                    checkMigrationWrite(putOlmSession(deviceKey, sessionId, sessions.get(sessionId)), "olm session " + sessionId);
+                    olmSessionsCount++;
+                }
+            }
+
+            for (MXOlmInboundGroupSession2 session : fileCryptoStore.getInboundGroupSessions()) {
+                String sessionId = session.mSession.sessionIdentifier();
+                checkMigrationWrite(putInboundGroupSession(session.mSenderKey, sessionId, session), "inbound group session " + sessionId);
+                inboundGroupSessionsCount++;
+            }
+
+            mDatabase.setTransactionSuccessful();
+            succeeded = true;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## migrateFileCryptoStore() failed " + e.getMessage());
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        fileCryptoStore.close();
+
+        if (succeeded) {
+            fileCryptoStore.deleteStore();
+
+            Log.d(LOG_TAG, "## migrateFileCryptoStore() : " + olmSessionsCount + " olm sessions and " + inboundGroupSessionsCount
+                    + " inbound group sessions migrated in " + (System.currentTimeMillis() - t0) + " ms");
+        }
+
+        return succeeded;
+    }
+
+    /**
+     * Abort the migration when a write has failed.
+     *
+     * @param succeeded   the write result
+     * @param description the written data description
+     * @throws Exception if the write has failed
+     */
+    private static void checkMigrationWrite(boolean succeeded, String description) throws Exception {
+        if (!succeeded) {
+            throw new Exception("cannot write " + description);
+        }
+    }
+
+    /**
+     * Reset the crypto store data
+     */
+    private void resetData() {
+        close();
+
+        mDatabase.beginTransaction();
+
+        try {
+            mDatabase.delete(TABLE_VALUES, null, null);
+            mDatabase.delete(TABLE_DEVICES, null, null);
+            mDatabase.delete(TABLE_ROOMS_ALGORITHMS, null, null);
+            mDatabase.delete(TABLE_OLM_SESSIONS, null, null);
+            mDatabase.delete(TABLE_INBOUND_GROUP_SESSIONS, null, null);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        mMetaData = null;
+    }
+
+    /**
+     * Load the metadata from the database
+     */
+    private void loadMetaData() {
+        Object metadataAsVoid = getValue(KEY_METADATA);
+
+        if (metadataAsVoid instanceof MXFileCryptoStoreMetaData2) {
+            mMetaData = (MXFileCryptoStoreMetaData2) metadataAsVoid;
+        }
+    }
+
+    /**
+     * Save the metadata into the database
+     */
+    private void saveMetaData() {
+        putValue(KEY_METADATA, mMetaData);
+    }
+
+    /**
+     * Load the small crypto data.
+     * The devices and the sessions are loaded on demand.
+     */
+    private void loadCryptoData() {
+        long t0 = System.currentTimeMillis();
+
+        byte[] olmAccountData = getBlob(TABLE_VALUES, COLUMN_VALUE, COLUMN_KEY + "=?", new String[]{KEY_ACCOUNT});
+
+        if (null != olmAccountData) {
+            Object olmAccountAsVoid = deserialize(olmAccountData, KEY_ACCOUNT);
+
+            if (olmAccountAsVoid instanceof OlmAccount) {
+                mOlmAccount = (OlmAccount) olmAccountAsVoid;
+            } else {
+                mIsCorrupted = true;
+                Log.e(LOG_TAG, "## loadCryptoData() - invalid account");
+            }
+        }
+
+        Object deviceTrackingStatusesAsVoid = getValue(KEY_DEVICE_TRACKING_STATUSES);
+
+        if (null != deviceTrackingStatusesAsVoid) {
+            try {
+                mDeviceTrackingStatuses = new HashMap<>((Map<String, Integer>) deviceTrackingStatusesAsVoid);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## loadCryptoData() - invalid mDeviceTrackingStatuses " + e.getMessage());
+            }
+        }
+
+        Object deviceSyncTokenAsVoid = getValue(KEY_DEVICE_SYNC_TOKEN);
+
+        if (deviceSyncTokenAsVoid instanceof String) {
+            mDeviceSyncToken = (String) deviceSyncTokenAsVoid;
+        }
+
+        Cursor cursor = mDatabase.query(TABLE_ROOMS_ALGORITHMS, new String[]{COLUMN_ROOM_ID, COLUMN_ALGORITHM}, null, null, null, null, null);
+
+        try {
+            while (cursor.moveToNext()) {
+                mRoomsAlgorithms.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Log.d(LOG_TAG, "## loadCryptoData() : done in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    //==============================================================================================================
+    // serialization
+    //==============================================================================================================
+
+    /**
+     * Serialize an object.
+     *
+     * @param object the object
+     * @return the serialized object, null if it fails
+     */
+    private byte[] serialize(Object object) {
+        if (null == object) {
+            return null;
+        }
+
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bos);
+            out.writeObject(object);
+            out.close();
+            return bos.toByteArray();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## serialize() failed " + e.getMessage());
+        } catch (OutOfMemoryError oom) {
+            Log.e(LOG_TAG, "## serialize() failed " + oom.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * Deserialize an object.
+     *
+     * @param data        the serialized object
+     * @param description the object description
+     * @return the object, null if it fails
+     */
+    private Object deserialize(byte[] data, String description) {
+        if (null == data) {
+            return null;
+        }
+
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+            Object object = in.readObject();
+            in.close();
+            return object;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## deserialize() : " + description + " failed " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * Warn if a write is done in the UI thread.
+     *
+     * @param description the write description
+     */
+    private void checkThread(String description) {
+        if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
+            Log.e(LOG_TAG, "## " + description + " : should not be called in the UI thread");
+        }
+    }
+
+    //==============================================================================================================
+    // database accessors
+    //==============================================================================================================
+
+    /**
+     * Store a value in the TABLE_VALUES table.
+     *
+     * @param key   the key
+     * @param value the value, null to remove it
+     * @return true if the value has been written
+     */
+    private boolean putValue(String key, Object value) {
+        checkThread("putValue " + key);
+
+        if (null == value) {
+            mDatabase.delete(TABLE_VALUES, COLUMN_KEY + "=?", new String[]{key});
+            return true;
+        }
+
+        byte[] data = serialize(value);
+
+        if (null != data) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_KEY, key);
+            values.put(COLUMN_VALUE, data);
+
+            if (-1 != mDatabase.insertWithOnConflict(TABLE_VALUES, null, values, SQLiteDatabase.CONFLICT_REPLACE)) {
+                return true;
+            }
+        }
+
+        return onWriteFailed("putValue " + key);
+    }
+
+    /**
+     * Read a value from the TABLE_VALUES table.
+     *
+     * @param key the key
+     * @return the value, null if there is none
+     */
+    private Object getValue(String key) {
+        return deserialize(getBlob(TABLE_VALUES, COLUMN_VALUE, COLUMN_KEY + "=?", new String[]{key}), key);
+    }
+
+    /**
+     * Read a blob column.
+     *
+     * @param table     the table
+     * @param column    the blob column
+     * @param selection the selection
+     * @param args      the selection arguments
+     * @return the first matching blob, null if there is none
+     */
+    private byte[] getBlob(String table, String column, String selection, String[] args) {
+        Cursor cursor = mDatabase.query(table, new String[]{column}, selection, args, null, null, null);
+
+        try {
+            return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Write the devices of an user.
+     *
+     * @param userId  the user id
+     * @param devices the devices
+     * @return true if the devices have been written
+     */
+    // package private to simulate write failures in the tests
+    boolean putUserDevices(String userId, Map<String, MXDeviceInfo> devices) {
+        checkThread("putUserDevices " + userId);
+
+        byte[] data = serialize(new HashMap<>(devices));
+
+        if (null != data) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_USER_ID, userId);
+            values.put(COLUMN_DATA, data);
+
+            if (-1 != mDatabase.insertWithOnConflict(TABLE_DEVICES, null, values, SQLiteDatabase.CONFLICT_REPLACE)) {
+                return true;
+            }
+        }
+
+        return onWriteFailed("putUserDevices " + userId);
+    }
+
+    /**
+     * Write a room algorithm.
+     *
+     * @param roomId    the room id
+     * @param algorithm the algorithm
+     * @return true if the algorithm has been written
+     */
+    private boolean putRoomAlgorithm(String roomId, String algorithm) {
+        checkThread("putRoomAlgorithm " + roomId);
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ROOM_ID, roomId);
+        values.put(COLUMN_ALGORITHM, algorithm);
+
+        return (-1 != mDatabase.insertWithOnConflict(TABLE_ROOMS_ALGORITHMS, null, values, SQLiteDatabase.CONFLICT_REPLACE))
+                || onWriteFailed("putRoomAlgorithm " + roomId);
+    }
+
+    /**
+     * Write an olm session.
+     *
+     * @param deviceKey the device key
+     * @param sessionId the session id
+     * @param session   the session
+     * @return true if the session has been written
+     */
+    private boolean putOlmSession(String deviceKey, String sessionId, OlmSession session) {
+        checkThread("putOlmSession " + sessionId);
+
+        byte[] data = serialize(session);
+
+        if (null != data) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_DEVICE_KEY, deviceKey);
+            values.put(COLUMN_SESSION_ID, sessionId);
+            values.put(COLUMN_DATA, data);
+
+            if (-1 != mDatabase.insertWithOnConflict(TABLE_OLM_SESSIONS, null, values, SQLiteDatabase.CONFLICT_REPLACE)) {
+                return true;
+            }
+        }
+
+        return onWriteFailed("putOlmSession " + sessionId);
+    }
+
+    /**
+     * Write an inbound group session.
+     *
+     * @param senderKey the sender key
+     * @param sessionId the session id
+     * @param session   the session
+     * @return true if the session has been written
+     */
+    private boolean putInboundGroupSession(String senderKey, String sessionId, MXOlmInboundGroupSession2 session) {
+        checkThread("putInboundGroupSession " + sessionId);
+
+        byte[] data = serialize(session);
+
+        if (null != data) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_SENDER_KEY, senderKey);
+            values.put(COLUMN_SESSION_ID, sessionId);
+            values.put(COLUMN_DATA, data);
+
+            if (-1 != mDatabase.insertWithOnConflict(TABLE_INBOUND_GROUP_SESSIONS, null, values, SQLiteDatabase.CONFLICT_REPLACE)) {
+                return true;
+            }
+        }
+
+        return onWriteFailed("putInboundGroupSession " + sessionId);
+    }
+
+    /**
+     * Manage a write failure.
+     * The running batch of this thread is rolled back when it ends.
+     *
+     * @param description the write description
+     * @return false
+     */
+    private boolean onWriteFailed(String description) {
+        Log.e(LOG_TAG, "## " + description + " : the write failed");
+
+        // the transactions are bound to the thread which has started them
+        if (mDatabase.inTransaction()) {
+            mIsBatchWriteFailed = true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Convert a deserialized inbound group session.
+     *
+     * @param sessionAsVoid the deserialized session
+     * @return the session, null if it is invalid
+     */
+    private MXOlmInboundGroupSession2 toInboundGroupSession(Object sessionAsVoid) {
+        if (sessionAsVoid instanceof MXOlmInboundGroupSession) {
+            return new MXOlmInboundGroupSession2((MXOlmInboundGroupSession) sessionAsVoid);
+        } else if (sessionAsVoid instanceof MXOlmInboundGroupSession2) {
+            return (MXOlmInboundGroupSession2) sessionAsVoid;
+        }
+
+        return null;
+    }
+
+    /**
+     * Release an olm session.
+     * The session users lock it and check that it is not released before using it.
+     *
+     * @param session the session
+     */
+    private static void releaseOlmSession(OlmSession session) {
+        if (null != session) {
+            synchronized (session) {
+                if (!session.isReleased()) {
+                    session.releaseSession();
+                }
+            }
+        }
+    }
+
+    /**
+     * Release an inbound group session.
+     * The session users lock it and check that it is not released before using it.
+     *
+     * @param session the session
+     */
+    private static void releaseInboundGroupSession(MXOlmInboundGroupSession2 session) {
+        if ((null != session) && (null != session.mSession)) {
+            synchronized (session) {
+                if (!session.mSession.isReleased()) {
+                    session.mSession.releaseSession();
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the sessions evicted from the caches.
+     * The release waits until the session is not used anymore, so it must not be called while a session
+     * or a cache lock is held : the sessions are stored while their lock is held, so they are only released
+     * when they are retrieved or when the store is closed.
+     * A session stored again meanwhile is not evicted anymore, so it is not released.
+     */
+    private void releaseEvictedSessions() {
+        List<OlmSession> olmSessions;
+
+        synchronized (mOlmSessionsLock) {
+            olmSessions = new ArrayList<>(mEvictedOlmSessions);
+        }
+
+        for (OlmSession olmSession : olmSessions) {
+            synchronized (olmSession) {
+                boolean isEvicted;
+
+                synchronized (mOlmSessionsLock) {
+                    isEvicted = mEvictedOlmSessions.remove(olmSession);
+                }
+
+                if (isEvicted) {
+                    releaseOlmSession(olmSession);
+                }
+            }
+        }
+
+        List<MXOlmInboundGroupSession2> inboundGroupSessions;
+
+        synchronized (mInboundGroupSessionsLock) {
+            inboundGroupSessions = new ArrayList<>(mEvictedInboundGroupSessions);
+        }
+
+        for (MXOlmInboundGroupSession2 session : inboundGroupSessions) {
+            synchronized (session) {
+                boolean isEvicted;
+
+                synchronized (mInboundGroupSessionsLock) {
+                    isEvicted = mEvictedInboundGroupSessions.remove(session);
+                }
+
+                if (isEvicted) {
+                    releaseInboundGroupSession(session);
+                }
+            }
+        }
+    }
+
+    //==============================================================================================================
+    // IMXCryptoStore
+    //==============================================================================================================
+
+    @Override
+    public void beginBatch() {
+        mDatabase.beginTransaction();
+        mIsBatchSuccessful = false;
+        mIsBatchWriteFailed = false;
+    }
+
+    @Override
+    public void setBatchSuccessful() {
+        mIsBatchSuccessful = true;
+    }
+
+    @Override
+    public boolean endBatch() {
+        boolean commit = mIsBatchSuccessful && !mIsBatchWriteFailed;
+
+        try {
+            if (commit) {
+                mDatabase.setTransactionSuccessful();
+            }
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        if (!commit) {
+            Log.e(LOG_TAG, "## endBatch() : the batch is rolled back");
+
+            // the cached sessions might not match the database anymore
+            synchronized (mOlmSessionsLock) {
+                for (HashMap<String, OlmSession> sessions : mOlmSessions.values()) {
+                    mEvictedOlmSessions.addAll(sessions.values());
+                }
+                mOlmSessions.clear();
+            }
+
+            synchronized (mInboundGroupSessionsLock) {
+                mEvictedInboundGroupSessions.addAll(mInboundGroupSessions.values());
+                mInboundGroupSessions.clear();
+            }
+
+            releaseEvictedSessions();
+        }
+
+        mIsBatchSuccessful = false;
+        mIsBatchWriteFailed = false;
+
+        return commit;
+    }
+
+    @Override
+    public void storeDeviceId(String deviceId) {
+        mMetaData.mDeviceId = deviceId;
+        saveMetaData();
+    }
+
+    @Override
+    public String getDeviceId() {
+        return mMetaData.mDeviceId;
+    }
+
+    @Override
+    public void storeAccount(OlmAccount account) {
+        mOlmAccount = account;
+        putValue(KEY_ACCOUNT, account);
+    }
+
+    @Override
+    public OlmAccount getAccount() {
+        return mOlmAccount;
+    }
+
+    @Override
+    public void storeDeviceAnnounced() {
+        mMetaData.mDeviceAnnounced = true;
+        saveMetaData();
+    }
+
+    @Override
+    public boolean deviceAnnounced() {
+        return mMetaData.mDeviceAnnounced;
+    }
+
+    /**
+     * Load the user devices from the database if it is not yet done.
+     *
+     * @param userId the user id.
+     */
+    private void loadUserDevices(String userId) {
+        if (!TextUtils.isEmpty(userId)) {
+            boolean alreadyDone;
+
+            synchronized (mUsersDevicesInfoMapLock) {
+                alreadyDone = mUsersDevicesInfoMap.getMap().containsKey(userId);
+            }
+
+            if (!alreadyDone) {
+                Object devicesMapAsVoid = deserialize(getBlob(TABLE_DEVICES, COLUMN_DATA, COLUMN_USER_ID + "=?", new String[]{userId}), "devices of " + userId);
+
+                if (null != devicesMapAsVoid) {
+                    try {
+                        synchronized (mUsersDevicesInfoMapLock) {
+                            mUsersDevicesInfoMap.setObjects((Map<String, MXDeviceInfo>) devicesMapAsVoid, userId);
+                        }
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "## loadUserDevices : failed to load the devices of " + userId + " " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void storeUserDevice(String userId, MXDeviceInfo device) {
+        final HashMap<String, MXDeviceInfo> devicesMap;
+
+        loadUserDevices(userId);
+
+        synchronized (mUsersDevicesInfoMapLock) {
+            mUsersDevicesInfoMap.setObject(device, userId, device.deviceId);
+            devicesMap = new HashMap<>(mUsersDevicesInfoMap.getMap().get(userId));
+        }
+
+        putUserDevices(userId, devicesMap);
+    }
+
+    @Override
+    public MXDeviceInfo getUserDevice(String deviceId, String userId) {
+        loadUserDevices(userId);
+
+        synchronized (mUsersDevicesInfoMapLock) {
+            return mUsersDevicesInfoMap.getObject(deviceId, userId);
+        }
+    }
+
+    @Override
+    public void storeUserDevices(String userId, Map<String, MXDeviceInfo> devices) {
+        synchronized (mUsersDevicesInfoMapLock) {
+            mUsersDevicesInfoMap.setObjects(devices, userId);
+        }
+
+        putUserDevices(userId, devices);
+    }
+
+    @Override
+    public Map<String, MXDeviceInfo> getUserDevices(String userId) {
+        if (null != userId) {
+            loadUserDevices(userId);
+
+            synchronized (mUsersDevicesInfoMapLock) {
+                return mUsersDevicesInfoMap.getMap().get(userId);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void storeRoomAlgorithm(String roomId, String algorithm) {
+        if ((null != roomId) && (null != algorithm)) {
+            synchronized (mRoomsAlgorithms) {
+                mRoomsAlgorithms.put(roomId, algorithm);
+            }
+
+            putRoomAlgorithm(roomId, algorithm);
+        }
+    }
+
+    @Override
+    public String getRoomAlgorithm(String roomId) {
+        if (null != roomId) {
+            synchronized (mRoomsAlgorithms) {
+                return mRoomsAlgorithms.get(roomId);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides the olm sessions of a device, they are loaded from the database if they are not cached.
+     * It must be called in a mOlmSessionsLock synchronized block.
+     *
+     * @param deviceKey the device key
+     * @return the olm sessions (session id -> session)
+     */
+    private HashMap<String, OlmSession> loadDeviceSessions(String deviceKey) {
+        HashMap<String, OlmSession> sessions = mOlmSessions.get(deviceKey);
+
+        if (null == sessions) {
+            sessions = new HashMap<>();
+
+            Cursor cursor = mDatabase.query(TABLE_OLM_SESSIONS, new String[]{COLUMN_SESSION_ID, COLUMN_DATA}, COLUMN_DEVICE_KEY + "=?", new String[]{deviceKey}, null, null, null);
+
+            try {
+                while (cursor.moveToNext()) {
+                    Object olmSessionAsVoid = deserialize(cursor.getBlob(1), "olm session " + deviceKey);
+
+                    if (olmSessionAsVoid instanceof OlmSession) {
+                        sessions.put(cursor.getString(0), (OlmSession) olmSessionAsVoid);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            mOlmSessions.put(deviceKey, sessions);
+        }
+
+        return sessions;
+    }
+
+    @Override
+    public void storeSession(OlmSession olmSession, String deviceKey) {
+        String sessionIdentifier = null;
+
+        if (null != olmSession) {
+            try {
+                sessionIdentifier = olmSession.sessionIdentifier();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## storeSession : session.sessionIdentifier() failed " + e.getMessage());
+            }
+        }
+
+        if ((null != deviceKey) && (null != sessionIdentifier)) {
+            synchronized (olmSession) {
+                // the session has been evicted and released while it was used
+                if (olmSession.isReleased()) {
+                    Log.e(LOG_TAG, "## storeSession() : the session " + sessionIdentifier + " is released");
+                    return;
+                }
+
+                synchronized (mOlmSessionsLock) {
+                    HashMap<String, OlmSession> sessions = loadDeviceSessions(deviceKey);
+                    OlmSession prevOlmSession = sessions.get(sessionIdentifier);
+
+                    // test if the session is a new one
+                    if (olmSession != prevOlmSession) {
+                        if (null != prevOlmSession) {
+                            mEvictedOlmSessions.add(prevOlmSession);
+                        }
+                        sessions.put(sessionIdentifier, olmSession);
+                    }
+
+                    // the session is cached again
+                    mEvictedOlmSessions.remove(olmSession);
+                }
+
+                putOlmSession(deviceKey, sessionIdentifier, olmSession);
+            }
+        }
+    }
+
+    @Override
+    public Map<String, OlmSession> getDeviceSessions(String deviceKey) {
+        if (null != deviceKey) {
+            HashMap<String, OlmSession> sessions;
+
+            synchronized (mOlmSessionsLock) {
+                sessions = loadDeviceSessions(deviceKey);
+            }
+
+            releaseEvictedSessions();
+            return sessions.isEmpty() ? null : sessions;
+        }
+
+        return null;
+    }
+
+    @Override
+    public void storeInboundGroupSession(MXOlmInboundGroupSession2 session) {
+        String sessionIdentifier = null;
+
+        if ((null != session) && (null != session.mSenderKey) && (null != session.mSession)) {
+            try {
+                sessionIdentifier = session.mSession.sessionIdentifier();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## storeInboundGroupSession() : sessionIdentifier failed " + e.getMessage());
+            }
+        }
+
+        if (null != sessionIdentifier) {
+            String key = session.mSenderKey + "|" + sessionIdentifier;
+
+            synchronized (session) {
+                // the session has been evicted and released while it was used
+                if (session.mSession.isReleased()) {
+                    Log.e(LOG_TAG, "## storeInboundGroupSession() : the session " + sessionIdentifier + " is released");
+                    return;
+                }
+
+                synchronized (mInboundGroupSessionsLock) {
+                    MXOlmInboundGroupSession2 curSession = mInboundGroupSessions.get(key);
+
+                    if (curSession != session) {
+                        // release memory
+                        if (null != curSession) {
+                            mEvictedInboundGroupSessions.add(curSession);
+                        }
+                        mInboundGroupSessions.put(key, session);
+                    }
+
+                    // the session is cached again
+                    mEvictedInboundGroupSessions.remove(session);
+                }
+
+                putInboundGroupSession(session.mSenderKey, sessionIdentifier, session);
+            }
+        }
+    }
+
+    @Override
+    public MXOlmInboundGroupSession2 getInboundGroupSession(String sessionId, String senderKey) {
+        if ((null != sessionId) && (null != senderKey)) {
+            String key = senderKey + "|" + sessionId;
+            MXOlmInboundGroupSession2 session;
+
+            synchronized (mInboundGroupSessionsLock) {
+                session = mInboundGroupSessions.get(key);
+
+                if (null == session) {
+                    session = toInboundGroupSession(deserialize(getBlob(TABLE_INBOUND_GROUP_SESSIONS, COLUMN_DATA,
+                            COLUMN_SENDER_KEY + "=? AND " + COLUMN_SESSION_ID + "=?", new String[]{senderKey, sessionId}), "inbound group session " + sessionId));
+
+                    if (null != session) {
+                        mInboundGroupSessions.put(key, session);
+                    }
+                }
+            }
+
+            releaseEvictedSessions();
+            return session;
+        }
+
+        return null;
+    }
+
+    @Override
+    public List<MXOlmInboundGroupSession2> getInboundGroupSessions() {
+        ArrayList<MXOlmInboundGroupSession2> inboundGroupSessions = new ArrayList<>();
+
+        // the returned sessions are dedicated instances which are neither cached nor released by the store,
+        // so caching the whole list does not release the first sessions before they are used
+        // and an eviction does not release a session while it is used.
+        // They are released by releaseInboundGroupSessions()
+        Cursor cursor = mDatabase.query(TABLE_INBOUND_GROUP_SESSIONS, new String[]{COLUMN_SESSION_ID, COLUMN_DATA}, null, null, null, null, null);
+
+        try {
+            while (cursor.moveToNext()) {
+                MXOlmInboundGroupSession2 session = toInboundGroupSession(deserialize(cursor.getBlob(1), "inbound group session " + cursor.getString(0)));
+
+                if (null != session) {
+                    inboundGroupSessions.add(session);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return inboundGroupSessions;
+    }
+
+    @Override
+    public void releaseInboundGroupSessions(List<MXOlmInboundGroupSession2> sessions) {
+        if (null != sessions) {
+            for (MXOlmInboundGroupSession2 session : sessions) {
+                releaseInboundGroupSession(session);
+            }
+        }
+    }
+
+    @Override
+    public void removeInboundGroupSession(String sessionId, String senderKey) {
+        if ((null != sessionId) && (null != senderKey)) {
+            synchronized (mInboundGroupSessionsLock) {
+                MXOlmInboundGroupSession2 session = mInboundGroupSessions.remove(senderKey + "|" + sessionId);
+
+                if (null != session) {
+                    mEvictedInboundGroupSessions.add(session);
+                }
+            }
+
+            releaseEvictedSessions();
+
+            checkThread("removeInboundGroupSession " + sessionId);
+            mDatabase.delete(TABLE_INBOUND_GROUP_SESSIONS, COLUMN_SENDER_KEY + "=? AND " + COLUMN_SESSION_ID + "=?", new String[]{senderKey, sessionId});
+        }
+    }
+
+    @Override
+    public void close() {
+        // release JNI objects
+        synchronized (mOlmSessionsLock) {
+            for (HashMap<String, OlmSession> sessions : mOlmSessions.values()) {
+                mEvictedOlmSessions.addAll(sessions.values());
+            }
+            mOlmSessions.clear();
+        }
+
+        synchronized (mInboundGroupSessionsLock) {
+            mEvictedInboundGroupSessions.addAll(mInboundGroupSessions.values());
+            mInboundGroupSessions.clear();
+        }
+
+        releaseEvictedSessions();
+    }
+
+    @Override
+    public void setGlobalBlacklistUnverifiedDevices(boolean block) {
+        mMetaData.mGlobalBlacklistUnverifiedDevices = block;
+        saveMetaData();
+    }
+
+    @Override
+    public boolean getGlobalBlacklistUnverifiedDevices() {
+        return mMetaData.mGlobalBlacklistUnverifiedDevices;
+    }
+
+    @Override
+    public void setRoomsListBlacklistUnverifiedDevices(List<String> roomIds) {
+        mMetaData.mBlacklistUnverifiedDevicesRoomIdsList = roomIds;
+        saveMetaData();
+    }
+
+    @Override
+    public List<String> getRoomsListBlacklistUnverifiedDevices() {
+        if (null == mMetaData.mBlacklistUnverifiedDevicesRoomIdsList) {
+            return new ArrayList<>();
+        } else {
+            return new ArrayList<>(mMetaData.mBlacklistUnverifiedDevicesRoomIdsList);
+        }
+    }
+
+    @Override
+    public void saveDeviceTrackingStatuses(Map<String, Integer> deviceTrackingStatuses) {
+        HashMap<String, Integer> statuses = new HashMap<>(deviceTrackingStatuses);
+
+        synchronized (mDeviceTrackingStatusesLock) {
+            mDeviceTrackingStatuses = statuses;
+        }
+
+        putValue(KEY_DEVICE_TRACKING_STATUSES, statuses);
+    }
+
+    @Override
+    public Map<String, Integer> getDeviceTrackingStatuses() {
+        synchronized (mDeviceTrackingStatusesLock) {
+            return new HashMap<>(mDeviceTrackingStatuses);
+        }
+    }
+
+    @Override
+    public void storeDeviceSyncToken(String token) {
+        mDeviceSyncToken = token;
+        putValue(KEY_DEVICE_SYNC_TOKEN, token);
+    }
+
+    @Override
+    public String getDeviceSyncToken() {
+        return mDeviceSyncToken;
+    }
+
+    @Override
+    public void storeDecryptionCacheKey(byte[] key) {
+        putValue(KEY_DECRYPTION_CACHE_KEY, key);
+    }
+
+    @Override
+    public byte[] getDecryptionCacheKey() {
+        Object keyAsVoid = getValue(KEY_DECRYPTION_CACHE_KEY);
+        return (keyAsVoid instanceof byte[]) ? (byte[]) keyAsVoid : null;
+    }
+
+    @Override
+    public void storeDecryptionCache(byte[] data) {
+        putValue(KEY_DECRYPTION_CACHE, data);
+    }
+
+    @Override
+    public byte[] getDecryptionCache() {
+        Object dataAsVoid = getValue(KEY_DECRYPTION_CACHE);
+        return (dataAsVoid instanceof byte[]) ? (byte[]) dataAsVoid : null;
+    }
+}
@@ -366,6 +366,13 @@ public interface IMXStore {
      */
     List<Event> getLatestUnsentEvents(String roomId);
 
+    /**
+     * Provides the outbox i.e the ordered per-room queues of the events to send.
+     *
+     * @return the outbox
+     */
+    MXOutbox getOutbox();
+
     /**
      * Return the list of undeliverable events
      *
@@ -40,6 +40,8 @@ import org.matrix.androidsdk.rest.model.User;
 import org.matrix.androidsdk.util.ContentUtils;
 import org.matrix.androidsdk.util.MXOsHandler;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -49,6 +51,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -68,6 +71,9 @@ public class MXFileStore extends MXMemoryStore {
     // ensure that there is enough messages to fill a tablet screen
     private static final int MAX_STORED_MESSAGES_COUNT = 50;
 
+    // the room receipts are fully saved when there are more updated receipts
+    private static final int MAX_RECEIPTS_DELTA_SIZE = 100;
+
     private static final String MXFILE_STORE_FOLDER = "MXFileStore";
     private static final String MXFILE_STORE_METADATA_FILE_NAME = "MXFileStore";
 
@@ -77,8 +83,10 @@ public class MXFileStore extends MXMemoryStore {
     private static final String MXFILE_STORE_GZ_ROOMS_STATE_EVENTS_FOLDER = "state_rooms_events";
     private static final String MXFILE_STORE_ROOMS_SUMMARY_FOLDER = "summary";
     private static final String MXFILE_STORE_ROOMS_RECEIPT_FOLDER = "receipts";
+    private static final String MXFILE_STORE_ROOMS_RECEIPT_DELTAS_FOLDER = "receipts_deltas";
     private static final String MXFILE_STORE_ROOMS_ACCOUNT_DATA_FOLDER = "accountData";
     private static final String MXFILE_STORE_USER_FOLDER = "users";
+    private static final String MXFILE_STORE_OUTBOX_FOLDER = "outbox";
 
     // the data is read from the file system
     private boolean mIsReady = false;
@@ -106,6 +114,7 @@ public class MXFileStore extends MXMemoryStore {
     private File mGzStoreRoomsStateEventsFolderFile = null;
     private File mStoreRoomsSummaryFolderFile = null;
     private File mStoreRoomsMessagesReceiptsFolderFile = null;
+    private File mStoreRoomsReceiptsDeltasFolderFile = null;
     private File mStoreRoomsAccountDataFolderFile = null;
     private File mStoreUserFolderFile = null;
 
@@ -117,7 +126,7 @@ public class MXFileStore extends MXMemoryStore {
 
     private boolean mIsNewStorage = false;
 
-    private boolean mAreUsersLoaded = false;
+    private volatile boolean mAreUsersLoaded = false;
 
     private long mPreloadTime = 0;
 
@@ -125,9 +134,19 @@ public class MXFileStore extends MXMemoryStore {
     // keep a list of the remaining receipts to load
     private final ArrayList<String> mRoomReceiptsToLoad = new ArrayList<>();
 
+    // room id -> the receipts updated since the latest full save, by user id
+    // only these receipts are saved until there are too many of them.
+    private final HashMap<String, HashMap<String, ReceiptData>> mReceiptsDeltaByRoomId = new HashMap<>();
+
+    // the rooms whose receipts have been fully saved
+    private final HashSet<String> mRoomIdsWithSavedReceipts = new HashSet<>();
+
     // store some stats
     private HashMap<String, Long> mStoreStats = new HashMap<>();
 
+    // the opening profile, null when the profiling is disabled
+    private volatile MXFileStoreProfile mProfile = null;
+
     /**
      * Create the file store dirtrees
      */
@@ -180,6 +199,11 @@ public class MXFileStore extends MXMemoryStore {
             mStoreRoomsMessagesReceiptsFolderFile.mkdirs();
         }
 
+        mStoreRoomsReceiptsDeltasFolderFile = new File(mStoreFolderFile, MXFILE_STORE_ROOMS_RECEIPT_DELTAS_FOLDER);
+        if (!mStoreRoomsReceiptsDeltasFolderFile.exists()) {
+            mStoreRoomsReceiptsDeltasFolderFile.mkdirs();
+        }
+
         mStoreRoomsAccountDataFolderFile = new File(mStoreFolderFile, MXFILE_STORE_ROOMS_ACCOUNT_DATA_FOLDER);
         if (!mStoreRoomsAccountDataFolderFile.exists()) {
             mStoreRoomsAccountDataFolderFile.mkdirs();
@@ -208,6 +232,9 @@ public class MXFileStore extends MXMemoryStore {
 
         createDirTree(mCredentials.userId);
 
+        // the unsent events are saved in a dedicated folder
+        mOutbox = new MXOutbox(new File(mStoreFolderFile, MXFILE_STORE_OUTBOX_FOLDER));
+
         // updated data
         mRoomsToCommitForMessages = new ArrayList<>();
         mRoomsToCommitForStates = new ArrayList<>();
@@ -302,6 +329,7 @@ public class MXFileStore extends MXMemoryStore {
     public void open() {
         super.open();
         final long fLoadTimeT0 = System.currentTimeMillis();
+        final long fLoadTimeT0Ns = System.nanoTime();
 
         // avoid concurrency call.
         synchronized (this) {
@@ -339,8 +367,16 @@ public class MXFileStore extends MXMemoryStore {
                                     Log.e(LOG_TAG, errorDescription);
                                 }
 
+                                // the outbox must be loaded before the messages
+                                // to keep the pending events in the resend queue
+                                startProfilePhase("loadOutbox");
+                                mOutbox.load();
+                                endProfilePhase();
+
                                 if (succeed) {
+                                    startProfilePhase("loadRoomsMessages");
                                     succeed &= loadRoomsMessages();
+                                    endProfilePhase();
                                     if (!succeed) {
                                         errorDescription = "loadRoomsMessages fails";
                                         Log.e(LOG_TAG, errorDescription);
@@ -350,7 +386,9 @@ public class MXFileStore extends MXMemoryStore {
                                 }
 
                                 if (succeed) {
+                                    startProfilePhase("loadRoomsState");
                                     succeed &= loadRoomsState();
+                                    endProfilePhase();
 
                                     if (!succeed) {
                                         errorDescription = "loadRoomsState fails";
@@ -359,6 +397,7 @@ public class MXFileStore extends MXMemoryStore {
                                         Log.e(LOG_TAG, "loadRoomsState succeeds");
                                         long t0 = System.currentTimeMillis();
                                         Log.e(LOG_TAG, "Retrieve the users from the roomstate");
+                                        startProfilePhase("retrieveUsers");
 
                                         Collection<Room> rooms = getRooms();
 
@@ -369,6 +408,7 @@ public class MXFileStore extends MXMemoryStore {
                                             }
                                         }
 
+                                        endProfilePhase();
                                         long delta = System.currentTimeMillis() - t0;
                                         Log.e(LOG_TAG, "Retrieve " + mUsers.size() + " users with the room states in " + delta + "  ms");
                                         mStoreStats.put("Retrieve users", delta);
@@ -376,7 +416,9 @@ public class MXFileStore extends MXMemoryStore {
                                 }
 
                                 if (succeed) {
+                                    startProfilePhase("loadSummaries");
                                     succeed &= loadSummaries();
+                                    endProfilePhase();
 
                                     if (!succeed) {
                                         errorDescription = "loadSummaries fails";
@@ -398,7 +440,9 @@ public class MXFileStore extends MXMemoryStore {
                                 }
 
                                 if (succeed) {
+                                    startProfilePhase("loadRoomsAccountData");
                                     succeed &= loadRoomsAccountData();
+                                    endProfilePhase();
 
                                     if (!succeed) {
                                         errorDescription = "loadRoomsAccountData fails";
@@ -468,7 +512,9 @@ public class MXFileStore extends MXMemoryStore {
 
                                 // post processing
                                 Log.e(LOG_TAG, "Management post processing.");
+                                startProfilePhase("postProcess");
                                 dispatchPostProcess(mCredentials.userId);
+                                endProfilePhase();
 
                                 if (!succeed && !mIsNewStorage) {
                                     Log.e(LOG_TAG, "The store is corrupted.");
@@ -478,6 +524,11 @@ public class MXFileStore extends MXMemoryStore {
                                     mRoomReceiptsToLoad.addAll(listFiles(mStoreRoomsMessagesReceiptsFolderFile.list()));
                                     mPreloadTime = System.currentTimeMillis() - fLoadTimeT0;
 
+                                    MXFileStoreProfile profile = mProfile;
+                                    if (null != profile) {
+                                        profile.onStoreReady(System.nanoTime() - fLoadTimeT0Ns);
+                                    }
+
                                     Log.e(LOG_TAG, "The store is opened.");
                                     dispatchOnStoreReady(mCredentials.userId);
 
@@ -486,10 +537,14 @@ public class MXFileStore extends MXMemoryStore {
                                     // theses items are not required to be ready
 
                                     // load the receipts
+                                    startProfilePhase("loadReceipts");
                                     loadReceipts();
+                                    endProfilePhase();
 
                                     // load the users
+                                    startProfilePhase("loadUsers");
                                     loadUsers();
+                                    endProfilePhase();
                                 }
                             }
                         });
@@ -527,6 +582,15 @@ public class MXFileStore extends MXMemoryStore {
         return mPreloadTime;
     }
 
+    /**
+     * The users are loaded after onStoreReady.
+     *
+     * @return true if the users are loaded
+     */
+    boolean areUsersLoaded() {
+        return mAreUsersLoaded;
+    }
+
     /**
      * Provides some store stats
      *
@@ -536,6 +600,47 @@ public class MXFileStore extends MXMemoryStore {
         return mStoreStats;
     }
 
+    /**
+     * Set the profile which collects the durations of the next open() call.
+     * The receipts and the users are loaded after onStoreReady : they are profiled in their own phases.
+     *
+     * @param profile the profile, null to disable the profiling
+     */
+    public void setProfile(MXFileStoreProfile profile) {
+        mProfile = profile;
+    }
+
+    /**
+     * @return the opening profile, null if the profiling is disabled.
+     */
+    public MXFileStoreProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Start a profiled loading phase.
+     *
+     * @param name the phase name
+     */
+    private void startProfilePhase(String name) {
+        MXFileStoreProfile profile = mProfile;
+
+        if (null != profile) {
+            profile.startPhase(name);
+        }
+    }
+
+    /**
+     * End the profiled loading phase.
+     */
+    private void endProfilePhase() {
+        MXFileStoreProfile profile = mProfile;
+
+        if (null != profile) {
+            profile.endPhase();
+        }
+    }
+
     /**
      * Close the store.
      * Any pending operation must be complete in this call.
@@ -545,6 +650,7 @@ public class MXFileStore extends MXMemoryStore {
         Log.d(LOG_TAG, "Close the store");
 
         super.close();
+        mOutbox.close();
         setIsKilled(true);
         mHandlerThread.quit();
         mHandlerThread = null;
@@ -577,6 +683,15 @@ public class MXFileStore extends MXMemoryStore {
             Log.e(LOG_TAG, "deleteAllData failed " + e.getMessage());
         }
 
+        if (null != mOutbox) {
+            mOutbox.clear();
+        }
+
+        synchronized (mReceiptsDeltaByRoomId) {
+            mReceiptsDeltaByRoomId.clear();
+            mRoomIdsWithSavedReceipts.clear();
+        }
+
         if (init) {
             initCommon();
         }
@@ -1150,6 +1265,12 @@ public class MXFileStore extends MXMemoryStore {
 
                 // finalizes the deserialization
                 for (Event event : events.values()) {
+                    // the outbox events will be automatically resent
+                    if (mOutbox.attach(event)) {
+                        eventIds.add(event.eventId);
+                        continue;
+                    }
+
                     // if a message was not sent, mark at as UNDELIVERABLE
                     if ((event.mSentState == Event.SentState.UNDELIVERABLE) ||
                             (event.mSentState == Event.SentState.UNSENT) ||
@@ -1178,6 +1299,7 @@ public class MXFileStore extends MXMemoryStore {
             storeRoom(room);
 
             mRoomEvents.put(roomId, events);
+            invalidateUnreadIndex(roomId);
         }
 
         if (shouldSave) {
@@ -1934,6 +2056,17 @@ public class MXFileStore extends MXMemoryStore {
                     mRoomsToCommitForReceipts.add(roomId);
                 }
             }
+
+            synchronized (mReceiptsDeltaByRoomId) {
+                HashMap<String, ReceiptData> delta = mReceiptsDeltaByRoomId.get(roomId);
+
+                if (null == delta) {
+                    delta = new HashMap<>();
+                    mReceiptsDeltaByRoomId.put(roomId, delta);
+                }
+
+                delta.put(receipt.userId, receipt);
+            }
         }
 
         return res;
@@ -1970,11 +2103,36 @@ public class MXFileStore extends MXMemoryStore {
         }
 
         if (null != receiptsMap) {
+            // apply the receipts updated after the latest full save
+            HashMap<String, ReceiptData> delta = loadReceiptsDelta(roomId);
+
+            for (ReceiptData receipt : delta.values()) {
+                ReceiptData curReceipt = receiptsMap.get(receipt.userId);
+
+                // the delta could be older if the app was killed while saving the receipts
+                if ((null == curReceipt) || (receipt.originServerTs >= curReceipt.originServerTs)) {
+                    receiptsMap.put(receipt.userId, receipt);
+                }
+            }
+
+            synchronized (mReceiptsDeltaByRoomId) {
+                // the saved delta will be saved again with the next updates
+                HashMap<String, ReceiptData> currentDelta = mReceiptsDeltaByRoomId.get(roomId);
+
+                if (null != currentDelta) {
+                    delta.putAll(currentDelta);
+                }
+
+                mReceiptsDeltaByRoomId.put(roomId, delta);
+                mRoomIdsWithSavedReceipts.add(roomId);
+            }
+
             Map<String, ReceiptData> currentReceiptMap;
 
             synchronized (mReceiptsByRoomIdLock) {
                 currentReceiptMap = mReceiptsByRoomId.get(roomId);
                 mReceiptsByRoomId.put(roomId, receiptsMap);
+                rebuildReceiptsIndex(roomId);
             }
 
             // merge the current read receipts
@@ -1992,6 +2150,35 @@ public class MXFileStore extends MXMemoryStore {
         return true;
     }
 
+    /**
+     * Load the receipts updated after the latest full save of the room receipts.
+     *
+     * @param roomId the room Id
+     * @return the receipts by user id
+     */
+    private HashMap<String, ReceiptData> loadReceiptsDelta(String roomId) {
+        HashMap<String, ReceiptData> delta = new HashMap<>();
+        File file = new File(mStoreRoomsReceiptsDeltasFolderFile, roomId);
+
+        if (file.exists()) {
+            Object receiptsAsVoid = readObject("loadReceiptsDelta " + roomId, file);
+
+            if (null != receiptsAsVoid) {
+                try {
+                    List<ReceiptData> receipts = (List<ReceiptData>) receiptsAsVoid;
+
+                    for (ReceiptData r : receipts) {
+                        delta.put(r.userId, r);
+                    }
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "loadReceiptsDelta failed : " + e.getMessage());
+                }
+            }
+        }
+
+        return delta;
+    }
+
     /**
      * Load event receipts from the file system.
      *
@@ -2043,13 +2230,34 @@ public class MXFileStore extends MXMemoryStore {
             }
         }
 
-        final List<ReceiptData> receipts;
+        List<ReceiptData> receipts = null;
+        final boolean isFullSave;
 
-        synchronized (mReceiptsByRoomIdLock) {
-            if (mReceiptsByRoomId.containsKey(roomId)) {
-                receipts = new ArrayList<>(mReceiptsByRoomId.get(roomId).values());
-            } else {
-                receipts = null;
+        synchronized (mReceiptsDeltaByRoomId) {
+            HashMap<String, ReceiptData> delta = mReceiptsDeltaByRoomId.get(roomId);
+
+            // save all the receipts the first time or when the delta becomes too large
+            isFullSave = !mRoomIdsWithSavedReceipts.contains(roomId) || ((null != delta) && (delta.size() > MAX_RECEIPTS_DELTA_SIZE));
+
+            if (isFullSave) {
+                mReceiptsDeltaByRoomId.remove(roomId);
+                mRoomIdsWithSavedReceipts.add(roomId);
+            } else if (null != delta) {
+                receipts = new ArrayList<>(delta.values());
+            }
+        }
+
+        if (isFullSave) {
+            synchronized (mReceiptsByRoomIdLock) {
+                if (mReceiptsByRoomId.containsKey(roomId)) {
+                    receipts = new ArrayList<>(mReceiptsByRoomId.get(roomId).values());
+                }
+            }
+
+            if (null == receipts) {
+                synchronized (mReceiptsDeltaByRoomId) {
+                    mRoomIdsWithSavedReceipts.remove(roomId);
+                }
             }
         }
 
@@ -2058,23 +2266,31 @@ public class MXFileStore extends MXMemoryStore {
             return;
         }
 
-        Runnable r = new Runnable() {
-            @Override
+        final List<ReceiptData> fReceipts = receipts;
+
+        // the saves must be done in order
+        mFileStoreHandler.post(new Runnable() {
             public void run() {
-                mFileStoreHandler.post(new Runnable() {
-                    public void run() {
-                        if (!mIsKilled) {
-                            long start = System.currentTimeMillis();
-                            writeObject("saveReceipts " + roomId, new File(mStoreRoomsMessagesReceiptsFolderFile, roomId), receipts);
-                            Log.d(LOG_TAG, "saveReceipts : roomId " + roomId + " eventId : " + (System.currentTimeMillis() - start) + " ms");
+                if (!mIsKilled) {
+                    long start = System.currentTimeMillis();
+
+                    if (isFullSave) {
+                        writeObject("saveReceipts " + roomId, new File(mStoreRoomsMessagesReceiptsFolderFile, roomId), fReceipts);
+
+                        // the delta is included in the full save
+                        File deltaFile = new File(mStoreRoomsReceiptsDeltasFolderFile, roomId);
+
+                        if (deltaFile.exists()) {
+                            deltaFile.delete();
                         }
+                    } else {
+                        writeObject("saveReceiptsDelta " + roomId, new File(mStoreRoomsReceiptsDeltasFolderFile, roomId), fReceipts);
                     }
-                });
-            }
-        };
 
-        Thread t = new Thread(r);
-        t.start();
+                    Log.d(LOG_TAG, "saveReceipts : roomId " + roomId + " " + fReceipts.size() + " receipts (full save " + isFullSave + ") : " + (System.currentTimeMillis() - start) + " ms");
+                }
+            }
+        });
     }
 
     /**
@@ -2099,14 +2315,24 @@ public class MXFileStore extends MXMemoryStore {
      */
     private void deleteRoomReceiptsFile(String roomId) {
         File receiptsFile = new File(mStoreRoomsMessagesReceiptsFolderFile, roomId);
+        File receiptsDeltaFile = new File(mStoreRoomsReceiptsDeltasFolderFile, roomId);
+
+        synchronized (mReceiptsDeltaByRoomId) {
+            mReceiptsDeltaByRoomId.remove(roomId);
+            mRoomIdsWithSavedReceipts.remove(roomId);
+        }
 
         // remove the files
-        if (receiptsFile.exists()) {
-            try {
+        try {
+            if (receiptsFile.exists()) {
                 receiptsFile.delete();
-            } catch (Exception e) {
-                Log.d(LOG_TAG, "deleteReceiptsFile - failed " + e.getLocalizedMessage());
             }
+
+            if (receiptsDeltaFile.exists()) {
+                receiptsDeltaFile.delete();
+            }
+        } catch (Exception e) {
+            Log.d(LOG_TAG, "deleteReceiptsFile - failed " + e.getLocalizedMessage());
         }
     }
 
@@ -2181,11 +2407,17 @@ public class MXFileStore extends MXMemoryStore {
 
         Object object = null;
         try {
-            FileInputStream fis = new FileInputStream(file);
-            GZIPInputStream gz = new GZIPInputStream(fis);
-            ObjectInputStream ois = new ObjectInputStream(gz);
-            object = ois.readObject();
-            ois.close();
+            MXFileStoreProfile profile = mProfile;
+
+            if (null == profile) {
+                FileInputStream fis = new FileInputStream(file);
+                GZIPInputStream gz = new GZIPInputStream(fis);
+                ObjectInputStream ois = new ObjectInputStream(gz);
+                object = ois.readObject();
+                ois.close();
+            } else {
+                object = readProfiledObject(profile, file);
+            }
         } catch (OutOfMemoryError oom) {
             dispatchOOM(oom);
         } catch (Exception e) {
@@ -2195,6 +2427,45 @@ public class MXFileStore extends MXMemoryStore {
     }
 
 
+    /**
+     * Read an object from a dedicated file, the gunzip and the deserialization are timed separately.
+     *
+     * @param profile the profile
+     * @param file    the file
+     * @return the read object
+     * @throws Exception if the file cannot be read
+     */
+    private Object readProfiledObject(MXFileStoreProfile profile, File file) throws Exception {
+        long t0 = System.nanoTime();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE / 2, file.length() * 4));
+        GZIPInputStream gz = new GZIPInputStream(new FileInputStream(file));
+
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+
+            while ((count = gz.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+        } finally {
+            gz.close();
+        }
+
+        long t1 = System.nanoTime();
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Object object = ois.readObject();
+        ois.close();
+
+        long t2 = System.nanoTime();
+
+        File parent = file.getParentFile();
+        profile.onFileRead((null != parent) ? parent.getName() : "", file.getName(), file.length(), bytes.size(), t1 - t0, t2 - t1);
+
+        return object;
+    }
+
     /**
      * Remove the tmp files from a filename list
      *
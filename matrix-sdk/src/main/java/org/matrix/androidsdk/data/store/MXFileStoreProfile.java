@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Profile of a MXFileStore opening.
+ * It splits each loading phase into the gunzip time, the deserialization time
+ * and the remaining time i.e. the merge of the loaded objects into the store.
+ * The profiling is disabled until a profile is set with {@link MXFileStore#setProfile(MXFileStoreProfile)}.
+ */
+public class MXFileStoreProfile {
+    // the phase of the file reads performed out of any phase
+    public static final String PHASE_OTHER = "other";
+
+    // the number of slowest files listed by dump()
+    private static final int DUMPED_FILES_COUNT = 10;
+
+    /**
+     * A file read.
+     */
+    public static class FileRead {
+        // the phase name
+        public final String mPhase;
+        // the store sub folder
+        public final String mFolder;
+        // the file name
+        public final String mFileName;
+        // the file size
+        public final long mCompressedSize;
+        // the unzipped size
+        public final long mUncompressedSize;
+        // the gunzip duration
+        public final long mGunzipNs;
+        // the deserialization duration
+        public final long mDeserializeNs;
+
+        FileRead(String phase, String folder, String fileName, long compressedSize, long uncompressedSize, long gunzipNs, long deserializeNs) {
+            mPhase = phase;
+            mFolder = folder;
+            mFileName = fileName;
+            mCompressedSize = compressedSize;
+            mUncompressedSize = uncompressedSize;
+            mGunzipNs = gunzipNs;
+            mDeserializeNs = deserializeNs;
+        }
+    }
+
+    /**
+     * The stats of a loading phase or of a store folder.
+     */
+    public static class Stats {
+        // the phase or the folder name
+        public final String mName;
+        // the phase duration, 0 for a folder
+        public long mDurationNs;
+        // the read files count
+        public int mFilesCount;
+        // the read files size
+        public long mCompressedSize;
+        // the unzipped size
+        public long mUncompressedSize;
+        // the gunzip duration
+        public long mGunzipNs;
+        // the deserialization duration
+        public long mDeserializeNs;
+
+        Stats(String name) {
+            mName = name;
+        }
+
+        /**
+         * @return the phase time which is not spent in reading the files.
+         */
+        public long getMergeNs() {
+            return Math.max(0, mDurationNs - mGunzipNs - mDeserializeNs);
+        }
+
+        private void add(FileRead fileRead) {
+            mFilesCount++;
+            mCompressedSize += fileRead.mCompressedSize;
+            mUncompressedSize += fileRead.mUncompressedSize;
+            mGunzipNs += fileRead.mGunzipNs;
+            mDeserializeNs += fileRead.mDeserializeNs;
+        }
+    }
+
+    // the phases stats, by name, in their running order
+    private final LinkedHashMap<String, Stats> mPhases = new LinkedHashMap<>();
+
+    // the file reads
+    private final List<FileRead> mFileReads = new ArrayList<>();
+
+    // the running phase
+    private String mCurrentPhase = null;
+    private long mCurrentPhaseStartNs;
+
+    // the duration between open() and onStoreReady()
+    private long mTimeToReadyNs = -1;
+
+    /**
+     * Start a loading phase.
+     *
+     * @param name the phase name
+     */
+    synchronized void startPhase(String name) {
+        mCurrentPhase = name;
+        mCurrentPhaseStartNs = System.nanoTime();
+    }
+
+    /**
+     * End the running loading phase.
+     */
+    synchronized void endPhase() {
+        if (null != mCurrentPhase) {
+            getPhase(mCurrentPhase).mDurationNs += System.nanoTime() - mCurrentPhaseStartNs;
+            mCurrentPhase = null;
+        }
+    }
+
+    /**
+     * Record a file read.
+     *
+     * @param folder           the store sub folder
+     * @param fileName         the file name
+     * @param compressedSize   the file size
+     * @param uncompressedSize the unzipped size
+     * @param gunzipNs         the gunzip duration
+     * @param deserializeNs    the deserialization duration
+     */
+    synchronized void onFileRead(String folder, String fileName, long compressedSize, long uncompressedSize, long gunzipNs, long deserializeNs) {
+        FileRead fileRead = new FileRead((null != mCurrentPhase) ? mCurrentPhase : PHASE_OTHER, folder, fileName, compressedSize, uncompressedSize, gunzipNs, deserializeNs);
+        mFileReads.add(fileRead);
+        getPhase(fileRead.mPhase).add(fileRead);
+    }
+
+    /**
+     * Record the store opening duration.
+     *
+     * @param durationNs the duration between open() and onStoreReady()
+     */
+    synchronized void onStoreReady(long durationNs) {
+        mTimeToReadyNs = durationNs;
+    }
+
+    private Stats getPhase(String name) {
+        Stats stats = mPhases.get(name);
+
+        if (null == stats) {
+            stats = new Stats(name);
+            mPhases.put(name, stats);
+        }
+
+        return stats;
+    }
+
+    /**
+     * @return the duration between open() and onStoreReady() in nanoseconds, -1 if the store is not ready.
+     */
+    public synchronized long getTimeToReadyNs() {
+        return mTimeToReadyNs;
+    }
+
+    /**
+     * @return the phases stats in their running order.
+     */
+    public synchronized List<Stats> getPhases() {
+        return new ArrayList<>(mPhases.values());
+    }
+
+    /**
+     * @return the stats by store sub folder.
+     */
+    public synchronized List<Stats> getFolders() {
+        Map<String, Stats> folders = new LinkedHashMap<>();
+
+        for (FileRead fileRead : mFileReads) {
+            Stats stats = folders.get(fileRead.mFolder);
+
+            if (null == stats) {
+                stats = new Stats(fileRead.mFolder);
+                folders.put(fileRead.mFolder, stats);
+            }
+
+            stats.add(fileRead);
+        }
+
+        return new ArrayList<>(folders.values());
+    }
+
+    /**
+     * @return the file reads in their running order.
+     */
+    public synchronized List<FileRead> getFileReads() {
+        return new ArrayList<>(mFileReads);
+    }
+
+    /**
+     * Reset the profile before a new opening.
+     */
+    public synchronized void reset() {
+        mPhases.clear();
+        mFileReads.clear();
+        mCurrentPhase = null;
+        mTimeToReadyNs = -1;
+    }
+
+    private static String toMs(long ns) {
+        return String.format("%.1f", ns / 1000000.0);
+    }
+
+    private static void dumpStats(StringBuilder builder, Stats stats) {
+        builder.append(String.format("  %-22s %5d files %10d -> %10d bytes  total %8s ms  gunzip %8s ms  deserialize %8s ms  merge %8s ms\n",
+                stats.mName, stats.mFilesCount, stats.mCompressedSize, stats.mUncompressedSize,
+                toMs(stats.mDurationNs), toMs(stats.mGunzipNs), toMs(stats.mDeserializeNs), toMs(stats.getMergeNs())));
+    }
+
+    /**
+     * Dump the profile in a human readable way.
+     *
+     * @return the profile description
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append("Time to ready : ").append(toMs(getTimeToReadyNs())).append(" ms\n");
+
+        builder.append("Phases :\n");
+        for (Stats stats : getPhases()) {
+            dumpStats(builder, stats);
+        }
+
+        builder.append("Folders :\n");
+        for (Stats stats : getFolders()) {
+            dumpStats(builder, stats);
+        }
+
+        List<FileRead> fileReads = getFileReads();
+        Collections.sort(fileReads, new Comparator<FileRead>() {
+            @Override
+            public int compare(FileRead lhs, FileRead rhs) {
+                long lhsNs = lhs.mGunzipNs + lhs.mDeserializeNs;
+                long rhsNs = rhs.mGunzipNs + rhs.mDeserializeNs;
+                return (lhsNs == rhsNs) ? 0 : ((lhsNs > rhsNs) ? -1 : 1);
+            }
+        });
+
+        builder.append("Slowest files :\n");
+        for (FileRead fileRead : fileReads.subList(0, Math.min(DUMPED_FILES_COUNT, fileReads.size()))) {
+            builder.append(String.format("  %-16s %-40s %10d -> %10d bytes  gunzip %8s ms  deserialize %8s ms\n",
+                    fileRead.mFolder, fileRead.mFileName, fileRead.mCompressedSize, fileRead.mUncompressedSize,
+                    toMs(fileRead.mGunzipNs), toMs(fileRead.mDeserializeNs)));
+        }
+
+        return builder.toString();
+    }
+}
@@ -63,6 +63,8 @@ public class MXMemoryStore implements IMXStore {
     protected Map<String, LinkedHashMap<String, Event>> mRoomEvents;
     // room id -> list of event Ids
     protected Map<String, ArrayList<String>> mRoomEventIds;
+    // room id -> unread events index (guarded by mRoomEventsLock)
+    protected Map<String, MXRoomUnreadIndex> mRoomUnreadIndexes;
 
     protected Map<String, String> mRoomTokens;
 
@@ -72,6 +74,8 @@ public class MXMemoryStore implements IMXStore {
     // dict of dict of MXReceiptData indexed by userId
     protected final Object mReceiptsByRoomIdLock = new Object();
     protected Map<String, Map<String, ReceiptData>> mReceiptsByRoomId;
+    // room id -> event id -> receipts sorted with ReceiptData.descComparator (guarded by mReceiptsByRoomIdLock)
+    protected Map<String, Map<String, List<ReceiptData>>> mReceiptsByEventIdByRoomId;
 
     // room state events
     protected final Map<String, List<Event>> mRoomStateEventsByRoomId = new HashMap<>();
@@ -91,6 +95,9 @@ public class MXMemoryStore implements IMXStore {
 
     protected ArrayList<IMXStoreListener> mListeners = new ArrayList<>();
 
+    // the events which are not yet sent
+    protected MXOutbox mOutbox = new MXOutbox(null);
+
     // Meta data about the store. It is defined only if the passed MXCredentials contains all information.
     // When nil, nothing is stored on the file system.
     protected MXFileStoreMetaData mMetadata = null;
@@ -103,9 +110,11 @@ public class MXMemoryStore implements IMXStore {
         mUsers = new ConcurrentHashMap<>();
         mRoomEvents = new ConcurrentHashMap<>();
         mRoomEventIds = new ConcurrentHashMap<>();
+        mRoomUnreadIndexes = new ConcurrentHashMap<>();
         mRoomTokens = new ConcurrentHashMap<>();
         mRoomSummaries = new ConcurrentHashMap<>();
         mReceiptsByRoomId = new ConcurrentHashMap<>();
+        mReceiptsByEventIdByRoomId = new ConcurrentHashMap<>();
         mRoomAccountData = new ConcurrentHashMap<>();
         mEventStreamToken = null;
     }
@@ -180,6 +189,7 @@ public class MXMemoryStore implements IMXStore {
     @Override
     public void clear() {
         initCommon();
+        mOutbox.clear();
     }
 
     /**
@@ -549,7 +559,59 @@ public class MXMemoryStore implements IMXStore {
      */
     @Override
     public int eventsCountAfter(String roomId, String eventId) {
-        return eventsAfter(roomId, eventId, mCredentials.userId, null).size();
+        if (null == roomId) {
+            return 0;
+        }
+
+        synchronized (mRoomEventsLock) {
+            MXRoomUnreadIndex index = getUnreadIndex(roomId);
+            return (null != index) ? index.countAfter(eventId) : 0;
+        }
+    }
+
+    /**
+     * Provides the unread index of a room.
+     * It is built from the room events if it does not exist or if it has been invalidated.
+     * The caller must hold mRoomEventsLock.
+     *
+     * @param roomId the room id
+     * @return the unread index, null if the room has no event
+     */
+    private MXRoomUnreadIndex getUnreadIndex(String roomId) {
+        MXRoomUnreadIndex index = mRoomUnreadIndexes.get(roomId);
+
+        if ((null == index) || !index.isValid()) {
+            LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
+
+            if (null == events) {
+                mRoomUnreadIndexes.remove(roomId);
+                return null;
+            }
+
+            index = new MXRoomUnreadIndex(mCredentials.userId);
+
+            for (Event event : events.values()) {
+                index.append(event);
+            }
+
+            mRoomUnreadIndexes.put(roomId, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Invalidate the unread index of a room, it will be rebuilt when it is required.
+     * It must be called when the room events are updated without appending or prepending events.
+     *
+     * @param roomId the room id
+     */
+    protected void invalidateUnreadIndex(String roomId) {
+        if (null != roomId) {
+            synchronized (mRoomEventsLock) {
+                mRoomUnreadIndexes.remove(roomId);
+            }
+        }
     }
 
     @Override
@@ -578,8 +640,14 @@ public class MXMemoryStore implements IMXStore {
                             }
 
                             if (null != dummyKey) {
-                                events.remove(dummyKey);
+                                Event dummyEvent = events.remove(dummyKey);
                                 mTemporaryEventsList.remove(dummyKey);
+
+                                MXRoomUnreadIndex index = mRoomUnreadIndexes.get(event.roomId);
+
+                                if ((null != dummyEvent) && (null != index)) {
+                                    index.remove(dummyEvent);
+                                }
                             }
                         }
 
@@ -587,6 +655,12 @@ public class MXMemoryStore implements IMXStore {
                         // wait for the first pagination request to set things right
                         events.put(event.eventId, event);
 
+                        MXRoomUnreadIndex index = mRoomUnreadIndexes.get(event.roomId);
+
+                        if (null != index) {
+                            index.append(event);
+                        }
+
                         // add to the list of known events
                         ArrayList<String> eventIds = mRoomEventIds.get(event.roomId);
                         eventIds.add(event.eventId);
@@ -647,11 +721,19 @@ public class MXMemoryStore implements IMXStore {
                     events.remove(event.eventId);
                 }
 
+                MXRoomUnreadIndex index = mRoomUnreadIndexes.get(event.roomId);
+                if (null != index) {
+                    index.remove(event);
+                }
+
                 ArrayList<String> ids = mRoomEventIds.get(event.roomId);
                 if (null != ids) {
                     ids.remove(event.eventId);
                 }
             }
+
+            // a deleted event must not be sent
+            mOutbox.remove(event);
         }
     }
 
@@ -663,6 +745,7 @@ public class MXMemoryStore implements IMXStore {
             synchronized (mRoomEventsLock) {
                 mRooms.remove(roomId);
             }
+            mOutbox.removeRoom(roomId);
         }
     }
 
@@ -673,10 +756,12 @@ public class MXMemoryStore implements IMXStore {
             synchronized (mRoomEventsLock) {
                 mRoomEvents.remove(roomId);
                 mRoomEventIds.remove(roomId);
+                mRoomUnreadIndexes.remove(roomId);
                 mRoomTokens.remove(roomId);
                 mRoomSummaries.remove(roomId);
                 mRoomAccountData.remove(roomId);
                 mReceiptsByRoomId.remove(roomId);
+                mReceiptsByEventIdByRoomId.remove(roomId);
             }
         }
     }
@@ -720,6 +805,7 @@ public class MXMemoryStore implements IMXStore {
                     mRoomEvents.remove(roomId);
                 }
 
+                mRoomUnreadIndexes.remove(roomId);
                 mRoomSummaries.remove(roomId);
             }
         }
@@ -736,11 +822,18 @@ public class MXMemoryStore implements IMXStore {
                         mRoomEvents.put(roomId, events);
                     }
 
+                    MXRoomUnreadIndex unreadIndex = mRoomUnreadIndexes.get(roomId);
+
                     if (direction == EventTimeline.Direction.FORWARDS) {
                         mRoomTokens.put(roomId, eventsResponse.start);
 
                         for (Event event : eventsResponse.chunk) {
                             events.put(event.eventId, event);
+
+                            // the known events keep their position
+                            if (null != unreadIndex) {
+                                unreadIndex.append(event);
+                            }
                         }
                     } else { // BACKWARD
                         Collection<Event> eventsList = events.values();
@@ -755,6 +848,7 @@ public class MXMemoryStore implements IMXStore {
 
                             // define a token
                             mRoomTokens.put(roomId, eventsResponse.start);
+                            mRoomUnreadIndexes.remove(roomId);
                         } else {
                             LinkedHashMap<String, Event> events2 = new LinkedHashMap<>();
 
@@ -764,6 +858,19 @@ public class MXMemoryStore implements IMXStore {
                                 events2.put(backEvent.eventId, backEvent);
                             }
 
+                            if (null != unreadIndex) {
+                                // the chunk is sorted from the most recent event
+                                for (Event backEvent : eventsResponse.chunk) {
+                                    // an already known event would be moved
+                                    if (unreadIndex.contains(backEvent.eventId)) {
+                                        unreadIndex.invalidate();
+                                        break;
+                                    }
+
+                                    unreadIndex.prepend(backEvent);
+                                }
+                            }
+
                             // add the previous added Events
                             for (Event event : eventsList) {
                                 events2.put(event.eventId, event);
@@ -1008,30 +1115,21 @@ public class MXMemoryStore implements IMXStore {
 
         List<Event> unsentRoomEvents = new ArrayList<>();
 
-        synchronized (mRoomEventsLock) {
-            LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
-
-            // contain some events
-            if ((null != events) && (events.size() > 0)) {
-                ArrayList<Event> eventsList = new ArrayList<>(events.values());
-
-                for (int index = events.size() - 1; index >= 0; index--) {
-                    Event event = eventsList.get(index);
-
-                    if (event.mSentState == Event.SentState.WAITING_RETRY) {
-                        unsentRoomEvents.add(event);
-                    } else {
-                        //break;
-                    }
-                }
-
-                Collections.reverse(unsentRoomEvents);
+        // the outbox only contains the unsent events
+        for (Event event : mOutbox.getPendingEvents(roomId)) {
+            if (event.mSentState == Event.SentState.WAITING_RETRY) {
+                unsentRoomEvents.add(event);
             }
         }
 
         return unsentRoomEvents;
     }
 
+    @Override
+    public MXOutbox getOutbox() {
+        return mOutbox;
+    }
+
     @Override
     public List<Event> getUndeliverableEvents(String roomId) {
         if (null == roomId) {
@@ -1105,23 +1203,25 @@ public class MXMemoryStore implements IMXStore {
     @Override
     public List<ReceiptData> getEventReceipts(String roomId, String eventId, boolean excludeSelf, boolean sort) {
         ArrayList<ReceiptData> receipts = new ArrayList<>();
+        boolean isSorted = false;
 
         synchronized (mReceiptsByRoomIdLock) {
-            if (mReceiptsByRoomId.containsKey(roomId)) {
-                String myUserID = mCredentials.userId;
+            if (null == eventId) {
+                if (mReceiptsByRoomId.containsKey(roomId)) {
+                    receipts.addAll(mReceiptsByRoomId.get(roomId).values());
+                }
+            } else {
+                // the indexed receipts are already sorted
+                isSorted = true;
 
-                Map<String, ReceiptData> receiptsByUserId = mReceiptsByRoomId.get(roomId);
-                // copy the user id list to avoid having update while looping
-                ArrayList<String> userIds = new ArrayList<>(receiptsByUserId.keySet());
+                if (mReceiptsByEventIdByRoomId.containsKey(roomId)) {
+                    List<ReceiptData> eventReceipts = mReceiptsByEventIdByRoomId.get(roomId).get(eventId);
 
-                if (null == eventId) {
-                    receipts.addAll(receiptsByUserId.values());
-                } else {
-                    for (String userId : userIds) {
-                        if (receiptsByUserId.containsKey(userId) && (!excludeSelf || !TextUtils.equals(myUserID, userId))) {
-                            ReceiptData receipt = receiptsByUserId.get(userId);
+                    if (null != eventReceipts) {
+                        String myUserID = mCredentials.userId;
 
-                            if (TextUtils.equals(receipt.eventId, eventId)) {
+                        for (ReceiptData receipt : eventReceipts) {
+                            if (!excludeSelf || !TextUtils.equals(myUserID, receipt.userId)) {
                                 receipts.add(receipt);
                             }
                         }
@@ -1130,13 +1230,106 @@ public class MXMemoryStore implements IMXStore {
             }
         }
 
-        if (sort && (receipts.size() > 0)) {
+        if (sort && !isSorted && (receipts.size() > 0)) {
             Collections.sort(receipts, ReceiptData.descComparator);
         }
 
         return receipts;
     }
 
+    /**
+     * Update the receipts by event id index.
+     * The caller must hold mReceiptsByRoomIdLock.
+     *
+     * @param roomId     the room id
+     * @param oldReceipt the replaced receipt (null if there was none)
+     * @param newReceipt the new receipt
+     */
+    private void indexReceipt(String roomId, ReceiptData oldReceipt, ReceiptData newReceipt) {
+        Map<String, List<ReceiptData>> receiptsByEventId = mReceiptsByEventIdByRoomId.get(roomId);
+
+        if (null == receiptsByEventId) {
+            receiptsByEventId = new HashMap<>();
+            mReceiptsByEventIdByRoomId.put(roomId, receiptsByEventId);
+        }
+
+        if ((null != oldReceipt) && (null != oldReceipt.eventId)) {
+            List<ReceiptData> eventReceipts = receiptsByEventId.get(oldReceipt.eventId);
+
+            if (null != eventReceipts) {
+                eventReceipts.remove(oldReceipt);
+
+                if (eventReceipts.isEmpty()) {
+                    receiptsByEventId.remove(oldReceipt.eventId);
+                }
+            }
+        }
+
+        if (null != newReceipt.eventId) {
+            List<ReceiptData> eventReceipts = receiptsByEventId.get(newReceipt.eventId);
+
+            if (null == eventReceipts) {
+                eventReceipts = new ArrayList<>();
+                receiptsByEventId.put(newReceipt.eventId, eventReceipts);
+            }
+
+            // keep the list sorted from the latest to the oldest,
+            // after the receipts with the same timestamp as Collections.sort would do
+            int low = 0;
+            int high = eventReceipts.size();
+
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+
+                if (ReceiptData.descComparator.compare(eventReceipts.get(mid), newReceipt) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            eventReceipts.add(low, newReceipt);
+        }
+    }
+
+    /**
+     * Rebuild the receipts by event id index of a room.
+     * It must be called when the room receipts map is replaced.
+     *
+     * @param roomId the room id
+     */
+    protected void rebuildReceiptsIndex(String roomId) {
+        synchronized (mReceiptsByRoomIdLock) {
+            mReceiptsByEventIdByRoomId.remove(roomId);
+
+            Map<String, ReceiptData> receiptsByUserId = mReceiptsByRoomId.get(roomId);
+
+            if (null != receiptsByUserId) {
+                for (ReceiptData receipt : receiptsByUserId.values()) {
+                    indexReceipt(roomId, null, receipt);
+                }
+            }
+        }
+    }
+
+    /**
+     * Store a receipt and update the receipts index.
+     *
+     * @param roomId           the room id
+     * @param receiptsByUserId the room receipts
+     * @param receipt          the receipt
+     */
+    private void putReceipt(String roomId, Map<String, ReceiptData> receiptsByUserId, ReceiptData receipt) {
+        synchronized (mReceiptsByRoomIdLock) {
+            ReceiptData oldReceipt = receiptsByUserId.put(receipt.userId, receipt);
+
+            // the room receipts might have been replaced in the meantime
+            if (mReceiptsByRoomId.get(roomId) == receiptsByUserId) {
+                indexReceipt(roomId, oldReceipt, receipt);
+            }
+        }
+    }
+
     /**
      * Store the receipt for an user in a room.
      * The receipt validity is checked i.e the receipt is not for an already read message.
@@ -1174,7 +1367,7 @@ public class MXMemoryStore implements IMXStore {
 
             if (null == curReceipt) {
                 //Log.d(LOG_TAG, "## storeReceipt() : there was no receipt from this user");
-                receiptsByUserId.put(receipt.userId, receipt);
+                putReceipt(roomId, receiptsByUserId, receipt);
                 return true;
             }
 
@@ -1190,17 +1383,16 @@ public class MXMemoryStore implements IMXStore {
 
             // check if the read receipt is not for an already read message
             if (TextUtils.equals(receipt.userId, mCredentials.userId)) {
-                synchronized (mReceiptsByRoomIdLock) {
-                    LinkedHashMap<String, Event> eventsMap = mRoomEvents.get(roomId);
+                synchronized (mRoomEventsLock) {
+                    MXRoomUnreadIndex index = getUnreadIndex(roomId);
 
                     // test if the event is know
-                    if ((null != eventsMap) && eventsMap.containsKey(receipt.eventId)) {
-                        ArrayList<String> eventIds = new ArrayList<>(eventsMap.keySet());
+                    Integer newEventPos = (null != index) ? index.getOrdinal(receipt.eventId) : null;
 
-                        int curEventPos = eventIds.indexOf(curReceipt.eventId);
-                        int newEventPos = eventIds.indexOf(receipt.eventId);
+                    if (null != newEventPos) {
+                        Integer curEventPos = index.getOrdinal(curReceipt.eventId);
 
-                        if (curEventPos >= newEventPos) {
+                        if ((null != curEventPos) && (curEventPos >= newEventPos)) {
                             Log.d(LOG_TAG, "## storeReceipt() : the read message is already read (cur pos " + curEventPos + " receipt event pos " + newEventPos + ")");
                             return false;
                         }
@@ -1209,7 +1401,7 @@ public class MXMemoryStore implements IMXStore {
             }
 
             //Log.d(LOG_TAG, "## storeReceipt() : updated");
-            receiptsByUserId.put(receipt.userId, receipt);
+            putReceipt(roomId, receiptsByUserId, receipt);
         } catch (OutOfMemoryError e) {
             dispatchOOM(e);
         }
@@ -1260,37 +1452,21 @@ public class MXMemoryStore implements IMXStore {
         if (null != roomId) {
             synchronized (mRoomEventsLock) {
                 LinkedHashMap<String, Event> roomEvents = mRoomEvents.get(roomId);
-
-                if (roomEvents != null) {
-                    List<Event> linkedEvents = new ArrayList<>(roomEvents.values());
-
-                    // Check messages from the most recent
-                    for (int i = linkedEvents.size() - 1; i >= 0; i--) {
-                        Event event = linkedEvents.get(i);
-
-                        if ((null == eventId) || !TextUtils.equals(event.eventId, eventId)) {
-                            // Keep events matching filters
-                            if ((null == allowedTypes || (allowedTypes.indexOf(event.getType()) >= 0)) && !TextUtils.equals(event.getSender(), excludedUserId)) {
-                                events.add(event);
-                            }
-                        } else {
-                            // We are done
-                            break;
-                        }
-                    }
-
-                    // filter the unread messages
-                    // some messages are not defined as unreadable
-                    for (int index = 0; index < events.size(); index++) {
-                        Event event = events.get(index);
-
-                        if (TextUtils.equals(event.getSender(), mCredentials.userId) || TextUtils.equals(event.getType(), Event.EVENT_TYPE_STATE_ROOM_MEMBER)) {
-                            events.remove(index);
-                            index--;
+                MXRoomUnreadIndex index = getUnreadIndex(roomId);
+
+                if ((roomEvents != null) && (null != index)) {
+                    // only the events after the provided one are checked
+                    for (String eventIdAfter : index.eventIdsAfter(eventId)) {
+                        Event event = roomEvents.get(eventIdAfter);
+
+                        // Keep events matching filters
+                        // some messages are not defined as unreadable
+                        if ((null != event) && index.isCounted(event)
+                                && (null == allowedTypes || (allowedTypes.indexOf(event.getType()) >= 0))
+                                && !TextUtils.equals(event.getSender(), excludedUserId)) {
+                            events.add(event);
                         }
                     }
-
-                    Collections.reverse(events);
                 }
             }
         }
@@ -1335,10 +1511,15 @@ public class MXMemoryStore implements IMXStore {
                     // check if the event is known
                     if (eventsMap.containsKey(eventIdTotest) && receiptsByUserId.containsKey(userId)) {
                         ReceiptData data = receiptsByUserId.get(userId);
-                        ArrayList<String> eventIds = new ArrayList<>(eventsMap.keySet());
 
-                        // the message has been read if it was sent before the latest read one
-                        res = eventIds.indexOf(eventIdTotest) <= eventIds.indexOf(data.eventId);
+                        synchronized (mRoomEventsLock) {
+                            MXRoomUnreadIndex index = getUnreadIndex(roomId);
+                            Integer eventPos = (null != index) ? index.getOrdinal(eventIdTotest) : null;
+                            Integer readEventPos = (null != index) ? index.getOrdinal(data.eventId) : null;
+
+                            // the message has been read if it was sent before the latest read one
+                            res = (null != eventPos) && (null != readEventPos) && (eventPos <= readEventPos);
+                        }
                     } else if (receiptsByUserId.containsKey(userId)) {
                         // the event is not known so assume it is has been flushed
                         res = true;
@@ -0,0 +1,579 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.store;
+
+import android.os.HandlerThread;
+import android.text.TextUtils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.util.ContentUtils;
+import org.matrix.androidsdk.util.Log;
+import org.matrix.androidsdk.util.MXOsHandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Ordered per-room queue of the events which have not been acknowledged by the server yet.
+ * Each queued event gets a transaction id which is kept until the event is sent, so a resent event
+ * is never duplicated by the home server.
+ * When a folder is provided, the queues are saved in the background so they survive a process kill.
+ * An event is given up after MAX_FAILED_ATTEMPTS network errors or when it has been queued for more than MAX_PENDING_DURATION_MS.
+ */
+public class MXOutbox {
+    private static final String LOG_TAG = "MXOutbox";
+
+    // the max number of network errors before giving up an event
+    static final int MAX_FAILED_ATTEMPTS = 10;
+
+    // the max duration an event can wait in the outbox
+    static final long MAX_PENDING_DURATION_MS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * An outbox item.
+     */
+    public static class OutboxEntry implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        // the transaction id used to send the event
+        public String mTransactionId;
+
+        // a copy of the event with its clear type and content, taken when it is queued.
+        // It is the saved one because the queued instance is updated while it is sent (e.g. encrypted).
+        public Event mSnapshot;
+
+        // the queued event i.e. the displayed / sent instance
+        public transient Event mEvent;
+
+        // the queuing timestamp
+        public long mQueuedTs;
+
+        // the number of sending attempts which have failed with a network error
+        public int mFailedAttemptsCount;
+
+        /**
+         * Tells if the event must not be resent anymore.
+         *
+         * @param now the current timestamp
+         * @return true if the event has been given up
+         */
+        boolean isExpired(long now) {
+            return (mFailedAttemptsCount >= MAX_FAILED_ATTEMPTS) || ((now - mQueuedTs) > MAX_PENDING_DURATION_MS);
+        }
+    }
+
+    // room id -> (event id -> entry), the insertion order is the sending order
+    private final HashMap<String, LinkedHashMap<String, OutboxEntry>> mEntriesByRoomId = new HashMap<>();
+
+    // total number of pending events
+    private int mPendingCount = 0;
+
+    // the persistence folder (null for a memory outbox)
+    private final File mFolder;
+
+    // the background thread used to save the queues
+    private HandlerThread mHandlerThread = null;
+    private MXOsHandler mHandler = null;
+
+    /**
+     * Constructor
+     *
+     * @param folder the folder used to save the queues, null to keep them in memory
+     */
+    public MXOutbox(File folder) {
+        mFolder = folder;
+    }
+
+    /**
+     * Load the saved queues.
+     * This method must be called before any other one and not from the UI thread.
+     */
+    public void load() {
+        if ((null == mFolder) || !mFolder.exists()) {
+            return;
+        }
+
+        long t0 = System.currentTimeMillis();
+        String[] filenames = mFolder.list();
+        List<String> roomIdsToSave = new ArrayList<>();
+
+        if (null == filenames) {
+            return;
+        }
+
+        synchronized (mEntriesByRoomId) {
+            for (String filename : filenames) {
+                // an interrupted save
+                if (filename.endsWith(".tmp")) {
+                    continue;
+                }
+
+                List<OutboxEntry> entries = readEntries(new File(mFolder, filename));
+
+                if ((null != entries) && (entries.size() > 0)) {
+                    String roomId = entries.get(0).mSnapshot.roomId;
+                    LinkedHashMap<String, OutboxEntry> roomEntries = new LinkedHashMap<>();
+
+                    for (OutboxEntry entry : entries) {
+                        // the expired events are not attached to the stored ones, so they are displayed as undeliverable
+                        if (entry.isExpired(t0)) {
+                            Log.d(LOG_TAG, "## load() : " + entry.mSnapshot.eventId + " is given up after " + entry.mFailedAttemptsCount + " failed attempts");
+                            continue;
+                        }
+
+                        // the event has not been sent before the application was killed
+                        entry.mEvent = buildSnapshot(entry.mSnapshot);
+                        roomEntries.put(entry.mEvent.eventId, entry);
+                    }
+
+                    if (roomEntries.size() != entries.size()) {
+                        roomIdsToSave.add(roomId);
+                    }
+
+                    if (!roomEntries.isEmpty()) {
+                        mEntriesByRoomId.put(roomId, roomEntries);
+                        mPendingCount += roomEntries.size();
+                    }
+                }
+            }
+        }
+
+        for (String roomId : roomIdsToSave) {
+            saveRoom(roomId);
+        }
+
+        Log.d(LOG_TAG, "## load() : " + mPendingCount + " pending events loaded in " + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    /**
+     * Build a copy of an event with its clear type and content.
+     * The content is duplicated so the copy is not impacted by any update of the event.
+     *
+     * @param event the event
+     * @return the copy
+     */
+    private static Event buildSnapshot(Event event) {
+        Event snapshot = event.deepCopy();
+        JsonElement content = event.getContent();
+
+        snapshot.type = event.getType();
+        snapshot.updateContent((null != content) ? new JsonParser().parse(content.toString()) : null);
+        snapshot.mSentState = Event.SentState.WAITING_RETRY;
+        snapshot.unsentException = null;
+        snapshot.unsentMatrixError = null;
+
+        return snapshot;
+    }
+
+    /**
+     * Close the outbox.
+     */
+    public void close() {
+        synchronized (mEntriesByRoomId) {
+            if (null != mHandlerThread) {
+                mHandlerThread.quit();
+                mHandlerThread = null;
+                mHandler = null;
+            }
+        }
+    }
+
+    /**
+     * Remove all the pending events.
+     */
+    public void clear() {
+        synchronized (mEntriesByRoomId) {
+            mEntriesByRoomId.clear();
+            mPendingCount = 0;
+        }
+
+        if ((null != mFolder) && mFolder.exists()) {
+            ContentUtils.deleteDirectory(mFolder);
+        }
+    }
+
+    /**
+     * Add an event at the end of its room queue.
+     * Nothing is done if the event is already queued.
+     *
+     * @param event the event to send
+     * @return the transaction id to use to send the event
+     */
+    public String enqueue(Event event) {
+        if ((null == event) || (null == event.roomId) || (null == event.eventId)) {
+            return null;
+        }
+
+        String transactionId;
+        boolean isNew = false;
+
+        synchronized (mEntriesByRoomId) {
+            LinkedHashMap<String, OutboxEntry> roomEntries = mEntriesByRoomId.get(event.roomId);
+
+            if (null == roomEntries) {
+                roomEntries = new LinkedHashMap<>();
+                mEntriesByRoomId.put(event.roomId, roomEntries);
+            }
+
+            OutboxEntry entry = roomEntries.get(event.eventId);
+
+            if (null == entry) {
+                entry = new OutboxEntry();
+                entry.mSnapshot = buildSnapshot(event);
+                entry.mTransactionId = "m" + event.originServerTs + "." + mPendingCount;
+                entry.mQueuedTs = System.currentTimeMillis();
+                roomEntries.put(event.eventId, entry);
+                mPendingCount++;
+                isNew = true;
+            }
+
+            // the caller instance is the one displayed / updated
+            entry.mEvent = event;
+            transactionId = entry.mTransactionId;
+        }
+
+        if (isNew) {
+            saveRoom(event.roomId);
+        }
+
+        return transactionId;
+    }
+
+    /**
+     * A sending attempt has failed with a network error.
+     * The event is removed from its room queue when it has been given up.
+     *
+     * @param event the event
+     * @return true if the event has been given up i.e. it must not be resent automatically
+     */
+    public boolean onSendingFailed(Event event) {
+        if ((null == event) || (null == event.roomId) || (null == event.eventId)) {
+            return false;
+        }
+
+        boolean isExpired;
+
+        synchronized (mEntriesByRoomId) {
+            LinkedHashMap<String, OutboxEntry> roomEntries = mEntriesByRoomId.get(event.roomId);
+            OutboxEntry entry = (null != roomEntries) ? roomEntries.get(event.eventId) : null;
+
+            if (null == entry) {
+                return false;
+            }
+
+            entry.mFailedAttemptsCount++;
+            isExpired = entry.isExpired(System.currentTimeMillis());
+
+            if (isExpired) {
+                Log.d(LOG_TAG, "## onSendingFailed() : " + event.eventId + " is given up after " + entry.mFailedAttemptsCount + " failed attempts");
+
+                roomEntries.remove(event.eventId);
+                mPendingCount--;
+
+                if (roomEntries.isEmpty()) {
+                    mEntriesByRoomId.remove(event.roomId);
+                }
+            }
+        }
+
+        // save the attempts count
+        saveRoom(event.roomId);
+
+        return isExpired;
+    }
+
+    /**
+     * Remove an event from its room queue.
+     *
+     * @param event the event
+     */
+    public void remove(Event event) {
+        if ((null == event) || (null == event.roomId) || (null == event.eventId)) {
+            return;
+        }
+
+        boolean isRemoved = false;
+
+        synchronized (mEntriesByRoomId) {
+            LinkedHashMap<String, OutboxEntry> roomEntries = mEntriesByRoomId.get(event.roomId);
+
+            if ((null != roomEntries) && (null != roomEntries.remove(event.eventId))) {
+                mPendingCount--;
+                isRemoved = true;
+
+                if (roomEntries.isEmpty()) {
+                    mEntriesByRoomId.remove(event.roomId);
+                }
+            }
+        }
+
+        if (isRemoved) {
+            saveRoom(event.roomId);
+        }
+    }
+
+    /**
+     * Remove the pending events of a room.
+     *
+     * @param roomId the room id
+     */
+    public void removeRoom(String roomId) {
+        boolean isRemoved = false;
+
+        synchronized (mEntriesByRoomId) {
+            LinkedHashMap<String, OutboxEntry> roomEntries = mEntriesByRoomId.remove(roomId);
+
+            if (null != roomEntries) {
+                mPendingCount -= roomEntries.size();
+                isRemoved = true;
+            }
+        }
+
+        if (isRemoved) {
+            saveRoom(roomId);
+        }
+    }
+
+    /**
+     * Replace a queued event by another instance with the same event id.
+     * It is used to share the same instance between the store and the outbox when the store is loaded.
+     * The instance gets the clear type and content of the queued event, the stored one might be encrypted.
+     *
+     * @param event the event
+     * @return true if the event is queued
+     */
+    public boolean attach(Event event) {
+        if ((null == event) || (null == event.roomId) || (null == event.eventId)) {
+            return false;
+        }
+
+        synchronized (mEntriesByRoomId) {
+            LinkedHashMap<String, OutboxEntry> roomEntries = mEntriesByRoomId.get(event.roomId);
+            OutboxEntry entry = (null != roomEntries) ? roomEntries.get(event.eventId) : null;
+
+            if (null != entry) {
+                JsonElement content = entry.mSnapshot.getContent();
+
+                event.type = entry.mSnapshot.type;
+                event.updateContent((null != content) ? new JsonParser().parse(content.toString()) : null);
+                event.mSentState = entry.mEvent.mSentState;
+                entry.mEvent = event;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Provides the transaction id of a queued event.
+     *
+     * @param event the event
+     * @return the transaction id, null if the event is not queued
+     */
+    public String getTransactionId(Event event) {
+        if ((null == event) || (null == event.roomId) || (null == event.eventId)) {
+            return null;
+        }
+
+        synchronized (mEntriesByRoomId) {
+            LinkedHashMap<String, OutboxEntry> roomEntries = mEntriesByRoomId.get(event.roomId);
+            OutboxEntry entry = (null != roomEntries) ? roomEntries.get(event.eventId) : null;
+            return (null != entry) ? entry.mTransactionId : null;
+        }
+    }
+
+    /**
+     * @return the total number of pending events
+     */
+    public int getPendingCount() {
+        synchronized (mEntriesByRoomId) {
+            return mPendingCount;
+        }
+    }
+
+    /**
+     * Provides the number of pending events in a room.
+     *
+     * @param roomId the room id
+     * @return the number of pending events
+     */
+    public int getPendingCount(String roomId) {
+        synchronized (mEntriesByRoomId) {
+            LinkedHashMap<String, OutboxEntry> roomEntries = mEntriesByRoomId.get(roomId);
+            return (null != roomEntries) ? roomEntries.size() : 0;
+        }
+    }
+
+    /**
+     * @return the ids of the rooms with pending events
+     */
+    public List<String> getRoomIds() {
+        synchronized (mEntriesByRoomId) {
+            return new ArrayList<>(mEntriesByRoomId.keySet());
+        }
+    }
+
+    /**
+     * Provides the first pending event of a room.
+     *
+     * @param roomId the room id
+     * @return the first pending event, null if there is none
+     */
+    public Event getFirstPendingEvent(String roomId) {
+        synchronized (mEntriesByRoomId) {
+            LinkedHashMap<String, OutboxEntry> roomEntries = mEntriesByRoomId.get(roomId);
+
+            if ((null != roomEntries) && !roomEntries.isEmpty()) {
+                return roomEntries.values().iterator().next().mEvent;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides the pending events of a room in the sending order.
+     *
+     * @param roomId the room id
+     * @return the pending events list
+     */
+    public List<Event> getPendingEvents(String roomId) {
+        ArrayList<Event> events = new ArrayList<>();
+
+        synchronized (mEntriesByRoomId) {
+            LinkedHashMap<String, OutboxEntry> roomEntries = mEntriesByRoomId.get(roomId);
+
+            if (null != roomEntries) {
+                for (OutboxEntry entry : roomEntries.values()) {
+                    events.add(entry.mEvent);
+                }
+            }
+        }
+
+        return events;
+    }
+
+    //================================================================================
+    // Persistence
+    //================================================================================
+
+    /**
+     * Save the queue of a room in the background.
+     *
+     * @param roomId the room id
+     */
+    private void saveRoom(final String roomId) {
+        if ((null == mFolder) || TextUtils.isEmpty(roomId)) {
+            return;
+        }
+
+        final ArrayList<OutboxEntry> entries = new ArrayList<>();
+
+        synchronized (mEntriesByRoomId) {
+            LinkedHashMap<String, OutboxEntry> roomEntries = mEntriesByRoomId.get(roomId);
+
+            if (null != roomEntries) {
+                entries.addAll(roomEntries.values());
+            }
+
+            if (null == mHandlerThread) {
+                mHandlerThread = new HandlerThread("MXOutboxBackgroundThread", Thread.MIN_PRIORITY);
+                mHandlerThread.start();
+                mHandler = new MXOsHandler(mHandlerThread.getLooper());
+            }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    File file = new File(mFolder, roomId);
+
+                    if (entries.isEmpty()) {
+                        file.delete();
+                    } else {
+                        writeEntries(file, entries);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Write a room queue in a file.
+     *
+     * @param file    the file
+     * @param entries the entries
+     */
+    private void writeEntries(File file, ArrayList<OutboxEntry> entries) {
+        if (!mFolder.exists()) {
+            mFolder.mkdirs();
+        }
+
+        File tmpFile = new File(file.getParent(), file.getName() + ".tmp");
+
+        try {
+            FileOutputStream fos = new FileOutputStream(tmpFile);
+            GZIPOutputStream gz = new GZIPOutputStream(fos);
+            ObjectOutputStream out = new ObjectOutputStream(gz);
+
+            out.writeObject(entries);
+            out.close();
+
+            if (!tmpFile.renameTo(file)) {
+                Log.e(LOG_TAG, "## writeEntries() : cannot rename " + tmpFile.getName());
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## writeEntries() : failed " + e.getMessage());
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Read a room queue from a file.
+     *
+     * @param file the file
+     * @return the entries, null if the file cannot be read
+     */
+    @SuppressWarnings("unchecked")
+    private List<OutboxEntry> readEntries(File file) {
+        try {
+            FileInputStream fis = new FileInputStream(file);
+            GZIPInputStream gz = new GZIPInputStream(fis);
+            ObjectInputStream ois = new ObjectInputStream(gz);
+            List<OutboxEntry> entries = (List<OutboxEntry>) ois.readObject();
+            ois.close();
+            return entries;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## readEntries() : failed " + e.getMessage());
+        }
+
+        return null;
+    }
+}
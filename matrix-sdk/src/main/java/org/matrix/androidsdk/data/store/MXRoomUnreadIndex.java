@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data.store;
+
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.rest.model.Event;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Incremental index of the events of a room timeline.
+ * Each event gets an ordinal (its position in the timeline) and the count of the unread-able events
+ * up to it, so the unread events count after any event is computed in constant time.
+ * The index is updated when an event is appended (live events) or prepended (back pagination).
+ * Any other timeline update must invalidate it.
+ * It is not thread safe : the caller must synchronize the calls.
+ */
+class MXRoomUnreadIndex {
+
+    /**
+     * An indexed event.
+     */
+    private static class Entry {
+        // the position in the timeline
+        final int mOrdinal;
+        // the number of unread-able events until this event (included)
+        final int mCount;
+        // true if the event is an unread-able one
+        final boolean mIsCounted;
+
+        Entry(int ordinal, int count, boolean isCounted) {
+            mOrdinal = ordinal;
+            mCount = count;
+            mIsCounted = isCounted;
+        }
+    }
+
+    // the user id
+    private final String mUserId;
+
+    // the event ids with a positive ordinal (ordinal -> index)
+    private final ArrayList<String> mForwardEventIds = new ArrayList<>();
+
+    // the event ids with a negative ordinal (-ordinal - 1 -> index)
+    private final ArrayList<String> mBackwardEventIds = new ArrayList<>();
+
+    // event id -> entry
+    private final HashMap<String, Entry> mEntryByEventId = new HashMap<>();
+
+    // the unread-able events count before the oldest event
+    private int mHeadCount = 0;
+
+    // the unread-able events count until the latest event
+    private int mTailCount = 0;
+
+    // the index must be rebuilt
+    private boolean mIsValid = true;
+
+    /**
+     * Constructor
+     *
+     * @param userId the user id
+     */
+    MXRoomUnreadIndex(String userId) {
+        mUserId = userId;
+    }
+
+    /**
+     * Tells if an event is counted as unread.
+     * The user events and the membership events are never unread.
+     *
+     * @param event the event
+     * @return true if the event is counted
+     */
+    boolean isCounted(Event event) {
+        return !TextUtils.equals(event.getSender(), mUserId) && !TextUtils.equals(event.getType(), Event.EVENT_TYPE_STATE_ROOM_MEMBER);
+    }
+
+    /**
+     * @return false if the index must be rebuilt
+     */
+    boolean isValid() {
+        return mIsValid;
+    }
+
+    /**
+     * Flag the index as outdated.
+     */
+    void invalidate() {
+        mIsValid = false;
+    }
+
+    /**
+     * Tells if an event is indexed.
+     *
+     * @param eventId the event id
+     * @return true if it is indexed
+     */
+    boolean contains(String eventId) {
+        return (null != eventId) && mEntryByEventId.containsKey(eventId);
+    }
+
+    /**
+     * Index an event added at the end of the timeline.
+     *
+     * @param event the event
+     */
+    void append(Event event) {
+        if ((null == event.eventId) || mEntryByEventId.containsKey(event.eventId)) {
+            return;
+        }
+
+        boolean isCounted = isCounted(event);
+
+        if (isCounted) {
+            mTailCount++;
+        }
+
+        mEntryByEventId.put(event.eventId, new Entry(mForwardEventIds.size(), mTailCount, isCounted));
+        mForwardEventIds.add(event.eventId);
+    }
+
+    /**
+     * Index an event added at the beginning of the timeline.
+     *
+     * @param event the event
+     */
+    void prepend(Event event) {
+        if ((null == event.eventId) || mEntryByEventId.containsKey(event.eventId)) {
+            return;
+        }
+
+        boolean isCounted = isCounted(event);
+
+        mEntryByEventId.put(event.eventId, new Entry(-mBackwardEventIds.size() - 1, mHeadCount, isCounted));
+        mBackwardEventIds.add(event.eventId);
+
+        if (isCounted) {
+            mHeadCount--;
+        }
+    }
+
+    /**
+     * An event has been removed from the timeline.
+     *
+     * @param event the event
+     */
+    void remove(Event event) {
+        Entry entry = (null != event.eventId) ? mEntryByEventId.get(event.eventId) : null;
+
+        if (null != entry) {
+            // the following events counts would be wrong
+            if (entry.mIsCounted) {
+                mIsValid = false;
+            } else {
+                // the ordinal is not reused, it is skipped while listing the events
+                mEntryByEventId.remove(event.eventId);
+            }
+        }
+    }
+
+    /**
+     * Provides the ordinal of an event.
+     *
+     * @param eventId the event id
+     * @return the ordinal, null if the event is unknown
+     */
+    Integer getOrdinal(String eventId) {
+        Entry entry = (null != eventId) ? mEntryByEventId.get(eventId) : null;
+        return (null != entry) ? entry.mOrdinal : null;
+    }
+
+    /**
+     * Count the unread-able events after an event.
+     * All the events are counted if the event is unknown.
+     *
+     * @param eventId the event id
+     * @return the events count
+     */
+    int countAfter(String eventId) {
+        Entry entry = (null != eventId) ? mEntryByEventId.get(eventId) : null;
+        return mTailCount - ((null != entry) ? entry.mCount : mHeadCount);
+    }
+
+    /**
+     * Provides the event ids after an event, in timeline order.
+     * All the event ids are returned if the event is unknown.
+     * The removed events ids might be returned.
+     *
+     * @param eventId the event id
+     * @return the event ids
+     */
+    List<String> eventIdsAfter(String eventId) {
+        Entry entry = (null != eventId) ? mEntryByEventId.get(eventId) : null;
+        int firstOrdinal = (null != entry) ? (entry.mOrdinal + 1) : -mBackwardEventIds.size();
+
+        ArrayList<String> eventIds = new ArrayList<>(Math.max(0, mForwardEventIds.size() - firstOrdinal));
+
+        for (int ordinal = firstOrdinal; ordinal < mForwardEventIds.size(); ordinal++) {
+            eventIds.add((ordinal < 0) ? mBackwardEventIds.get(-ordinal - 1) : mForwardEventIds.get(ordinal));
+        }
+
+        return eventIds;
+    }
+}
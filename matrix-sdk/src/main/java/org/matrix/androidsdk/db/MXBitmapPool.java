@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.db;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of unused bitmaps, bucketed by allocation size.
+ * The pooled bitmaps are provided to BitmapFactory as inBitmap to avoid allocating a new bitmap for each decoding.
+ * Only the bitmaps which are not displayed anymore must be pooled.
+ */
+class MXBitmapPool {
+    // do not reuse a bitmap which is more than twice larger than the requested one
+    private static final int MAX_SIZE_RATIO = 2;
+
+    // the max pool size in bytes
+    private final long mMaxSize;
+
+    // the current pool size in bytes
+    private long mSize = 0;
+
+    // allocation size -> bitmaps
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBitmapsBySize = new TreeMap<>();
+
+    // the pooled bitmaps (eldest first)
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<>();
+
+    /**
+     * Constructor
+     *
+     * @param maxSize the max pool size in bytes
+     */
+    MXBitmapPool(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Provides the memory used by a bitmap.
+     *
+     * @param bitmap the bitmap
+     * @return the size in bytes
+     */
+    static int getAllocationByteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Tells if the bitmaps can be reused to decode a sampled image.
+     * Before KitKat, inBitmap requires the same dimensions and no sampling.
+     *
+     * @return true if the sampled decoding can reuse a bitmap.
+     */
+    static boolean canReuseWithSampling() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * @return the pool size in bytes
+     */
+    synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Add an unused bitmap to the pool.
+     * The caller must not use it anymore.
+     *
+     * @param bitmap the bitmap
+     */
+    synchronized void put(Bitmap bitmap) {
+        // sanity checks
+        if ((null == bitmap) || bitmap.isRecycled() || !bitmap.isMutable() || (Bitmap.Config.ARGB_8888 != bitmap.getConfig())) {
+            return;
+        }
+
+        int size = getAllocationByteCount(bitmap);
+
+        if (size > mMaxSize) {
+            return;
+        }
+
+        LinkedList<Bitmap> bitmaps = mBitmapsBySize.get(size);
+
+        if (null == bitmaps) {
+            bitmaps = new LinkedList<>();
+            mBitmapsBySize.put(size, bitmaps);
+        } else if (bitmaps.contains(bitmap)) {
+            return;
+        }
+
+        bitmaps.add(bitmap);
+        mBitmaps.add(bitmap);
+        mSize += size;
+
+        // remove the eldest bitmaps
+        while (mSize > mMaxSize) {
+            remove(mBitmaps.getFirst());
+        }
+    }
+
+    /**
+     * Retrieve a bitmap which can be used as inBitmap to decode an ARGB_8888 image.
+     * The returned bitmap is removed from the pool.
+     *
+     * @param width  the decoded width
+     * @param height the decoded height
+     * @return a bitmap or null if there is no matching one
+     */
+    synchronized Bitmap get(int width, int height) {
+        if ((width <= 0) || (height <= 0)) {
+            return null;
+        }
+
+        // ARGB_8888
+        int size = width * height * 4;
+        Bitmap bitmap = null;
+
+        if (canReuseWithSampling()) {
+            // the smallest large enough bitmap
+            Map.Entry<Integer, LinkedList<Bitmap>> entry = mBitmapsBySize.ceilingEntry(size);
+
+            if ((null != entry) && (entry.getKey() <= size * MAX_SIZE_RATIO)) {
+                bitmap = entry.getValue().getLast();
+            }
+        } else {
+            // the same dimensions are required
+            LinkedList<Bitmap> bitmaps = mBitmapsBySize.get(size);
+
+            if (null != bitmaps) {
+                for (Bitmap candidate : bitmaps) {
+                    if ((candidate.getWidth() == width) && (candidate.getHeight() == height)) {
+                        bitmap = candidate;
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (null != bitmap) {
+            remove(bitmap);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Empty the pool.
+     */
+    synchronized void clear() {
+        mBitmapsBySize.clear();
+        mBitmaps.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Remove a pooled bitmap.
+     *
+     * @param bitmap the bitmap
+     */
+    private void remove(Bitmap bitmap) {
+        int size = getAllocationByteCount(bitmap);
+        LinkedList<Bitmap> bitmaps = mBitmapsBySize.get(size);
+
+        if (null != bitmaps) {
+            Iterator<Bitmap> iterator = bitmaps.iterator();
+
+            while (iterator.hasNext()) {
+                if (iterator.next() == bitmap) {
+                    iterator.remove();
+                    break;
+                }
+            }
+
+            if (bitmaps.isEmpty()) {
+                mBitmapsBySize.remove(size);
+            }
+        }
+
+        Iterator<Bitmap> iterator = mBitmaps.iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next() == bitmap) {
+                iterator.remove();
+                break;
+            }
+        }
+
+        mSize -= size;
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.db;
+
+import org.matrix.androidsdk.util.Log;
+import org.matrix.androidsdk.util.MXOsHandler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU index of the files of a media cache folder.
+ * The index is journaled in the folder to avoid walking it at each launch.
+ * Every update is performed on the provided background handler so the UI thread never touches the file system.
+ * The accesses are only recorded in memory and they are journaled by batch, at most every ACCESSES_JOURNAL_DELAY_MS.
+ */
+class MXMediaDiskCache {
+    private static final String LOG_TAG = "MXMediaDiskCache";
+
+    // the journal file name
+    private static final String JOURNAL_FILE_NAME = "journal";
+
+    // journal operations
+    private static final String JOURNAL_ADD = "ADD";
+    private static final String JOURNAL_READ = "READ";
+    private static final String JOURNAL_DELETE = "DEL";
+
+    // rebuild the journal when it contains too many useless lines
+    private static final int JOURNAL_COMPACTION_THRESHOLD = 2000;
+
+    // the delay before journaling the accessed files
+    private static final long ACCESSES_JOURNAL_DELAY_MS = 5000;
+
+    // only the cached medias are managed (the files to upload must not be evicted)
+    private static final String CACHED_MEDIA_FILE_PREFIX = "file_";
+
+    // the managed folder
+    private final File mFolder;
+
+    // the background handler
+    private final MXOsHandler mHandler;
+
+    // file name -> file size, in access order (eldest first)
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // the max cache size in bytes
+    private volatile long mMaxSize;
+
+    // the current cache size in bytes
+    private volatile long mSize = 0;
+
+    // the journal
+    private BufferedWriter mJournalWriter = null;
+    private int mJournalLinesCount = 0;
+
+    // the files accessed since the last accesses flush, in access order
+    private final LinkedHashSet<String> mAccessedFileNames = new LinkedHashSet<>();
+    // tell if an accesses flush is scheduled
+    private boolean mIsAccessesFlushScheduled = false;
+
+    /**
+     * Constructor
+     *
+     * @param folder  the managed folder
+     * @param maxSize the max size in bytes
+     * @param handler the background handler
+     */
+    MXMediaDiskCache(File folder, long maxSize, MXOsHandler handler) {
+        mFolder = folder;
+        mMaxSize = maxSize;
+        mHandler = handler;
+
+        // the files older than the cache are not written anymore
+        final long creationTime = System.currentTimeMillis();
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                init(creationTime);
+            }
+        });
+    }
+
+    /**
+     * @return the cache size in bytes
+     */
+    long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the max cache size in bytes
+     */
+    long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Update the max cache size.
+     * The cache is trimmed if it is larger.
+     *
+     * @param maxSize the new max size in bytes
+     */
+    void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                trim();
+            }
+        });
+    }
+
+    /**
+     * A file has been written in the folder.
+     *
+     * @param fileName the file name
+     */
+    void onFileAdded(final String fileName) {
+        if ((null == fileName) || !fileName.startsWith(CACHED_MEDIA_FILE_PREFIX)) {
+            return;
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                File file = new File(mFolder, fileName);
+
+                if (file.exists()) {
+                    Long previousSize = mEntries.put(fileName, file.length());
+                    mSize += file.length() - ((null != previousSize) ? previousSize : 0);
+                    appendToJournal(JOURNAL_ADD, fileName, file.length());
+                    trim();
+                }
+            }
+        });
+    }
+
+    /**
+     * A cached file has been used.
+     *
+     * @param fileName the file name
+     */
+    void onFileAccessed(final String fileName) {
+        if ((null == fileName) || !fileName.startsWith(CACHED_MEDIA_FILE_PREFIX)) {
+            return;
+        }
+
+        synchronized (mAccessedFileNames) {
+            // move it to the end
+            mAccessedFileNames.remove(fileName);
+            mAccessedFileNames.add(fileName);
+
+            if (mIsAccessesFlushScheduled) {
+                return;
+            }
+
+            mIsAccessesFlushScheduled = true;
+        }
+
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                flushAccessedFiles();
+            }
+        }, ACCESSES_JOURNAL_DELAY_MS);
+    }
+
+    /**
+     * Forget all the entries.
+     * The files must have been deleted by the caller.
+     */
+    void clear() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mEntries.clear();
+                mSize = 0;
+                rebuildJournal();
+            }
+        });
+    }
+
+    //==============================================================================================================
+    // Background thread methods
+    //==============================================================================================================
+
+    /**
+     * Load the journal, or build it from the folder content if it does not exist.
+     * The half-written downloads are deleted.
+     *
+     * @param creationTime the cache creation time.
+     */
+    private void init(long creationTime) {
+        long t0 = System.currentTimeMillis();
+
+        if (!mFolder.exists()) {
+            mFolder.mkdirs();
+        }
+
+        File[] files = null;
+        File journalFile = new File(mFolder, JOURNAL_FILE_NAME);
+
+        if (!readJournal(journalFile)) {
+            files = mFolder.listFiles();
+
+            if (null != files) {
+                for (File file : files) {
+                    if (file.getName().startsWith(CACHED_MEDIA_FILE_PREFIX) && !file.getName().endsWith(".tmp")) {
+                        mEntries.put(file.getName(), file.length());
+                        mSize += file.length();
+                    }
+                }
+            }
+
+            rebuildJournal();
+        }
+
+        // remove the half-written downloads
+        if (null == files) {
+            files = mFolder.listFiles();
+        }
+
+        if (null != files) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp") && (file.lastModified() < creationTime)) {
+                    Log.d(LOG_TAG, "## init() : delete the interrupted download " + file.getName());
+                    file.delete();
+                }
+            }
+        }
+
+        Log.d(LOG_TAG, "## init() : " + mFolder.getName() + " : " + mEntries.size() + " files - " + mSize + " bytes in " + (System.currentTimeMillis() - t0) + " ms");
+
+        trim();
+    }
+
+    /**
+     * Replay the journal.
+     *
+     * @param journalFile the journal file
+     * @return true if the journal has been read
+     */
+    private boolean readJournal(File journalFile) {
+        if (!journalFile.exists()) {
+            return false;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+            String line;
+
+            while (null != (line = reader.readLine())) {
+                String[] items = line.split(" ");
+
+                if (items.length < 2) {
+                    continue;
+                }
+
+                String fileName = items[1];
+
+                if (JOURNAL_ADD.equals(items[0]) && (items.length == 3)) {
+                    long size = Long.parseLong(items[2]);
+                    Long previousSize = mEntries.put(fileName, size);
+                    mSize += size - ((null != previousSize) ? previousSize : 0);
+                } else if (JOURNAL_READ.equals(items[0])) {
+                    mEntries.get(fileName);
+                } else if (JOURNAL_DELETE.equals(items[0])) {
+                    Long previousSize = mEntries.remove(fileName);
+
+                    if (null != previousSize) {
+                        mSize -= previousSize;
+                    }
+                }
+
+                mJournalLinesCount++;
+            }
+
+            reader.close();
+            return true;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## readJournal() failed " + e.getMessage());
+        }
+
+        // the journal is corrupted
+        mEntries.clear();
+        mSize = 0;
+        mJournalLinesCount = 0;
+
+        return false;
+    }
+
+    /**
+     * Write a new journal with the current entries.
+     */
+    private void rebuildJournal() {
+        closeJournal();
+
+        File journalFile = new File(mFolder, JOURNAL_FILE_NAME);
+        File tmpJournalFile = new File(mFolder, JOURNAL_FILE_NAME + ".tmp");
+
+        try {
+            if (!mFolder.exists()) {
+                mFolder.mkdirs();
+            }
+
+            BufferedWriter writer = new BufferedWriter(new FileWriter(tmpJournalFile));
+
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(JOURNAL_ADD + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+
+            writer.close();
+            tmpJournalFile.renameTo(journalFile);
+            mJournalLinesCount = mEntries.size();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## rebuildJournal() failed " + e.getMessage());
+        }
+    }
+
+    /**
+     * Append an operation to the journal.
+     *
+     * @param operation the operation
+     * @param fileName  the file name
+     * @param size      the file size (ignored if negative)
+     */
+    private void appendToJournal(String operation, String fileName, long size) {
+        List<String> lines = new ArrayList<>();
+        lines.add(operation + " " + fileName + ((size >= 0) ? (" " + size) : ""));
+        appendToJournal(lines);
+    }
+
+    /**
+     * Append some lines to the journal, with a single flush.
+     *
+     * @param lines the journal lines
+     */
+    private void appendToJournal(List<String> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+
+        if ((mJournalLinesCount > JOURNAL_COMPACTION_THRESHOLD) && (mJournalLinesCount > 2 * mEntries.size())) {
+            rebuildJournal();
+        }
+
+        try {
+            if (null == mJournalWriter) {
+                mJournalWriter = new BufferedWriter(new FileWriter(new File(mFolder, JOURNAL_FILE_NAME), true));
+            }
+
+            for (String line : lines) {
+                mJournalWriter.write(line + "\n");
+            }
+
+            mJournalWriter.flush();
+            mJournalLinesCount += lines.size();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## appendToJournal() failed " + e.getMessage());
+            closeJournal();
+        }
+    }
+
+    /**
+     * Close the journal writer.
+     */
+    private void closeJournal() {
+        if (null != mJournalWriter) {
+            try {
+                mJournalWriter.close();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## closeJournal() failed " + e.getMessage());
+            }
+            mJournalWriter = null;
+        }
+    }
+
+    /**
+     * Update the access order with the accessed files and journal them in one write.
+     */
+    private void flushAccessedFiles() {
+        List<String> fileNames;
+
+        synchronized (mAccessedFileNames) {
+            fileNames = new ArrayList<>(mAccessedFileNames);
+            mAccessedFileNames.clear();
+            mIsAccessesFlushScheduled = false;
+        }
+
+        List<String> lines = new ArrayList<>();
+
+        for (String fileName : fileNames) {
+            // update the access order
+            if (null != mEntries.get(fileName)) {
+                lines.add(JOURNAL_READ + " " + fileName);
+            }
+        }
+
+        appendToJournal(lines);
+    }
+
+    /**
+     * Delete the least recently used files until the cache size is below the max size.
+     */
+    private void trim() {
+        if (mSize <= mMaxSize) {
+            return;
+        }
+
+        // the latest accesses must be taken into account before evicting
+        flushAccessedFiles();
+
+        ArrayList<String> evictedFileNames = new ArrayList<>();
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+
+        while ((mSize > mMaxSize) && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+
+            new File(mFolder, entry.getKey()).delete();
+            mSize -= entry.getValue();
+            evictedFileNames.add(entry.getKey());
+            iterator.remove();
+        }
+
+        for (String fileName : evictedFileNames) {
+            appendToJournal(JOURNAL_DELETE, fileName, -1);
+        }
+
+        Log.d(LOG_TAG, "## trim() : " + mFolder.getName() + " : " + evictedFileNames.size() + " files evicted - " + mSize + " bytes");
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.db;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class schedules the medias downloads.
+ * The pending downloads are started by priority, then by request order,
+ * with a global and a per host concurrency limit.
+ * A pending image download is cancelled when no ImageView nor listener waits for it anymore.
+ */
+class MXMediaDownloadScheduler {
+    private static final String LOG_TAG = "MXMediaDwndScheduler";
+
+    /**
+     * Download priorities (the lower is the more urgent).
+     */
+    // a thumbnail displayed on screen
+    static final int PRIORITY_VISIBLE_THUMBNAIL = 0;
+    // a full size image displayed on screen
+    static final int PRIORITY_FULL_IMAGE = 1;
+    // a file the user asked for
+    static final int PRIORITY_FILE = 2;
+    // a media which might be displayed later
+    static final int PRIORITY_PREFETCH = 3;
+
+    // max number of running downloads
+    private static final int MAX_RUNNING_DOWNLOADS = 6;
+
+    // max number of running downloads per host
+    private static final int MAX_RUNNING_DOWNLOADS_PER_HOST = 4;
+
+    /**
+     * A pending download.
+     */
+    private static class DownloadJob {
+        // the download task
+        final MXMediaDownloadWorkerTask mTask;
+        // the AsyncTask runnable
+        Runnable mRunnable;
+        // the download host
+        final String mHost;
+        // the priority
+        int mPriority;
+        // the request order
+        final int mSequence;
+        // true when the job uses a concurrency slot
+        boolean mUsesSlot = false;
+
+        DownloadJob(MXMediaDownloadWorkerTask task, int priority, int sequence) {
+            mTask = task;
+            mPriority = priority;
+            mSequence = sequence;
+            mHost = getHost(task.getUrl());
+        }
+
+        /**
+         * @param other another job
+         * @return true if this job must be started before the other one
+         */
+        boolean isBefore(DownloadJob other) {
+            return (mPriority < other.mPriority) || ((mPriority == other.mPriority) && (mSequence < other.mSequence));
+        }
+    }
+
+    // the shared instance
+    private static MXMediaDownloadScheduler mInstance = null;
+
+    // the pending jobs, sorted by priority then sequence
+    private final ArrayList<DownloadJob> mPendingJobs = new ArrayList<>();
+
+    // the task -> job
+    private final HashMap<MXMediaDownloadWorkerTask, DownloadJob> mJobByTask = new HashMap<>();
+
+    // host -> number of running downloads
+    private final HashMap<String, Integer> mRunningCountByHost = new HashMap<>();
+
+    // the number of running downloads
+    private int mRunningCount = 0;
+
+    // the requests counter
+    private int mSequence = 0;
+
+    // the download threads
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * @return the shared instance
+     */
+    static synchronized MXMediaDownloadScheduler getInstance() {
+        if (null == mInstance) {
+            mInstance = new MXMediaDownloadScheduler();
+        }
+
+        return mInstance;
+    }
+
+    /**
+     * Constructor
+     */
+    private MXMediaDownloadScheduler() {
+        final AtomicInteger threadsCount = new AtomicInteger(0);
+
+        // the jobs are only submitted when a thread is available
+        mExecutor = new ThreadPoolExecutor(MAX_RUNNING_DOWNLOADS, MAX_RUNNING_DOWNLOADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MXMediaDownload_" + threadsCount.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Extract the host from an url.
+     *
+     * @param url the url
+     * @return the host
+     */
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    /**
+     * Schedule a download task.
+     *
+     * @param task     the task
+     * @param priority the priority (PRIORITY_XX)
+     */
+    void schedule(final MXMediaDownloadWorkerTask task, int priority) {
+        final DownloadJob job;
+
+        synchronized (this) {
+            job = new DownloadJob(task, priority, mSequence++);
+            mJobByTask.put(task, job);
+        }
+
+        try {
+            // the AsyncTask provides its runnable to the executor
+            task.executeOnExecutor(new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    synchronized (MXMediaDownloadScheduler.this) {
+                        job.mRunnable = runnable;
+                        insertPendingJob(job);
+                    }
+                }
+            }, (Integer[]) null);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "## schedule() failed " + e.getMessage());
+
+            synchronized (this) {
+                mJobByTask.remove(task);
+            }
+        }
+
+        dispatch();
+    }
+
+    /**
+     * Raise the priority of a pending download.
+     * It is used when an already requested media is requested with a higher priority.
+     *
+     * @param task     the task
+     * @param priority the new priority
+     */
+    synchronized void raisePriority(MXMediaDownloadWorkerTask task, int priority) {
+        DownloadJob job = mJobByTask.get(task);
+
+        if ((null != job) && (priority < job.mPriority) && mPendingJobs.remove(job)) {
+            job.mPriority = priority;
+            insertPendingJob(job);
+        }
+    }
+
+    /**
+     * Insert a job in the pending list by priority.
+     *
+     * @param job the job
+     */
+    private void insertPendingJob(DownloadJob job) {
+        int index = mPendingJobs.size();
+
+        while ((index > 0) && job.isBefore(mPendingJobs.get(index - 1))) {
+            index--;
+        }
+
+        mPendingJobs.add(index, job);
+    }
+
+    /**
+     * Start the pending jobs while the concurrency limits allow it.
+     */
+    private void dispatch() {
+        List<DownloadJob> jobsToStart = new ArrayList<>();
+        List<DownloadJob> orphanJobs = new ArrayList<>();
+
+        synchronized (this) {
+            Iterator<DownloadJob> iterator = mPendingJobs.iterator();
+
+            while ((mRunningCount < MAX_RUNNING_DOWNLOADS) && iterator.hasNext()) {
+                DownloadJob job = iterator.next();
+
+                // nobody waits for this media anymore
+                if (job.mTask.isOrphan()) {
+                    iterator.remove();
+                    orphanJobs.add(job);
+                    continue;
+                }
+
+                Integer hostCount = mRunningCountByHost.get(job.mHost);
+
+                if ((null == hostCount) || (hostCount < MAX_RUNNING_DOWNLOADS_PER_HOST)) {
+                    iterator.remove();
+                    mRunningCountByHost.put(job.mHost, (null == hostCount) ? 1 : (hostCount + 1));
+                    mRunningCount++;
+                    job.mUsesSlot = true;
+                    jobsToStart.add(job);
+                }
+            }
+        }
+
+        for (DownloadJob job : orphanJobs) {
+            Log.d(LOG_TAG, "## dispatch() : cancel an orphan download");
+            // the AsyncTask must run to dispatch the cancellation and to release the media url
+            job.mTask.cancelDownload();
+            start(job);
+        }
+
+        for (DownloadJob job : jobsToStart) {
+            start(job);
+        }
+    }
+
+    /**
+     * Run a job on the download threads.
+     *
+     * @param job the job
+     */
+    private void start(final DownloadJob job) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    job.mRunnable.run();
+                } finally {
+                    onJobDone(job);
+                }
+            }
+        });
+    }
+
+    /**
+     * A job is completed.
+     *
+     * @param job the job
+     */
+    private void onJobDone(DownloadJob job) {
+        synchronized (this) {
+            mJobByTask.remove(job.mTask);
+
+            // the orphan jobs do not use a slot
+            if (job.mUsesSlot) {
+                Integer hostCount = mRunningCountByHost.get(job.mHost);
+                mRunningCount--;
+
+                if ((null == hostCount) || (hostCount <= 1)) {
+                    mRunningCountByHost.remove(job.mHost);
+                } else {
+                    mRunningCountByHost.put(job.mHost, hostCount - 1);
+                }
+            }
+        }
+
+        dispatch();
+    }
+}
@@ -53,9 +53,11 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
@@ -71,7 +73,7 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
     /**
      * Pending media URLs
      */
-    private static final HashMap<String, MXMediaDownloadWorkerTask> mPendingDownloadByUrl = new HashMap<>();
+    private static final ConcurrentHashMap<String, MXMediaDownloadWorkerTask> mPendingDownloadByUrl = new ConcurrentHashMap<>();
 
     /**
      * List of unreachable media urls.
@@ -82,15 +84,38 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
     private static final Object mSyncObject = new Object();
 
     /**
-     * The medias cache
+     * The decoded bitmaps cache, keyed by (url, width, height, rotation).
      */
     private static LruCache<String, Bitmap> mBitmapByUrlCache = null;
 
+    /**
+     * The bitmaps which are not used anymore.
+     */
+    private static MXBitmapPool mBitmapPool = null;
+
+    /**
+     * The bitmaps displayed by the SDK.
+     * They must not be recycled in the bitmaps pool.
+     * It is protected by mSyncObject, like the bitmaps cache, so that a cached bitmap
+     * cannot be recycled between its lookup and its retain.
+     */
+    private static final WeakHashMap<ImageView, Bitmap> mDisplayedBitmaps = new WeakHashMap<>();
+
     /**
      * The downloaded media callbacks.
      */
     private final ArrayList<IMXMediaDownloadListener> mDownloadListeners = new ArrayList<>();
 
+    /**
+     * The number of listeners added by the SDK clients.
+     */
+    private int mClientDownloadListenersCount = 0;
+
+    /**
+     * True when a SDK client has added a listener.
+     */
+    private boolean mHasHadClientDownloadListeners = false;
+
     /**
      * The ImageView list to refresh when the media is downloaded.
      */
@@ -121,6 +146,12 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
      */
     private int mRotation = 0;
 
+    /**
+     * The size to decode the bitmap to (-1 to decode it at full size).
+     */
+    private int mTargetWidth = -1;
+    private int mTargetHeight = -1;
+
     /**
      * The download stats.
      */
@@ -161,6 +192,8 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
      */
     private static final int DOWNLOAD_TIME_OUT = 10 * 1000;
     private static final int DOWNLOAD_BUFFER_READ_SIZE = 1024 * 32;
+    // check if the download is still required every ORPHAN_CHECK_CHUNKS_COUNT read buffers
+    private static final int ORPHAN_CHECK_CHUNKS_COUNT = 16;
 
 
     //==============================================================================================================
@@ -171,10 +204,196 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
      * Clear the internal cache.
      */
     public static void clearBitmapsCache() {
-        // sMemoryCache can be null if no bitmap have been downloaded.
-        if (null != mBitmapByUrlCache) {
-            mBitmapByUrlCache.evictAll();
+        synchronized (mSyncObject) {
+            // sMemoryCache can be null if no bitmap have been downloaded.
+            if (null != mBitmapByUrlCache) {
+                mBitmapByUrlCache.evictAll();
+            }
+
+            if (null != mBitmapPool) {
+                mBitmapPool.clear();
+            }
+        }
+    }
+
+    /**
+     * Display a bitmap in an ImageView.
+     * The bitmap is flagged as displayed so it is not reused while the ImageView displays it.
+     *
+     * @param imageView the image view
+     * @param bitmap    the bitmap
+     */
+    static void displayBitmap(ImageView imageView, Bitmap bitmap) {
+        retainDisplayedBitmap(imageView, bitmap);
+        imageView.setBackgroundColor(Color.TRANSPARENT);
+        imageView.setImageBitmap(bitmap);
+    }
+
+    /**
+     * Flag a bitmap as displayed by an ImageView.
+     * It must be called before posting the bitmap display to the UI thread.
+     *
+     * @param imageView the image view
+     * @param bitmap    the bitmap
+     */
+    static void retainDisplayedBitmap(ImageView imageView, Bitmap bitmap) {
+        synchronized (mSyncObject) {
+            mDisplayedBitmaps.put(imageView, bitmap);
+        }
+    }
+
+    /**
+     * Flag a bitmap as displayed by some ImageViews.
+     * The caller must hold mSyncObject.
+     *
+     * @param imageViews the image views, null if there is none
+     * @param bitmap     the bitmap
+     */
+    private static void retainDisplayedBitmapLocked(List<ImageView> imageViews, Bitmap bitmap) {
+        if ((null != imageViews) && (null != bitmap)) {
+            for (ImageView imageView : imageViews) {
+                mDisplayedBitmaps.put(imageView, bitmap);
+            }
+        }
+    }
+
+    /**
+     * Tells if a bitmap is displayed by an ImageView.
+     *
+     * @param bitmap the bitmap
+     * @return true if it is displayed
+     */
+    private static boolean isBitmapDisplayed(Bitmap bitmap) {
+        synchronized (mSyncObject) {
+            for (Bitmap displayedBitmap : mDisplayedBitmaps.values()) {
+                if (displayedBitmap == bitmap) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Build the memory cache key of a bitmap.
+     *
+     * @param url          the media url
+     * @param targetWidth  the decoded width
+     * @param targetHeight the decoded height
+     * @param rotation     the rotation
+     * @return the cache key
+     */
+    private static String getBitmapCacheKey(String url, int targetWidth, int targetHeight, int rotation) {
+        return url + "|" + targetWidth + "x" + targetHeight + "|" + rotation;
+    }
+
+    /**
+     * Create the bitmaps cache and pool if they are not yet created.
+     */
+    private static void initBitmapsCache() {
+        synchronized (mSyncObject) {
+            if (null == mBitmapByUrlCache) {
+                int lruSize = Math.min(20 * 1024 * 1024, (int) Runtime.getRuntime().maxMemory() / 8);
+
+                Log.d(LOG_TAG, "bitmapForURL  lruSize : " + lruSize);
+
+                mBitmapPool = new MXBitmapPool(lruSize / 2);
+
+                mBitmapByUrlCache = new LruCache<String, Bitmap>(lruSize) {
+                    @Override
+                    protected int sizeOf(String key, Bitmap bitmap) {
+                        return MXBitmapPool.getAllocationByteCount(bitmap); // size in bytes
+                    }
+
+                    @Override
+                    protected void entryRemoved(boolean evicted, String key, Bitmap oldBitmap, Bitmap newBitmap) {
+                        // reuse the bitmap memory when it is not displayed anymore
+                        if ((oldBitmap != newBitmap) && !isBitmapDisplayed(oldBitmap)) {
+                            mBitmapPool.put(oldBitmap);
+                        }
+                    }
+                };
+            }
+        }
+    }
+
+    /**
+     * Compute the sample size to decode an image to the target size.
+     *
+     * @param width        the image width
+     * @param height       the image height
+     * @param targetWidth  the target width (-1 if not defined)
+     * @param targetHeight the target height (-1 if not defined)
+     * @return the sample size (a power of 2)
+     */
+    private static int computeSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+
+        if ((targetWidth > 0) && (targetHeight > 0)) {
+            // the decoded image must not be smaller than the target size
+            while (((width / (sampleSize * 2)) >= targetWidth) && ((height / (sampleSize * 2)) >= targetHeight)) {
+                sampleSize *= 2;
+            }
         }
+
+        return sampleSize;
+    }
+
+    /**
+     * Decode an image file.
+     * The image is sampled to the target size and a pooled bitmap is reused when possible.
+     *
+     * @param file         the image file
+     * @param targetWidth  the target width (-1 if not defined)
+     * @param targetHeight the target height (-1 if not defined)
+     * @return the bitmap, null if the decoding failed.
+     */
+    private static Bitmap decodeSampledBitmap(File file, int targetWidth, int targetHeight) throws Exception {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+
+        InputStream fis = new FileInputStream(file);
+        BitmapFactory.decodeStream(fis, null, options);
+        fis.close();
+
+        if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+            return null;
+        }
+
+        int sampleSize = computeSampleSize(options.outWidth, options.outHeight, targetWidth, targetHeight);
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+
+        if ((1 == sampleSize) || MXBitmapPool.canReuseWithSampling()) {
+            int width = (options.outWidth + sampleSize - 1) / sampleSize;
+            int height = (options.outHeight + sampleSize - 1) / sampleSize;
+            options.inBitmap = mBitmapPool.get(width, height);
+        }
+
+        Bitmap bitmap = null;
+
+        for (int attempt = 0; (null == bitmap) && (attempt < 2); attempt++) {
+            fis = new FileInputStream(file);
+
+            try {
+                bitmap = BitmapFactory.decodeStream(fis, null, options);
+            } catch (IllegalArgumentException e) {
+                // the pooled bitmap cannot be reused
+                Log.e(LOG_TAG, "decodeSampledBitmap() : cannot reuse the bitmap " + e.getMessage());
+                options.inBitmap = null;
+            } catch (OutOfMemoryError error) {
+                System.gc();
+                Log.e(LOG_TAG, "decodeSampledBitmap() : Out of memory " + (attempt + 1) + " " + error);
+            } finally {
+                fis.close();
+            }
+        }
+
+        return bitmap;
     }
 
     /**
@@ -183,15 +402,7 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
      * @return the dedicated MXMediaDownloadWorkerTask if it exists.
      */
     public static MXMediaDownloadWorkerTask getMediaDownloadWorkerTask(String url) {
-        if ((url != null) &&  mPendingDownloadByUrl.containsKey(url)) {
-            MXMediaDownloadWorkerTask task;
-            synchronized(mPendingDownloadByUrl) {
-                task = mPendingDownloadByUrl.get(url);
-            }
-            return task;
-        } else {
-            return null;
-        }
+        return (null != url) ? mPendingDownloadByUrl.get(url) : null;
     }
 
     /**
@@ -251,14 +462,17 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
     /**
      * Tell if the media is cached
      * @param url the media url
+     * @param targetWidth the decoded width (-1 if not defined)
+     * @param targetHeight the decoded height (-1 if not defined)
+     * @param rotation the rotation
      * @return true if the media is cached
      */
-    public static boolean isUrlCached(String url) {
+    public static boolean isUrlCached(String url, int targetWidth, int targetHeight, int rotation) {
         boolean res = false;
 
         if ((null != mBitmapByUrlCache) && (null != url)) {
             synchronized (mSyncObject) {
-                res = (null != mBitmapByUrlCache.get(url));
+                res = (null != mBitmapByUrlCache.get(getBitmapCacheKey(url, targetWidth, targetHeight, rotation)));
             }
         }
 
@@ -285,31 +499,40 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
     /**
      * Search a cached bitmap from an url.
      * rotationAngle is set to Integer.MAX_VALUE when undefined : the EXIF metadata must be checked.
+     * The image is decoded to the smallest size larger than the target size.
+     *
+     * @param baseFile the base file
+     * @param url the media url
+     * @param targetWidth the expected width (-1 if not defined)
+     * @param targetHeight the expected height (-1 if not defined)
+     * @param rotation the bitmap rotation
+     * @param mimeType the mime type
+     * @return the cached bitmap
+     */
+    public static Bitmap bitmapForURL(Context context, File baseFile, String url, int targetWidth, int targetHeight, int rotation, String mimeType) {
+        return bitmapForURL(context, baseFile, url, targetWidth, targetHeight, rotation, mimeType, null);
+    }
+
+    /**
+     * Search a cached bitmap from an url, and flag it as displayed by some ImageViews.
+     * The bitmap is flagged with the same lock as the cache lookup so that it cannot be recycled
+     * before being displayed.
      *
      * @param baseFile the base file
      * @param url the media url
+     * @param targetWidth the expected width (-1 if not defined)
+     * @param targetHeight the expected height (-1 if not defined)
      * @param rotation the bitmap rotation
      * @param mimeType the mime type
+     * @param imageViews the image views which will display the bitmap, null if there is none
      * @return the cached bitmap
      */
-    public static Bitmap bitmapForURL(Context context, File baseFile, String url, int rotation, String mimeType) {
+    static Bitmap bitmapForURL(Context context, File baseFile, String url, int targetWidth, int targetHeight, int rotation, String mimeType, List<ImageView> imageViews) {
         Bitmap bitmap = null;
 
         // sanity check
         if (null != url) {
-
-            if (null == mBitmapByUrlCache) {
-                int lruSize = Math.min(20 * 1024 * 1024, (int)Runtime.getRuntime().maxMemory() / 8);
-
-                Log.d(LOG_TAG, "bitmapForURL  lruSize : " + lruSize);
-
-                mBitmapByUrlCache = new LruCache<String, Bitmap>(lruSize){
-                    @Override
-                    protected int sizeOf(String key, Bitmap bitmap) {
-                        return bitmap.getRowBytes() * bitmap.getHeight(); // size in bytes
-                    }
-                };
-            }
+            initBitmapsCache();
 
             // the image is downloading in background
             if (null != getMediaDownloadWorkerTask(url)) {
@@ -321,8 +544,11 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
                 return null;
             }
 
+            String cacheKey = getBitmapCacheKey(url, targetWidth, targetHeight, rotation);
+
             synchronized (mSyncObject) {
-                bitmap = mBitmapByUrlCache.get(url);
+                bitmap = mBitmapByUrlCache.get(cacheKey);
+                retainDisplayedBitmapLocked(imageViews, bitmap);
             }
 
             // check if the image has not been saved in file system
@@ -359,61 +585,50 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
                         return null;
                     }
 
-                    InputStream fis = new FileInputStream (file);
+                    int imageRotation = rotation;
 
                     // read the metadata
-                    if (Integer.MAX_VALUE == rotation) {
-                        rotation = ImageUtils.getRotationAngleForBitmap(context,  Uri.fromFile(file));
+                    if (Integer.MAX_VALUE == imageRotation) {
+                        imageRotation = ImageUtils.getRotationAngleForBitmap(context,  Uri.fromFile(file));
                     }
 
-                    if (null != fis) {
-                        BitmapFactory.Options options = new BitmapFactory.Options();
-                        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                    // the target size is defined for the rotated image
+                    if ((90 == Math.abs(imageRotation) % 180)) {
+                        bitmap = decodeSampledBitmap(file, targetHeight, targetWidth);
+                    } else {
+                        bitmap = decodeSampledBitmap(file, targetWidth, targetHeight);
+                    }
 
-                        try {
-                            bitmap = BitmapFactory.decodeStream(fis, null, options);
-                        } catch (OutOfMemoryError error) {
-                            System.gc();
-                            Log.e(LOG_TAG, "bitmapForURL() : Out of memory 1 " + error);
-                        }
+                    if (null != bitmap) {
+                        synchronized (mSyncObject) {
+                            if (0 != imageRotation) {
+                                try {
+                                    android.graphics.Matrix bitmapMatrix = new android.graphics.Matrix();
+                                    bitmapMatrix.postRotate(imageRotation);
 
-                        //  try again
-                        if (null == bitmap) {
-                            try {
-                                bitmap = BitmapFactory.decodeStream(fis, null, options);
-                            } catch (OutOfMemoryError error) {
-                                Log.e(LOG_TAG, "bitmapForURL() Out of memory 2" + error);
-                            }
-                        }
+                                    Bitmap transformedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), bitmapMatrix, false);
 
-                        if (null != bitmap) {
-                            synchronized (mSyncObject) {
-                                if (0 != rotation) {
-                                    try {
-                                        android.graphics.Matrix bitmapMatrix = new android.graphics.Matrix();
-                                        bitmapMatrix.postRotate(rotation);
-
-                                        Bitmap transformedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), bitmapMatrix, false);
-                                        bitmap.recycle();
-                                        bitmap =  transformedBitmap;
-                                    } catch (OutOfMemoryError ex) {
-                                        Log.e(LOG_TAG, "bitmapForURL rotation error : " + ex.getLocalizedMessage());
+                                    // the source bitmap can be reused
+                                    if (transformedBitmap != bitmap) {
+                                        mBitmapPool.put(bitmap);
                                     }
+                                    bitmap =  transformedBitmap;
+                                } catch (OutOfMemoryError ex) {
+                                    Log.e(LOG_TAG, "bitmapForURL rotation error : " + ex.getLocalizedMessage());
                                 }
+                            }
 
-                                // cache only small images
-                                // caching large images does not make sense
-                                // it would replace small ones.
-                                // let assume that the application must be faster when showing the chat history.
-                                if ((bitmap.getWidth() < 1000) && (bitmap.getHeight() < 1000)) {
-                                    mBitmapByUrlCache.put(url, bitmap);
-                                }
+                            // cache only small images
+                            // caching large images does not make sense
+                            // it would replace small ones.
+                            // let assume that the application must be faster when showing the chat history.
+                            retainDisplayedBitmapLocked(imageViews, bitmap);
+
+                            if (MXBitmapPool.getAllocationByteCount(bitmap) <= (mBitmapByUrlCache.maxSize() / 4)) {
+                                mBitmapByUrlCache.put(cacheKey, bitmap);
                             }
                         }
-
-                        fis.close();
                     }
-
                 } catch (FileNotFoundException e) {
                     Log.d(LOG_TAG, "bitmapForURL() : " + filename + " does not exist");
                 } catch (Exception e) {
@@ -439,9 +654,7 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
     private void commonInit(Context appContext,  String url, String mimeType) {
         mApplicationContext = appContext;
         mUrl = url;
-        synchronized(mPendingDownloadByUrl) {
-            mPendingDownloadByUrl.put(url, this);
-        }
+        mPendingDownloadByUrl.put(url, this);
         mMimeType = mimeType;
         mRotation = 0;
     }
@@ -482,23 +695,6 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
         mEncryptedFileInfo = encryptedFileInfo;
     }
 
-    /**
-     * MXMediaDownloadWorkerTask creator
-     * @param task another bitmap task
-     */
-    public MXMediaDownloadWorkerTask(MXMediaDownloadWorkerTask task) {
-        mApplicationContext = task.mApplicationContext;
-        mUrl = task.mUrl;
-        mRotation = task.mRotation;
-        synchronized(mPendingDownloadByUrl) {
-            mPendingDownloadByUrl.put(mUrl, this);
-        }
-        mMimeType = task.mMimeType;
-        mImageViewReferences = task.mImageViewReferences;
-        mHsConfig = task.mHsConfig;
-        mEncryptedFileInfo = task.mEncryptedFileInfo;
-    }
-
     /**
      * Cancels the current download.
      */
@@ -524,10 +720,49 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
      * Add an imageView to the list to refresh when the bitmap is downloaded.
      * @param imageView an image view instance to refresh.
      */
-    public void addImageView(ImageView imageView) {
+    public synchronized void addImageView(ImageView imageView) {
         mImageViewReferences.add(new WeakReference<>(imageView));
     }
 
+    /**
+     * Tells if nobody waits for this download anymore
+     * i.e. the image views have been released or recycled to display another media
+     * and there is no client listener.
+     * A download without any image view is orphan when its client listeners have been removed.
+     * A download which has never had any image view nor client listener (e.g. a file download) is never orphan.
+     *
+     * @return true if the download is useless.
+     */
+    public synchronized boolean isOrphan() {
+        if (mClientDownloadListenersCount > 0) {
+            return false;
+        }
+
+        if (mImageViewReferences.isEmpty()) {
+            return mHasHadClientDownloadListeners;
+        }
+
+        for (WeakReference<ImageView> weakRef : mImageViewReferences) {
+            ImageView imageView = weakRef.get();
+
+            if ((null != imageView) && TextUtils.equals(mUrl, (String) imageView.getTag())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Set the size to decode the downloaded bitmap to.
+     * @param width the expected width (-1 if not defined)
+     * @param height the expected height (-1 if not defined)
+     */
+    public void setTargetSize(int width, int height) {
+        mTargetWidth = width;
+        mTargetHeight = height;
+    }
+
     /**
      * Set the default bitmap to use when the Url is unreachable.
      * @param aBitmap the bitmap.
@@ -540,8 +775,29 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
      * Add a download listener.
      * @param listener the listener to add.
      */
-    public void addDownloadListener(IMXMediaDownloadListener listener) {
+    public synchronized void addDownloadListener(IMXMediaDownloadListener listener) {
+        mDownloadListeners.add(listener);
+    }
+
+    /**
+     * Add a download listener provided by a SDK client.
+     * The download is not cancelled while there is a client listener.
+     * @param listener the listener to add.
+     */
+    public synchronized void addClientDownloadListener(IMXMediaDownloadListener listener) {
         mDownloadListeners.add(listener);
+        mClientDownloadListenersCount++;
+        mHasHadClientDownloadListeners = true;
+    }
+
+    /**
+     * Remove a download listener provided by a SDK client.
+     * @param listener the listener to remove.
+     */
+    public synchronized void removeClientDownloadListener(IMXMediaDownloadListener listener) {
+        if (mDownloadListeners.remove(listener)) {
+            mClientDownloadListenersCount--;
+        }
     }
 
     /**
@@ -608,6 +864,12 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
     // Decode image in background.
     @Override
     protected Void doInBackground(Integer... params) {
+        // the download has been cancelled before being started
+        if (isDownloadCancelled()) {
+            mPendingDownloadByUrl.remove(mUrl);
+            return null;
+        }
+
         try {
             URL url = new URL(mUrl);
             Log.d(LOG_TAG, "MXMediaDownloadWorkerTask " + this + " starts");
@@ -717,9 +979,16 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
                 try {
                     byte[] buf = new byte[DOWNLOAD_BUFFER_READ_SIZE];
                     int len;
+                    int chunksCount = 0;
                     while (!isDownloadCancelled() && (len = stream.read(buf)) != -1) {
                         fos.write(buf, 0, len);
                         mDownloadStats.mDownloadedSize += len;
+
+                        // stop the download if nobody waits for it anymore
+                        if ((0 == (++chunksCount % ORPHAN_CHECK_CHUNKS_COUNT)) && isOrphan()) {
+                            Log.d(LOG_TAG, "doInBackground : cancel an orphan download");
+                            cancelDownload();
+                        }
                     }
 
                     if (!isDownloadCancelled()) {
@@ -801,9 +1070,7 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
         }
 
         // remove the image from the loading one
-        synchronized(mPendingDownloadByUrl) {
-            mPendingDownloadByUrl.remove(mUrl);
-        }
+        mPendingDownloadByUrl.remove(mUrl);
 
         return null;
     }
@@ -840,8 +1107,18 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
             // image download
             // update the linked ImageViews.
             if (isBitmapDownloadTask()) {
+                List<ImageView> imageViews = new ArrayList<>();
+
+                for (WeakReference<ImageView> weakRef : mImageViewReferences) {
+                    final ImageView imageView = weakRef.get();
+
+                    if (imageView != null && TextUtils.equals(mUrl, (String) imageView.getTag())) {
+                        imageViews.add(imageView);
+                    }
+                }
+
                 // retrieve the bitmap from the file s
-                Bitmap bitmap = MXMediaDownloadWorkerTask.bitmapForURL(mApplicationContext, mDirectoryFile, mUrl, mRotation, mMimeType);
+                Bitmap bitmap = MXMediaDownloadWorkerTask.bitmapForURL(mApplicationContext, mDirectoryFile, mUrl, mTargetWidth, mTargetHeight, mRotation, mMimeType, imageViews);
 
                 if (null == bitmap) {
                     bitmap = mDefaultBitmap;
@@ -849,13 +1126,8 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
 
                 // update the imageViews image
                 if (bitmap != null) {
-                    for (WeakReference<ImageView> weakRef : mImageViewReferences) {
-                        final ImageView imageView = weakRef.get();
-
-                        if (imageView != null && TextUtils.equals(mUrl, (String) imageView.getTag())) {
-                            imageView.setBackgroundColor(Color.TRANSPARENT);
-                            imageView.setImageBitmap(bitmap);
-                        }
+                    for (ImageView imageView : imageViews) {
+                        displayBitmap(imageView, bitmap);
                     }
                 }
             }
@@ -867,11 +1139,20 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
     // Dispatchers
     //==============================================================================================================
 
+    /**
+     * The listeners can be added or removed while dispatching an event.
+     *
+     * @return a copy of the download listeners
+     */
+    private synchronized List<IMXMediaDownloadListener> getDownloadListeners() {
+        return new ArrayList<>(mDownloadListeners);
+    }
+
     /**
      * Dispatch start event to the callbacks.
      */
     private void dispatchDownloadStart() {
-        for(IMXMediaDownloadListener callback : mDownloadListeners) {
+        for(IMXMediaDownloadListener callback : getDownloadListeners()) {
             try {
                 callback.onDownloadStart(mUrl);
             } catch (Exception e) {
@@ -885,7 +1166,7 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
      * @param stats the new stats value
      */
     private void dispatchOnDownloadProgress(IMXMediaDownloadListener.DownloadStats stats) {
-        for(IMXMediaDownloadListener callback : mDownloadListeners) {
+        for(IMXMediaDownloadListener callback : getDownloadListeners()) {
             try {
                 callback.onDownloadProgress(mUrl, stats);
             } catch (Exception e) {
@@ -899,7 +1180,7 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
      * @param jsonElement the Json error
      */
     private void dispatchOnDownloadError(JsonElement jsonElement) {
-        for(IMXMediaDownloadListener callback : mDownloadListeners) {
+        for(IMXMediaDownloadListener callback : getDownloadListeners()) {
             try {
                 callback.onDownloadError(mUrl, jsonElement);
             } catch (Exception e) {
@@ -912,7 +1193,7 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
      * Dispatch end of download
      */
     private void dispatchOnDownloadComplete() {
-        for(IMXMediaDownloadListener callback : mDownloadListeners) {
+        for(IMXMediaDownloadListener callback : getDownloadListeners()) {
             try {
                 callback.onDownloadComplete(mUrl);
             } catch (Exception e) {
@@ -925,7 +1206,7 @@ class MXMediaDownloadWorkerTask extends AsyncTask<Integer, IMXMediaDownloadListe
      * Dispatch download cancel
      */
     private void dispatchDownloadCancel() {
-        for(IMXMediaDownloadListener callback : mDownloadListeners) {
+        for(IMXMediaDownloadListener callback : getDownloadListeners()) {
             try {
                 callback.onDownloadCancel(mUrl);
             } catch (Exception e) {
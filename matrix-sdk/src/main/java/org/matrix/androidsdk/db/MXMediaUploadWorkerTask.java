@@ -26,6 +26,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.matrix.androidsdk.listeners.IMXMediaUploadListener;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.client.MXRestRequestScheduler;
 import org.matrix.androidsdk.rest.model.ContentResponse;
 import org.matrix.androidsdk.rest.model.MatrixError;
 import org.matrix.androidsdk.ssl.CertUtil;
@@ -275,7 +276,14 @@ public class MXMediaUploadWorkerTask extends AsyncTask<Void, IMXMediaUploadListe
             }
         }
 
+        // the uploads have their own limit so that they do not delay the messages sending
+        MXRestRequestScheduler scheduler = MXRestRequestScheduler.getInstance(mContentManager.getHsConfig().getCredentials().userId);
+        boolean isScheduled = false;
+
         try {
+            scheduler.acquire(MXRestRequestScheduler.PRIORITY_UPLOAD);
+            isScheduled = true;
+
             URL url = new URL(urlString);
 
             conn = (HttpURLConnection) url.openConnection();
@@ -429,6 +437,10 @@ public class MXMediaUploadWorkerTask extends AsyncTask<Void, IMXMediaUploadListe
         } catch (Exception e) {
             serverResponse = e.getLocalizedMessage();
             Log.e(LOG_TAG, "doInBackground ; failed with error " + e.getClass() + " - " + e.getMessage());
+        } finally {
+            if (isScheduled) {
+                scheduler.release(MXRestRequestScheduler.PRIORITY_UPLOAD);
+            }
         }
 
         mResponseFromServer = serverResponse;
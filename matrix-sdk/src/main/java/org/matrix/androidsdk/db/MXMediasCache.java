@@ -19,11 +19,11 @@ package org.matrix.androidsdk.db;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Color;
 import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.text.TextUtils;
 import org.matrix.androidsdk.util.Log;
@@ -38,14 +38,14 @@ import org.matrix.androidsdk.listeners.MXMediaDownloadListener;
 import org.matrix.androidsdk.rest.model.EncryptedFileInfo;
 import org.matrix.androidsdk.util.ContentManager;
 import org.matrix.androidsdk.util.ContentUtils;
+import org.matrix.androidsdk.util.MXOsHandler;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.concurrent.RejectedExecutionException;
+import java.util.Collections;
 
 public class MXMediasCache {
 
@@ -59,6 +59,13 @@ public class MXMediasCache {
     private static final String MXMEDIA_STORE_IMAGES_FOLDER = "Images";
     private static final String MXMEDIA_STORE_OTHERS_FOLDER = "Others";
 
+    /**
+     * The default max size of the medias folders.
+     */
+    private static final long DEFAULT_IMAGES_CACHE_MAX_SIZE = 200L * 1024 * 1024;
+    private static final long DEFAULT_OTHERS_CACHE_MAX_SIZE = 200L * 1024 * 1024;
+    private static final long DEFAULT_THUMBNAILS_CACHE_MAX_SIZE = 50L * 1024 * 1024;
+
     /**
      * The content manager
      */
@@ -72,6 +79,20 @@ public class MXMediasCache {
     private File mOthersFolderFile = null;
     private File mThumbnailsFolderFile = null;
 
+    /**
+     * The LRU indexes of the medias folders.
+     * The thumbnails folder is shared by the sessions.
+     */
+    private MXMediaDiskCache mImagesDiskCache = null;
+    private MXMediaDiskCache mOthersDiskCache = null;
+    private static MXMediaDiskCache mThumbnailsDiskCache = null;
+
+    /**
+     * The disk caches background thread.
+     */
+    private static HandlerThread mDiskCacheHandlerThread = null;
+    private static MXOsHandler mDiskCacheHandler = null;
+
     /**
      * Clear the former medias cache.
      * The dirtree has been updated.
@@ -117,6 +138,81 @@ public class MXMediasCache {
         mOthersFolderFile = new File(mMediasFolderFile, MXMEDIA_STORE_OTHERS_FOLDER);
 
         mThumbnailsFolderFile = new File(mediaBaseFolderFile, MXMEDIA_STORE_MEMBER_THUMBNAILS_FOLDER);
+
+        synchronized (LOG_TAG) {
+            if (null == mDiskCacheHandlerThread) {
+                mDiskCacheHandlerThread = new HandlerThread("MXMediasCacheBackgroundThread", Thread.MIN_PRIORITY);
+                mDiskCacheHandlerThread.start();
+                mDiskCacheHandler = new MXOsHandler(mDiskCacheHandlerThread.getLooper());
+            }
+
+            if (null == mThumbnailsDiskCache) {
+                mThumbnailsDiskCache = new MXMediaDiskCache(mThumbnailsFolderFile, DEFAULT_THUMBNAILS_CACHE_MAX_SIZE, mDiskCacheHandler);
+            }
+        }
+
+        mImagesDiskCache = new MXMediaDiskCache(mImagesFolderFile, DEFAULT_IMAGES_CACHE_MAX_SIZE, mDiskCacheHandler);
+        mOthersDiskCache = new MXMediaDiskCache(mOthersFolderFile, DEFAULT_OTHERS_CACHE_MAX_SIZE, mDiskCacheHandler);
+    }
+
+    /**
+     * Update the max size of the medias folders.
+     * The least recently used medias are deleted in background when a folder is larger.
+     *
+     * @param imagesMaxSize     the images folder max size in bytes
+     * @param othersMaxSize     the other medias folder max size in bytes
+     * @param thumbnailsMaxSize the thumbnails folder max size in bytes
+     */
+    public void setCacheMaxSizes(long imagesMaxSize, long othersMaxSize, long thumbnailsMaxSize) {
+        mImagesDiskCache.setMaxSize(imagesMaxSize);
+        mOthersDiskCache.setMaxSize(othersMaxSize);
+        mThumbnailsDiskCache.setMaxSize(thumbnailsMaxSize);
+    }
+
+    /**
+     * Provides the LRU index of a medias folder.
+     *
+     * @param folderFile the folder
+     * @return the LRU index, null if the folder is not managed
+     */
+    private MXMediaDiskCache getDiskCache(File folderFile) {
+        if (mImagesFolderFile.equals(folderFile)) {
+            return mImagesDiskCache;
+        } else if (mOthersFolderFile.equals(folderFile)) {
+            return mOthersDiskCache;
+        } else if (mThumbnailsFolderFile.equals(folderFile)) {
+            return mThumbnailsDiskCache;
+        }
+
+        return null;
+    }
+
+    /**
+     * Warn the LRU index that a cached media has been used.
+     *
+     * @param folderFile the media folder
+     * @param fileName   the media file name
+     */
+    private void onCacheFileAccessed(File folderFile, String fileName) {
+        MXMediaDiskCache diskCache = getDiskCache(folderFile);
+
+        if (null != diskCache) {
+            diskCache.onFileAccessed(fileName);
+        }
+    }
+
+    /**
+     * Warn the LRU index that a media has been added to the cache.
+     *
+     * @param folderFile the media folder
+     * @param fileName   the media file name
+     */
+    private void onCacheFileAdded(File folderFile, String fileName) {
+        MXMediaDiskCache diskCache = getDiskCache(folderFile);
+
+        if (null != diskCache) {
+            diskCache.onFileAdded(fileName);
+        }
     }
 
     /**
@@ -171,38 +267,13 @@ public class MXMediasCache {
         return mThumbnailsFolderFile;
     }
 
-    /**
-     * Recursive method to compute a directory sie
-     * @param directory the directory.
-     * @return the directory size in bytes.
-     */
-    private long cacheSize(File directory) {
-        long size = 0;
-
-        File[] files = directory.listFiles();
-
-        if (null != files) {
-            for(int i=0; i<files.length; i++) {
-                File file = files[i];
-
-                if(!file.isDirectory()) {
-                    size += file.length();
-                } else {
-                    size += cacheSize(file);
-                }
-            }
-        }
-
-        return size;
-    }
-
     /**
      * Compute the medias cache size
      *
      * @return the medias cache size in bytes
      */
     public long cacheSize() {
-        return cacheSize(getMediasFolderFile());
+        return mImagesDiskCache.getSize() + mOthersDiskCache.getSize();
     }
 
     /**
@@ -210,6 +281,8 @@ public class MXMediasCache {
      */
     public void clear() {
         ContentUtils.deleteDirectory(getMediasFolderFile());
+        mImagesDiskCache.clear();
+        mOthersDiskCache.clear();
 
         // clear the media cache
         MXMediaDownloadWorkerTask.clearBitmapsCache();
@@ -226,6 +299,10 @@ public class MXMediasCache {
      */
     public static void clearThumbnailsCache(Context applicationContext) {
         ContentUtils.deleteDirectory(new File(new File(applicationContext.getApplicationContext().getFilesDir(), MXMediasCache.MXMEDIA_STORE_FOLDER), MXMEDIA_STORE_MEMBER_THUMBNAILS_FOLDER));
+
+        if (null != mThumbnailsDiskCache) {
+            mThumbnailsDiskCache.clear();
+        }
     }
 
     /**
@@ -267,6 +344,7 @@ public class MXMediasCache {
             File file = new File(getThumbnailsFolderFile(), filename);
 
             if (file.exists()) {
+                mThumbnailsDiskCache.onFileAccessed(filename);
                 return file;
             }
         } catch (Exception e) {
@@ -309,9 +387,11 @@ public class MXMediasCache {
                 filename = uri.getLastPathSegment();
             }
 
-            File file = new File(getFolderFile(mimeType), filename);
+            File folderFile = getFolderFile(mimeType);
+            File file = new File(folderFile, filename);
 
             if (file.exists()) {
+                onCacheFileAccessed(folderFile, filename);
                 return file;
             }
 
@@ -495,6 +575,8 @@ public class MXMediasCache {
                 srcFile.renameTo(destFile);
             }
 
+            onCacheFileAdded(getFolderFile(mimeType), filename);
+
         } catch (Exception e) {
             Log.e(LOG_TAG, "saveFileMediaForUrl failed " + e.getLocalizedMessage());
         }
@@ -535,7 +617,7 @@ public class MXMediasCache {
      * @return true if the avatar bitmap is cached.
      */
     public boolean isAvatarThumbnailCached(String url, int side) {
-        return MXMediaDownloadWorkerTask.isUrlCached(downloadableUrl(url, side, side));
+        return MXMediaDownloadWorkerTask.isUrlCached(downloadableUrl(url, side, side), side, side, 0);
     }
 
     /**
@@ -602,9 +684,6 @@ public class MXMediasCache {
         return loadBitmap(imageView.getContext(), hsConfig, imageView, url, width, height, rotationAngle, orientation, mimeType, getFolderFile(mimeType), encryptionInfo);
     }
 
-    // some tasks have been stacked because there are too many running ones.
-    private final ArrayList<MXMediaDownloadWorkerTask> mSuspendedTasks = new ArrayList<>();
-
     /**
      * Returns the download ID from the media URL.
      *
@@ -643,70 +722,23 @@ public class MXMediasCache {
         }
 
         // download it in background
-        MXMediaDownloadWorkerTask task = new MXMediaDownloadWorkerTask(context, hsConfig, getFolderFile(mimeType), downloadableUrl, mimeType, encryptionInfo);
-
-        // avoid crash if there are too many running task
-        try {
-            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Integer[])null);
-        } catch (RejectedExecutionException e) {
-            // too many tasks have been launched
-            synchronized (mSuspendedTasks) {
-                task.cancel(true);
-                // create a new task from the existing one
-                task = new MXMediaDownloadWorkerTask(task);
-                mSuspendedTasks.add(task);
-                // privacy
-                //Log.e(LOG_TAG, "Suspend the task " + task.getUrl());
-                Log.e(LOG_TAG, "Suspend the task " );
+        final File folderFile = getFolderFile(mimeType);
+        final String filename = MXMediaDownloadWorkerTask.buildFileName(downloadableUrl, mimeType);
+        MXMediaDownloadWorkerTask task = new MXMediaDownloadWorkerTask(context, hsConfig, folderFile, downloadableUrl, mimeType, encryptionInfo);
+
+        // index the downloaded file
+        task.addDownloadListener(new MXMediaDownloadListener() {
+            @Override
+            public void onDownloadComplete(String downloadId) {
+                onCacheFileAdded(folderFile, filename);
             }
+        });
 
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "downloadMedia failed " + e.getLocalizedMessage());
-        }
+        MXMediaDownloadScheduler.getInstance().schedule(task, MXMediaDownloadScheduler.PRIORITY_FILE);
 
         return downloadableUrl;
     }
 
-    /**
-     * Start any suspended task
-     */
-    private void launchSuspendedTask() {
-        synchronized (mSuspendedTasks)
-        {
-            // some task have been suspended because there were too many running ones ?
-            if (mSuspendedTasks.size() > 0) {
-
-                if (mSuspendedTasks.size() > 0) {
-                    MXMediaDownloadWorkerTask task = mSuspendedTasks.get(0);
-
-                    // privacy
-                    //Log.d(LOG_TAG, "Restart the task " + task.getUrl());
-                    Log.d(LOG_TAG, "Restart a task ");
-
-                    // avoid crash if there are too many running task
-                    try {
-                        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Integer[])null);
-                        mSuspendedTasks.remove(task);
-                    } catch (RejectedExecutionException e) {
-                        task.cancel(true);
-
-                        mSuspendedTasks.remove(task);
-                        // create a new task from the existing one
-                        task = new MXMediaDownloadWorkerTask(task);
-                        mSuspendedTasks.add(task);
-
-                        // privacy
-                        //Log.d(LOG_TAG, "Suspend again the task " + task.getUrl() + " - " + task.getStatus());
-                        Log.d(LOG_TAG, "Suspend again the task " + task.getStatus());
-
-                    } catch (Exception e) {
-                        Log.d(LOG_TAG, "Try to Restart a task fails " + e.getMessage());
-                    }
-                }
-            }
-        }
-    }
-
     /**
      * Handler to post events on UI thread
      */
@@ -768,7 +800,7 @@ public class MXMediasCache {
      * @param encryptionInfo the file encryption info
      * @return a download identifier if the image is not cached
      */
-    public String loadBitmap(Context context, HomeserverConnectionConfig hsConfig, final ImageView imageView, String url, int width, int height, int rotationAngle, int orientation, String mimeType, File folderFile, Bitmap aDefaultBitmap, EncryptedFileInfo encryptionInfo) {
+    public String loadBitmap(Context context, HomeserverConnectionConfig hsConfig, final ImageView imageView, String url, int width, int height, int rotationAngle, int orientation, String mimeType, final File folderFile, Bitmap aDefaultBitmap, EncryptedFileInfo encryptionInfo) {
         if (null == url) {
             return null;
         }
@@ -812,16 +844,31 @@ public class MXMediasCache {
             mimeType = "image/jpeg";
         }
 
+        // decode the image to the requested size, or to the ImageView size if it is known
+        int targetWidth = -1;
+        int targetHeight = -1;
+
+        if ((width > 0) && (height > 0)) {
+            targetWidth = width;
+            targetHeight = height;
+        } else if ((null != imageView) && (imageView.getWidth() > 0) && (imageView.getHeight() > 0)) {
+            targetWidth = imageView.getWidth();
+            targetHeight = imageView.getHeight();
+        }
+
         // check if the bitmap is already cached
-        final Bitmap bitmap = (MXMediaDownloadWorkerTask.isMediaUrlUnreachable(downloadableUrl)) ? defaultBimap : MXMediaDownloadWorkerTask.bitmapForURL(context.getApplicationContext(), folderFile, downloadableUrl, rotationAngle, mimeType);
+        final Bitmap bitmap = (MXMediaDownloadWorkerTask.isMediaUrlUnreachable(downloadableUrl)) ? defaultBimap : MXMediaDownloadWorkerTask.bitmapForURL(context.getApplicationContext(), folderFile, downloadableUrl, targetWidth, targetHeight, rotationAngle, mimeType,
+                (null != imageView) ? Collections.singletonList(imageView) : null);
 
         if (null != bitmap) {
+            onCacheFileAccessed(folderFile, MXMediaDownloadWorkerTask.buildFileName(downloadableUrl, mimeType));
+
             if (null != imageView) {
                 if (Looper.getMainLooper().getThread() == Thread.currentThread()) {
                     // display it
-                    imageView.setBackgroundColor(Color.TRANSPARENT);
-                    imageView.setImageBitmap(bitmap);
+                    MXMediaDownloadWorkerTask.displayBitmap(imageView, bitmap);
                 } else {
+                    // the bitmap has been flagged as displayed by bitmapForURL so it is not reused before being displayed
                     // init
                     if (null == mUIHandler) {
                         mUIHandler = new Handler(Looper.getMainLooper());
@@ -834,8 +881,7 @@ public class MXMediasCache {
                         public void run() {
                             if (TextUtils.equals(fDownloadableUrl, (String) imageView.getTag())) {
                                 // display it
-                                imageView.setBackgroundColor(Color.TRANSPARENT);
-                                imageView.setImageBitmap(bitmap);
+                                MXMediaDownloadWorkerTask.displayBitmap(imageView, bitmap);
                             }
                         }
                     });
@@ -846,10 +892,23 @@ public class MXMediasCache {
         } else {
             MXMediaDownloadWorkerTask currentTask = MXMediaDownloadWorkerTask.getMediaDownloadWorkerTask(downloadableUrl);
 
+            // the displayed medias are downloaded first
+            int priority;
+
+            if (null == imageView) {
+                priority = MXMediaDownloadScheduler.PRIORITY_PREFETCH;
+            } else if (((width > 0) && (height > 0)) || mThumbnailsFolderFile.equals(folderFile)) {
+                priority = MXMediaDownloadScheduler.PRIORITY_VISIBLE_THUMBNAIL;
+            } else {
+                priority = MXMediaDownloadScheduler.PRIORITY_FULL_IMAGE;
+            }
+
             if (null != currentTask) {
                 if (null != imageView) {
                     currentTask.addImageView(imageView);
                 }
+
+                MXMediaDownloadScheduler.getInstance().raisePriority(currentTask, priority);
             } else {
                 // download it in background
                 MXMediaDownloadWorkerTask task = new MXMediaDownloadWorkerTask(context, hsConfig, folderFile, downloadableUrl, rotationAngle, mimeType, encryptionInfo);
@@ -859,34 +918,19 @@ public class MXMediasCache {
                 }
 
                 task.setDefaultBitmap(defaultBimap);
+                task.setTargetSize(targetWidth, targetHeight);
+
+                final String filename = MXMediaDownloadWorkerTask.buildFileName(downloadableUrl, mimeType);
 
-                // check at the end of the download, if a suspended task can be launched again.
+                // index the downloaded file
                 task.addDownloadListener(new MXMediaDownloadListener() {
                     @Override
                     public void onDownloadComplete(String downloadId) {
-                        MXMediasCache.this.launchSuspendedTask();
+                        onCacheFileAdded(folderFile, filename);
                     }
                 });
 
-
-                // avoid crash if there are too many running task
-                try {
-                    task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Integer[])null);
-                } catch (RejectedExecutionException e) {
-                    // too many tasks have been launched
-                    synchronized (mSuspendedTasks) {
-                        task.cancel(true);
-                        // create a new task from the existing one
-                        task = new MXMediaDownloadWorkerTask(task);
-                        mSuspendedTasks.add(task);
-                        // privacy
-                        //Log.e(LOG_TAG, "Suspend the task " + task.getUrl());
-                        Log.e(LOG_TAG, "Suspend a task ");
-                    }
-
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "loadBitmap failed " + e.getLocalizedMessage());
-                }
+                MXMediaDownloadScheduler.getInstance().schedule(task, priority);
             }
         }
 
@@ -931,7 +975,21 @@ public class MXMediasCache {
         MXMediaDownloadWorkerTask currentTask = MXMediaDownloadWorkerTask.getMediaDownloadWorkerTask(downloadId);
 
         if (null != currentTask) {
-            currentTask.addDownloadListener(listener);
+            currentTask.addClientDownloadListener(listener);
+        }
+    }
+
+    /**
+     * Remove a download listener.
+     * A download is cancelled when it has no more client listener nor displayed ImageView.
+     * @param downloadId The downloadId.
+     * @param listener the download listener.
+     */
+    public void removeDownloadListener(String downloadId, IMXMediaDownloadListener listener) {
+        MXMediaDownloadWorkerTask currentTask = MXMediaDownloadWorkerTask.getMediaDownloadWorkerTask(downloadId);
+
+        if (null != currentTask) {
+            currentTask.removeClientDownloadListener(listener);
         }
     }
 
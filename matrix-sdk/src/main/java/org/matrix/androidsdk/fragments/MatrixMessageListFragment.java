@@ -321,10 +321,11 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
         }
 
         @Override
-        public void onEventDecrypted(Event event) {
+        public void onEventDecrypted(final Event event) {
             getUiHandler().post(new Runnable() {
                 @Override
                 public void run() {
+                    mAdapter.invalidateRenderedBody(event.eventId);
                     mAdapter.notifyDataSetChanged();
                 }
             });
@@ -2286,6 +2287,7 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
                                 mAdapter.removeEventById(event.getRedacts());
                             } else {
                                 messageRow.updateEvent(prunedEvent);
+                                mAdapter.invalidateRenderedBody(prunedEvent.eventId);
                                 JsonObject content = messageRow.getEvent().getContentAsJsonObject();
 
                                 boolean hasToRemoved = (null == content) || (null == content.entrySet()) || (0 == content.entrySet().size());
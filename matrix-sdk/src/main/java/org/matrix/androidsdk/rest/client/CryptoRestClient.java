@@ -41,6 +41,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
+import okhttp3.Request;
 import retrofit2.Response;
 
 public class CryptoRestClient extends RestClient<CryptoApi> {
@@ -54,6 +55,19 @@ public class CryptoRestClient extends RestClient<CryptoApi> {
         super(hsConfig, CryptoApi.class, URI_API_PREFIX_PATH_UNSTABLE, false, false);
     }
 
+    @Override
+    protected int getRequestPriority(Request request) {
+        String path = request.url().encodedPath();
+
+        // the devices keys, the one-time keys claims and the room keys sharing can delay a message sending
+        if (path.endsWith("/keys/query") || path.endsWith("/keys/claim") || path.contains("/sendToDevice/")) {
+            return MXRestRequestScheduler.PRIORITY_USER_READ;
+        }
+
+        // the keys uploads and the devices management are maintenance tasks
+        return MXRestRequestScheduler.PRIORITY_BACKGROUND;
+    }
+
     /**
      * Upload device and/or one-time keys.
      * @param deviceKeys the device keys to send.
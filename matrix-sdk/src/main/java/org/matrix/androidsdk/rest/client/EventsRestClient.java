@@ -17,6 +17,8 @@ package org.matrix.androidsdk.rest.client;
 
 import android.text.TextUtils;
 
+import com.google.gson.Gson;
+
 import org.matrix.androidsdk.HomeserverConnectionConfig;
 import org.matrix.androidsdk.RestClient;
 import org.matrix.androidsdk.rest.api.EventsApi;
@@ -31,12 +33,25 @@ import org.matrix.androidsdk.rest.model.Search.SearchParams;
 import org.matrix.androidsdk.rest.model.Search.SearchResponse;
 import org.matrix.androidsdk.rest.model.Search.SearchRoomEventCategoryParams;
 import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
+import org.matrix.androidsdk.sync.MXSyncMetrics;
 
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
 import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
 
 /**
  * Class used to make requests to the events API.
@@ -48,6 +63,12 @@ public class EventsRestClient extends RestClient<EventsApi> {
     private String mSearchPatternIdentifier = null;
     private String mSearchMediaNameIdentifier = null;
 
+    // the sync metrics
+    private MXSyncMetrics mSyncMetrics = null;
+
+    // the parsing end time of the sync responses, until their callback
+    private final Map<SyncResponse, Long> mSyncParsedTimes = Collections.synchronizedMap(new WeakHashMap<SyncResponse, Long>());
+
     /**
      * {@inheritDoc}
      */
@@ -55,6 +76,70 @@ public class EventsRestClient extends RestClient<EventsApi> {
         super(hsConfig, EventsApi.class, RestClient.URI_API_PREFIX_PATH_R0, false);
     }
 
+    /**
+     * Set the sync metrics.
+     * @param syncMetrics the sync metrics
+     */
+    public void setSyncMetrics(MXSyncMetrics syncMetrics) {
+        mSyncMetrics = syncMetrics;
+    }
+
+    @Override
+    protected Converter.Factory createConverterFactory(Gson gson) {
+        final GsonConverterFactory gsonConverterFactory = GsonConverterFactory.create(gson);
+
+        // the sync responses parsing is measured in the network thread
+        return new Converter.Factory() {
+            @Override
+            public Converter<ResponseBody, ?> responseBodyConverter(Type type, Annotation[] annotations, Retrofit retrofit) {
+                final Converter<ResponseBody, ?> converter = gsonConverterFactory.responseBodyConverter(type, annotations, retrofit);
+
+                if (SyncResponse.class != type) {
+                    return converter;
+                }
+
+                return new Converter<ResponseBody, SyncResponse>() {
+                    @Override
+                    public SyncResponse convert(ResponseBody body) throws IOException {
+                        MXSyncMetrics metrics = mSyncMetrics;
+                        long startTime = (null != metrics) ? metrics.startTimer() : 0;
+
+                        SyncResponse syncResponse = (SyncResponse) converter.convert(body);
+
+                        if ((null != metrics) && (0 != startTime)) {
+                            metrics.stopTimer(MXSyncMetrics.SYNC_PARSE, startTime);
+                            mSyncParsedTimes.put(syncResponse, metrics.startTimer());
+                        }
+
+                        return syncResponse;
+                    }
+                };
+            }
+
+            @Override
+            public Converter<?, RequestBody> requestBodyConverter(Type type, Annotation[] parameterAnnotations, Annotation[] methodAnnotations, Retrofit retrofit) {
+                return gsonConverterFactory.requestBodyConverter(type, parameterAnnotations, methodAnnotations, retrofit);
+            }
+        };
+    }
+
+    @Override
+    protected int getRequestPriority(Request request) {
+        if (request.url().encodedPath().endsWith("/sync")) {
+            // the long polls wait for the server timeout, they must not keep a sync slot
+            String timeout = request.url().queryParameter("timeout");
+
+            if ((null != timeout) && !TextUtils.equals(timeout, "0")) {
+                return MXRestRequestScheduler.PRIORITY_UNSCHEDULED;
+            }
+
+            return MXRestRequestScheduler.PRIORITY_SYNC;
+        }
+
+        // the public rooms and the search requests are reads
+        return MXRestRequestScheduler.PRIORITY_USER_READ;
+    }
+
     protected EventsRestClient(EventsApi api) {
         mApi = api;
     }
@@ -162,6 +247,9 @@ public class EventsRestClient extends RestClient<EventsApi> {
 
         final String description = "syncFromToken";
 
+        final MXSyncMetrics metrics = mSyncMetrics;
+        final long startTime = (null != metrics) ? metrics.startTimer() : 0;
+
         // Disable retry because it interferes with clientTimeout
         // Let the client manage retries on events streams
         mApi.sync(params).enqueue(new RestAdapterCallback<SyncResponse>(description, null, false, callback, new RestAdapterCallback.RequestRetryCallBack() {
@@ -169,7 +257,39 @@ public class EventsRestClient extends RestClient<EventsApi> {
             public void onRetry() {
                 syncFromToken(token, serverTimeout, clientTimeout, setPresence, filterId, callback);
             }
-        }));
+        }) {
+            @Override
+            public void success(SyncResponse syncResponse, Response<SyncResponse> response) {
+                if ((null != metrics) && metrics.isEnabled()) {
+                    metrics.increment(MXSyncMetrics.SYNC_REQUESTS_COUNT, 1);
+                    metrics.stopTimer(MXSyncMetrics.SYNC_ROUND_TRIP, startTime);
+
+                    okhttp3.Response rawResponse = response.raw();
+
+                    // the parsing has been measured by the converter
+                    Long parsedTime = mSyncParsedTimes.remove(syncResponse);
+
+                    if (null != parsedTime) {
+                        metrics.stopTimer(MXSyncMetrics.SYNC_DISPATCH, parsedTime);
+                    }
+
+                    if ((null != rawResponse.body()) && (rawResponse.body().contentLength() >= 0)) {
+                        metrics.record(MXSyncMetrics.SYNC_RESPONSE_BYTES, rawResponse.body().contentLength());
+                    }
+                }
+
+                super.success(syncResponse, response);
+            }
+
+            @Override
+            public void failure(Response<SyncResponse> response, Exception exception) {
+                if (null != metrics) {
+                    metrics.increment(MXSyncMetrics.SYNC_ERRORS_COUNT, 1);
+                }
+
+                super.failure(response, exception);
+            }
+        });
     }
 
     /**
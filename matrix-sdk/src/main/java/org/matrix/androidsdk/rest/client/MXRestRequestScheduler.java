@@ -0,0 +1,321 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.rest.client;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Schedules the network requests by priority class.
+ * Each class has its own concurrency limit and the requests share a global limit.
+ * When several requests are waiting, the request with the best rank is started first,
+ * but a waiting request gains one rank every STARVATION_DELAY_MS so that it cannot starve.
+ * The threads which execute the requests are blocked until their request can start,
+ * or until MAX_WAITING_DELAY_MS because a cancelled request cannot be detected while it is waiting.
+ * There is one scheduler per session so that the sessions do not share their limits.
+ */
+public class MXRestRequestScheduler {
+    private static final String LOG_TAG = "MXRestReqScheduler";
+
+    // the requests which are not counted by the scheduler (e.g. the sync long polls
+    // which keep their connection open until the server timeout)
+    public static final int PRIORITY_UNSCHEDULED = -1;
+
+    // the priority classes, from the most urgent one
+    // interactive sends (messages, state events)
+    public static final int PRIORITY_INTERACTIVE = 0;
+    // the events stream
+    public static final int PRIORITY_SYNC = 1;
+    // the user initiated reads (pagination, profiles...)
+    public static final int PRIORITY_USER_READ = 2;
+    // the prefetches and the crypto maintenance
+    public static final int PRIORITY_BACKGROUND = 3;
+    // the media uploads, they are ranked as the interactive sends
+    // but they have their own limit so that the long uploads do not delay the messages sending
+    public static final int PRIORITY_UPLOAD = 4;
+
+    private static final int PRIORITIES_COUNT = 5;
+
+    // the rank of each priority class, the smallest rank is started first
+    private static final int[] PRIORITY_RANKS = {0, 1, 2, 3, 0};
+
+    // the max number of running requests per priority class
+    private static final int[] MAX_RUNNING_REQUESTS = {4, 2, 4, 2, 2};
+
+    // the max number of running requests
+    private static final int MAX_RUNNING_REQUESTS_COUNT = 8;
+
+    // a waiting request gains a priority class after this delay
+    private static final long STARVATION_DELAY_MS = 2000;
+
+    // the max delay to wait for a slot, the request fails after it
+    static final long MAX_WAITING_DELAY_MS = 30000;
+
+    /**
+     * A waiting request.
+     */
+    private static class Waiter {
+        // the priority class
+        final int mPriority;
+        // the enqueue time
+        final long mEnqueueTs;
+
+        Waiter(int priority, long enqueueTs) {
+            mPriority = priority;
+            mEnqueueTs = enqueueTs;
+        }
+
+        /**
+         * Provides the current rank, the smallest rank is started first.
+         *
+         * @param now the current time
+         * @return the rank
+         */
+        long getRank(long now) {
+            return PRIORITY_RANKS[mPriority] * STARVATION_DELAY_MS - (now - mEnqueueTs);
+        }
+    }
+
+    // the instances by user id
+    private static final Map<String, MXRestRequestScheduler> mInstanceByUserId = new HashMap<>();
+
+    // the waiting requests
+    private final List<Waiter> mWaiters = new ArrayList<>();
+
+    // the running requests count by priority class
+    private final int[] mRunningCount = new int[PRIORITIES_COUNT];
+    private int mTotalRunningCount = 0;
+
+    // queueing delay statistics by priority class
+    private final long[] mStartedCount = new long[PRIORITIES_COUNT];
+    private final long[] mTotalQueueingDelay = new long[PRIORITIES_COUNT];
+    private final long[] mMaxQueueingDelay = new long[PRIORITIES_COUNT];
+
+    /**
+     * Provides the scheduler of a session.
+     *
+     * @param userId the session user id, null for the requests without session (e.g. login)
+     * @return the scheduler
+     */
+    public static MXRestRequestScheduler getInstance(String userId) {
+        String key = (null != userId) ? userId : "";
+
+        synchronized (mInstanceByUserId) {
+            MXRestRequestScheduler scheduler = mInstanceByUserId.get(key);
+
+            if (null == scheduler) {
+                scheduler = new MXRestRequestScheduler();
+                mInstanceByUserId.put(key, scheduler);
+            }
+
+            return scheduler;
+        }
+    }
+
+    /**
+     * Remove the scheduler of a session.
+     * The running requests release their slots on the removed instance.
+     *
+     * @param userId the session user id
+     */
+    public static void removeInstance(String userId) {
+        synchronized (mInstanceByUserId) {
+            mInstanceByUserId.remove((null != userId) ? userId : "");
+        }
+    }
+
+    /**
+     * Provides the current time.
+     * It is overridden in the tests to simulate the requests ageing.
+     *
+     * @return the current time in milliseconds
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Check a priority class value.
+     *
+     * @param priority the priority class
+     * @return a valid priority class
+     */
+    private static int checkPriority(int priority) {
+        return ((priority >= 0) && (priority < PRIORITIES_COUNT)) ? priority : PRIORITY_USER_READ;
+    }
+
+    /**
+     * Tells if a waiting request can be started now.
+     *
+     * @param waiter the waiting request
+     * @param now    the current time
+     * @return true if it can be started
+     */
+    private boolean canStart(Waiter waiter, long now) {
+        if ((mTotalRunningCount >= MAX_RUNNING_REQUESTS_COUNT) || (mRunningCount[waiter.mPriority] >= MAX_RUNNING_REQUESTS[waiter.mPriority])) {
+            return false;
+        }
+
+        long rank = waiter.getRank(now);
+
+        // a startable request with a better rank is started first
+        for (Waiter other : mWaiters) {
+            if ((other != waiter) && (mRunningCount[other.mPriority] < MAX_RUNNING_REQUESTS[other.mPriority])) {
+                long otherRank = other.getRank(now);
+
+                if ((otherRank < rank) || ((otherRank == rank) && (other.mEnqueueTs < waiter.mEnqueueTs))) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Wait until a request can be started.
+     * {@link #release(int)} must be called when the request is done.
+     *
+     * @param priority the priority class
+     * @throws IOException if the thread is interrupted or if no slot is available after MAX_WAITING_DELAY_MS
+     */
+    public void acquire(int priority) throws IOException {
+        priority = checkPriority(priority);
+
+        Waiter waiter = new Waiter(priority, currentTimeMillis());
+
+        synchronized (this) {
+            mWaiters.add(waiter);
+
+            try {
+                long now = currentTimeMillis();
+
+                while (!canStart(waiter, now)) {
+                    // the request may have been cancelled while it was waiting
+                    if ((now - waiter.mEnqueueTs) >= MAX_WAITING_DELAY_MS) {
+                        Log.e(LOG_TAG, "## acquire() : a request of class " + priority + " did not get a slot after " + (now - waiter.mEnqueueTs) + " ms");
+                        throw new IOException("No request slot is available");
+                    }
+
+                    // wake up to take the requests ageing into account
+                    wait(STARVATION_DELAY_MS / 4);
+                    now = currentTimeMillis();
+                }
+
+                long delay = now - waiter.mEnqueueTs;
+
+                mRunningCount[priority]++;
+                mTotalRunningCount++;
+                mStartedCount[priority]++;
+                mTotalQueueingDelay[priority] += delay;
+                mMaxQueueingDelay[priority] = Math.max(mMaxQueueingDelay[priority], delay);
+
+                if (delay > STARVATION_DELAY_MS) {
+                    Log.d(LOG_TAG, "## acquire() : a request of class " + priority + " waited " + delay + " ms");
+                }
+            } catch (InterruptedException e) {
+                Log.e(LOG_TAG, "## acquire() : interrupted");
+                throw new IOException("The request has been interrupted while waiting");
+            } finally {
+                mWaiters.remove(waiter);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * A request is done.
+     *
+     * @param priority the priority class used by {@link #acquire(int)}
+     */
+    public synchronized void release(int priority) {
+        priority = checkPriority(priority);
+
+        if (mRunningCount[priority] > 0) {
+            mRunningCount[priority]--;
+            mTotalRunningCount--;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Provides the average queueing delay of a priority class.
+     *
+     * @param priority the priority class
+     * @return the average delay in milliseconds
+     */
+    public synchronized long getAverageQueueingDelay(int priority) {
+        priority = checkPriority(priority);
+        return (0 != mStartedCount[priority]) ? (mTotalQueueingDelay[priority] / mStartedCount[priority]) : 0;
+    }
+
+    /**
+     * Provides the max queueing delay of a priority class.
+     *
+     * @param priority the priority class
+     * @return the max delay in milliseconds
+     */
+    public synchronized long getMaxQueueingDelay(int priority) {
+        return mMaxQueueingDelay[checkPriority(priority)];
+    }
+
+    /**
+     * Provides the number of waiting requests of a priority class.
+     *
+     * @param priority the priority class
+     * @return the waiting requests count
+     */
+    public synchronized int getWaitingCount(int priority) {
+        priority = checkPriority(priority);
+        int count = 0;
+
+        for (Waiter waiter : mWaiters) {
+            if (waiter.mPriority == priority) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Provides the number of running requests of a priority class.
+     *
+     * @param priority the priority class
+     * @return the running requests count
+     */
+    public synchronized int getRunningCount(int priority) {
+        return mRunningCount[checkPriority(priority)];
+    }
+
+    /**
+     * Reset the queueing delay statistics.
+     */
+    public synchronized void resetStats() {
+        for (int i = 0; i < PRIORITIES_COUNT; i++) {
+            mStartedCount[i] = 0;
+            mTotalQueueingDelay[i] = 0;
+            mMaxQueueingDelay[i] = 0;
+        }
+    }
+}
@@ -27,6 +27,11 @@ import org.matrix.androidsdk.rest.model.User;
  */
 public class PresenceRestClient extends RestClient<PresenceApi> {
 
+    // the presence responses are cached during 1 minute
+    private static final long PRESENCE_CACHE_TTL_MS = 60 * 1000;
+
+    private static final String PRESENCE_KEY_PREFIX = "presence/";
+
     /**
      * {@inheritDoc}
      */
@@ -61,13 +66,36 @@ public class PresenceRestClient extends RestClient<PresenceApi> {
      * @param callback on success callback containing a User object with populated presence and statusMsg fields
      */
     public void getPresence(final String userId, final ApiCallback<User> callback) {
+        coalescedGet(PRESENCE_KEY_PREFIX + userId, PRESENCE_CACHE_TTL_MS, callback, new GetRequest<User>() {
+            @Override
+            public void execute(ApiCallback<User> aCallback) {
+                sendPresenceRequest(userId, aCallback);
+            }
+        });
+    }
+
+    /**
+     * Send the presence state request.
+     * @param userId the user id
+     * @param callback on success callback
+     */
+    private void sendPresenceRequest(final String userId, final ApiCallback<User> callback) {
         final String description = "getPresence userId : " + userId;
 
         mApi.presenceStatus(userId).enqueue(new RestAdapterCallback<User>(description, mUnsentEventsManager, callback, new RestAdapterCallback.RequestRetryCallBack() {
             @Override
             public void onRetry() {
-                getPresence(userId, callback);
+                sendPresenceRequest(userId, callback);
             }
         }));
     }
+
+    /**
+     * Invalidate the cached presence of an user.
+     * It must be called when a presence event is received.
+     * @param userId the user id
+     */
+    public void invalidatePresenceCache(String userId) {
+        invalidateGetResponses(PRESENCE_KEY_PREFIX + userId);
+    }
 }
@@ -50,6 +50,12 @@ import retrofit2.Response;
 public class ProfileRestClient extends RestClient<ProfileApi> {
     private static final String LOG_TAG = "ProfileRestClient";
 
+    // the profile responses are cached during 5 minutes
+    private static final long PROFILE_CACHE_TTL_MS = 5 * 60 * 1000;
+
+    private static final String DISPLAY_NAME_KEY_PREFIX = "displayname/";
+    private static final String AVATAR_URL_KEY_PREFIX = "avatar_url/";
+
     /**
      * {@inheritDoc}
      */
@@ -57,18 +63,42 @@ public class ProfileRestClient extends RestClient<ProfileApi> {
         super(hsConfig, ProfileApi.class, "", false);
     }
 
+    /**
+     * Invalidate the cached profile of an user.
+     * It must be called when a profile update is received (membership event).
+     * @param userId the user id
+     */
+    public void invalidateProfileCache(String userId) {
+        invalidateGetResponses(DISPLAY_NAME_KEY_PREFIX + userId);
+        invalidateGetResponses(AVATAR_URL_KEY_PREFIX + userId);
+    }
+
     /**
      * Get the user's display name.
      * @param userId the user id
      * @param callback the callback to return the name on success
      */
     public void displayname(final String userId, final ApiCallback<String> callback) {
+        coalescedGet(DISPLAY_NAME_KEY_PREFIX + userId, PROFILE_CACHE_TTL_MS, callback, new GetRequest<String>() {
+            @Override
+            public void execute(ApiCallback<String> aCallback) {
+                sendDisplaynameRequest(userId, aCallback);
+            }
+        });
+    }
+
+    /**
+     * Send the display name request.
+     * @param userId the user id
+     * @param callback the callback to return the name on success
+     */
+    private void sendDisplaynameRequest(final String userId, final ApiCallback<String> callback) {
         final String description = "display name userId : " + userId;
 
         mApi.displayname(userId).enqueue(new RestAdapterCallback<User>(description, mUnsentEventsManager, callback, new RestAdapterCallback.RequestRetryCallBack() {
             @Override
             public void onRetry() {
-                displayname(userId, callback);
+                sendDisplaynameRequest(userId, callback);
             }
         }) {
             @Override
@@ -108,12 +138,26 @@ public class ProfileRestClient extends RestClient<ProfileApi> {
      * @param callback the callback to return the URL on success
      */
     public void avatarUrl(final String userId, final ApiCallback<String> callback) {
+        coalescedGet(AVATAR_URL_KEY_PREFIX + userId, PROFILE_CACHE_TTL_MS, callback, new GetRequest<String>() {
+            @Override
+            public void execute(ApiCallback<String> aCallback) {
+                sendAvatarUrlRequest(userId, aCallback);
+            }
+        });
+    }
+
+    /**
+     * Send the avatar URL request.
+     * @param userId the user id
+     * @param callback the callback to return the URL on success
+     */
+    private void sendAvatarUrlRequest(final String userId, final ApiCallback<String> callback) {
         final String description = "avatarUrl userId : " + userId;
 
         mApi.avatarUrl(userId).enqueue(new RestAdapterCallback<User>(description, mUnsentEventsManager, callback, new RestAdapterCallback.RequestRetryCallBack() {
             @Override
             public void onRetry() {
-                avatarUrl(userId, callback);
+                sendAvatarUrlRequest(userId, callback);
             }
         }) {
             @Override
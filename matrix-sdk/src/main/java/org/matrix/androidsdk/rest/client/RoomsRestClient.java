@@ -55,6 +55,12 @@ public class RoomsRestClient extends RestClient<RoomsApi> {
     private static final String LOG_TAG = "RoomsRestClient";
     public static final int DEFAULT_MESSAGES_PAGINATION_LIMIT = 30;
 
+    // the room alias and directory visibility responses are cached during 5 minutes
+    private static final long ROOM_CACHE_TTL_MS = 5 * 60 * 1000;
+
+    private static final String ROOM_ALIAS_KEY_PREFIX = "room_alias/";
+    private static final String DIRECTORY_VISIBILITY_KEY_PREFIX = "directory_visibility/";
+
     /**
      * {@inheritDoc}
      */
@@ -62,6 +68,15 @@ public class RoomsRestClient extends RestClient<RoomsApi> {
         super(hsConfig, RoomsApi.class, RestClient.URI_API_PREFIX_PATH_R0, false);
     }
 
+    /**
+     * Invalidate the cached room id of an alias.
+     * It must be called when the room aliases are updated.
+     * @param roomAlias the room alias, null to invalidate all of them
+     */
+    public void invalidateRoomAliasCache(String roomAlias) {
+        invalidateGetResponses(ROOM_ALIAS_KEY_PREFIX + ((null != roomAlias) ? roomAlias : ""));
+    }
+
     /**
      * Send a message to room
      * @param transactionId the unique transaction id (it should avoid duplicated messages)
@@ -506,6 +521,8 @@ public class RoomsRestClient extends RestClient<RoomsApi> {
     public void updateDirectoryVisibility(final String aRoomId, final String aDirectoryVisibility, final ApiCallback<Void> callback) {
         final String description = "updateRoomDirectoryVisibility : roomId=" + aRoomId + " visibility=" + aDirectoryVisibility;
 
+        invalidateGetResponses(DIRECTORY_VISIBILITY_KEY_PREFIX + aRoomId);
+
         RoomState roomState = new RoomState();
         roomState.visibility = aDirectoryVisibility;
 
@@ -528,12 +545,26 @@ public class RoomsRestClient extends RestClient<RoomsApi> {
      * @param callback on success callback containing a RoomState object populated with the directory visibility
      */
     public void getDirectoryVisibility(final String aRoomId, final ApiCallback<RoomState> callback) {
+        coalescedGet(DIRECTORY_VISIBILITY_KEY_PREFIX + aRoomId, ROOM_CACHE_TTL_MS, callback, new GetRequest<RoomState>() {
+            @Override
+            public void execute(ApiCallback<RoomState> aCallback) {
+                sendDirectoryVisibilityRequest(aRoomId, aCallback);
+            }
+        });
+    }
+
+    /**
+     * Send the directory visibility request.
+     * @param aRoomId the room ID
+     * @param callback on success callback
+     */
+    private void sendDirectoryVisibilityRequest(final String aRoomId, final ApiCallback<RoomState> callback) {
         final String description = "getRoomDirectoryVisibility userId=" + aRoomId;
 
         mApi.getRoomDirectoryVisibility(aRoomId).enqueue(new RestAdapterCallback<RoomState>(description, mUnsentEventsManager, callback, new RestAdapterCallback.RequestRetryCallBack() {
             @Override
             public void onRetry() {
-                getDirectoryVisibility(aRoomId, callback);
+                sendDirectoryVisibilityRequest(aRoomId, callback);
             }
         }));
     }
@@ -784,13 +815,27 @@ public class RoomsRestClient extends RestClient<RoomsApi> {
      * @param callback the operation callback
      */
     public void getRoomIdByAlias(final String roomAlias, final ApiCallback<RoomAliasDescription> callback) {
+        coalescedGet(ROOM_ALIAS_KEY_PREFIX + roomAlias, ROOM_CACHE_TTL_MS, callback, new GetRequest<RoomAliasDescription>() {
+            @Override
+            public void execute(ApiCallback<RoomAliasDescription> aCallback) {
+                sendRoomIdByAliasRequest(roomAlias, aCallback);
+            }
+        });
+    }
+
+    /**
+     * Send the room ID by alias request.
+     * @param roomAlias the room alias
+     * @param callback the callback
+     */
+    private void sendRoomIdByAliasRequest(final String roomAlias, final ApiCallback<RoomAliasDescription> callback) {
         final String description = "getRoomIdByAlias : "+ roomAlias;
 
         mApi.getRoomIdByAlias(roomAlias).enqueue(new RestAdapterCallback<RoomAliasDescription>(description, mUnsentEventsManager, callback, new RestAdapterCallback.RequestRetryCallBack() {
             @Override
             public void onRetry() {
                 try {
-                    getRoomIdByAlias(roomAlias, callback);
+                    sendRoomIdByAliasRequest(roomAlias, callback);
                 } catch (Exception e) {
                     Log.e(LOG_TAG, "resend getRoomIdByAlias : failed " + e.getLocalizedMessage());
                 }
@@ -807,6 +852,8 @@ public class RoomsRestClient extends RestClient<RoomsApi> {
     public void setRoomIdByAlias(final String roomId, final String roomAlias, final ApiCallback<Void> callback) {
         final String description = "setRoomIdByAlias : roomAlias " + roomAlias + " - roomId : " + roomId;
 
+        invalidateRoomAliasCache(roomAlias);
+
         RoomAliasDescription roomAliasDescription = new RoomAliasDescription();
         roomAliasDescription.room_id = roomId;
 
@@ -830,6 +877,8 @@ public class RoomsRestClient extends RestClient<RoomsApi> {
     public void removeRoomAlias(final String roomAlias, final ApiCallback<Void> callback) {
         final String description = "removeRoomAlias : "+ roomAlias;
 
+        invalidateRoomAliasCache(roomAlias);
+
         mApi.removeRoomAlias(roomAlias).enqueue(new RestAdapterCallback<Void>(description, mUnsentEventsManager, callback, new RestAdapterCallback.RequestRetryCallBack() {
             @Override
             public void onRetry() {
@@ -23,4 +23,7 @@ import java.util.List;
 public class DeviceListResponse {
     // user ids list which have new crypto devices
     public List<String> changed;
+
+    // user ids list who no longer share an encrypted room with the user
+    public List<String> left;
 }
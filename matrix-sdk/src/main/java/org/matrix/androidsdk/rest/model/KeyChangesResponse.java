@@ -22,5 +22,8 @@ import java.util.List;
  */
 public class KeyChangesResponse {
     // list of user ids which have new devices
-    List<String> changed;
+    public List<String> changed;
+
+    // list of user ids who no longer share an encrypted room with the user
+    public List<String> left;
 }
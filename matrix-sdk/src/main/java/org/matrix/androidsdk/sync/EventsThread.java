@@ -395,7 +395,7 @@ public class EventsThread extends Thread {
                 mSyncDelayTimer.schedule(new TimerTask() {
                     @Override
                     public void run() {
-                        Log.d(LOG_TAG, "start a sync after " + mRequestDelayMs + " ms");
+                        Log.d(LOG_TAG, "start a sync after %d ms", mRequestDelayMs);
 
                         synchronized (mSyncObject) {
                             mSyncObject.notify();
@@ -440,7 +440,7 @@ public class EventsThread extends Thread {
 
                 final CountDownLatch latch = new CountDownLatch(1);
 
-                Log.d(LOG_TAG, "Get events from token " + mCurrentToken);
+                Log.d(LOG_TAG, "Get events from token %s", mCurrentToken);
 
                 final int fServerTimeout = serverTimeout;
                 mNextServerTimeoutms = mDefaultServerTimeoutms;
@@ -468,7 +468,7 @@ public class EventsThread extends Thread {
                             Log.d(LOG_TAG, "Got event response");
                             mListener.onSyncResponse(syncResponse, mCurrentToken, (0 == mNextServerTimeoutms));
                             mCurrentToken = syncResponse.nextBatch;
-                            Log.d(LOG_TAG, "mCurrentToken is now set to " + mCurrentToken);
+                            Log.d(LOG_TAG, "mCurrentToken is now set to %s", mCurrentToken);
 
                         }
 
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.sync;
+
+import org.matrix.androidsdk.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counters and histograms of the sync pipeline.
+ * The durations are in microseconds, the sizes in bytes.
+ * The metrics are disabled by default : the instrumented code only checks a volatile boolean.
+ */
+public class MXSyncMetrics {
+    private static final String LOG_TAG = "MXSyncMetrics";
+
+    // histograms
+    // the sync request, from the request to the response callback
+    public static final String SYNC_ROUND_TRIP = "sync_round_trip_us";
+    // the sync response size (when it is provided by the server)
+    public static final String SYNC_RESPONSE_BYTES = "sync_response_bytes";
+    // the sync response body reading and parsing, in the converter
+    public static final String SYNC_PARSE = "sync_parse_us";
+    // the delay between the sync response parsing and its callback in the UI thread
+    public static final String SYNC_DISPATCH = "sync_dispatch_us";
+    // the management of a joined room sync
+    public static final String JOINED_ROOM_SYNC = "joined_room_sync_us";
+    // the decryption of an event
+    public static final String CRYPTO_DECRYPT = "crypto_decrypt_us";
+    // the decryption of a batch of events
+    public static final String CRYPTO_DECRYPT_BATCH = "crypto_decrypt_batch_us";
+    // the store commit after a sync
+    public static final String STORE_COMMIT = "store_commit_us";
+    // the dispatch of an event to the listeners
+    public static final String LISTENERS_DISPATCH = "listeners_dispatch_us";
+
+    // counters
+    public static final String SYNC_REQUESTS_COUNT = "sync_requests";
+    public static final String SYNC_ERRORS_COUNT = "sync_errors";
+    public static final String DECRYPTION_FAILURES_COUNT = "decryption_failures";
+
+    /**
+     * Metrics exporter.
+     * The values are provided in the thread which measures them, the exporter must be fast.
+     */
+    public interface Exporter {
+        /**
+         * A histogram value has been recorded.
+         *
+         * @param name  the histogram name
+         * @param value the value
+         */
+        void onValue(String name, long value);
+
+        /**
+         * A counter has been incremented.
+         *
+         * @param name  the counter name
+         * @param delta the increment
+         */
+        void onCount(String name, long delta);
+    }
+
+    /**
+     * A histogram with power of two buckets.
+     */
+    public static class Histogram {
+        // bucket i contains the values in [2^(i-1), 2^i[, bucket 0 contains the values <= 0
+        private final long[] mBuckets = new long[64];
+        private long mCount = 0;
+        private long mSum = 0;
+        private long mMin = Long.MAX_VALUE;
+        private long mMax = Long.MIN_VALUE;
+
+        /**
+         * Record a value.
+         *
+         * @param value the value
+         */
+        synchronized void record(long value) {
+            mBuckets[(value <= 0) ? 0 : (64 - Long.numberOfLeadingZeros(value))]++;
+            mCount++;
+            mSum += value;
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+        }
+
+        /**
+         * @return the values count
+         */
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the values sum
+         */
+        public synchronized long getSum() {
+            return mSum;
+        }
+
+        /**
+         * @return the min value, 0 if there is no value
+         */
+        public synchronized long getMin() {
+            return (0 != mCount) ? mMin : 0;
+        }
+
+        /**
+         * @return the max value, 0 if there is no value
+         */
+        public synchronized long getMax() {
+            return (0 != mCount) ? mMax : 0;
+        }
+
+        /**
+         * @return the average value, 0 if there is no value
+         */
+        public synchronized long getAverage() {
+            return (0 != mCount) ? (mSum / mCount) : 0;
+        }
+
+        /**
+         * Provides an upper bound of a percentile.
+         *
+         * @param percentile the percentile (0..100)
+         * @return the upper bound of the bucket which contains the percentile
+         */
+        public synchronized long getPercentile(int percentile) {
+            if (0 == mCount) {
+                return 0;
+            }
+
+            long rank = (mCount * percentile + 99) / 100;
+            long cumulated = 0;
+
+            for (int i = 0; i < mBuckets.length; i++) {
+                cumulated += mBuckets[i];
+
+                if (cumulated >= rank) {
+                    return Math.min(mMax, (0 == i) ? 0 : ((1L << i) - 1));
+                }
+            }
+
+            return mMax;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "count=" + mCount + " avg=" + getAverage() + " min=" + getMin() + " p50=" + getPercentile(50) + " p90=" + getPercentile(90) + " p99=" + getPercentile(99) + " max=" + getMax();
+        }
+    }
+
+    // tell if the metrics are recorded
+    private volatile boolean mIsEnabled = false;
+
+    // the exporters
+    private final List<Exporter> mExporters = new ArrayList<>();
+
+    // the histograms by name
+    private final HashMap<String, Histogram> mHistograms = new HashMap<>();
+
+    // the counters by name
+    private final HashMap<String, Long> mCounters = new HashMap<>();
+
+    /**
+     * Enable or disable the metrics.
+     *
+     * @param isEnabled true to record the metrics
+     */
+    public void setEnabled(boolean isEnabled) {
+        mIsEnabled = isEnabled;
+    }
+
+    /**
+     * @return true if the metrics are recorded
+     */
+    public boolean isEnabled() {
+        return mIsEnabled;
+    }
+
+    /**
+     * Add an exporter.
+     *
+     * @param exporter the exporter
+     */
+    public void addExporter(Exporter exporter) {
+        synchronized (mExporters) {
+            if (!mExporters.contains(exporter)) {
+                mExporters.add(exporter);
+            }
+        }
+    }
+
+    /**
+     * Remove an exporter.
+     *
+     * @param exporter the exporter
+     */
+    public void removeExporter(Exporter exporter) {
+        synchronized (mExporters) {
+            mExporters.remove(exporter);
+        }
+    }
+
+    /**
+     * @return a copy of the exporters list
+     */
+    private List<Exporter> getExportersSnapshot() {
+        synchronized (mExporters) {
+            return new ArrayList<>(mExporters);
+        }
+    }
+
+    /**
+     * Start a duration measure.
+     *
+     * @return the start time to provide to {@link #stopTimer(String, long)}, 0 when the metrics are disabled
+     */
+    public long startTimer() {
+        return mIsEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record a duration measure.
+     *
+     * @param name    the histogram name
+     * @param startNs the value returned by {@link #startTimer()}
+     */
+    public void stopTimer(String name, long startNs) {
+        if (mIsEnabled && (0 != startNs)) {
+            record(name, (System.nanoTime() - startNs) / 1000);
+        }
+    }
+
+    /**
+     * Record a histogram value.
+     *
+     * @param name  the histogram name
+     * @param value the value
+     */
+    public void record(String name, long value) {
+        if (!mIsEnabled) {
+            return;
+        }
+
+        Histogram histogram;
+
+        synchronized (mHistograms) {
+            histogram = mHistograms.get(name);
+
+            if (null == histogram) {
+                histogram = new Histogram();
+                mHistograms.put(name, histogram);
+            }
+        }
+
+        histogram.record(value);
+
+        for (Exporter exporter : getExportersSnapshot()) {
+            try {
+                exporter.onValue(name, value);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## record() : onValue failed " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Increment a counter.
+     *
+     * @param name  the counter name
+     * @param delta the increment
+     */
+    public void increment(String name, long delta) {
+        if (!mIsEnabled) {
+            return;
+        }
+
+        synchronized (mCounters) {
+            Long value = mCounters.get(name);
+            mCounters.put(name, ((null != value) ? value : 0) + delta);
+        }
+
+        for (Exporter exporter : getExportersSnapshot()) {
+            try {
+                exporter.onCount(name, delta);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "## increment() : onCount failed " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Provides a histogram.
+     *
+     * @param name the histogram name
+     * @return the histogram, null if no value has been recorded
+     */
+    public Histogram getHistogram(String name) {
+        synchronized (mHistograms) {
+            return mHistograms.get(name);
+        }
+    }
+
+    /**
+     * Provides a counter value.
+     *
+     * @param name the counter name
+     * @return the counter value
+     */
+    public long getCounter(String name) {
+        synchronized (mCounters) {
+            Long value = mCounters.get(name);
+            return (null != value) ? value : 0;
+        }
+    }
+
+    /**
+     * Reset the recorded metrics.
+     */
+    public void reset() {
+        synchronized (mHistograms) {
+            mHistograms.clear();
+        }
+
+        synchronized (mCounters) {
+            mCounters.clear();
+        }
+    }
+
+    /**
+     * Dump the metrics in a human readable format, for the bug reports.
+     *
+     * @return the metrics description
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Sync metrics (").append(mIsEnabled ? "enabled" : "disabled").append(")\n");
+
+        Map<String, Histogram> histograms;
+
+        synchronized (mHistograms) {
+            histograms = new TreeMap<>(mHistograms);
+        }
+
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            builder.append(entry.getKey()).append(" : ").append(entry.getValue()).append("\n");
+        }
+
+        Map<String, Long> counters;
+
+        synchronized (mCounters) {
+            counters = new TreeMap<>(mCounters);
+        }
+
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            builder.append(entry.getKey()).append(" : ").append(entry.getValue()).append("\n");
+        }
+
+        return builder.toString();
+    }
+}
@@ -18,33 +18,28 @@ package org.matrix.androidsdk.util;
 import android.text.TextUtils;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.logging.Formatter;
-import java.util.logging.FileHandler;
-import java.util.logging.Level;
-import java.util.logging.LogRecord;
-import java.util.logging.Logger;
 
 /**
  * Intended to mimic {@link android.util.Log} in terms of interface, but with a lot of extra behind the scenes stuff.
+ * The log files are written asynchronously by a background thread.
  */
 public class Log {
-    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
     private static final int LOG_SIZE_BYTES = 5 * 1024 * 1024; // 5MB
     
     // relatively large rotation count because closing > opening the app rotates the log (!)
     private static final int LOG_ROTATION_COUNT = 5;
-    
-    private static final Logger sLogger = Logger.getLogger("org.matrix.androidsdk");
-    private static FileHandler sFileHandler = null;
+
+    // max waiting time for the pending lines when the log files are requested
+    private static final long FLUSH_TIMEOUT_MS = 2000;
+
+    private static volatile LogWriter sLogWriter = null;
     private static File sCacheDirectory = null;
     private static String sFileName = "matrix";
+
+    // the min logged level (android.util.Log.VERBOSE..ASSERT)
+    private static volatile int sLogLevel = android.util.Log.VERBOSE;
     
     public enum EventTag {
         /** A navigation event, e.g. onPause */ NAVIGATION,
@@ -57,17 +52,42 @@ public class Log {
      * Initialises the logger. Should be called AFTER {@link Log#setLogDirectory(File)}.
      */
     public static void init(String fileName) {
-        try {
-            if (!TextUtils.isEmpty(fileName)) {
-                sFileName = fileName;
-            }
-            sFileHandler = new FileHandler(sCacheDirectory.getAbsolutePath()+"/" + sFileName + ".%g.txt", LOG_SIZE_BYTES, LOG_ROTATION_COUNT);
-            sFileHandler.setFormatter(new LogFormatter());
-            sLogger.setUseParentHandlers(false);
-            sLogger.setLevel(Level.ALL);
-            sLogger.addHandler(sFileHandler);
+        if (null == sCacheDirectory) {
+            return;
+        }
+
+        if (!TextUtils.isEmpty(fileName)) {
+            sFileName = fileName;
         }
-        catch (IOException e) {}
+
+        LogWriter previousWriter = sLogWriter;
+        sLogWriter = null;
+
+        if (null != previousWriter) {
+            previousWriter.flush(FLUSH_TIMEOUT_MS);
+            previousWriter.stop();
+        }
+
+        sLogWriter = new LogWriter(sCacheDirectory, sFileName, LOG_SIZE_BYTES, LOG_ROTATION_COUNT);
+    }
+
+    /**
+     * Set the min logged level.
+     * The lower levels are neither sent to logcat nor to the log files,
+     * and the parameterized messages are not formatted.
+     * @param level android.util.Log.VERBOSE..ASSERT
+     */
+    public static void setLogLevel(int level) {
+        sLogLevel = level;
+    }
+
+    /**
+     * Tells if a level is logged.
+     * @param level android.util.Log.VERBOSE..ASSERT
+     * @return true if the messages of this level are logged
+     */
+    public static boolean isLoggable(int level) {
+        return level >= sLogLevel;
     }
     
     /**
@@ -87,33 +107,51 @@ public class Log {
      * @return The same list with more files added.
      */
     public static List<File> addLogFiles(List<File> files) {
-        sFileHandler.flush();
-        String absPath = sCacheDirectory.getAbsolutePath();
-        
-        for (int i=0; i<=LOG_ROTATION_COUNT; i++) {
-            String filepath = absPath+"/"+sFileName+"."+i+".txt";
-            File file = new File(filepath);
+        LogWriter logWriter = sLogWriter;
+
+        if (null == logWriter) {
+            return files;
+        }
+
+        // write the pending lines
+        logWriter.flush(FLUSH_TIMEOUT_MS);
+
+        for (int i=0; i<LOG_ROTATION_COUNT; i++) {
+            File file = logWriter.getFile(i);
             if (file.exists()) {
                 files.add(file);
             }
         }
         return files;
     }
-    
+
+    /**
+     * Add a line to the log files.
+     * The line is written asynchronously.
+     * @param level the level
+     * @param tag the tag
+     * @param content the content
+     */
     public static void logToFile(String level, String tag, String content) {
-        if (null == sCacheDirectory) {
-            return;
+        LogWriter logWriter = sLogWriter;
+
+        if (null != logWriter) {
+            logWriter.offer(level, tag, content);
         }
+    }
 
-        StringBuilder b = new StringBuilder();
-        b.append(Thread.currentThread().getId());
-        b.append(" ");
-        b.append(level);
-        b.append("/");
-        b.append(tag);
-        b.append(": ");
-        b.append(content);
-        sLogger.info(b.toString());
+    /**
+     * Format a parameterized message.
+     * @param format the format (see {@link String#format(String, Object...)})
+     * @param args the arguments
+     * @return the message
+     */
+    private static String format(String format, Object... args) {
+        try {
+            return String.format(Locale.US, format, args);
+        } catch (Exception e) {
+            return format;
+        }
     }
     
     /**
@@ -135,53 +173,133 @@ public class Log {
     }
 
     public static void v(String tag, String content) {
-        android.util.Log.v(tag, content);
-        logToFile("V", tag, content);
+        if (isLoggable(android.util.Log.VERBOSE)) {
+            android.util.Log.v(tag, content);
+            logToFile("V", tag, content);
+        }
     }
     
     public static void v(String tag, String content, Throwable throwable) {
-        android.util.Log.v(tag, content, throwable);
-        logToFile("V", tag, content);
+        if (isLoggable(android.util.Log.VERBOSE)) {
+            android.util.Log.v(tag, content, throwable);
+            logToFile("V", tag, content);
+        }
+    }
+
+    /**
+     * The message is only formatted when the level is logged.
+     * @param tag the tag
+     * @param format the format (see {@link String#format(String, Object...)})
+     * @param args the arguments
+     */
+    public static void v(String tag, String format, Object... args) {
+        if (isLoggable(android.util.Log.VERBOSE)) {
+            v(tag, format(format, args));
+        }
     }
     
     public static void d(String tag, String content) {
-        android.util.Log.d(tag, content);
-        logToFile("D", tag, content);
+        if (isLoggable(android.util.Log.DEBUG)) {
+            android.util.Log.d(tag, content);
+            logToFile("D", tag, content);
+        }
     }
     
     public static void d(String tag, String content, Throwable throwable) {
-        android.util.Log.d(tag, content, throwable);
-        logToFile("D", tag, content);
+        if (isLoggable(android.util.Log.DEBUG)) {
+            android.util.Log.d(tag, content, throwable);
+            logToFile("D", tag, content);
+        }
+    }
+
+    /**
+     * The message is only formatted when the level is logged.
+     * @param tag the tag
+     * @param format the format (see {@link String#format(String, Object...)})
+     * @param args the arguments
+     */
+    public static void d(String tag, String format, Object... args) {
+        if (isLoggable(android.util.Log.DEBUG)) {
+            d(tag, format(format, args));
+        }
     }
     
     public static void i(String tag, String content) {
-        android.util.Log.i(tag, content);
-        logToFile("I", tag, content);
+        if (isLoggable(android.util.Log.INFO)) {
+            android.util.Log.i(tag, content);
+            logToFile("I", tag, content);
+        }
     }
     
     public static void i(String tag, String content, Throwable throwable) {
-        android.util.Log.i(tag, content, throwable);
-        logToFile("I", tag, content);
+        if (isLoggable(android.util.Log.INFO)) {
+            android.util.Log.i(tag, content, throwable);
+            logToFile("I", tag, content);
+        }
+    }
+
+    /**
+     * The message is only formatted when the level is logged.
+     * @param tag the tag
+     * @param format the format (see {@link String#format(String, Object...)})
+     * @param args the arguments
+     */
+    public static void i(String tag, String format, Object... args) {
+        if (isLoggable(android.util.Log.INFO)) {
+            i(tag, format(format, args));
+        }
     }
     
     public static void w(String tag, String content) {
-        android.util.Log.w(tag, content);
-        logToFile("W", tag, content);
+        if (isLoggable(android.util.Log.WARN)) {
+            android.util.Log.w(tag, content);
+            logToFile("W", tag, content);
+        }
     }
     
     public static void w(String tag, String content, Throwable throwable) {
-        android.util.Log.w(tag, content, throwable);
-        logToFile("W", tag, content);
+        if (isLoggable(android.util.Log.WARN)) {
+            android.util.Log.w(tag, content, throwable);
+            logToFile("W", tag, content);
+        }
+    }
+
+    /**
+     * The message is only formatted when the level is logged.
+     * @param tag the tag
+     * @param format the format (see {@link String#format(String, Object...)})
+     * @param args the arguments
+     */
+    public static void w(String tag, String format, Object... args) {
+        if (isLoggable(android.util.Log.WARN)) {
+            w(tag, format(format, args));
+        }
     }
     
     public static void e(String tag, String content) {
-        android.util.Log.e(tag, content);
-        logToFile("E", tag, content);
+        if (isLoggable(android.util.Log.ERROR)) {
+            android.util.Log.e(tag, content);
+            logToFile("E", tag, content);
+        }
     }
     
     public static void e(String tag, String content, Throwable throwable) {
-        android.util.Log.e(tag, content, throwable);
-        logToFile("E", tag, content);
+        if (isLoggable(android.util.Log.ERROR)) {
+            android.util.Log.e(tag, content, throwable);
+            logToFile("E", tag, content);
+        }
+    }
+
+    /**
+     * The message is only formatted when the level is logged.
+     * @param tag the tag
+     * @param format the format (see {@link String#format(String, Object...)})
+     * @param args the arguments
+     */
+    public static void e(String tag, String format, Object... args) {
+        if (isLoggable(android.util.Log.ERROR)) {
+            e(tag, format(format, args));
+        }
     }
     
     public static void wtf(String tag, String content) {
@@ -197,29 +315,4 @@ public class Log {
         logToFile("WTF", tag, content);
         android.util.Log.wtf(tag, content, throwable);
     }
-    
-    public static final class LogFormatter extends Formatter {
-        private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("MM-dd HH:mm:ss.SSS ", Locale.US);
-        
-        @Override
-        public String format(LogRecord r) {
-            Throwable thrown = r.getThrown();
-            if (thrown != null) {
-                StringWriter sw = new StringWriter();
-                PrintWriter pw = new PrintWriter(sw);
-                sw.write(r.getMessage());
-                sw.write(LINE_SEPARATOR);
-                thrown.printStackTrace(pw);
-                pw.flush();
-                return sw.toString();
-            } else {
-                StringBuilder b = new StringBuilder();
-                String date = DATE_FORMAT.format(new Date(r.getMillis()));
-                b.append(date);
-                b.append(r.getMessage());
-                b.append(LINE_SEPARATOR);
-                return b.toString();
-            }
-        }
-    }
-}
\ No newline at end of file
+}
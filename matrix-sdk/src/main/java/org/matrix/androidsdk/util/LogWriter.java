@@ -0,0 +1,380 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log files writer.
+ * The callers push the log lines in a lock-free bounded ring buffer, the lines are dropped when it is full.
+ * A single background thread formats them, writes them by batches and rotates the files.
+ * The current file is [fileName].0.txt, the older ones are [fileName].1.txt to [fileName].[rotationCount - 1].txt.
+ */
+class LogWriter {
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    // the ring buffer size (power of 2)
+    static final int BUFFER_SIZE = 4096;
+
+    // the writer thread wakes up at least with this period
+    private static final long FLUSH_PERIOD_MS = 250;
+
+    // the min delay between two attempts to reopen the current file after a write error
+    private static final long REOPEN_DELAY_MS = 5000;
+
+    /**
+     * A log line.
+     */
+    private static class Entry {
+        final long mTs;
+        final long mThreadId;
+        final String mLevel;
+        final String mTag;
+        final String mContent;
+
+        Entry(long ts, long threadId, String level, String tag, String content) {
+            mTs = ts;
+            mThreadId = threadId;
+            mLevel = level;
+            mTag = tag;
+            mContent = content;
+        }
+    }
+
+    // the ring buffer
+    private final AtomicReferenceArray<Entry> mSlots = new AtomicReferenceArray<>(BUFFER_SIZE);
+    // the next slot to read (only updated by the writer thread)
+    private final AtomicLong mHead = new AtomicLong(0);
+    // the next slot to claim
+    private final AtomicLong mTail = new AtomicLong(0);
+    // the number of dropped lines because the buffer was full
+    private final AtomicLong mDroppedCount = new AtomicLong(0);
+
+    // the files
+    private final File mDirectory;
+    private final String mFileName;
+    private final long mMaxFileSize;
+    private final int mRotationCount;
+
+    // the current file writer (writer thread only)
+    private Writer mWriter = null;
+    private long mFileSize = 0;
+    // the latest attempt to open the current file (writer thread only)
+    private long mOpenTs = 0;
+
+    // the timestamp formatter (writer thread only)
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS ", Locale.US);
+
+    // the pending flush request
+    private volatile CountDownLatch mFlushLatch = null;
+
+    private volatile boolean mIsStopped = false;
+    private final Thread mThread;
+
+    /**
+     * Constructor.
+     * The existing files are rotated.
+     *
+     * @param directory     the logs directory
+     * @param fileName      the files name prefix
+     * @param maxFileSize   the max size of a file
+     * @param rotationCount the max number of files
+     */
+    LogWriter(File directory, String fileName, long maxFileSize, int rotationCount) {
+        mDirectory = directory;
+        mFileName = fileName;
+        mMaxFileSize = maxFileSize;
+        mRotationCount = Math.max(1, rotationCount);
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writerLoop();
+            }
+        }, "LogWriter");
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Provides a log file.
+     *
+     * @param index the file index
+     * @return the file
+     */
+    File getFile(int index) {
+        return new File(mDirectory, mFileName + "." + index + ".txt");
+    }
+
+    /**
+     * Add a log line.
+     * It never blocks.
+     *
+     * @param level   the level
+     * @param tag     the tag
+     * @param content the content
+     * @return false if the line has been dropped
+     */
+    boolean offer(String level, String tag, String content) {
+        Entry entry = new Entry(System.currentTimeMillis(), Thread.currentThread().getId(), level, tag, content);
+
+        long tail;
+        long used;
+
+        do {
+            tail = mTail.get();
+            used = tail - mHead.get();
+
+            if (used >= BUFFER_SIZE) {
+                mDroppedCount.incrementAndGet();
+                return false;
+            }
+        } while (!mTail.compareAndSet(tail, tail + 1));
+
+        mSlots.set((int) (tail & (BUFFER_SIZE - 1)), entry);
+
+        // wake up the writer before the buffer is full
+        if (used == (BUFFER_SIZE / 2)) {
+            LockSupport.unpark(mThread);
+        }
+
+        return true;
+    }
+
+    /**
+     * Wait until the pending lines are written.
+     *
+     * @param timeoutMs the max waiting time
+     */
+    void flush(long timeoutMs) {
+        CountDownLatch latch = new CountDownLatch(1);
+        mFlushLatch = latch;
+        LockSupport.unpark(mThread);
+
+        try {
+            latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the writer thread after writing the pending lines.
+     */
+    void stop() {
+        mIsStopped = true;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * @return the number of dropped lines
+     */
+    long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * The writer thread loop.
+     */
+    private void writerLoop() {
+        rotate();
+
+        StringBuilder builder = new StringBuilder();
+
+        while (true) {
+            boolean isStopped = mIsStopped;
+            CountDownLatch flushLatch = mFlushLatch;
+
+            int count = drain(builder);
+
+            if (count > 0) {
+                if (!write(builder)) {
+                    mDroppedCount.addAndGet(count);
+                }
+                builder.setLength(0);
+            }
+
+            // a line claimed before the flush request could be still unpublished
+            if ((null != flushLatch) && (mHead.get() >= mTail.get())) {
+                mFlushLatch = null;
+                flushLatch.countDown();
+            }
+
+            if (isStopped) {
+                closeWriter();
+                return;
+            }
+
+            if (0 == count) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_PERIOD_MS));
+            }
+        }
+    }
+
+    /**
+     * Format the published lines.
+     *
+     * @param builder the output
+     * @return the number of lines
+     */
+    private int drain(StringBuilder builder) {
+        int count = 0;
+        long head = mHead.get();
+
+        while (true) {
+            int index = (int) (head & (BUFFER_SIZE - 1));
+            Entry entry = mSlots.get(index);
+
+            // not yet published
+            if (null == entry) {
+                break;
+            }
+
+            mSlots.set(index, null);
+            head++;
+            mHead.set(head);
+
+            builder.append(mDateFormat.format(new Date(entry.mTs)));
+            builder.append(entry.mThreadId);
+            builder.append(" ");
+            builder.append(entry.mLevel);
+            builder.append("/");
+            builder.append(entry.mTag);
+            builder.append(": ");
+            builder.append(entry.mContent);
+            builder.append(LINE_SEPARATOR);
+
+            count++;
+        }
+
+        long dropped = mDroppedCount.getAndSet(0);
+
+        if (dropped > 0) {
+            builder.append(mDateFormat.format(new Date())).append("W/LogWriter: ").append(dropped).append(" log lines have been dropped").append(LINE_SEPARATOR);
+        }
+
+        return count;
+    }
+
+    /**
+     * Write a batch of lines and flush it.
+     * The current file is reopened after a write error.
+     *
+     * @param builder the lines
+     * @return false if the lines have not been written
+     */
+    private boolean write(StringBuilder builder) {
+        try {
+            if ((null == mWriter) && ((System.currentTimeMillis() - mOpenTs) >= REOPEN_DELAY_MS)) {
+                openWriter();
+            }
+
+            if ((null != mWriter) && (mFileSize >= mMaxFileSize)) {
+                rotate();
+            }
+
+            if (null != mWriter) {
+                mWriter.write(builder.toString());
+                mWriter.flush();
+                // approximation : the logs are mostly ASCII
+                mFileSize += builder.length();
+                return true;
+            }
+        } catch (IOException e) {
+            android.util.Log.e("LogWriter", "## write() failed " + e.getMessage());
+            closeWriter();
+        }
+
+        return false;
+    }
+
+    /**
+     * Open the current file, the lines are appended to it.
+     */
+    private void openWriter() {
+        mOpenTs = System.currentTimeMillis();
+
+        try {
+            File file = getFile(0);
+            mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 16 * 1024);
+            mFileSize = file.length();
+        } catch (IOException e) {
+            android.util.Log.e("LogWriter", "## openWriter() failed " + e.getMessage());
+            mWriter = null;
+        }
+    }
+
+    /**
+     * Close the current file, shift the files and open a new one.
+     */
+    private void rotate() {
+        closeWriter();
+
+        File oldest = getFile(mRotationCount - 1);
+
+        if (oldest.exists()) {
+            oldest.delete();
+        }
+
+        for (int i = mRotationCount - 2; i >= 0; i--) {
+            File file = getFile(i);
+
+            if (file.exists()) {
+                file.renameTo(getFile(i + 1));
+            }
+        }
+
+        mOpenTs = System.currentTimeMillis();
+
+        try {
+            mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(getFile(0)), "UTF-8"), 16 * 1024);
+            mFileSize = 0;
+        } catch (IOException e) {
+            android.util.Log.e("LogWriter", "## rotate() failed " + e.getMessage());
+            mWriter = null;
+        }
+    }
+
+    /**
+     * Close the current file.
+     */
+    private void closeWriter() {
+        if (null != mWriter) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                android.util.Log.e("LogWriter", "## closeWriter() failed " + e.getMessage());
+            }
+
+            mWriter = null;
+        }
+    }
+}
@@ -21,16 +21,22 @@ import android.text.TextUtils;
 import org.matrix.androidsdk.util.Log;
 
 import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.data.store.MXOutbox;
 import org.matrix.androidsdk.listeners.IMXNetworkEventListener;
+import org.matrix.androidsdk.listeners.MXEventListener;
 import org.matrix.androidsdk.network.NetworkConnectivityReceiver;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.callback.RestAdapterCallback;
+import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
+import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.MatrixError;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Timer;
@@ -58,6 +64,9 @@ public class UnsentEventsManager {
     // The jitter value to apply to compute a random retry time.
     private static final int RETRY_JITTER_MS = 3000;
 
+    // max number of rooms whose outbox is flushed in parallel
+    private static final int MAX_PARALLEL_OUTBOX_ROOMS = 3;
+
     // the network receiver
     private final NetworkConnectivityReceiver mNetworkConnectivityReceiver;
     // faster way to check if the event is already sent
@@ -67,6 +76,11 @@ public class UnsentEventsManager {
     // true of the device is connected to a data network
     private boolean mbIsConnected = false;
 
+    // the rooms whose outbox must be flushed
+    private final ArrayList<String> mOutboxRoomIdsToFlush = new ArrayList<>();
+    // the rooms whose outbox is being flushed
+    private final HashSet<String> mOutboxRoomIdsInProgress = new HashSet<>();
+
     // matrix error management
     private final MXDataHandler mDataHandler;
 
@@ -172,6 +186,7 @@ public class UnsentEventsManager {
 
                 if (isConnected) {
                     resentUnsents();
+                    resendOutbox();
                 }
             }
         });
@@ -179,6 +194,14 @@ public class UnsentEventsManager {
         mbIsConnected = mNetworkConnectivityReceiver.isConnected();
 
         mDataHandler = dataHandler;
+
+        // the rooms can only be used once they are synced
+        mDataHandler.addListener(new MXEventListener() {
+            @Override
+            public void onInitialSyncComplete(String toToken) {
+                resendOutbox();
+            }
+        });
     }
 
     /**
@@ -224,6 +247,18 @@ public class UnsentEventsManager {
             mUnsentEvents.clear();
             mUnsentEventsMap.clear();
         }
+
+        synchronized (mOutboxRoomIdsInProgress) {
+            mOutboxRoomIdsToFlush.clear();
+            mOutboxRoomIdsInProgress.clear();
+        }
+    }
+
+    /**
+     * @return the number of events waiting to be sent
+     */
+    public int getPendingEventsCount() {
+        return mDataHandler.getStore().getOutbox().getPendingCount();
     }
 
     /**
@@ -507,4 +542,146 @@ public class UnsentEventsManager {
             }
         }
     }
+
+    //================================================================================
+    // Outbox
+    //================================================================================
+
+    /**
+     * Resend the outbox events.
+     * The rooms are flushed in parallel (up to MAX_PARALLEL_OUTBOX_ROOMS)
+     * but the events of a room are sent one after the other to keep their order.
+     */
+    public void resendOutbox() {
+        if (!mbIsConnected || !mDataHandler.isAlive()) {
+            return;
+        }
+
+        MXOutbox outbox = mDataHandler.getStore().getOutbox();
+
+        if (0 == outbox.getPendingCount()) {
+            return;
+        }
+
+        List<String> roomIds = outbox.getRoomIds();
+
+        Log.d(LOG_TAG, "## resendOutbox() : " + outbox.getPendingCount() + " events in " + roomIds.size() + " rooms");
+
+        synchronized (mOutboxRoomIdsInProgress) {
+            for (String roomId : roomIds) {
+                if (!mOutboxRoomIdsInProgress.contains(roomId) && !mOutboxRoomIdsToFlush.contains(roomId)) {
+                    mOutboxRoomIdsToFlush.add(roomId);
+                }
+            }
+        }
+
+        flushNextOutboxRooms();
+    }
+
+    /**
+     * Start to flush the next rooms outbox while there is an available slot.
+     */
+    private void flushNextOutboxRooms() {
+        List<String> roomIdsToStart = new ArrayList<>();
+
+        synchronized (mOutboxRoomIdsInProgress) {
+            while ((mOutboxRoomIdsInProgress.size() < MAX_PARALLEL_OUTBOX_ROOMS) && !mOutboxRoomIdsToFlush.isEmpty()) {
+                String roomId = mOutboxRoomIdsToFlush.remove(0);
+                mOutboxRoomIdsInProgress.add(roomId);
+                roomIdsToStart.add(roomId);
+            }
+        }
+
+        for (String roomId : roomIdsToStart) {
+            resendNextOutboxEvent(roomId);
+        }
+    }
+
+    /**
+     * Provides the first outbox event of a room which must be resent.
+     * The undeliverable events are skipped : they are only resent on user request.
+     *
+     * @param roomId the room id
+     * @return the event, null if there is none
+     */
+    private Event getNextOutboxEvent(String roomId) {
+        for (Event event : mDataHandler.getStore().getOutbox().getPendingEvents(roomId)) {
+            if ((event.mSentState != Event.SentState.UNDELIVERABLE) && (event.mSentState != Event.SentState.FAILED_UNKNOWN_DEVICES)) {
+                return event;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Send the first outbox event of a room.
+     *
+     * @param roomId the room id
+     */
+    private void resendNextOutboxEvent(final String roomId) {
+        final Event event = getNextOutboxEvent(roomId);
+        Room room = mDataHandler.getStore().getRoom(roomId);
+
+        // do not send an event twice : it is already managed by the standard flow
+        if ((null == event) || (null == room) || !room.isReady() ||
+                (event.mSentState == Event.SentState.SENDING) || (event.mSentState == Event.SentState.ENCRYPTING)) {
+            onOutboxRoomDone(roomId, false);
+            return;
+        }
+
+        Log.d(LOG_TAG, "## resendNextOutboxEvent() : resend " + event.eventId + " in " + roomId);
+
+        room.sendEvent(event, new SimpleApiCallback<Void>() {
+            @Override
+            public void onSuccess(Void info) {
+                resendNextOutboxEvent(roomId);
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                // the event stays in the outbox, it will be resent with the next connection
+                onOutboxRoomDone(roomId, true);
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                if (TextUtils.equals(MatrixError.UNKNOWN_TOKEN, e.errcode)) {
+                    // the next events would be refused too
+                    onOutboxRoomDone(roomId, true);
+                } else {
+                    // the event has been removed from the outbox, try the next one
+                    resendNextOutboxEvent(roomId);
+                }
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                resendNextOutboxEvent(roomId);
+            }
+        });
+    }
+
+    /**
+     * The outbox flush of a room is completed or stopped.
+     *
+     * @param roomId         the room id
+     * @param isNetworkError true if the flush has been stopped by a network error
+     */
+    private void onOutboxRoomDone(String roomId, boolean isNetworkError) {
+        synchronized (mOutboxRoomIdsInProgress) {
+            mOutboxRoomIdsInProgress.remove(roomId);
+
+            // wait for the next connection
+            if (isNetworkError) {
+                mOutboxRoomIdsToFlush.clear();
+            }
+        }
+
+        Log.d(LOG_TAG, "## onOutboxRoomDone() : " + mDataHandler.getStore().getOutbox().getPendingCount(roomId) + " pending events in " + roomId);
+
+        if (!isNetworkError) {
+            flushNextOutboxRooms();
+        }
+    }
 }
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.data.EventTimeline;
+import org.matrix.androidsdk.data.RoomState;
+import org.matrix.androidsdk.data.store.MXMemoryStore;
+import org.matrix.androidsdk.listeners.MXEventListener;
+import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.Search.SearchResponse;
+import org.matrix.androidsdk.rest.model.TokensChunkResponse;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.matrix.androidsdk.test.FakeHomeserver;
+import org.matrix.androidsdk.test.FakeSyncGenerator;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Offline load test of the sync pipeline, against a FakeHomeserver.
+ * It measures the initial sync latency, the end-to-end latency and the throughput of the incremental syncs
+ * (from the server response to onLiveEventsChunkProcessed) and the heap high-water mark.
+ *
+ * The account size is set with the system properties (the default values keep the test short) :
+ * syncload.rooms, syncload.members, syncload.events, syncload.history,
+ * syncload.batches, syncload.roomsPerBatch, syncload.eventsPerRoom, syncload.encrypted.
+ * It is not run by the default test task : it is enabled by setting one of these properties
+ * (e.g. ./gradlew test -Psyncload.enabled).
+ * The encrypted rooms are not decrypted : the olm library is not available on the JVM.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SyncLoadTest {
+    private static final String USER_ID = "@loadtest:" + FakeSyncGenerator.SERVER_NAME;
+
+    // the max duration of a test step
+    private static final long STEP_TIMEOUT_MS = 120000;
+
+    private int mRoomsCount;
+    private int mBatchesCount;
+    private int mRoomsPerBatch;
+    private int mEventsPerRoom;
+
+    private FakeSyncGenerator mGenerator;
+    private FakeHomeserver mHomeserver;
+    private MXSession mSession;
+
+    /**
+     * Provides an integer system property.
+     *
+     * @param name         the property name
+     * @param defaultValue the default value
+     * @return the value
+     */
+    private static int intProperty(String name, int defaultValue) {
+        try {
+            return Integer.parseInt(System.getProperty(name, "" + defaultValue));
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mRoomsCount = intProperty("syncload.rooms", 50);
+        mBatchesCount = intProperty("syncload.batches", 20);
+        mRoomsPerBatch = intProperty("syncload.roomsPerBatch", 5);
+        mEventsPerRoom = intProperty("syncload.eventsPerRoom", 2);
+
+        mGenerator = new FakeSyncGenerator(USER_ID,
+                mRoomsCount,
+                intProperty("syncload.members", 10),
+                intProperty("syncload.events", 10),
+                intProperty("syncload.history", 50),
+                Boolean.getBoolean("syncload.encrypted"));
+
+        mHomeserver = new FakeHomeserver(mGenerator);
+        mHomeserver.setSyncBatches(mBatchesCount, mRoomsPerBatch, mEventsPerRoom);
+        mHomeserver.start();
+
+        Credentials credentials = new Credentials();
+        credentials.userId = USER_ID;
+        credentials.accessToken = "loadtest_token";
+        credentials.homeServer = FakeSyncGenerator.SERVER_NAME;
+        credentials.deviceId = "LOADTEST";
+
+        HomeserverConnectionConfig hsConfig = new HomeserverConnectionConfig(Uri.parse(mHomeserver.getUrl()));
+        hsConfig.setCredentials(credentials);
+
+        MXDataHandler dataHandler = new MXDataHandler(new MXMemoryStore(credentials, RuntimeEnvironment.application), credentials, new MXDataHandler.InvalidTokenListener() {
+            @Override
+            public void onTokenCorrupted() {
+            }
+        });
+
+        mSession = new MXSession(hsConfig, dataHandler, RuntimeEnvironment.application);
+        mSession.getDataHandler().getSyncMetrics().setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        if (null != mSession) {
+            mSession.stopEventStream();
+        }
+
+        if (null != mHomeserver) {
+            mHomeserver.shutdown();
+        }
+    }
+
+    /**
+     * Wait for a latch, the UI thread tasks are run while waiting.
+     *
+     * @param latch     the latch
+     * @param timeoutMs the max waiting time
+     * @return true if the latch has been released
+     * @throws InterruptedException if the thread is interrupted
+     */
+    private static boolean await(CountDownLatch latch, long timeoutMs) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMs;
+
+        while (System.currentTimeMillis() < end) {
+            if (latch.await(10, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+
+            ShadowLooper.runUiThreadTasks();
+        }
+
+        return false;
+    }
+
+    /**
+     * Reset the heap pools peak usage.
+     */
+    private static void resetHeapPeak() {
+        System.gc();
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return the heap high-water mark since the last resetHeapPeak call, in bytes
+     */
+    private static long getHeapPeak() {
+        long peak = 0;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        return peak;
+    }
+
+    /**
+     * Provides a percentile of a sorted values list.
+     *
+     * @param sortedValues the sorted values
+     * @param percentile   the percentile (0..100)
+     * @return the value
+     */
+    private static long percentile(List<Long> sortedValues, int percentile) {
+        if (sortedValues.isEmpty()) {
+            return 0;
+        }
+
+        int index = Math.min(sortedValues.size() - 1, (sortedValues.size() * percentile + 99) / 100 - 1);
+        return sortedValues.get(Math.max(0, index));
+    }
+
+    @Test
+    public void testSyncLoad() throws Exception {
+        final String lastToken = FakeSyncGenerator.syncToken(mBatchesCount);
+
+        final CountDownLatch initialSyncLatch = new CountDownLatch(1);
+        final CountDownLatch lastBatchLatch = new CountDownLatch(1);
+        final AtomicInteger liveEventsCount = new AtomicInteger(0);
+        final List<Long> batchLatencies = Collections.synchronizedList(new ArrayList<Long>());
+        final long[] lastBatchProcessedTime = new long[1];
+        final long firstIncrementalEventTs = mGenerator.getFirstIncrementalEventTs();
+
+        mSession.getDataHandler().addListener(new MXEventListener() {
+            @Override
+            public void onInitialSyncComplete(String toToken) {
+                initialSyncLatch.countDown();
+            }
+
+            @Override
+            public void onLiveEvent(Event event, RoomState roomState) {
+                // only count the events of the incremental syncs
+                if ((event.getOriginServerTs() >= firstIncrementalEventTs) && (Event.EVENT_TYPE_MESSAGE.equals(event.getType()) || Event.EVENT_TYPE_MESSAGE_ENCRYPTED.equals(event.getType()))) {
+                    liveEventsCount.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onLiveEventsChunkProcessed(String fromToken, String toToken) {
+                Long responseTime = mHomeserver.getSyncResponseTime(toToken);
+
+                if ((null != responseTime) && (FakeSyncGenerator.batchIndex(toToken) > 0)) {
+                    long now = System.nanoTime();
+                    batchLatencies.add((now - responseTime) / 1000000);
+
+                    if (lastToken.equals(toToken)) {
+                        lastBatchProcessedTime[0] = now;
+                        lastBatchLatch.countDown();
+                    }
+                }
+            }
+        });
+
+        // initial sync
+        resetHeapPeak();
+        long startTime = System.nanoTime();
+
+        mSession.getDataHandler().getStore().open();
+        mSession.startEventStream(null);
+
+        assertTrue("the initial sync is not complete", await(initialSyncLatch, STEP_TIMEOUT_MS));
+
+        long initialSyncMs = (System.nanoTime() - startTime) / 1000000;
+        long initialSyncHeapPeak = getHeapPeak();
+
+        assertEquals(mRoomsCount, mSession.getDataHandler().getStore().getRooms().size());
+
+        // incremental syncs
+        resetHeapPeak();
+
+        if (mBatchesCount > 0) {
+            assertTrue("the incremental syncs are not complete", await(lastBatchLatch, STEP_TIMEOUT_MS));
+        }
+
+        Long firstBatchTime = mHomeserver.getSyncResponseTime(FakeSyncGenerator.syncToken(1));
+
+        long incrementalHeapPeak = getHeapPeak();
+        int expectedEventsCount = mBatchesCount * Math.min(mRoomsPerBatch, mRoomsCount) * mEventsPerRoom;
+
+        assertEquals(expectedEventsCount, liveEventsCount.get());
+
+        double incrementalDurationS = ((null != firstBatchTime) && (0 != lastBatchProcessedTime[0])) ? (lastBatchProcessedTime[0] - firstBatchTime) / 1e9 : 0;
+
+        // pagination and search
+        final CountDownLatch paginationLatch = new CountDownLatch(1);
+        final int[] paginatedCount = new int[1];
+
+        long paginationStartTime = System.nanoTime();
+
+        mSession.getRoomsApiClient().getRoomMessagesFrom(FakeSyncGenerator.roomId(0), null, EventTimeline.Direction.BACKWARDS, 30, new SimpleApiCallback<TokensChunkResponse<Event>>() {
+            @Override
+            public void onSuccess(TokensChunkResponse<Event> response) {
+                paginatedCount[0] = (null != response.chunk) ? response.chunk.size() : 0;
+                paginationLatch.countDown();
+            }
+        });
+
+        assertTrue("the pagination failed", await(paginationLatch, STEP_TIMEOUT_MS));
+        long paginationMs = (System.nanoTime() - paginationStartTime) / 1000000;
+
+        final CountDownLatch searchLatch = new CountDownLatch(1);
+
+        mSession.getEventsApiClient().searchMessagesByText("matrix", null, 0, 0, null, new SimpleApiCallback<SearchResponse>() {
+            @Override
+            public void onSuccess(SearchResponse response) {
+                searchLatch.countDown();
+            }
+        });
+
+        assertTrue("the search failed", await(searchLatch, STEP_TIMEOUT_MS));
+
+        // report
+        List<Long> sortedLatencies = new ArrayList<>(batchLatencies);
+        Collections.sort(sortedLatencies);
+
+        System.out.println("## SyncLoadTest : " + mRoomsCount + " rooms, " + mBatchesCount + " batches of " + Math.min(mRoomsPerBatch, mRoomsCount) + " x " + mEventsPerRoom + " events");
+        System.out.println("## initial sync : " + initialSyncMs + " ms, response " + (mHomeserver.getSyncResponseSize(FakeSyncGenerator.syncToken(0)) / 1024) + " KB, heap peak " + (initialSyncHeapPeak / (1024 * 1024)) + " MB");
+        System.out.println("## incremental syncs : latency p50 " + percentile(sortedLatencies, 50) + " ms p90 " + percentile(sortedLatencies, 90) + " ms max " + percentile(sortedLatencies, 100) + " ms"
+                + ", throughput " + ((incrementalDurationS > 0) ? (long) (expectedEventsCount / incrementalDurationS) : 0) + " events/s"
+                + ", heap peak " + (incrementalHeapPeak / (1024 * 1024)) + " MB");
+        System.out.println("## pagination : " + paginatedCount[0] + " events in " + paginationMs + " ms");
+        System.out.println("## requests : " + mHomeserver.getRequestsCounts());
+        System.out.println(mSession.getDataHandler().getSyncMetrics().dump());
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.crypto;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.data.cryptostore.MXFileCryptoStore;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the MXDecryptionCache.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MXDecryptionCacheTest {
+
+    private static final String SENDER_KEY = "senderKey";
+    private static final String SESSION_ID = "sessionId";
+    private static final String ROOM_ID = "!room:matrix.org";
+    private static final String PAYLOAD = "{\"type\":\"m.room.message\",\"content\":{\"body\":\"hello\"}}";
+
+    private static MXFileCryptoStore openStore(String userId) {
+        Credentials credentials = new Credentials();
+        credentials.userId = userId;
+        credentials.deviceId = "MYDEVICE";
+        credentials.homeServer = "matrix.org";
+        credentials.accessToken = "token";
+
+        MXFileCryptoStore store = new MXFileCryptoStore();
+        store.initWithCredentials(RuntimeEnvironment.application, credentials);
+        store.open();
+        return store;
+    }
+
+    /**
+     * Build a cache which wraps its key without the Android keystore.
+     *
+     * @param store the crypto store
+     * @return the cache
+     */
+    private static MXDecryptionCache buildCache(MXFileCryptoStore store) {
+        return new MXDecryptionCache(store) {
+            @Override
+            boolean isKeyProtectionSupported() {
+                return true;
+            }
+
+            @Override
+            byte[] wrapKey(byte[] key) {
+                byte[] wrappedKey = new byte[key.length];
+
+                for (int i = 0; i < key.length; i++) {
+                    wrappedKey[i] = (byte) ~key[i];
+                }
+
+                return wrappedKey;
+            }
+
+            @Override
+            byte[] unwrapKey(byte[] wrappedKey) {
+                return wrapKey(wrappedKey);
+            }
+        };
+    }
+
+    private static void put(MXDecryptionCache cache, String eventId, String sessionId) {
+        Map<String, String> keysClaimed = new HashMap<>();
+        keysClaimed.put("ed25519", "claimedKey");
+
+        cache.put(eventId, SENDER_KEY, sessionId, ROOM_ID, 0, PAYLOAD, null, keysClaimed, null, 10);
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        MXDecryptionCache cache = buildCache(openStore("@get:matrix.org"));
+
+        assertNull(cache.get("$event", SENDER_KEY, SESSION_ID));
+
+        put(cache, "$event", SESSION_ID);
+
+        MXDecryptionCache.CachedResult result = cache.get("$event", SENDER_KEY, SESSION_ID);
+        assertNotNull(result);
+        assertEquals(PAYLOAD, result.mPayload);
+        assertEquals(ROOM_ID, result.mRoomId);
+        assertEquals("claimedKey", result.mKeysClaimed.get("ed25519"));
+
+        // the payload is parsed once
+        assertEquals("hello", result.getParsedPayload().getAsJsonObject().getAsJsonObject("content").get("body").getAsString());
+        assertSame(result.getParsedPayload(), cache.get("$event", SENDER_KEY, SESSION_ID).getParsedPayload());
+
+        // a result decrypted with another session is ignored
+        assertNull(cache.get("$event", SENDER_KEY, "otherSessionId"));
+        assertNull(cache.get("$event", "otherSenderKey", SESSION_ID));
+
+        assertEquals(2, cache.getHitsCount());
+        assertEquals(1, cache.getMissesCount());
+    }
+
+    @Test
+    public void testRemoveSession() {
+        MXDecryptionCache cache = buildCache(openStore("@removesession:matrix.org"));
+
+        put(cache, "$event1", SESSION_ID);
+        put(cache, "$event2", "otherSessionId");
+
+        cache.removeSession(SENDER_KEY, SESSION_ID);
+
+        assertNull(cache.get("$event1", SENDER_KEY, SESSION_ID));
+        assertNotNull(cache.get("$event2", SENDER_KEY, "otherSessionId"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        MXDecryptionCache cache = buildCache(openStore("@eviction:matrix.org"));
+
+        put(cache, "$event0", SESSION_ID);
+        put(cache, "$event1", SESSION_ID);
+
+        // $event0 becomes the most recently used one
+        assertNotNull(cache.get("$event0", SENDER_KEY, SESSION_ID));
+
+        for (int i = 2; i <= 5000; i++) {
+            put(cache, "$event" + i, SESSION_ID);
+        }
+
+        assertNotNull(cache.get("$event0", SENDER_KEY, SESSION_ID));
+        assertNull(cache.get("$event1", SENDER_KEY, SESSION_ID));
+        assertNotNull(cache.get("$event5000", SENDER_KEY, SESSION_ID));
+    }
+
+    @Test
+    public void testSave() {
+        MXFileCryptoStore store = openStore("@save:matrix.org");
+        MXDecryptionCache cache = buildCache(store);
+
+        put(cache, "$event", SESSION_ID);
+
+        // the cache has just been created so the periodic save is delayed
+        cache.saveIfExpired();
+        assertNull(buildCache(store).get("$event", SENDER_KEY, SESSION_ID));
+
+        cache.save();
+
+        MXDecryptionCache.CachedResult result = buildCache(store).get("$event", SENDER_KEY, SESSION_ID);
+        assertNotNull(result);
+        assertEquals(PAYLOAD, result.mPayload);
+
+        // the cleared cache is not loaded anymore
+        cache.clear();
+        assertNull(buildCache(store).get("$event", SENDER_KEY, SESSION_ID));
+    }
+
+    @Test
+    public void testUnprotectedKey() {
+        MXFileCryptoStore store = openStore("@unprotected:matrix.org");
+        MXDecryptionCache cache = buildCache(store);
+
+        put(cache, "$event", SESSION_ID);
+        cache.save();
+        assertNotNull(store.getDecryptionCacheKey());
+
+        // without the Android keystore, the saved cache and its key are deleted and the cache is not saved anymore
+        MXDecryptionCache unprotectedCache = new MXDecryptionCache(store);
+        assertNull(unprotectedCache.get("$event", SENDER_KEY, SESSION_ID));
+        assertNull(store.getDecryptionCacheKey());
+        assertNull(store.getDecryptionCache());
+
+        put(unprotectedCache, "$event", SESSION_ID);
+        unprotectedCache.save();
+        assertNull(store.getDecryptionCache());
+    }
+}
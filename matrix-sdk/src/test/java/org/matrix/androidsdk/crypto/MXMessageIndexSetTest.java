@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.crypto;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the MXMessageIndexSet.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MXMessageIndexSetTest {
+
+    @Test
+    public void testDuplicatedIndexes() {
+        MXMessageIndexSet set = new MXMessageIndexSet();
+
+        assertTrue(set.add(0));
+        assertTrue(set.add(63));
+        assertTrue(set.add(64));
+        assertFalse(set.add(63));
+        assertFalse(set.add(0));
+
+        assertTrue(set.contains(64));
+        assertFalse(set.contains(65));
+        assertEquals(3, set.size());
+    }
+
+    @Test
+    public void testConsecutiveIndexesShareAPage() {
+        MXMessageIndexSet set = new MXMessageIndexSet();
+
+        for (long index = 0; index < MXMessageIndexSet.PAGE_SIZE; index++) {
+            assertTrue(set.add(index));
+        }
+
+        assertEquals(MXMessageIndexSet.PAGE_SIZE, set.size());
+        assertEquals(1, set.getPagesCount());
+    }
+
+    @Test
+    public void testLargeIndexes() {
+        MXMessageIndexSet set = new MXMessageIndexSet();
+
+        long index = 0xFFFFFFFFL;
+
+        assertTrue(set.add(index));
+        assertTrue(set.add(index - MXMessageIndexSet.PAGE_SIZE));
+        assertFalse(set.add(index));
+
+        assertFalse(set.contains(index - 1));
+        assertEquals(2, set.getPagesCount());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.data.store.MXMemoryStore;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the MXDirectChatsIndex.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MXDirectChatsIndexTest {
+
+    private static MXMemoryStore buildStore() {
+        Credentials credentials = new Credentials();
+        credentials.userId = "@me:matrix.org";
+        return new MXMemoryStore(credentials, RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testUndefinedDict() {
+        MXDirectChatsIndex index = new MXDirectChatsIndex(buildStore());
+
+        assertFalse(index.isDefined());
+        assertTrue(index.getRoomIds().isEmpty());
+        assertTrue(index.getRoomIds("@alice:matrix.org").isEmpty());
+        assertNull(index.getParticipantUserId("!a"));
+        assertFalse(index.isDirectChatRoom("!a"));
+    }
+
+    @Test
+    public void testLookups() {
+        MXMemoryStore store = buildStore();
+        MXDirectChatsIndex index = new MXDirectChatsIndex(store);
+
+        Map<String, List<String>> dict = new LinkedHashMap<>();
+        dict.put("@alice:matrix.org", Arrays.asList("!a", "!b"));
+        dict.put("@bob:matrix.org", Arrays.asList("!c", "!a"));
+        store.setDirectChatRoomsDict(dict);
+
+        assertTrue(index.isDefined());
+        assertEquals(Arrays.asList("!a", "!b", "!c"), index.getRoomIds());
+        assertEquals(Arrays.asList("!a", "!b"), index.getRoomIds("@alice:matrix.org"));
+        assertEquals(Arrays.asList("!c", "!a"), index.getRoomIds("@bob:matrix.org"));
+        assertTrue(index.getRoomIds("@carol:matrix.org").isEmpty());
+
+        assertEquals("@alice:matrix.org", index.getParticipantUserId("!a"));
+        assertEquals("@bob:matrix.org", index.getParticipantUserId("!c"));
+        assertTrue(index.isDirectChatRoom("!b"));
+        assertFalse(index.isDirectChatRoom("!d"));
+    }
+
+    @Test
+    public void testDictReplacement() {
+        MXMemoryStore store = buildStore();
+        MXDirectChatsIndex index = new MXDirectChatsIndex(store);
+
+        Map<String, List<String>> dict = new LinkedHashMap<>();
+        dict.put("@alice:matrix.org", Arrays.asList("!a"));
+        store.setDirectChatRoomsDict(dict);
+
+        assertTrue(index.isDirectChatRoom("!a"));
+
+        // a new m.direct event replaces the dictionary
+        Map<String, List<String>> newDict = new LinkedHashMap<>();
+        newDict.put("@bob:matrix.org", Arrays.asList("!b"));
+        store.setDirectChatRoomsDict(newDict);
+
+        assertFalse(index.isDirectChatRoom("!a"));
+        assertEquals("@bob:matrix.org", index.getParticipantUserId("!b"));
+        assertEquals(Arrays.asList("!b"), index.getRoomIds());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnlyLists() {
+        MXMemoryStore store = buildStore();
+        MXDirectChatsIndex index = new MXDirectChatsIndex(store);
+
+        Map<String, List<String>> dict = new LinkedHashMap<>();
+        dict.put("@alice:matrix.org", Arrays.asList("!a"));
+        store.setDirectChatRoomsDict(dict);
+
+        index.getRoomIds("@alice:matrix.org").add("!b");
+    }
+}
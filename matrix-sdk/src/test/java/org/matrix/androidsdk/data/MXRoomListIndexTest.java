@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.data.store.IMXStore;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Class for unit testing the MXRoomListIndex.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MXRoomListIndexTest {
+
+    private static Room buildRoom(String roomId) {
+        Room room = mock(Room.class);
+        when(room.getRoomId()).thenReturn(roomId);
+        when(room.getAccountData()).thenReturn(new RoomAccountData());
+        return room;
+    }
+
+    @Test
+    public void testInvalidateNotifiesReset() {
+        IMXStore store = mock(IMXStore.class);
+        Room roomA = buildRoom("!a");
+        Room roomB = buildRoom("!b");
+
+        when(store.getRooms()).thenReturn(Collections.singletonList(roomA));
+
+        MXRoomListIndex index = new MXRoomListIndex(store);
+        assertEquals(Arrays.asList("!a"), index.getRoomIds(RoomTag.ROOM_TAG_NO_TAG));
+
+        final List<String> resetTags = new ArrayList<>();
+
+        index.addListener(new MXRoomListIndex.Listener() {
+            @Override
+            public void onRoomInserted(String tag, String roomId, int index) {
+                fail("unexpected insertion");
+            }
+
+            @Override
+            public void onRoomMoved(String tag, String roomId, int fromIndex, int toIndex) {
+                fail("unexpected move");
+            }
+
+            @Override
+            public void onRoomRemoved(String tag, String roomId, int index) {
+                fail("unexpected removal");
+            }
+
+            @Override
+            public void onRoomListReset(String tag) {
+                resetTags.add(tag);
+            }
+        });
+
+        // the store rooms have been reloaded
+        when(store.getRooms()).thenReturn(Arrays.asList(roomA, roomB));
+        index.invalidate();
+
+        // only the built lists are rebuilt
+        assertEquals(Arrays.asList(RoomTag.ROOM_TAG_NO_TAG), resetTags);
+        assertEquals(2, index.getRoomIds(RoomTag.ROOM_TAG_NO_TAG).size());
+        assertTrue(index.getRoomIds(RoomTag.ROOM_TAG_NO_TAG).containsAll(Arrays.asList("!a", "!b")));
+    }
+}
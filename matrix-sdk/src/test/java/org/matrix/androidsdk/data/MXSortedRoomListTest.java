@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the MXSortedRoomList.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MXSortedRoomListTest {
+
+    @Test
+    public void testOrderThenLatestEvent() {
+        MXSortedRoomList list = new MXSortedRoomList();
+
+        list.put("!a", null, 300);
+        list.put("!b", 0.5, 100);
+        list.put("!c", null, 500);
+        list.put("!d", 0.1, 50);
+        list.put("!e", 0.5, 200);
+
+        assertEquals(Arrays.asList("!d", "!e", "!b", "!c", "!a"), list.getRoomIds());
+        assertEquals(3, list.indexOf("!c"));
+        assertEquals(-1, list.indexOf("!z"));
+    }
+
+    @Test
+    public void testMoveOnUpdate() {
+        MXSortedRoomList list = new MXSortedRoomList();
+
+        list.put("!a", null, 300);
+        list.put("!b", null, 200);
+        list.put("!c", null, 100);
+
+        assertEquals(0, list.put("!c", null, 400));
+        assertEquals(Arrays.asList("!c", "!a", "!b"), list.getRoomIds());
+        assertEquals(3, list.size());
+    }
+
+    @Test
+    public void testRemove() {
+        MXSortedRoomList list = new MXSortedRoomList();
+
+        list.put("!a", null, 300);
+        list.put("!b", null, 300);
+
+        assertEquals(1, list.remove("!b"));
+        assertEquals(-1, list.remove("!b"));
+        assertFalse(list.contains("!b"));
+        assertEquals(Arrays.asList("!a"), list.getRoomIds());
+    }
+}
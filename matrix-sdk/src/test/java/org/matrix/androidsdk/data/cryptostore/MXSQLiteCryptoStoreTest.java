@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.cryptostore;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.crypto.data.MXDeviceInfo;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the MXSQLiteCryptoStore.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MXSQLiteCryptoStoreTest {
+
+    private static final String ROOM_ID = "!room:matrix.org";
+    private static final String ALICE_USER_ID = "@alice:matrix.org";
+
+    private static Credentials buildCredentials(String userId) {
+        Credentials credentials = new Credentials();
+        credentials.userId = userId;
+        credentials.deviceId = "MYDEVICE";
+        credentials.homeServer = "matrix.org";
+        credentials.accessToken = "token";
+        return credentials;
+    }
+
+    /**
+     * Fill a file crypto store with some data which does not require the olm library.
+     *
+     * @param credentials the credentials
+     */
+    private static void fillFileCryptoStore(Credentials credentials) {
+        MXFileCryptoStore fileCryptoStore = new MXFileCryptoStore();
+        fileCryptoStore.initWithCredentials(RuntimeEnvironment.application, credentials);
+        fileCryptoStore.open();
+
+        Map<String, MXDeviceInfo> devices = new HashMap<>();
+        devices.put("ALICEDEVICE", new MXDeviceInfo("ALICEDEVICE"));
+        fileCryptoStore.storeUserDevices(ALICE_USER_ID, devices);
+        fileCryptoStore.storeRoomAlgorithm(ROOM_ID, "m.megolm.v1.aes-sha2");
+        fileCryptoStore.storeDeviceSyncToken("s1234");
+        fileCryptoStore.close();
+    }
+
+    private static boolean fileCryptoStoreHasData(Credentials credentials) {
+        MXFileCryptoStore fileCryptoStore = new MXFileCryptoStore();
+        fileCryptoStore.initWithCredentials(RuntimeEnvironment.application, credentials);
+        return fileCryptoStore.hasData();
+    }
+
+    private static MXSQLiteCryptoStore openStore(Credentials credentials) {
+        MXSQLiteCryptoStore store = new MXSQLiteCryptoStore();
+        store.initWithCredentials(RuntimeEnvironment.application, credentials);
+        store.open();
+        return store;
+    }
+
+    @Test
+    public void testMigration() {
+        Credentials credentials = buildCredentials("@migration:matrix.org");
+        fillFileCryptoStore(credentials);
+
+        MXSQLiteCryptoStore store = openStore(credentials);
+
+        assertFalse(store.isMigrationFailed());
+        assertEquals("MYDEVICE", store.getDeviceId());
+        assertNotNull(store.getUserDevice("ALICEDEVICE", ALICE_USER_ID));
+        assertEquals("m.megolm.v1.aes-sha2", store.getRoomAlgorithm(ROOM_ID));
+        assertEquals("s1234", store.getDeviceSyncToken());
+
+        // the file store is deleted once migrated
+        assertFalse(fileCryptoStoreHasData(credentials));
+        store.close();
+    }
+
+    @Test
+    public void testFailedMigration() {
+        Credentials credentials = buildCredentials("@failedmigration:matrix.org");
+        fillFileCryptoStore(credentials);
+
+        MXSQLiteCryptoStore store = new MXSQLiteCryptoStore() {
+            @Override
+            boolean putUserDevices(String userId, Map<String, MXDeviceInfo> devices) {
+                return false;
+            }
+        };
+        store.initWithCredentials(RuntimeEnvironment.application, credentials);
+        store.open();
+
+        // the database is deleted and the file store is kept
+        assertTrue(store.isMigrationFailed());
+        assertTrue(fileCryptoStoreHasData(credentials));
+
+        // the migration is retried at the next opening
+        MXSQLiteCryptoStore retriedStore = openStore(credentials);
+
+        assertFalse(retriedStore.isMigrationFailed());
+        assertNotNull(retriedStore.getUserDevice("ALICEDEVICE", ALICE_USER_ID));
+        assertEquals("m.megolm.v1.aes-sha2", retriedStore.getRoomAlgorithm(ROOM_ID));
+        assertFalse(fileCryptoStoreHasData(credentials));
+        retriedStore.close();
+    }
+
+    @Test
+    public void testBatch() {
+        Credentials credentials = buildCredentials("@batch:matrix.org");
+        MXSQLiteCryptoStore store = openStore(credentials);
+
+        // a batch which is not marked as successful is rolled back
+        store.beginBatch();
+        store.storeDeviceSyncToken("s1");
+        assertFalse(store.endBatch());
+
+        assertNull(openStore(credentials).getDeviceSyncToken());
+
+        // a successful batch is committed
+        store.beginBatch();
+        store.storeDeviceSyncToken("s2");
+        store.setBatchSuccessful();
+        assertTrue(store.endBatch());
+
+        assertEquals("s2", openStore(credentials).getDeviceSyncToken());
+        store.close();
+    }
+}
@@ -0,0 +1,589 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.HomeserverConnectionConfig;
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.data.EventTimeline;
+import org.matrix.androidsdk.data.Room;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.ReceiptData;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.rest.model.Sync.RoomSync;
+import org.matrix.androidsdk.rest.model.Sync.SyncResponse;
+import org.matrix.androidsdk.rest.model.User;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.matrix.androidsdk.test.FakeSyncGenerator;
+import org.matrix.androidsdk.util.ContentUtils;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Cold start benchmark of MXFileStore.open().
+ * A realistic store (rooms, timeline events, members, receipts, users) is generated on the file system,
+ * then it is reopened several times without profile : the time from open() to onStoreReady is reported.
+ * A last profiled opening reports the per-phase and per-folder breakdown of the MXFileStoreProfile
+ * (gunzip, deserialization, merge), its timings include the profiling overhead.
+ * The store files are finally decoded with alternative formats to compare them side by side.
+ *
+ * The store size is set with the system properties (the default values keep the test short) :
+ * coldstart.rooms, coldstart.members, coldstart.events, coldstart.iterations.
+ * It is not run by the default test task : it is enabled by setting one of these properties
+ * (e.g. ./gradlew test -Pcoldstart.enabled).
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MXFileStoreColdStartTest {
+    private static final String USER_ID = "@coldstart:" + FakeSyncGenerator.SERVER_NAME;
+
+    // the max duration of a test step
+    private static final long STEP_TIMEOUT_MS = 120000;
+
+    // the store folders which are compared
+    private static final String[] COMPARED_FOLDERS = {"messages_gz", "tokens", "state_gz", "state_rooms_events", "summary", "receipts", "users"};
+
+    private int mRoomsCount;
+    private int mMembersCount;
+    private int mEventsCount;
+    private int mIterationsCount;
+
+    private HomeserverConnectionConfig mHsConfig;
+    private File mStoreFolder;
+
+    /**
+     * A store file format.
+     */
+    private interface StoreFormat {
+        /**
+         * @return the format description
+         */
+        String getName();
+
+        /**
+         * Encode a serialized object.
+         *
+         * @param serialized the ObjectOutputStream bytes
+         * @return the encoded bytes
+         * @throws IOException if the encoding fails
+         */
+        byte[] encode(byte[] serialized) throws IOException;
+
+        /**
+         * Decode an object.
+         *
+         * @param encoded the encoded bytes
+         * @return the decoded object
+         * @throws Exception if the decoding fails
+         */
+        Object decode(byte[] encoded) throws Exception;
+    }
+
+    /**
+     * Provides an integer system property.
+     *
+     * @param name         the property name
+     * @param defaultValue the default value
+     * @return the value
+     */
+    private static int intProperty(String name, int defaultValue) {
+        try {
+            return Integer.parseInt(System.getProperty(name, "" + defaultValue));
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mRoomsCount = intProperty("coldstart.rooms", 30);
+        mMembersCount = intProperty("coldstart.members", 20);
+        mEventsCount = intProperty("coldstart.events", 30);
+        mIterationsCount = Math.max(1, intProperty("coldstart.iterations", 3));
+
+        Credentials credentials = new Credentials();
+        credentials.userId = USER_ID;
+        credentials.accessToken = "coldstart_token";
+        credentials.homeServer = FakeSyncGenerator.SERVER_NAME;
+        credentials.deviceId = "COLDSTART";
+
+        mHsConfig = new HomeserverConnectionConfig(Uri.parse("http://" + FakeSyncGenerator.SERVER_NAME));
+        mHsConfig.setCredentials(credentials);
+
+        mStoreFolder = new File(new File(RuntimeEnvironment.application.getFilesDir(), "MXFileStore"), USER_ID);
+        ContentUtils.deleteDirectory(mStoreFolder);
+    }
+
+    @After
+    public void tearDown() {
+        ContentUtils.deleteDirectory(mStoreFolder);
+    }
+
+    /**
+     * Wait for a latch, the UI thread tasks are run while waiting.
+     *
+     * @param latch     the latch
+     * @param timeoutMs the max waiting time
+     * @return true if the latch has been released
+     * @throws InterruptedException if the thread is interrupted
+     */
+    private static boolean await(CountDownLatch latch, long timeoutMs) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMs;
+
+        while (System.currentTimeMillis() < end) {
+            if (latch.await(10, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+
+            ShadowLooper.runUiThreadTasks();
+        }
+
+        return false;
+    }
+
+    /**
+     * Provides the files of a store folder, without the tmp files.
+     *
+     * @param folderName the folder name
+     * @return the files
+     */
+    private List<File> listFiles(String folderName) {
+        List<File> files = new ArrayList<>();
+        File[] list = new File(mStoreFolder, folderName).listFiles();
+
+        if (null != list) {
+            for (File file : list) {
+                if (file.isFile() && !file.getName().endsWith(".tmp")) {
+                    files.add(file);
+                }
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Computes the store size, -1 while a file is being written.
+     *
+     * @param folder the folder
+     * @return the size in bytes
+     */
+    private static long storeSize(File folder) {
+        long size = 0;
+        File[] list = folder.listFiles();
+
+        if (null != list) {
+            for (File file : list) {
+                if (file.getName().endsWith(".tmp")) {
+                    return -1;
+                }
+
+                long fileSize = file.isDirectory() ? storeSize(file) : file.length();
+
+                if (fileSize < 0) {
+                    return -1;
+                }
+
+                size += fileSize;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Wait until the committed data are written i.e. each room has its files and the store size is stable.
+     *
+     * @throws InterruptedException if the thread is interrupted
+     */
+    private void waitForSavedStore() throws InterruptedException {
+        long end = System.currentTimeMillis() + STEP_TIMEOUT_MS;
+        long previousSize = -1;
+
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(100);
+
+            boolean isComplete = (listFiles("messages_gz").size() >= mRoomsCount)
+                    && (listFiles("tokens").size() >= mRoomsCount)
+                    && (listFiles("summary").size() >= mRoomsCount)
+                    && (listFiles("receipts").size() >= mRoomsCount);
+
+            long size = storeSize(mStoreFolder);
+
+            if (isComplete && (size > 0) && (size == previousSize)) {
+                return;
+            }
+
+            previousSize = size;
+        }
+
+        fail("The generated store has not been saved");
+    }
+
+    /**
+     * Generate the store on the file system.
+     *
+     * @throws Exception if the generation fails
+     */
+    private void generateStore() throws Exception {
+        MXFileStore store = new MXFileStore(mHsConfig, RuntimeEnvironment.application);
+        assertTrue(store.isReady());
+
+        MXDataHandler dataHandler = new MXDataHandler(store, mHsConfig.getCredentials(), new MXDataHandler.InvalidTokenListener() {
+            @Override
+            public void onTokenCorrupted() {
+            }
+        });
+
+        FakeSyncGenerator generator = new FakeSyncGenerator(USER_ID, mRoomsCount, mMembersCount, mEventsCount, 0, false);
+        SyncResponse syncResponse = JsonUtils.getGson(false).fromJson(generator.initialSyncJson(), SyncResponse.class);
+
+        for (Map.Entry<String, RoomSync> entry : syncResponse.rooms.join.entrySet()) {
+            String roomId = entry.getKey();
+            RoomSync roomSync = entry.getValue();
+
+            Room room = new Room();
+            room.init(roomId, dataHandler);
+            store.storeRoom(room);
+
+            for (Event event : roomSync.state.events) {
+                event.roomId = roomId;
+                room.getLiveState().applyState(event, EventTimeline.Direction.FORWARDS);
+            }
+            store.storeLiveStateForRoom(roomId);
+            store.storeBackToken(roomId, roomSync.timeline.prevBatch);
+
+            Event latestEvent = null;
+
+            for (Event event : roomSync.timeline.events) {
+                event.roomId = roomId;
+                store.storeLiveRoomEvent(event);
+                latestEvent = event;
+            }
+
+            assertNotNull(latestEvent);
+            store.storeSummary(roomId, latestEvent, room.getLiveState(), USER_ID);
+
+            for (RoomMember member : room.getLiveState().getMembers()) {
+                store.storeReceipt(new ReceiptData(member.getUserId(), latestEvent.eventId, latestEvent.originServerTs), roomId);
+            }
+        }
+
+        for (int i = 0; i < mMembersCount; i++) {
+            User user = new User();
+            user.user_id = FakeSyncGenerator.memberId(i);
+            user.displayname = "Member " + i;
+            user.presence = User.PRESENCE_ONLINE;
+            user.lastActiveAgo = 0L;
+            store.storeUser(user);
+        }
+
+        store.setEventStreamToken(syncResponse.nextBatch);
+        store.commit();
+
+        waitForSavedStore();
+        store.close();
+    }
+
+    /**
+     * Open the generated store and wait until the users are loaded.
+     *
+     * @param profile the opening profile, null to open the store without profiling it
+     * @return the duration between open() and onStoreReady in nanoseconds
+     * @throws Exception if the store cannot be opened
+     */
+    private long openStore(MXFileStoreProfile profile) throws Exception {
+        final CountDownLatch readyLatch = new CountDownLatch(1);
+        final String[] corruption = new String[1];
+        final long[] readyNs = new long[1];
+
+        MXFileStore store = new MXFileStore(mHsConfig, RuntimeEnvironment.application);
+        assertFalse("the generated store has been discarded", store.isReady());
+
+        if (null != profile) {
+            store.setProfile(profile);
+        }
+
+        store.addMXStoreListener(new MXStoreListener() {
+            @Override
+            public void onStoreReady(String accountId) {
+                readyNs[0] = System.nanoTime();
+                readyLatch.countDown();
+            }
+
+            @Override
+            public void onStoreCorrupted(String accountId, String description) {
+                corruption[0] = description;
+                readyLatch.countDown();
+            }
+        });
+
+        long openNs = System.nanoTime();
+        store.open();
+
+        assertTrue("the store is not ready", await(readyLatch, STEP_TIMEOUT_MS));
+        assertNull("the store is corrupted : " + corruption[0], corruption[0]);
+        assertEquals(mRoomsCount, store.getRooms().size());
+
+        // the receipts and the users are loaded after onStoreReady
+        long end = System.currentTimeMillis() + STEP_TIMEOUT_MS;
+
+        while (!store.areUsersLoaded() && (System.currentTimeMillis() < end)) {
+            Thread.sleep(10);
+        }
+
+        assertTrue("the users are not loaded", store.areUsersLoaded());
+
+        store.close();
+
+        return readyNs[0] - openNs;
+    }
+
+    /**
+     * Read a stream.
+     *
+     * @param stream the stream
+     * @return the bytes
+     * @throws IOException if the stream cannot be read
+     */
+    private static byte[] readFully(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+
+        try {
+            while ((count = stream.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+        } finally {
+            stream.close();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Gzip some bytes.
+     *
+     * @param bytes the bytes
+     * @param level the deflater level
+     * @return the gzipped bytes
+     * @throws IOException if the compression fails
+     */
+    private static byte[] gzip(byte[] bytes, final int level) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream gz = new GZIPOutputStream(out) {
+            {
+                def.setLevel(level);
+            }
+        };
+
+        gz.write(bytes);
+        gz.close();
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the compared formats, the first one is the current MXFileStore format.
+     */
+    private static List<StoreFormat> getFormats() {
+        List<StoreFormat> formats = new ArrayList<>();
+
+        formats.add(new StoreFormat() {
+            @Override
+            public String getName() {
+                return "gzip + Serializable (current)";
+            }
+
+            @Override
+            public byte[] encode(byte[] serialized) throws IOException {
+                return gzip(serialized, Deflater.DEFAULT_COMPRESSION);
+            }
+
+            @Override
+            public Object decode(byte[] encoded) throws Exception {
+                ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(encoded)));
+                Object object = ois.readObject();
+                ois.close();
+                return object;
+            }
+        });
+
+        formats.add(new StoreFormat() {
+            @Override
+            public String getName() {
+                return "buffered gzip + Serializable";
+            }
+
+            @Override
+            public byte[] encode(byte[] serialized) throws IOException {
+                return gzip(serialized, Deflater.DEFAULT_COMPRESSION);
+            }
+
+            @Override
+            public Object decode(byte[] encoded) throws Exception {
+                ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(encoded), 8192), 64 * 1024));
+                Object object = ois.readObject();
+                ois.close();
+                return object;
+            }
+        });
+
+        formats.add(new StoreFormat() {
+            @Override
+            public String getName() {
+                return "fast gzip + Serializable";
+            }
+
+            @Override
+            public byte[] encode(byte[] serialized) throws IOException {
+                return gzip(serialized, Deflater.BEST_SPEED);
+            }
+
+            @Override
+            public Object decode(byte[] encoded) throws Exception {
+                ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(encoded)));
+                Object object = ois.readObject();
+                ois.close();
+                return object;
+            }
+        });
+
+        formats.add(new StoreFormat() {
+            @Override
+            public String getName() {
+                return "Serializable (uncompressed)";
+            }
+
+            @Override
+            public byte[] encode(byte[] serialized) {
+                return serialized;
+            }
+
+            @Override
+            public Object decode(byte[] encoded) throws Exception {
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(encoded));
+                Object object = ois.readObject();
+                ois.close();
+                return object;
+            }
+        });
+
+        return formats;
+    }
+
+    /**
+     * Decode the generated store files with each format and report the sizes and the decoding times.
+     *
+     * @throws Exception if a file cannot be decoded
+     */
+    private void compareFormats() throws Exception {
+        List<byte[]> serializedFiles = new ArrayList<>();
+
+        for (String folderName : COMPARED_FOLDERS) {
+            for (File file : listFiles(folderName)) {
+                serializedFiles.add(readFully(new GZIPInputStream(new FileInputStream(file))));
+            }
+        }
+
+        System.out.println("Store formats (" + serializedFiles.size() + " files, best of " + mIterationsCount + " decodings) :");
+
+        for (StoreFormat format : getFormats()) {
+            List<byte[]> encodedFiles = new ArrayList<>();
+            long size = 0;
+
+            for (byte[] serialized : serializedFiles) {
+                byte[] encoded = format.encode(serialized);
+                encodedFiles.add(encoded);
+                size += encoded.length;
+            }
+
+            long bestNs = Long.MAX_VALUE;
+
+            for (int i = 0; i < mIterationsCount; i++) {
+                long t0 = System.nanoTime();
+
+                for (byte[] encoded : encodedFiles) {
+                    assertNotNull(format.decode(encoded));
+                }
+
+                bestNs = Math.min(bestNs, System.nanoTime() - t0);
+            }
+
+            System.out.println(String.format("  %-32s %10d bytes  decode %8.1f ms", format.getName(), size, bestNs / 1000000.0));
+        }
+    }
+
+    @Test
+    public void testColdStart() throws Exception {
+        long t0 = System.currentTimeMillis();
+        generateStore();
+
+        System.out.println("MXFileStore cold start : " + mRoomsCount + " rooms, " + mMembersCount + " members, " + mEventsCount + " events per room");
+        System.out.println("Store generated in " + (System.currentTimeMillis() - t0) + " ms : " + storeSize(mStoreFolder) + " bytes");
+
+        // the time to ready is measured without the profiling overhead
+        List<Long> timesToReady = new ArrayList<>();
+
+        for (int i = 0; i < mIterationsCount; i++) {
+            timesToReady.add(openStore(null));
+        }
+
+        Collections.sort(timesToReady);
+
+        System.out.println(String.format("open() -> onStoreReady (not profiled) : min %.1f ms, median %.1f ms, max %.1f ms",
+                timesToReady.get(0) / 1000000.0,
+                timesToReady.get(timesToReady.size() / 2) / 1000000.0,
+                timesToReady.get(timesToReady.size() - 1) / 1000000.0));
+
+        // a last opening provides the breakdown
+        MXFileStoreProfile profile = new MXFileStoreProfile();
+        openStore(profile);
+
+        System.out.println("Profiled opening (breakdown only, it includes the profiling overhead) :");
+        System.out.println(profile.dump());
+
+        compareFormats();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.ReceiptData;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the MXMemoryStore receipts index.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MXMemoryStoreReceiptsTest {
+
+    private static final String ROOM_ID = "!room:matrix.org";
+    private static final String MY_USER_ID = "@me:matrix.org";
+    private static final String ALICE_USER_ID = "@alice:matrix.org";
+    private static final String BOB_USER_ID = "@bob:matrix.org";
+    private static final String CAROL_USER_ID = "@carol:matrix.org";
+
+    private static MXMemoryStore buildStore() {
+        Credentials credentials = new Credentials();
+        credentials.userId = MY_USER_ID;
+        return new MXMemoryStore(credentials, RuntimeEnvironment.application);
+    }
+
+    private static List<String> getUserIds(List<ReceiptData> receipts) {
+        List<String> userIds = new ArrayList<>();
+
+        for (ReceiptData receipt : receipts) {
+            userIds.add(receipt.userId);
+        }
+
+        return userIds;
+    }
+
+    @Test
+    public void testSortFlag() {
+        MXMemoryStore store = buildStore();
+
+        store.storeReceipt(new ReceiptData(ALICE_USER_ID, "$1", 1000), ROOM_ID);
+        store.storeReceipt(new ReceiptData(BOB_USER_ID, "$1", 3000), ROOM_ID);
+        store.storeReceipt(new ReceiptData(CAROL_USER_ID, "$1", 2000), ROOM_ID);
+
+        // sorted from the latest to the oldest
+        assertEquals(Arrays.asList(BOB_USER_ID, CAROL_USER_ID, ALICE_USER_ID), getUserIds(store.getEventReceipts(ROOM_ID, "$1", false, true)));
+
+        // not sorted : all the receipts are returned
+        List<String> userIds = getUserIds(store.getEventReceipts(ROOM_ID, "$1", false, false));
+        assertEquals(3, userIds.size());
+        assertEquals(new HashSet<>(Arrays.asList(ALICE_USER_ID, BOB_USER_ID, CAROL_USER_ID)), new HashSet<>(userIds));
+    }
+
+    @Test
+    public void testSortedIndex() {
+        MXMemoryStore store = buildStore();
+        long[] timestamps = {5000, 1000, 3000, 3000, 9000, 1000, 7000, 3000};
+        List<ReceiptData> expectedReceipts = new ArrayList<>();
+
+        for (int i = 0; i < timestamps.length; i++) {
+            ReceiptData receipt = new ReceiptData("@user" + i + ":matrix.org", "$1", timestamps[i]);
+            store.storeReceipt(receipt, ROOM_ID);
+            expectedReceipts.add(receipt);
+        }
+
+        // the index is kept in the Collections.sort order, the receipts with the same timestamp keep their order
+        Collections.sort(expectedReceipts, ReceiptData.descComparator);
+        assertEquals(getUserIds(expectedReceipts), getUserIds(store.getEventReceipts(ROOM_ID, "$1", false, true)));
+    }
+
+    @Test
+    public void testMovedReceipt() {
+        MXMemoryStore store = buildStore();
+
+        store.storeReceipt(new ReceiptData(ALICE_USER_ID, "$1", 1000), ROOM_ID);
+        store.storeReceipt(new ReceiptData(BOB_USER_ID, "$1", 1500), ROOM_ID);
+        assertTrue(store.storeReceipt(new ReceiptData(ALICE_USER_ID, "$2", 2000), ROOM_ID));
+
+        assertEquals(Arrays.asList(BOB_USER_ID), getUserIds(store.getEventReceipts(ROOM_ID, "$1", false, true)));
+        assertEquals(Arrays.asList(ALICE_USER_ID), getUserIds(store.getEventReceipts(ROOM_ID, "$2", false, true)));
+
+        // an older receipt is ignored
+        assertFalse(store.storeReceipt(new ReceiptData(ALICE_USER_ID, "$1", 500), ROOM_ID));
+        assertEquals(Arrays.asList(ALICE_USER_ID), getUserIds(store.getEventReceipts(ROOM_ID, "$2", false, true)));
+
+        assertTrue(store.getEventReceipts(ROOM_ID, "$unknown", false, true).isEmpty());
+        assertTrue(store.getEventReceipts("!unknown:matrix.org", "$1", false, true).isEmpty());
+    }
+
+    @Test
+    public void testExcludeSelf() {
+        MXMemoryStore store = buildStore();
+
+        store.storeReceipt(new ReceiptData(MY_USER_ID, "$1", 2000), ROOM_ID);
+        store.storeReceipt(new ReceiptData(ALICE_USER_ID, "$1", 1000), ROOM_ID);
+
+        assertEquals(Arrays.asList(MY_USER_ID, ALICE_USER_ID), getUserIds(store.getEventReceipts(ROOM_ID, "$1", false, true)));
+        assertEquals(Arrays.asList(ALICE_USER_ID), getUserIds(store.getEventReceipts(ROOM_ID, "$1", true, true)));
+
+        // all the room receipts
+        assertEquals(2, store.getEventReceipts(ROOM_ID, null, false, false).size());
+    }
+
+    @Test
+    public void testRebuildIndex() {
+        MXMemoryStore store = buildStore();
+
+        store.storeReceipt(new ReceiptData(ALICE_USER_ID, "$1", 1000), ROOM_ID);
+
+        // the room receipts are replaced (e.g. loaded from the file store)
+        Map<String, ReceiptData> receiptsByUserId = new HashMap<>();
+        receiptsByUserId.put(BOB_USER_ID, new ReceiptData(BOB_USER_ID, "$2", 1000));
+        receiptsByUserId.put(CAROL_USER_ID, new ReceiptData(CAROL_USER_ID, "$2", 2000));
+        store.mReceiptsByRoomId.put(ROOM_ID, receiptsByUserId);
+        store.rebuildReceiptsIndex(ROOM_ID);
+
+        assertTrue(store.getEventReceipts(ROOM_ID, "$1", false, true).isEmpty());
+        assertEquals(Arrays.asList(CAROL_USER_ID, BOB_USER_ID), getUserIds(store.getEventReceipts(ROOM_ID, "$2", false, true)));
+
+        // the rebuilt index is updated by the new receipts
+        store.storeReceipt(new ReceiptData(BOB_USER_ID, "$3", 3000), ROOM_ID);
+        assertEquals(Arrays.asList(CAROL_USER_ID), getUserIds(store.getEventReceipts(ROOM_ID, "$2", false, true)));
+        assertEquals(Arrays.asList(BOB_USER_ID), getUserIds(store.getEventReceipts(ROOM_ID, "$3", false, true)));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import com.google.gson.JsonObject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the MXOutbox.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MXOutboxTest {
+
+    private static final String ROOM_ID = "!room:matrix.org";
+
+    private static Event buildMessage(String eventId, String body) {
+        JsonObject content = new JsonObject();
+        content.addProperty("msgtype", "m.text");
+        content.addProperty("body", body);
+
+        Event event = new Event();
+        event.eventId = eventId;
+        event.roomId = ROOM_ID;
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.originServerTs = 1000;
+        event.updateContent(content);
+        return event;
+    }
+
+    @Test
+    public void testClearContentSnapshot() {
+        MXOutbox outbox = new MXOutbox(null);
+        Event event = buildMessage("$1", "hello");
+
+        String transactionId = outbox.enqueue(event);
+        assertNotNull(transactionId);
+
+        // the sent instance is encrypted
+        JsonObject encryptedContent = new JsonObject();
+        encryptedContent.addProperty("ciphertext", "AwgAEp...");
+        event.type = Event.EVENT_TYPE_MESSAGE_ENCRYPTED;
+        event.updateContent(encryptedContent);
+
+        // the same transaction id is kept
+        assertEquals(transactionId, outbox.enqueue(event));
+
+        // the stored instance gets the clear type and content
+        Event storedEvent = buildMessage("$1", "hello");
+        storedEvent.type = Event.EVENT_TYPE_MESSAGE_ENCRYPTED;
+        storedEvent.updateContent(encryptedContent);
+
+        assertTrue(outbox.attach(storedEvent));
+        assertEquals(Event.EVENT_TYPE_MESSAGE, storedEvent.getType());
+        assertEquals("hello", storedEvent.getContentAsJsonObject().get("body").getAsString());
+        assertSame(storedEvent, outbox.getFirstPendingEvent(ROOM_ID));
+    }
+
+    @Test
+    public void testGivenUpAfterFailedAttempts() {
+        MXOutbox outbox = new MXOutbox(null);
+        Event event = buildMessage("$1", "hello");
+        outbox.enqueue(event);
+
+        for (int i = 1; i < MXOutbox.MAX_FAILED_ATTEMPTS; i++) {
+            assertFalse(outbox.onSendingFailed(event));
+            assertEquals(1, outbox.getPendingCount(ROOM_ID));
+        }
+
+        assertTrue(outbox.onSendingFailed(event));
+        assertEquals(0, outbox.getPendingCount());
+        assertTrue(outbox.getRoomIds().isEmpty());
+
+        // a new sending request restarts the attempts count
+        outbox.enqueue(event);
+        assertFalse(outbox.onSendingFailed(event));
+        assertEquals(1, outbox.getPendingCount());
+
+        // an unknown event is not given up
+        assertFalse(outbox.onSendingFailed(buildMessage("$2", "world")));
+    }
+}
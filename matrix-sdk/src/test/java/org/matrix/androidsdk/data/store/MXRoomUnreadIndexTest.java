@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data.store;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the MXRoomUnreadIndex.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MXRoomUnreadIndexTest {
+
+    private static final String MY_USER_ID = "@me:matrix.org";
+    private static final String OTHER_USER_ID = "@other:matrix.org";
+
+    private static Event buildEvent(String eventId, String sender, String type) {
+        Event event = new Event();
+        event.eventId = eventId;
+        event.sender = sender;
+        event.type = type;
+        return event;
+    }
+
+    private static Event buildMessage(String eventId, String sender) {
+        return buildEvent(eventId, sender, Event.EVENT_TYPE_MESSAGE);
+    }
+
+    @Test
+    public void testAppendedEvents() {
+        MXRoomUnreadIndex index = new MXRoomUnreadIndex(MY_USER_ID);
+
+        index.append(buildMessage("$1", OTHER_USER_ID));
+        index.append(buildMessage("$2", MY_USER_ID));
+        index.append(buildEvent("$3", OTHER_USER_ID, Event.EVENT_TYPE_STATE_ROOM_MEMBER));
+        index.append(buildMessage("$4", OTHER_USER_ID));
+
+        assertEquals(2, index.countAfter(null));
+        assertEquals(2, index.countAfter("$unknown"));
+        assertEquals(1, index.countAfter("$1"));
+        assertEquals(1, index.countAfter("$3"));
+        assertEquals(0, index.countAfter("$4"));
+
+        assertEquals(Arrays.asList("$2", "$3", "$4"), index.eventIdsAfter("$1"));
+    }
+
+    @Test
+    public void testPrependedEvents() {
+        MXRoomUnreadIndex index = new MXRoomUnreadIndex(MY_USER_ID);
+
+        index.append(buildMessage("$3", OTHER_USER_ID));
+        index.prepend(buildMessage("$2", MY_USER_ID));
+        index.prepend(buildMessage("$1", OTHER_USER_ID));
+
+        assertEquals(2, index.countAfter(null));
+        assertEquals(1, index.countAfter("$1"));
+        assertEquals(1, index.countAfter("$2"));
+        assertEquals(0, index.countAfter("$3"));
+
+        assertTrue(index.getOrdinal("$1") < index.getOrdinal("$2"));
+        assertTrue(index.getOrdinal("$2") < index.getOrdinal("$3"));
+
+        assertEquals(Arrays.asList("$1", "$2", "$3"), index.eventIdsAfter(null));
+        assertEquals(Arrays.asList("$3"), index.eventIdsAfter("$2"));
+    }
+
+    @Test
+    public void testRemovedEvents() {
+        MXRoomUnreadIndex index = new MXRoomUnreadIndex(MY_USER_ID);
+
+        Event myEvent = buildMessage("$1", MY_USER_ID);
+        Event otherEvent = buildMessage("$2", OTHER_USER_ID);
+
+        index.append(myEvent);
+        index.append(otherEvent);
+
+        // removing an event which is not counted keeps the index valid
+        index.remove(myEvent);
+        assertTrue(index.isValid());
+        assertFalse(index.contains("$1"));
+        assertEquals(1, index.countAfter(null));
+
+        // removing a counted event requires to rebuild the index
+        index.remove(otherEvent);
+        assertFalse(index.isValid());
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.client;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.api.EventsApi;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import okhttp3.Request;
+
+import static org.junit.Assert.*;
+
+/**
+ * Class for unit testing the MXRestRequestScheduler.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MXRestRequestSchedulerTest {
+
+    // the max delay to wait for a thread state change
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * A scheduler with a manual clock.
+     */
+    private static class TestScheduler extends MXRestRequestScheduler {
+        private volatile long mNow = 1000000;
+
+        @Override
+        long currentTimeMillis() {
+            return mNow;
+        }
+
+        void advance(long delay) {
+            mNow += delay;
+        }
+    }
+
+    /**
+     * Acquire a priority class in a new thread.
+     *
+     * @param scheduler the scheduler
+     * @param priority  the priority class
+     * @param started   the started priorities, in their start order
+     * @param errors    the acquire errors
+     * @return the thread
+     */
+    private static Thread acquireInThread(final MXRestRequestScheduler scheduler, final int priority, final List<Integer> started, final List<Exception> errors) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.acquire(priority);
+                    started.add(priority);
+                } catch (IOException e) {
+                    errors.add(e);
+                }
+            }
+        });
+
+        thread.start();
+        return thread;
+    }
+
+    private static void waitForWaitingCount(MXRestRequestScheduler scheduler, int priority, int count) throws Exception {
+        long end = System.currentTimeMillis() + TIMEOUT_MS;
+
+        while ((scheduler.getWaitingCount(priority) != count) && (System.currentTimeMillis() < end)) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(count, scheduler.getWaitingCount(priority));
+    }
+
+    @Test
+    public void testClassLimit() throws Exception {
+        MXRestRequestScheduler scheduler = new TestScheduler();
+        List<Integer> started = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+
+        scheduler.acquire(MXRestRequestScheduler.PRIORITY_BACKGROUND);
+        scheduler.acquire(MXRestRequestScheduler.PRIORITY_BACKGROUND);
+
+        // the background class is full
+        Thread thread = acquireInThread(scheduler, MXRestRequestScheduler.PRIORITY_BACKGROUND, started, errors);
+        waitForWaitingCount(scheduler, MXRestRequestScheduler.PRIORITY_BACKGROUND, 1);
+
+        // the other classes are not blocked
+        scheduler.acquire(MXRestRequestScheduler.PRIORITY_USER_READ);
+
+        scheduler.release(MXRestRequestScheduler.PRIORITY_BACKGROUND);
+        thread.join(TIMEOUT_MS);
+
+        assertEquals(1, started.size());
+        assertEquals(2, scheduler.getRunningCount(MXRestRequestScheduler.PRIORITY_BACKGROUND));
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testUploadsDoNotDelaySends() throws Exception {
+        MXRestRequestScheduler scheduler = new TestScheduler();
+        List<Integer> started = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+
+        scheduler.acquire(MXRestRequestScheduler.PRIORITY_UPLOAD);
+        scheduler.acquire(MXRestRequestScheduler.PRIORITY_UPLOAD);
+
+        // the running uploads do not use the interactive slots
+        for (int i = 0; i < 4; i++) {
+            scheduler.acquire(MXRestRequestScheduler.PRIORITY_INTERACTIVE);
+        }
+
+        assertEquals(2, scheduler.getRunningCount(MXRestRequestScheduler.PRIORITY_UPLOAD));
+        assertEquals(4, scheduler.getRunningCount(MXRestRequestScheduler.PRIORITY_INTERACTIVE));
+
+        // the uploads have their own limit
+        Thread thread = acquireInThread(scheduler, MXRestRequestScheduler.PRIORITY_UPLOAD, started, errors);
+        waitForWaitingCount(scheduler, MXRestRequestScheduler.PRIORITY_UPLOAD, 1);
+
+        scheduler.release(MXRestRequestScheduler.PRIORITY_UPLOAD);
+        thread.join(TIMEOUT_MS);
+
+        assertEquals(1, started.size());
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testGlobalLimitAndAgeing() throws Exception {
+        TestScheduler scheduler = new TestScheduler();
+        List<Integer> started = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+
+        // reach the global limit
+        for (int i = 0; i < 4; i++) {
+            scheduler.acquire(MXRestRequestScheduler.PRIORITY_INTERACTIVE);
+        }
+
+        for (int i = 0; i < 4; i++) {
+            scheduler.acquire(MXRestRequestScheduler.PRIORITY_USER_READ);
+        }
+
+        Thread backgroundThread = acquireInThread(scheduler, MXRestRequestScheduler.PRIORITY_BACKGROUND, started, errors);
+        waitForWaitingCount(scheduler, MXRestRequestScheduler.PRIORITY_BACKGROUND, 1);
+
+        // the background request waits long enough to be ranked before a new sync request
+        scheduler.advance(4500);
+
+        Thread syncThread = acquireInThread(scheduler, MXRestRequestScheduler.PRIORITY_SYNC, started, errors);
+        waitForWaitingCount(scheduler, MXRestRequestScheduler.PRIORITY_SYNC, 1);
+
+        scheduler.release(MXRestRequestScheduler.PRIORITY_INTERACTIVE);
+        backgroundThread.join(TIMEOUT_MS);
+
+        assertEquals(Collections.singletonList(MXRestRequestScheduler.PRIORITY_BACKGROUND), new ArrayList<>(started));
+        assertEquals(1, scheduler.getWaitingCount(MXRestRequestScheduler.PRIORITY_SYNC));
+
+        scheduler.release(MXRestRequestScheduler.PRIORITY_INTERACTIVE);
+        syncThread.join(TIMEOUT_MS);
+
+        assertEquals(2, started.size());
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testReleaseOnError() throws Exception {
+        MXRestRequestScheduler scheduler = new TestScheduler();
+        List<Integer> started = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+
+        scheduler.acquire(MXRestRequestScheduler.PRIORITY_SYNC);
+        scheduler.acquire(MXRestRequestScheduler.PRIORITY_SYNC);
+
+        // an interrupted waiting request fails and does not use a slot
+        Thread thread = acquireInThread(scheduler, MXRestRequestScheduler.PRIORITY_SYNC, started, errors);
+        waitForWaitingCount(scheduler, MXRestRequestScheduler.PRIORITY_SYNC, 1);
+
+        thread.interrupt();
+        thread.join(TIMEOUT_MS);
+
+        assertEquals(1, errors.size());
+        assertTrue(started.isEmpty());
+        assertEquals(0, scheduler.getWaitingCount(MXRestRequestScheduler.PRIORITY_SYNC));
+        assertEquals(2, scheduler.getRunningCount(MXRestRequestScheduler.PRIORITY_SYNC));
+
+        // the failed requests release their slots
+        scheduler.release(MXRestRequestScheduler.PRIORITY_SYNC);
+        scheduler.release(MXRestRequestScheduler.PRIORITY_SYNC);
+        assertEquals(0, scheduler.getRunningCount(MXRestRequestScheduler.PRIORITY_SYNC));
+
+        // an unbalanced release is ignored
+        scheduler.release(MXRestRequestScheduler.PRIORITY_SYNC);
+        assertEquals(0, scheduler.getRunningCount(MXRestRequestScheduler.PRIORITY_SYNC));
+
+        scheduler.acquire(MXRestRequestScheduler.PRIORITY_SYNC);
+        scheduler.acquire(MXRestRequestScheduler.PRIORITY_SYNC);
+        assertEquals(2, scheduler.getRunningCount(MXRestRequestScheduler.PRIORITY_SYNC));
+    }
+
+    @Test
+    public void testMaxWaitingDelay() throws Exception {
+        TestScheduler scheduler = new TestScheduler();
+        List<Integer> started = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+
+        scheduler.acquire(MXRestRequestScheduler.PRIORITY_SYNC);
+        scheduler.acquire(MXRestRequestScheduler.PRIORITY_SYNC);
+
+        Thread thread = acquireInThread(scheduler, MXRestRequestScheduler.PRIORITY_SYNC, started, errors);
+        waitForWaitingCount(scheduler, MXRestRequestScheduler.PRIORITY_SYNC, 1);
+
+        // a request which does not get a slot fails
+        scheduler.advance(MXRestRequestScheduler.MAX_WAITING_DELAY_MS);
+        thread.join(TIMEOUT_MS);
+
+        assertEquals(1, errors.size());
+        assertTrue(started.isEmpty());
+        assertEquals(0, scheduler.getWaitingCount(MXRestRequestScheduler.PRIORITY_SYNC));
+        assertEquals(2, scheduler.getRunningCount(MXRestRequestScheduler.PRIORITY_SYNC));
+    }
+
+    @Test
+    public void testInstanceByUserId() throws Exception {
+        MXRestRequestScheduler aliceScheduler = MXRestRequestScheduler.getInstance("@alice:matrix.org");
+
+        assertSame(aliceScheduler, MXRestRequestScheduler.getInstance("@alice:matrix.org"));
+        assertNotSame(aliceScheduler, MXRestRequestScheduler.getInstance("@bob:matrix.org"));
+        assertSame(MXRestRequestScheduler.getInstance(null), MXRestRequestScheduler.getInstance(null));
+
+        // the sessions do not share their limits
+        aliceScheduler.acquire(MXRestRequestScheduler.PRIORITY_SYNC);
+        aliceScheduler.acquire(MXRestRequestScheduler.PRIORITY_SYNC);
+        assertEquals(0, MXRestRequestScheduler.getInstance("@bob:matrix.org").getRunningCount(MXRestRequestScheduler.PRIORITY_SYNC));
+
+        MXRestRequestScheduler.removeInstance("@alice:matrix.org");
+        assertNotSame(aliceScheduler, MXRestRequestScheduler.getInstance("@alice:matrix.org"));
+        MXRestRequestScheduler.removeInstance("@alice:matrix.org");
+        MXRestRequestScheduler.removeInstance("@bob:matrix.org");
+    }
+
+    @Test
+    public void testSyncLongPollIsNotScheduled() {
+        EventsRestClient restClient = new EventsRestClient((EventsApi) null);
+        String syncUrl = "https://matrix.org/_matrix/client/r0/sync";
+
+        assertEquals(MXRestRequestScheduler.PRIORITY_UNSCHEDULED, restClient.getRequestPriority(new Request.Builder().url(syncUrl + "?since=s1&timeout=30000").build()));
+        assertEquals(MXRestRequestScheduler.PRIORITY_SYNC, restClient.getRequestPriority(new Request.Builder().url(syncUrl + "?since=s1&timeout=0").build()));
+        assertEquals(MXRestRequestScheduler.PRIORITY_SYNC, restClient.getRequestPriority(new Request.Builder().url(syncUrl).build()));
+        assertEquals(MXRestRequestScheduler.PRIORITY_USER_READ, restClient.getRequestPriority(new Request.Builder().url("https://matrix.org/_matrix/client/r0/publicRooms").build()));
+    }
+}
@@ -15,16 +15,20 @@ import org.robolectric.RobolectricTestRunner;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.matrix.androidsdk.RestClient;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
+import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
 import org.matrix.androidsdk.rest.api.EventsApi;
 import org.matrix.androidsdk.rest.model.PublicRoom;
 import org.matrix.androidsdk.rest.model.TokensChunkResponse;
+import org.matrix.androidsdk.rest.model.User;
 import org.matrix.androidsdk.test.JSONUtils;
 import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -145,4 +149,157 @@ public class RestClientTest {
         client.loadPublicRooms("dummyServer", null, null, 10, cb);
         verify(cb, times(0)).onSuccess(any(PublicRoomsResponse.class));*/
     }
+
+    /**
+     * A rest client whose GET requests are answered by the test.
+     */
+    private static class CoalescingRestClient extends RestClient<Object> {
+        // the number of sent requests
+        int mRequestsCount = 0;
+
+        // the callbacks of the requests in progress
+        final List<ApiCallback<User>> mPendingCallbacks = new ArrayList<>();
+
+        void getUser(String key, ApiCallback<User> callback) {
+            coalescedGet(key, 60 * 1000, callback, new GetRequest<User>() {
+                @Override
+                public void execute(ApiCallback<User> requestCallback) {
+                    mRequestsCount++;
+                    mPendingCallbacks.add(requestCallback);
+                }
+            });
+        }
+
+        void respond(String displayName) {
+            User user = new User();
+            user.user_id = "@bob:matrix.org";
+            user.displayname = displayName;
+
+            List<ApiCallback<User>> callbacks = new ArrayList<>(mPendingCallbacks);
+            mPendingCallbacks.clear();
+
+            for (ApiCallback<User> callback : callbacks) {
+                callback.onSuccess(user);
+            }
+        }
+
+        void invalidate(String keyPrefix) {
+            invalidateGetResponses(keyPrefix);
+        }
+    }
+
+    /**
+     * A callback which records the received users.
+     */
+    private static class UsersCallback extends SimpleApiCallback<User> {
+        final List<User> mUsers = new ArrayList<>();
+
+        @Override
+        public void onSuccess(User user) {
+            mUsers.add(user);
+        }
+    }
+
+    /**
+     * Tests: RestClient.invalidateGetResponses(String)
+     * Summary: the key prefix only matches the keys on a path segment boundary.
+     */
+    @Test
+    public void testInvalidateGetResponsesOnSegmentBoundary() {
+        CoalescingRestClient client = new CoalescingRestClient();
+        UsersCallback callback = new UsersCallback();
+
+        client.getUser("presence/@bob:matrix.org", callback);
+        client.respond("Bob");
+        client.getUser("presence/@bob:matrix.org.uk", callback);
+        client.respond("Bob UK");
+        client.getUser("presence/@bob:matrix.org/status", callback);
+        client.respond("Bob status");
+        assertEquals(3, client.mRequestsCount);
+
+        client.invalidate("presence/@bob:matrix.org");
+
+        // the longer user id is still cached
+        client.getUser("presence/@bob:matrix.org.uk", callback);
+        assertEquals(3, client.mRequestsCount);
+        assertEquals("Bob UK", callback.mUsers.get(callback.mUsers.size() - 1).displayname);
+
+        // the same key and its sub paths are invalidated
+        client.getUser("presence/@bob:matrix.org", callback);
+        assertEquals(4, client.mRequestsCount);
+        client.respond("Bob");
+
+        client.getUser("presence/@bob:matrix.org/status", callback);
+        assertEquals(5, client.mRequestsCount);
+        client.respond("Bob status");
+
+        // a prefix ending with a separator matches all its keys
+        client.invalidate("presence/");
+        client.getUser("presence/@bob:matrix.org.uk", callback);
+        assertEquals(6, client.mRequestsCount);
+        client.respond("Bob UK");
+
+        // null invalidates everything
+        client.invalidate(null);
+        client.getUser("presence/@bob:matrix.org", callback);
+        assertEquals(7, client.mRequestsCount);
+    }
+
+    /**
+     * Tests: RestClient.invalidateGetResponses(String)
+     * Summary: the response of an invalidated request in progress is not cached.
+     */
+    @Test
+    public void testInvalidatePendingGetRequest() {
+        CoalescingRestClient client = new CoalescingRestClient();
+        UsersCallback callback = new UsersCallback();
+
+        client.getUser("displayname/@bob:matrix.org", callback);
+        client.invalidate("displayname/@bob:matrix.org");
+        client.respond("Old Bob");
+        assertEquals(1, callback.mUsers.size());
+
+        client.getUser("displayname/@bob:matrix.org", callback);
+        assertEquals(2, client.mRequestsCount);
+    }
+
+    /**
+     * Tests: RestClient.coalescedGet()
+     * Summary: the callers get their own response instance, updating it does not alter the cache.
+     */
+    @Test
+    public void testCoalescedGetResponsesCopies() {
+        CoalescingRestClient client = new CoalescingRestClient();
+        UsersCallback callback1 = new UsersCallback();
+        UsersCallback callback2 = new UsersCallback();
+
+        // coalesced requests
+        client.getUser("presence/@bob:matrix.org", callback1);
+        client.getUser("presence/@bob:matrix.org", callback2);
+        assertEquals(1, client.mRequestsCount);
+        client.respond("Bob");
+
+        User user1 = callback1.mUsers.get(0);
+        User user2 = callback2.mUsers.get(0);
+        assertNotSame(user1, user2);
+        assertEquals("Bob", user2.displayname);
+        assertEquals("@bob:matrix.org", user2.user_id);
+
+        user1.displayname = "Updated";
+        user2.displayname = "Updated";
+
+        // cached response
+        UsersCallback callback3 = new UsersCallback();
+        client.getUser("presence/@bob:matrix.org", callback3);
+        assertEquals(1, client.mRequestsCount);
+
+        User user3 = callback3.mUsers.get(0);
+        assertNotSame(user1, user3);
+        assertEquals("Bob", user3.displayname);
+        user3.displayname = "Updated";
+
+        UsersCallback callback4 = new UsersCallback();
+        client.getUser("presence/@bob:matrix.org", callback4);
+        assertEquals("Bob", callback4.mUsers.get(0).displayname);
+    }
 }
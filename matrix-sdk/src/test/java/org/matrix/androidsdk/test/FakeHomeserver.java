@@ -0,0 +1,464 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * Local stand-in homeserver, for the offline load tests.
+ * It serves the responses of a FakeSyncGenerator :
+ * - the initial sync then syncBatchesCount incremental syncs, then the long polls time out with empty responses.
+ * - the rooms pagination, the search, the push rules and the filters.
+ * - the crypto endpoints (/keys/*, /sendToDevice).
+ * - the media upload and download.
+ * The other requests get an empty JSON object.
+ */
+public class FakeHomeserver {
+    // the client API prefixes, the endpoints are matched after them
+    private static final String[] CLIENT_API_PREFIXES = {"/_matrix/client/r0", "/_matrix/client/unstable", "/_matrix/client/api/v1"};
+
+    // the media API prefixes
+    private static final String[] MEDIA_API_PREFIXES = {"/_matrix/media/r0", "/_matrix/media/v1"};
+
+    // the endpoint names used by the requests statistics
+    public static final String ENDPOINT_SYNC = "sync";
+    public static final String ENDPOINT_MESSAGES = "messages";
+    public static final String ENDPOINT_SEARCH = "search";
+    public static final String ENDPOINT_KEYS_UPLOAD = "keys/upload";
+    public static final String ENDPOINT_KEYS_QUERY = "keys/query";
+    public static final String ENDPOINT_KEYS_CLAIM = "keys/claim";
+    public static final String ENDPOINT_KEYS_CHANGES = "keys/changes";
+    public static final String ENDPOINT_SEND_TO_DEVICE = "sendToDevice";
+    public static final String ENDPOINT_MEDIA_UPLOAD = "media/upload";
+    public static final String ENDPOINT_MEDIA_DOWNLOAD = "media/download";
+    public static final String ENDPOINT_OTHER = "other";
+
+    // the generated responses
+    private final FakeSyncGenerator mGenerator;
+
+    // the scripted incremental syncs
+    private int mSyncBatchesCount = 0;
+    private int mRoomsPerBatch = 1;
+    private int mEventsPerRoom = 1;
+
+    // the max long poll duration when there is no more batch
+    private long mLongPollMs = 200;
+
+    // the size of the downloaded media
+    private int mMediaSize = 64 * 1024;
+
+    // the number of search results
+    private int mSearchResultsCount = 10;
+
+    // the requests count by endpoint
+    private final ConcurrentHashMap<String, AtomicInteger> mRequestsCount = new ConcurrentHashMap<>();
+
+    // the time (System.nanoTime) when the sync responses have been sent, by next_batch token
+    private final Map<String, Long> mSyncResponseTimes = new ConcurrentHashMap<>();
+
+    // the sync responses sizes, by next_batch token
+    private final Map<String, Long> mSyncResponseSizes = new ConcurrentHashMap<>();
+
+    private final MockWebServer mServer = new MockWebServer();
+
+    /**
+     * Constructor.
+     *
+     * @param generator the responses generator
+     */
+    public FakeHomeserver(FakeSyncGenerator generator) {
+        mGenerator = generator;
+
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                try {
+                    return FakeHomeserver.this.dispatch(request);
+                } catch (Exception e) {
+                    return jsonResponse(500, "{\"errcode\":\"M_UNKNOWN\",\"error\":\"" + e.getMessage() + "\"}");
+                }
+            }
+        });
+    }
+
+    /**
+     * Script the incremental syncs.
+     * The sync with the token syncToken(i) provides the batch i, for i in [0, batchesCount[.
+     *
+     * @param batchesCount  the number of incremental syncs with new events
+     * @param roomsPerBatch the number of updated rooms per batch
+     * @param eventsPerRoom the number of new events per updated room
+     */
+    public void setSyncBatches(int batchesCount, int roomsPerBatch, int eventsPerRoom) {
+        mSyncBatchesCount = batchesCount;
+        mRoomsPerBatch = roomsPerBatch;
+        mEventsPerRoom = eventsPerRoom;
+    }
+
+    /**
+     * Set the max duration of a long poll without new events.
+     *
+     * @param longPollMs the duration in milliseconds
+     */
+    public void setLongPollMs(long longPollMs) {
+        mLongPollMs = longPollMs;
+    }
+
+    /**
+     * Set the size of the downloaded media.
+     *
+     * @param mediaSize the size in bytes
+     */
+    public void setMediaSize(int mediaSize) {
+        mMediaSize = mediaSize;
+    }
+
+    /**
+     * Set the number of search results.
+     *
+     * @param searchResultsCount the number of results
+     */
+    public void setSearchResultsCount(int searchResultsCount) {
+        mSearchResultsCount = searchResultsCount;
+    }
+
+    /**
+     * Start the server.
+     *
+     * @throws IOException if the server cannot be started
+     */
+    public void start() throws IOException {
+        mServer.start();
+    }
+
+    /**
+     * Stop the server.
+     */
+    public void shutdown() {
+        try {
+            mServer.shutdown();
+        } catch (IOException e) {
+            // the server is stopped anyway
+        }
+    }
+
+    /**
+     * @return the homeserver url, without trailing slash
+     */
+    public String getUrl() {
+        String url = mServer.url("/").toString();
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    /**
+     * Provides the number of requests of an endpoint.
+     *
+     * @param endpoint the endpoint (ENDPOINT_XXX)
+     * @return the requests count
+     */
+    public int getRequestsCount(String endpoint) {
+        AtomicInteger count = mRequestsCount.get(endpoint);
+        return (null != count) ? count.get() : 0;
+    }
+
+    /**
+     * @return the requests count by endpoint
+     */
+    public Map<String, Integer> getRequestsCounts() {
+        Map<String, Integer> counts = new TreeMap<>();
+
+        for (Map.Entry<String, AtomicInteger> entry : mRequestsCount.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+
+        return counts;
+    }
+
+    /**
+     * Provides the time when a sync response has been sent.
+     *
+     * @param nextBatch the response next_batch token
+     * @return the System.nanoTime value, null if the response has not been sent
+     */
+    public Long getSyncResponseTime(String nextBatch) {
+        return mSyncResponseTimes.get(nextBatch);
+    }
+
+    /**
+     * Provides the size of a sync response.
+     *
+     * @param nextBatch the response next_batch token
+     * @return the size in bytes, 0 if the response has not been sent
+     */
+    public long getSyncResponseSize(String nextBatch) {
+        Long size = mSyncResponseSizes.get(nextBatch);
+        return (null != size) ? size : 0;
+    }
+
+    /**
+     * Count a request.
+     *
+     * @param endpoint the endpoint
+     */
+    private void countRequest(String endpoint) {
+        AtomicInteger count = mRequestsCount.get(endpoint);
+
+        if (null == count) {
+            mRequestsCount.putIfAbsent(endpoint, new AtomicInteger(0));
+            count = mRequestsCount.get(endpoint);
+        }
+
+        count.incrementAndGet();
+    }
+
+    /**
+     * Build a JSON response.
+     *
+     * @param code the HTTP status
+     * @param body the body
+     * @return the response
+     */
+    private static MockResponse jsonResponse(int code, String body) {
+        return new MockResponse()
+                .setResponseCode(code)
+                .addHeader("Content-Type", "application/json")
+                .setBody(body);
+    }
+
+    /**
+     * Remove the API prefix of a path.
+     *
+     * @param path     the path
+     * @param prefixes the prefixes
+     * @return the path without prefix, null if no prefix matches
+     */
+    private static String removePrefix(String path, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (path.startsWith(prefix + "/")) {
+                return path.substring(prefix.length());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Parse a JSON request body.
+     *
+     * @param request the request
+     * @return the body, an empty object if it is not a JSON object
+     */
+    private static JsonObject jsonBody(RecordedRequest request) {
+        try {
+            JsonElement element = new JsonParser().parse(request.getBody().clone().readUtf8());
+
+            if (element.isJsonObject()) {
+                return element.getAsJsonObject();
+            }
+        } catch (Exception e) {
+            // not a JSON body
+        }
+
+        return new JsonObject();
+    }
+
+    /**
+     * Serve a request.
+     *
+     * @param request the request
+     * @return the response
+     * @throws InterruptedException if the long poll is interrupted
+     */
+    private MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        HttpUrl url = HttpUrl.parse("http://localhost" + request.getPath());
+        String path = url.encodedPath();
+
+        String mediaPath = removePrefix(path, MEDIA_API_PREFIXES);
+
+        if (null != mediaPath) {
+            return dispatchMedia(mediaPath);
+        }
+
+        String clientPath = removePrefix(path, CLIENT_API_PREFIXES);
+
+        // some clients use the paths without prefix
+        if (null == clientPath) {
+            clientPath = path;
+        }
+
+        if (clientPath.equals("/sync")) {
+            countRequest(ENDPOINT_SYNC);
+            return dispatchSync(url.queryParameter("since"), url.queryParameter("timeout"));
+        }
+
+        if (clientPath.startsWith("/rooms/") && clientPath.endsWith("/messages")) {
+            countRequest(ENDPOINT_MESSAGES);
+
+            String roomId = url.pathSegments().get(url.pathSize() - 2);
+            String limit = url.queryParameter("limit");
+
+            return jsonResponse(200, mGenerator.messagesJson(roomId, url.queryParameter("from"), (null != limit) ? Integer.parseInt(limit) : 10));
+        }
+
+        if (clientPath.equals("/search")) {
+            countRequest(ENDPOINT_SEARCH);
+            return jsonResponse(200, mGenerator.searchJson(mSearchResultsCount));
+        }
+
+        if (clientPath.startsWith("/keys/upload")) {
+            countRequest(ENDPOINT_KEYS_UPLOAD);
+            return jsonResponse(200, "{\"one_time_key_counts\":{\"signed_curve25519\":50}}");
+        }
+
+        if (clientPath.equals("/keys/query")) {
+            countRequest(ENDPOINT_KEYS_QUERY);
+
+            JsonObject deviceKeys = jsonBody(request).getAsJsonObject("device_keys");
+            List<String> userIds = new ArrayList<>();
+
+            if (null != deviceKeys) {
+                for (Map.Entry<String, JsonElement> entry : deviceKeys.entrySet()) {
+                    userIds.add(entry.getKey());
+                }
+            }
+
+            return jsonResponse(200, FakeSyncGenerator.keysQueryJson(userIds));
+        }
+
+        if (clientPath.equals("/keys/claim")) {
+            countRequest(ENDPOINT_KEYS_CLAIM);
+            return jsonResponse(200, "{\"one_time_keys\":{},\"failures\":{}}");
+        }
+
+        if (clientPath.equals("/keys/changes")) {
+            countRequest(ENDPOINT_KEYS_CHANGES);
+            return jsonResponse(200, "{\"changed\":[],\"left\":[]}");
+        }
+
+        if (clientPath.startsWith("/sendToDevice/")) {
+            countRequest(ENDPOINT_SEND_TO_DEVICE);
+            return jsonResponse(200, "{}");
+        }
+
+        countRequest(ENDPOINT_OTHER);
+
+        if (clientPath.startsWith("/pushrules")) {
+            return jsonResponse(200, FakeSyncGenerator.pushRulesJson());
+        }
+
+        if (clientPath.endsWith("/filter") && "POST".equals(request.getMethod())) {
+            return jsonResponse(200, "{\"filter_id\":\"1\"}");
+        }
+
+        if (clientPath.startsWith("/rooms/") && clientPath.contains("/send/")) {
+            return jsonResponse(200, "{\"event_id\":\"$" + System.nanoTime() + ":" + FakeSyncGenerator.SERVER_NAME + "\"}");
+        }
+
+        return jsonResponse(200, "{}");
+    }
+
+    /**
+     * Serve a sync request.
+     *
+     * @param since   the since token
+     * @param timeout the server timeout
+     * @return the response
+     * @throws InterruptedException if the long poll is interrupted
+     */
+    private MockResponse dispatchSync(String since, String timeout) throws InterruptedException {
+        String body;
+        String nextBatch;
+
+        if (null == since) {
+            body = mGenerator.initialSyncJson();
+            nextBatch = FakeSyncGenerator.syncToken(0);
+        } else {
+            int batchIndex = FakeSyncGenerator.batchIndex(since);
+
+            if ((batchIndex >= 0) && (batchIndex < mSyncBatchesCount)) {
+                body = mGenerator.incrementalSyncJson(batchIndex, mRoomsPerBatch, mEventsPerRoom);
+                nextBatch = FakeSyncGenerator.syncToken(batchIndex + 1);
+            } else {
+                // no new event : emulate the long poll
+                long timeoutMs;
+
+                try {
+                    timeoutMs = (null != timeout) ? Long.parseLong(timeout) : 0;
+                } catch (Exception e) {
+                    timeoutMs = 0;
+                }
+
+                Thread.sleep(Math.min(timeoutMs, mLongPollMs));
+
+                return jsonResponse(200, FakeSyncGenerator.emptySyncJson(since));
+            }
+        }
+
+        Buffer buffer = new Buffer().writeUtf8(body);
+        mSyncResponseSizes.put(nextBatch, buffer.size());
+        mSyncResponseTimes.put(nextBatch, System.nanoTime());
+
+        return new MockResponse()
+                .setResponseCode(200)
+                .addHeader("Content-Type", "application/json")
+                .setBody(buffer);
+    }
+
+    /**
+     * Serve a media request.
+     *
+     * @param mediaPath the path after the media API prefix
+     * @return the response
+     */
+    private MockResponse dispatchMedia(String mediaPath) {
+        if (mediaPath.startsWith("/upload")) {
+            countRequest(ENDPOINT_MEDIA_UPLOAD);
+            return jsonResponse(200, "{\"content_uri\":\"mxc://" + FakeSyncGenerator.SERVER_NAME + "/" + System.nanoTime() + "\"}");
+        }
+
+        countRequest(ENDPOINT_MEDIA_DOWNLOAD);
+
+        // the same content for the downloads and the thumbnails
+        byte[] content = new byte[mMediaSize];
+
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+
+        return new MockResponse()
+                .setResponseCode(200)
+                .addHeader("Content-Type", "application/octet-stream")
+                .setBody(new Buffer().write(content));
+    }
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright 2017 Vector Creations Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.Random;
+
+/**
+ * Generates the homeserver responses of a synthetic account.
+ * The account has roomsCount joined rooms of membersCount members (plus the account user).
+ * Each room starts with eventsCount timeline events and has historyCount older events to paginate.
+ * The generator is seeded : two generators with the same parameters provide the same responses.
+ * The responses can be generated from several threads.
+ */
+public class FakeSyncGenerator {
+    // the server name
+    public static final String SERVER_NAME = "localhost";
+
+    // the sync tokens are "s<batch index>", the initial sync provides "s0"
+    private static final String SYNC_TOKEN_PREFIX = "s";
+
+    // the pagination tokens are "p<event index>"
+    private static final String PAGINATION_TOKEN_PREFIX = "p";
+
+    private static final String[] WORDS = {"hello", "matrix", "room", "the", "message", "sync", "android", "load", "a", "with", "state", "event"};
+
+    // the account user id
+    private final String mUserId;
+
+    // the account size
+    private final int mRoomsCount;
+    private final int mMembersCount;
+    private final int mEventsCount;
+    private final int mHistoryCount;
+
+    // true to generate encrypted rooms
+    private final boolean mIsEncrypted;
+
+    private final Random mRandom;
+
+    /**
+     * Constructor.
+     *
+     * @param userId       the account user id
+     * @param roomsCount   the number of joined rooms
+     * @param membersCount the number of members per room
+     * @param eventsCount  the number of timeline events per room in the initial sync
+     * @param historyCount the number of older events per room, provided by the pagination
+     * @param isEncrypted  true if the rooms are encrypted
+     */
+    public FakeSyncGenerator(String userId, int roomsCount, int membersCount, int eventsCount, int historyCount, boolean isEncrypted) {
+        mUserId = userId;
+        mRoomsCount = roomsCount;
+        mMembersCount = membersCount;
+        mEventsCount = eventsCount;
+        mHistoryCount = historyCount;
+        mIsEncrypted = isEncrypted;
+        mRandom = new Random(roomsCount * 31 + membersCount * 17 + eventsCount);
+    }
+
+    /**
+     * @return the number of joined rooms
+     */
+    public int getRoomsCount() {
+        return mRoomsCount;
+    }
+
+    /**
+     * Provides a room id.
+     *
+     * @param index the room index
+     * @return the room id
+     */
+    public static String roomId(int index) {
+        return "!room" + index + ":" + SERVER_NAME;
+    }
+
+    /**
+     * Provides a member user id.
+     *
+     * @param index the member index
+     * @return the user id
+     */
+    public static String memberId(int index) {
+        return "@user" + index + ":" + SERVER_NAME;
+    }
+
+    /**
+     * Provides the sync token of a batch.
+     *
+     * @param batchIndex the batch index
+     * @return the token
+     */
+    public static String syncToken(int batchIndex) {
+        return SYNC_TOKEN_PREFIX + batchIndex;
+    }
+
+    /**
+     * Provides the batch index of a sync token.
+     *
+     * @param token the token
+     * @return the batch index, -1 for the initial sync
+     */
+    public static int batchIndex(String token) {
+        if ((null != token) && token.startsWith(SYNC_TOKEN_PREFIX)) {
+            try {
+                return Integer.parseInt(token.substring(SYNC_TOKEN_PREFIX.length()));
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Provides a random text.
+     *
+     * @param wordsCount the number of words
+     * @return the text
+     */
+    private String text(int wordsCount) {
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < wordsCount; i++) {
+            if (i > 0) {
+                builder.append(" ");
+            }
+            builder.append(WORDS[mRandom.nextInt(WORDS.length)]);
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Provides the common fields of an event.
+     *
+     * @param type       the event type
+     * @param sender     the sender
+     * @param roomId     the room id
+     * @param eventIndex the event index in the room
+     * @return the event JSON
+     */
+    private static JsonObject eventJson(String type, String sender, String roomId, long eventIndex) {
+        JsonObject json = new JsonObject();
+        json.addProperty("type", type);
+        json.addProperty("sender", sender);
+        json.addProperty("room_id", roomId);
+        json.addProperty("event_id", "$" + eventIndex + "_" + Math.abs(roomId.hashCode()) + ":" + SERVER_NAME);
+        json.addProperty("origin_server_ts", eventTs(eventIndex));
+        return json;
+    }
+
+    /**
+     * Provides the timestamp of an event.
+     *
+     * @param eventIndex the event index in the room
+     * @return the origin_server_ts value
+     */
+    private static long eventTs(long eventIndex) {
+        return 1500000000000L + eventIndex * 1000L;
+    }
+
+    /**
+     * Provides a state event.
+     *
+     * @param type       the event type
+     * @param roomId     the room id
+     * @param stateKey   the state key
+     * @param content    the content
+     * @param eventIndex the event index in the room
+     * @return the event JSON
+     */
+    private JsonObject stateEventJson(String type, String roomId, String stateKey, JsonObject content, long eventIndex) {
+        JsonObject json = eventJson(type, mUserId, roomId, eventIndex);
+        json.addProperty("state_key", stateKey);
+        json.add("content", content);
+        return json;
+    }
+
+    /**
+     * Provides a joined member event.
+     *
+     * @param roomId     the room id
+     * @param userId     the member id
+     * @param eventIndex the event index in the room
+     * @return the event JSON
+     */
+    private JsonObject memberEventJson(String roomId, String userId, long eventIndex) {
+        JsonObject content = new JsonObject();
+        content.addProperty("membership", "join");
+        content.addProperty("displayname", userId.substring(1, userId.indexOf(":")));
+
+        JsonObject json = stateEventJson("m.room.member", roomId, userId, content, eventIndex);
+        json.addProperty("sender", userId);
+        return json;
+    }
+
+    /**
+     * Provides a timeline event, a text message or an encrypted event.
+     *
+     * @param roomId     the room id
+     * @param eventIndex the event index in the room
+     * @return the event JSON
+     */
+    public synchronized JsonObject timelineEventJson(String roomId, long eventIndex) {
+        String sender = (0 == mMembersCount) ? mUserId : memberId(mRandom.nextInt(mMembersCount));
+        JsonObject content = new JsonObject();
+        JsonObject json;
+
+        if (mIsEncrypted) {
+            json = eventJson("m.room.encrypted", sender, roomId, eventIndex);
+
+            // the ciphertext cannot be decrypted, it has the size of an encrypted message
+            byte[] cipherText = new byte[64 + mRandom.nextInt(256)];
+            mRandom.nextBytes(cipherText);
+
+            content.addProperty("algorithm", "m.megolm.v1.aes-sha2");
+            content.addProperty("sender_key", "senderKey" + sender);
+            content.addProperty("device_id", "DEVICE");
+            content.addProperty("session_id", "session" + roomId);
+            content.addProperty("ciphertext", android.util.Base64.encodeToString(cipherText, android.util.Base64.NO_WRAP | android.util.Base64.NO_PADDING));
+        } else {
+            json = eventJson("m.room.message", sender, roomId, eventIndex);
+            content.addProperty("msgtype", "m.text");
+            content.addProperty("body", text(5 + mRandom.nextInt(30)));
+        }
+
+        json.add("content", content);
+        return json;
+    }
+
+    /**
+     * Provides the state events of a room.
+     *
+     * @param roomIndex the room index
+     * @return the events
+     */
+    private JsonArray roomStateJson(int roomIndex) {
+        String roomId = roomId(roomIndex);
+        JsonArray events = new JsonArray();
+        long eventIndex = 0;
+
+        JsonObject createContent = new JsonObject();
+        createContent.addProperty("creator", mUserId);
+        events.add(stateEventJson("m.room.create", roomId, "", createContent, eventIndex++));
+
+        events.add(memberEventJson(roomId, mUserId, eventIndex++));
+
+        JsonObject nameContent = new JsonObject();
+        nameContent.addProperty("name", "Room " + roomIndex);
+        events.add(stateEventJson("m.room.name", roomId, "", nameContent, eventIndex++));
+
+        JsonObject joinRulesContent = new JsonObject();
+        joinRulesContent.addProperty("join_rule", "invite");
+        events.add(stateEventJson("m.room.join_rules", roomId, "", joinRulesContent, eventIndex++));
+
+        if (mIsEncrypted) {
+            JsonObject encryptionContent = new JsonObject();
+            encryptionContent.addProperty("algorithm", "m.megolm.v1.aes-sha2");
+            events.add(stateEventJson("m.room.encryption", roomId, "", encryptionContent, eventIndex++));
+        }
+
+        for (int i = 0; i < mMembersCount; i++) {
+            events.add(memberEventJson(roomId, memberId(i), eventIndex++));
+        }
+
+        return events;
+    }
+
+    /**
+     * Provides the index of the first live event of a room.
+     * The events before it are provided by the pagination.
+     *
+     * @return the event index
+     */
+    private long firstLiveEventIndex() {
+        // the state events use the first indexes
+        return 10 + mMembersCount + mHistoryCount;
+    }
+
+    /**
+     * Provides the timestamp of the first event of the incremental syncs.
+     * The events of the initial sync and of the pagination are older.
+     *
+     * @return the origin_server_ts value
+     */
+    public long getFirstIncrementalEventTs() {
+        return eventTs(firstLiveEventIndex() + mEventsCount);
+    }
+
+    /**
+     * Provides a joined room sync.
+     *
+     * @param roomIndex       the room index
+     * @param firstEventIndex the first timeline event index
+     * @param eventsCount     the number of timeline events
+     * @param withState       true to provide the room state
+     * @return the room sync JSON
+     */
+    private JsonObject joinedRoomJson(int roomIndex, long firstEventIndex, int eventsCount, boolean withState) {
+        String roomId = roomId(roomIndex);
+
+        JsonObject state = new JsonObject();
+        state.add("events", withState ? roomStateJson(roomIndex) : new JsonArray());
+
+        JsonArray timelineEvents = new JsonArray();
+
+        for (int i = 0; i < eventsCount; i++) {
+            timelineEvents.add(timelineEventJson(roomId, firstEventIndex + i));
+        }
+
+        JsonObject timeline = new JsonObject();
+        timeline.add("events", timelineEvents);
+        timeline.addProperty("limited", withState && (mHistoryCount > 0));
+        timeline.addProperty("prev_batch", PAGINATION_TOKEN_PREFIX + firstEventIndex);
+
+        JsonObject ephemeral = new JsonObject();
+        ephemeral.add("events", new JsonArray());
+
+        JsonObject accountData = new JsonObject();
+        accountData.add("events", new JsonArray());
+
+        JsonObject unreadNotifications = new JsonObject();
+        unreadNotifications.addProperty("notification_count", eventsCount);
+        unreadNotifications.addProperty("highlight_count", 0);
+
+        JsonObject joinedRoom = new JsonObject();
+        joinedRoom.add("state", state);
+        joinedRoom.add("timeline", timeline);
+        joinedRoom.add("ephemeral", ephemeral);
+        joinedRoom.add("account_data", accountData);
+        joinedRoom.add("unread_notifications", unreadNotifications);
+
+        return joinedRoom;
+    }
+
+    /**
+     * Provides a sync response.
+     *
+     * @param joinedRooms the joined rooms
+     * @param nextBatch   the next sync token
+     * @return the sync response
+     */
+    private static String syncResponseJson(JsonObject joinedRooms, String nextBatch) {
+        JsonObject rooms = new JsonObject();
+        rooms.add("join", joinedRooms);
+        rooms.add("invite", new JsonObject());
+        rooms.add("leave", new JsonObject());
+
+        JsonObject events = new JsonObject();
+        events.add("events", new JsonArray());
+
+        JsonObject response = new JsonObject();
+        response.addProperty("next_batch", nextBatch);
+        response.add("rooms", rooms);
+        response.add("presence", events);
+        response.add("account_data", events);
+        response.add("to_device", events);
+
+        return response.toString();
+    }
+
+    /**
+     * @return the initial sync response, its next_batch is syncToken(0)
+     */
+    public synchronized String initialSyncJson() {
+        JsonObject joinedRooms = new JsonObject();
+
+        for (int i = 0; i < mRoomsCount; i++) {
+            joinedRooms.add(roomId(i), joinedRoomJson(i, firstLiveEventIndex(), mEventsCount, true));
+        }
+
+        return syncResponseJson(joinedRooms, syncToken(0));
+    }
+
+    /**
+     * Provides an incremental sync response.
+     * The batch contains eventsPerRoom new events in roomsPerBatch rooms.
+     *
+     * @param batchIndex    the batch index (the response to the sync request with syncToken(batchIndex))
+     * @param roomsPerBatch the number of updated rooms
+     * @param eventsPerRoom the number of new events per updated room
+     * @return the sync response, its next_batch is syncToken(batchIndex + 1)
+     */
+    public synchronized String incrementalSyncJson(int batchIndex, int roomsPerBatch, int eventsPerRoom) {
+        JsonObject joinedRooms = new JsonObject();
+        long firstEventIndex = firstLiveEventIndex() + mEventsCount + ((long) batchIndex) * eventsPerRoom;
+
+        for (int i = 0; i < Math.min(roomsPerBatch, mRoomsCount); i++) {
+            // rotate the updated rooms
+            int roomIndex = (batchIndex * roomsPerBatch + i) % mRoomsCount;
+            joinedRooms.add(roomId(roomIndex), joinedRoomJson(roomIndex, firstEventIndex, eventsPerRoom, false));
+        }
+
+        return syncResponseJson(joinedRooms, syncToken(batchIndex + 1));
+    }
+
+    /**
+     * Provides an empty incremental sync response (the long poll timeout).
+     *
+     * @param token the sync request token
+     * @return the sync response, its next_batch is token
+     */
+    public static String emptySyncJson(String token) {
+        return syncResponseJson(new JsonObject(), token);
+    }
+
+    /**
+     * Provides a backward pagination response (/rooms/{roomId}/messages).
+     *
+     * @param roomId the room id
+     * @param from   the pagination token
+     * @param limit  the max number of events
+     * @return the messages response
+     */
+    public synchronized String messagesJson(String roomId, String from, int limit) {
+        long end = firstLiveEventIndex();
+
+        if ((null != from) && from.startsWith(PAGINATION_TOKEN_PREFIX)) {
+            try {
+                end = Long.parseLong(from.substring(PAGINATION_TOKEN_PREFIX.length()));
+            } catch (Exception e) {
+                end = firstLiveEventIndex();
+            }
+        }
+
+        // the history starts after the state events
+        long historyStart = firstLiveEventIndex() - mHistoryCount;
+        long start = Math.max(historyStart, end - Math.max(0, limit));
+
+        JsonArray chunk = new JsonArray();
+
+        // the backward pagination provides the latest events first
+        for (long index = end - 1; index >= start; index--) {
+            chunk.add(timelineEventJson(roomId, index));
+        }
+
+        JsonObject response = new JsonObject();
+        response.add("chunk", chunk);
+        response.addProperty("start", PAGINATION_TOKEN_PREFIX + end);
+        response.addProperty("end", PAGINATION_TOKEN_PREFIX + start);
+
+        return response.toString();
+    }
+
+    /**
+     * Provides a search response.
+     *
+     * @param count the number of results
+     * @return the search response
+     */
+    public synchronized String searchJson(int count) {
+        JsonArray results = new JsonArray();
+
+        for (int i = 0; i < count; i++) {
+            JsonObject result = new JsonObject();
+            result.addProperty("rank", 1.0 / (i + 1));
+            result.add("result", timelineEventJson(roomId(i % Math.max(1, mRoomsCount)), firstLiveEventIndex() + i));
+            results.add(result);
+        }
+
+        JsonObject roomEvents = new JsonObject();
+        roomEvents.addProperty("count", count);
+        roomEvents.add("results", results);
+
+        JsonObject categories = new JsonObject();
+        categories.add("room_events", roomEvents);
+
+        JsonObject response = new JsonObject();
+        response.add("search_categories", categories);
+
+        return response.toString();
+    }
+
+    /**
+     * Provides a /keys/query response, each user has a single device.
+     *
+     * @param userIds the queried users
+     * @return the keys query response
+     */
+    public static String keysQueryJson(Iterable<String> userIds) {
+        JsonObject deviceKeys = new JsonObject();
+
+        for (String userId : userIds) {
+            String deviceId = "DEVICE" + Math.abs(userId.hashCode());
+
+            JsonArray algorithms = new JsonArray();
+            algorithms.add("m.olm.v1.curve25519-aes-sha2");
+            algorithms.add("m.megolm.v1.aes-sha2");
+
+            JsonObject keys = new JsonObject();
+            keys.addProperty("curve25519:" + deviceId, "curve" + deviceId);
+            keys.addProperty("ed25519:" + deviceId, "ed" + deviceId);
+
+            JsonObject device = new JsonObject();
+            device.addProperty("user_id", userId);
+            device.addProperty("device_id", deviceId);
+            device.add("algorithms", algorithms);
+            device.add("keys", keys);
+            device.add("signatures", new JsonObject());
+
+            JsonObject devices = new JsonObject();
+            devices.add(deviceId, device);
+            deviceKeys.add(userId, devices);
+        }
+
+        JsonObject response = new JsonObject();
+        response.add("device_keys", deviceKeys);
+        response.add("failures", new JsonObject());
+
+        return response.toString();
+    }
+
+    /**
+     * @return the default push rules, with only the fallback rule
+     */
+    public static String pushRulesJson() {
+        JsonArray actions = new JsonArray();
+        actions.add("notify");
+
+        JsonObject fallback = new JsonObject();
+        fallback.addProperty("rule_id", ".m.rule.fallback");
+        fallback.addProperty("default", true);
+        fallback.addProperty("enabled", true);
+        fallback.add("conditions", new JsonArray());
+        fallback.add("actions", actions);
+
+        JsonArray underride = new JsonArray();
+        underride.add(fallback);
+
+        JsonObject global = new JsonObject();
+        global.add("override", new JsonArray());
+        global.add("content", new JsonArray());
+        global.add("room", new JsonArray());
+        global.add("sender", new JsonArray());
+        global.add("underride", underride);
+
+        JsonObject response = new JsonObject();
+        response.add("global", global);
+
+        return response.toString();
+    }
+}